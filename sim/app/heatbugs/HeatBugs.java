@@ -117,6 +117,7 @@ public /*strictfp*/ class HeatBugs extends SimState
         valgrid = new DoubleGrid2D(gridWidth, gridHeight,0);
         valgrid2 = new DoubleGrid2D(gridWidth, gridHeight, 0);
         buggrid = new SparseGrid2D(gridWidth, gridHeight);      
+        buggrid.setUsesDenseCells(true);  // every location is looked up in an array rather than hashed
         }
     
     ThreadedDiffuser diffuser = null;
@@ -7,14 +7,19 @@
 package sim.app.schelling;
 import sim.util.*;
 import sim.engine.*;
+import sim.field.grid.*;
 
-public /*strictfp*/ class Agent implements Steppable
+public /*strictfp*/ class Agent implements Steppable, LocationVisitor2D
     {
     private static final long serialVersionUID = 1;
 
     Int2D loc;
-    IntBag neighborsX = new IntBag(9);
-    IntBag neighborsY = new IntBag(9);
+
+    // used by visit(...) while we're looking around in step(...)
+    transient int[][] locs;
+    transient int myVal;
+    transient double val;
+    transient int threshold;
     
     public Agent( int x, int y) 
         {
@@ -31,26 +36,13 @@ public /*strictfp*/ class Agent implements Steppable
         if (locs[x][y] < Schelling.RED) return ;  // not an agent
         if (sch.emptySpaces.numObjs == 0) return;  // nowhere to move to!
         
-        // get all the places I can go.  This will be slow as we have to rely on grabbing neighbors.
-        sch.neighbors.getMooreLocations(loc.x,loc.y,sch.neighborhood,sch.neighbors.BOUNDED,true,neighborsX,neighborsY);
-        
-        // compute value
-        double val = 0;
-        int threshold = sch.threshold;  // locals a little faster
-        int numObjs = neighborsX.numObjs;
-        int[] objsX = neighborsX.objs;
-        int[] objsY = neighborsY.objs;
-        int myVal = locs[x][y];
-
-        for(int i=0;i<numObjs;i++)
-            {
-            if (locs[objsX[i]][objsY[i]] == myVal // just like me
-                && !(objsX[i] == x && objsY[i] == y))  // but it's NOT me
-                {
-                val += 1.0/Math.sqrt((x-objsX[i])*(x-objsX[i]) + (y-objsY[i])*(y-objsY[i]));
-                if (val >= threshold) return;  // we're not moving
-                }
-            }
+        // look at all the places around me, stopping as soon as I'm happy
+        this.locs = locs;
+        myVal = locs[x][y];
+        val = 0;
+        threshold = sch.threshold;
+        if (!sch.neighbors.visitMooreLocations(x,y,sch.neighborhood,sch.neighbors.BOUNDED,false,this))
+            return;  // we're not moving
             
         // find a new spot to live -- a random jump? Move to a nearby location?  Websites differ
         int newLocIndex = state.random.nextInt(sch.emptySpaces.numObjs);
@@ -65,4 +57,16 @@ public /*strictfp*/ class Agent implements Steppable
         loc = newLoc;
         }
 
+    public boolean visit(int x0, int y0)
+        {
+        if (locs[x0][y0] == myVal)  // just like me
+            {
+            int x = loc.x;
+            int y = loc.y;
+            val += 1.0/Math.sqrt((x-x0)*(x-x0) + (y-y0)*(y-y0));
+            if (val >= threshold) return false;  // we're not moving, so stop looking
+            }
+        return true;
+        }
+
     }
@@ -192,6 +192,11 @@ package sim.engine;
     *       };
     </tt></pre>
 
+    <p>Each time an AsynchronousSteppable is started or resumed, it builds a new thread.  If your model has
+    thousands of AsynchronousSteppables which spend most of their time blocked on I/O or sleeping, you can call
+    <b>setUsesVirtualThreads(true)</b> on each of them before they're stepped.  They'll then build virtual
+    threads instead, if your Java VM provides them: see sim.engine.VirtualThreads.  The main(...) method
+    stress-tests this by starting, checkpointing, restoring, and stopping 100,000 AsynchronousSteppables.
 
 */
 
@@ -202,8 +207,22 @@ public abstract class AsynchronousSteppable implements Stoppable
     Thread thread;
     boolean running = false;
     boolean paused = false;
+    boolean usesVirtualThreads = false;
     protected SimState state;
     
+    /** Sets whether the AsynchronousSteppable runs in a virtual thread rather than an ordinary thread.
+        This takes effect the next time the AsynchronousSteppable is started or resumed. */
+    public final synchronized void setUsesVirtualThreads(boolean val) { usesVirtualThreads = val; }
+    
+    /** Returns whether the AsynchronousSteppable runs in a virtual thread rather than an ordinary thread. */
+    public final synchronized boolean getUsesVirtualThreads() { return usesVirtualThreads; }
+    
+    Thread newThread(Runnable run)
+        {
+        if (usesVirtualThreads) return VirtualThreads.newThread(run, "Asynchronous Steppable: " + this);
+        else return new Thread(run);
+        }
+    
     /** This method should enter the parallel thread's loop.  If resuming is true, then you may assume
         the parallel steppable is being resumed in the middle of a simulation after being paused (likely to checkpoint),
         as opposed to being started fresh.  */
@@ -223,7 +242,7 @@ public abstract class AsynchronousSteppable implements Stoppable
         restoringFromCheckpoint = false;
         this.state = state;
         state.addToAsynchronousRegistry(this);
-        thread = new Thread(new Runnable() { public void run() { AsynchronousSteppable.this.run(false); } });
+        thread = newThread(new Runnable() { public void run() { AsynchronousSteppable.this.run(false); } });
         thread.setDaemon(true);
         thread.setName("Asynchronous Steppable: " + this);
         thread.start();
@@ -286,7 +305,7 @@ public abstract class AsynchronousSteppable implements Stoppable
         if (!paused || !running) return;
         restoringFromCheckpoint = true;
         paused = false;
-        thread = new Thread(new Runnable() { public void run() { AsynchronousSteppable.this.run(true); } });
+        thread = newThread(new Runnable() { public void run() { AsynchronousSteppable.this.run(true); } });
         thread.start();
         }
         
@@ -300,6 +319,7 @@ public abstract class AsynchronousSteppable implements Stoppable
         p.writeBoolean(running);
         p.writeBoolean(paused);
         p.writeObject(state);
+        p.writeBoolean(usesVirtualThreads);
         }
         
     /// Threads are not serializable, so we must manually rebuild here
@@ -309,6 +329,7 @@ public abstract class AsynchronousSteppable implements Stoppable
         running = p.readBoolean();
         paused = p.readBoolean();
         state = (SimState)(p.readObject());
+        usesVirtualThreads = p.readBoolean();
         }
         
     protected void finalize() throws Throwable
@@ -325,5 +346,97 @@ public abstract class AsynchronousSteppable implements Stoppable
         {
         return new Steppable() { public void step(SimState state) { stop(); } };
         }
+
+
+    // STRESS TEST
+
+    // Naps for a second at a time, counting its naps, until it's halted.  It parks rather than
+    // sleeping so that halt(...) can wake it up immediately, and rather than waiting on a lock because a
+    // virtual thread waiting in a synchronized block hogs the carrier thread underneath it: with thousands of
+    // Sleepers, the carriers would all be taken and nobody could be woken up.
+    static class Sleeper extends AsynchronousSteppable
+        {
+        private static final long serialVersionUID = 1;
+        
+        // The thread that has been asked to halt.  halt(...) names the thread rather than setting a flag that
+        // run(...) resets, so a halt which comes before the new thread even gets going isn't lost.
+        transient volatile Thread halted;
+        long naps;
+        
+        protected void run(boolean resuming)
+            {
+            Thread me = Thread.currentThread();
+            while(halted != me)
+                {
+                java.util.concurrent.locks.LockSupport.parkNanos(1000000000L);
+                naps++;
+                }
+            }
+                
+        // called from stop() and pause(), which hold our lock, so thread is the one they're about to join
+        protected void halt(boolean pausing)
+            {
+            halted = thread;
+            java.util.concurrent.locks.LockSupport.unpark(thread);
+            }
+        }
+
+    /** Starts 100,000 AsynchronousSteppables (or the number given as the first argument) which sleep in
+        virtual threads (unless the second argument is "false"), then checkpoints the simulation, which pauses and resumes them,
+        restores the checkpoint, which resumes the copies, and finally stops them all, checking that
+        everything was started and stopped properly along the way. */
+    public static void main(String[] args) throws Exception
+        {
+        int num = (args.length > 0 ? Integer.parseInt(args[0]) : 100000);
+        boolean virtual = (args.length > 1 ? !args[1].equals("false") : true);
+        System.out.println("AsynchronousSteppables: " + num + "\tVirtual threads: " + virtual + 
+            (virtual && !VirtualThreads.isAvailable() ? " (not available in this VM, falling back to ordinary threads)" : ""));
+        
+        SimState state = new SimState(1);
+        state.start();
+        Sleeper[] sleepers = new Sleeper[num];
+        long ms = System.currentTimeMillis();
+        for(int i = 0; i < num; i++)
+            {
+            sleepers[i] = new Sleeper();
+            sleepers[i].setUsesVirtualThreads(virtual);
+            sleepers[i].step(state);
+            }
+        System.out.println("Started in " + (System.currentTimeMillis() - ms) + "ms");
+        Thread.sleep(1000);
+        
+        ms = System.currentTimeMillis();
+        java.io.ByteArrayOutputStream out = new java.io.ByteArrayOutputStream();
+        state.writeToCheckpoint(out);  // pauses, writes, and resumes
+        System.out.println("Checkpointed " + out.size() + " bytes in " + (System.currentTimeMillis() - ms) + "ms");
+
+        ms = System.currentTimeMillis();
+        SimState restored = SimState.readFromCheckpoint(new java.io.ByteArrayInputStream(out.toByteArray()));  // resumes the copies
+        AsynchronousSteppable[] copies = restored.asynchronousRegistry();
+        System.out.println("Restored " + copies.length + " in " + (System.currentTimeMillis() - ms) + "ms");
+        Thread.sleep(1000);
+        
+        ms = System.currentTimeMillis();
+        state.kill();
+        restored.kill();
+        System.out.println("Stopped in " + (System.currentTimeMillis() - ms) + "ms");
+
+        long naps = 0;
+        int failures = 0;
+        for(int i = 0; i < num; i++)
+            {
+            naps += sleepers[i].naps;
+            if (sleepers[i].running || sleepers[i].thread.isAlive()) failures++;
+            }
+        for(int i = 0; i < copies.length; i++)
+            {
+            Sleeper copy = (Sleeper)(copies[i]);
+            if (copy.running || copy.thread == null || copy.thread.isAlive() || copy.usesVirtualThreads != virtual) failures++;
+            }
+        if (copies.length != num) failures++;
+        if (state.asynchronousRegistry().length != 0 || restored.asynchronousRegistry().length != 0) failures++;
+        System.out.println("Mean naps per original: " + (naps / (double)num) + "\tFailures: " + failures);
+        System.exit(failures == 0 ? 0 : 1);
+        }
     }
     
@@ -0,0 +1,537 @@
+/*
+  Copyright 2006 by Sean Luke and George Mason University
+  Licensed under the Academic Free License version 3.0
+  See the file "LICENSE" for more information
+*/
+
+package sim.engine;
+import sim.util.*;
+
+/**
+   CalendarQueue is a drop-in replacement for the DoubleIntHeap used by the Schedule.  It is an
+   implementation of Brown's calendar queue (R. Brown, "Calendar Queues: A Fast O(1) Priority Queue
+   Implementation for the Simulation Event Set Problem", CACM 31(10), 1988).  Time is divided into
+   <i>years</i> of <tt>numBuckets * width</tt> length, and each year into <i>days</i>, or buckets, of
+   length <tt>width</tt>.  An event at time t is placed in bucket <tt>floor(t / width) mod numBuckets</tt>.
+   Adding an event is O(1); extracting all the events for the next (time, ordering) is proportional to
+   the number of events in that event's bucket rather than O(lg n) per event.
+
+   <p>CalendarQueue only accepts Schedule.Key keys.  It stores their times and orderings in primitive
+   arrays and compares them directly rather than calling compareTo(...), and it does not hold onto the
+   Key objects themselves.  The Keys returned by getMinKey() and getKeys() are therefore new Key objects.
+
+   <p>Each bucket is unsorted, but remembers the position of its minimum element.  This is a good fit
+   for the common MASON pattern in which very large numbers of agents are all scheduled for the same
+   integer timestep: the entire timestep is extracted in a single pass over one bucket.  It is a poor fit
+   for pulling events out one at a time with extractMin(), which must rescan the bucket each time.  The
+   Schedule only uses extractMin(Bag).
+
+   <p>The number of buckets doubles whenever there are more than twice as many events as buckets.  At that
+   point the bucket width is also recomputed as the average separation among the earliest distinct event
+   times in the queue (ignoring outliers, per Brown).  If the width turns out to be too small for the
+   schedule (so that many consecutive extractions must fall back to a direct search of all the buckets
+   because the next event is more than a year away) then the width is recomputed as well.  The queue
+   does not shrink until it is cleared, in the same way that a Bag does not shrink on its own: a Schedule
+   drains and refills its queue at every timestep, and shrinking at the bottom of that cycle would
+   be wasteful.
+
+   <p>To use a CalendarQueue, call <tt>schedule.setUsesCalendarQueue(true)</tt>, pass <tt>-calendarqueue</tt>
+   to SimState.doLoop(...), or override Schedule.createHeap() to return a new CalendarQueue.
+   The main(...) method benchmarks the CalendarQueue against the binary Heap and the DoubleIntHeap.
+*/
+
+public class CalendarQueue extends Heap
+    {
+    private static final long serialVersionUID = 1;
+
+    /** The number of buckets in a newly created or cleared CalendarQueue. */
+    public static final int INITIAL_BUCKETS = 16;
+    /** The bucket width in a newly created or cleared CalendarQueue. */
+    public static final double INITIAL_WIDTH = 1.0;
+
+    // how many of the earliest distinct times we sample to compute the bucket width
+    static final int SAMPLE_SIZE = 32;
+    // how many direct searches in a row before we decide the width is too small
+    static final int MAX_DIRECT_SEARCHES = 4;
+    // the initial capacity of a bucket
+    static final int INITIAL_BUCKET_CAPACITY = 4;
+
+    // the buckets.  Only times[b][0...sizes[b]-1] etc. are valid
+    double[][] times;
+    int[][] orderings;
+    Object[][] objects;
+    int[] sizes;
+    // the index of the minimum element in each bucket, if the bucket is non-empty
+    int[] mins;
+
+    int numBuckets;
+    int mask;  // numBuckets - 1, numBuckets is always a power of two
+    double width;
+
+    int count = 0;
+
+    // the "virtual bucket" (the bucket index not yet wrapped modulo numBuckets) at which we presently
+    // are looking for the next event.  No event in the queue has a smaller virtual bucket.
+    long current = 0;
+
+    // how many direct searches we've done in a row, and how many we'll tolerate
+    int directSearches = 0;
+    int directSearchLimit = MAX_DIRECT_SEARCHES;
+
+    /** Creates an empty CalendarQueue. */
+    public CalendarQueue()
+        {
+        super();
+        buildBuckets(INITIAL_BUCKETS, INITIAL_WIDTH);
+        }
+
+    /** Creates an empty CalendarQueue with the given number of initial buckets (which will be rounded up to
+        a power of two) and the given initial bucket width.  */
+    public CalendarQueue(int initialBuckets, double initialWidth)
+        {
+        super();
+        if (initialBuckets <= 0)
+            throw new IllegalArgumentException("The number of buckets must be > 0: " + initialBuckets);
+        if (!(initialWidth > 0) || initialWidth == Double.POSITIVE_INFINITY)
+            throw new IllegalArgumentException("The bucket width must be a positive finite value: " + initialWidth);
+        int n = 1;
+        while(n < initialBuckets) n *= 2;
+        buildBuckets(n, initialWidth);
+        }
+
+    void buildBuckets(int numBuckets, double width)
+        {
+        this.numBuckets = numBuckets;
+        this.mask = numBuckets - 1;
+        this.width = width;
+        times = new double[numBuckets][];
+        orderings = new int[numBuckets][];
+        objects = new Object[numBuckets][];
+        sizes = new int[numBuckets];
+        mins = new int[numBuckets];
+        }
+
+    /** Returns the current number of buckets. */
+    public int getNumBuckets() { return numBuckets; }
+
+    /** Returns the current bucket width. */
+    public double getWidth() { return width; }
+
+    // returns the virtual bucket of the given time
+    final long virtualBucket(double time)
+        {
+        double d = time / width;
+        if (d >= 0) return (long) d;
+        else return (long) Math.floor(d);
+        }
+
+    // is (t1, o1) < (t2, o2) ?
+    static final boolean lessThan(double t1, int o1, double t2, int o2)
+        {
+        return (t1 < t2 || (t1 == t2 && o1 < o2));
+        }
+
+    // Adds without checking for resizing
+    void insert(Object elem, double time, int ordering)
+        {
+        long v = virtualBucket(time);
+        if (count == 0 || v < current)
+            current = v;
+        int b = (int)(v & mask);
+
+        int size = sizes[b];
+        double[] t = times[b];
+        if (t == null)
+            {
+            t = times[b] = new double[INITIAL_BUCKET_CAPACITY];
+            orderings[b] = new int[INITIAL_BUCKET_CAPACITY];
+            objects[b] = new Object[INITIAL_BUCKET_CAPACITY];
+            }
+        else if (size == t.length)
+            {
+            double[] newTimes = new double[size * 2];
+            System.arraycopy(t, 0, newTimes, 0, size);
+            t = times[b] = newTimes;
+            int[] newOrderings = new int[size * 2];
+            System.arraycopy(orderings[b], 0, newOrderings, 0, size);
+            orderings[b] = newOrderings;
+            Object[] newObjects = new Object[size * 2];
+            System.arraycopy(objects[b], 0, newObjects, 0, size);
+            objects[b] = newObjects;
+            }
+
+        t[size] = time;
+        orderings[b][size] = ordering;
+        objects[b][size] = elem;
+        if (size == 0) mins[b] = 0;
+        else
+            {
+            int m = mins[b];
+            if (lessThan(time, ordering, t[m], orderings[b][m]))
+                mins[b] = size;
+            }
+        sizes[b] = size + 1;
+        count++;
+        }
+
+    /** Adds an element to the queue with the given key, which must be a Schedule.Key.  The key itself
+        is not retained. */
+    public void add(Object elem, Comparable key)
+        {
+        Schedule.Key k = (Schedule.Key) key;
+        add(elem, k.time, k.ordering);
+        }
+
+    /** Adds an element to the queue at the given time and ordering. */
+    public void add(Object elem, double time, int ordering)
+        {
+        insert(elem, time, ordering);
+        if (count > numBuckets * 2)
+            rebuild(numBuckets * 2);
+        }
+
+    // Finds the bucket holding the minimum element, advancing the current virtual bucket to it.
+    // Returns -1 if there are no elements.
+    int minBucket()
+        {
+        if (count == 0) return -1;
+
+        int[] sizes = this.sizes;
+        int[] mins = this.mins;
+        double[][] times = this.times;
+        long v = current;
+
+        // scan for one year
+        for(int i = 0; i < numBuckets; i++, v++)
+            {
+            int b = (int)(v & mask);
+            if (sizes[b] > 0 && virtualBucket(times[b][mins[b]]) <= v)
+                {
+                current = v;
+                directSearches = 0;
+                return b;
+                }
+            }
+
+        // the next event is over a year away.  Do a direct search over the bucket minima.
+        int best = -1;
+        for(int b = 0; b < numBuckets; b++)
+            if (sizes[b] > 0)
+                {
+                int m = mins[b];
+                if (best == -1 || lessThan(times[b][m], orderings[b][m], times[best][mins[best]], orderings[best][mins[best]]))
+                    best = b;
+                }
+        current = virtualBucket(times[best][mins[best]]);
+
+        // too many of these in a row and our width is too small.  If recomputing the
+        // width doesn't change it, back off so we don't keep rebuilding for nothing.
+        if (++directSearches >= directSearchLimit)
+            {
+            double oldWidth = width;
+            rebuild(numBuckets);
+            if (width == oldWidth && directSearchLimit < (Integer.MAX_VALUE >> 1))
+                directSearchLimit *= 2;
+            else directSearchLimit = MAX_DIRECT_SEARCHES;
+            return minBucket();
+            }
+        return best;
+        }
+
+    // Recomputes the index of the minimum element in the given nonempty bucket
+    void recomputeMin(int b)
+        {
+        double[] t = times[b];
+        int[] o = orderings[b];
+        int size = sizes[b];
+        int m = 0;
+        for(int i = 1; i < size; i++)
+            if (lessThan(t[i], o[i], t[m], o[m]))
+                m = i;
+        mins[b] = m;
+        }
+
+    public Comparable getMinKey()
+        {
+        int b = minBucket();
+        if (b == -1) return null;
+        int m = mins[b];
+        return new Schedule.Key(times[b][m], orderings[b][m]);
+        }
+
+    public Object getMin()
+        {
+        int b = minBucket();
+        if (b == -1) return null;
+        return objects[b][mins[b]];
+        }
+
+    public Object extractMin()
+        {
+        int b = minBucket();
+        if (b == -1) return null;
+        int m = mins[b];
+        Object[] o = objects[b];
+        Object result = o[m];
+        int top = --sizes[b];
+        times[b][m] = times[b][top];
+        orderings[b][m] = orderings[b][top];
+        o[m] = o[top];
+        o[top] = null;
+        count--;
+        if (top > 0) recomputeMin(b);
+        return result;
+        }
+
+    public Bag extractMin(Bag putInHere)
+        {
+        if (putInHere == null) putInHere = new Bag();
+        int b = minBucket();
+        if (b == -1) return putInHere;
+
+        double[] t = times[b];
+        int[] o = orderings[b];
+        Object[] objs = objects[b];
+        int size = sizes[b];
+        int m = mins[b];
+        double minTime = t[m];
+        int minOrdering = o[m];
+
+        // compact the bucket in one pass, pulling out the minima and finding the next minimum
+        int newMin = 0;
+        int w = 0;
+        for(int r = 0; r < size; r++)
+            {
+            double time = t[r];
+            int ordering = o[r];
+            if (time == minTime && ordering == minOrdering)
+                putInHere.add(objs[r]);
+            else
+                {
+                if (w != r)
+                    {
+                    t[w] = time;
+                    o[w] = ordering;
+                    objs[w] = objs[r];
+                    }
+                if (w > 0 && lessThan(time, ordering, t[newMin], o[newMin]))
+                    newMin = w;
+                w++;
+                }
+            }
+        for(int r = w; r < size; r++)
+            objs[r] = null;  // let GC
+
+        sizes[b] = w;
+        mins[b] = newMin;
+        count -= (size - w);
+        return putInHere;
+        }
+
+    public int size()
+        {
+        return count;
+        }
+
+    public boolean isEmpty()
+        {
+        return (count == 0);
+        }
+
+    public void clear()
+        {
+        buildBuckets(INITIAL_BUCKETS, INITIAL_WIDTH);
+        count = 0;
+        current = 0;
+        directSearches = 0;
+        directSearchLimit = MAX_DIRECT_SEARCHES;
+        }
+
+    public Comparable[] getKeys()
+        {
+        Comparable[] k = new Comparable[count];
+        int x = 0;
+        for(int b = 0; b < numBuckets; b++)
+            for(int i = 0; i < sizes[b]; i++)
+                k[x++] = new Schedule.Key(times[b][i], orderings[b][i]);
+        return k;
+        }
+
+    public Object[] getObjects()
+        {
+        Object[] o = new Object[count];
+        int x = 0;
+        for(int b = 0; b < numBuckets; b++)
+            {
+            if (sizes[b] == 0) continue;
+            System.arraycopy(objects[b], 0, o, x, sizes[b]);
+            x += sizes[b];
+            }
+        return o;
+        }
+
+    /**
+       Produces a new CalendarQueue which is the union of this queue with the other, which may be
+       any Heap whose keys are Schedule.Keys.  The original queues are not modified.  The new queue is returned.
+    */
+    public Heap merge(Heap other)
+        {
+        CalendarQueue q = new CalendarQueue(numBuckets, width);
+        for(int b = 0; b < numBuckets; b++)
+            for(int i = 0; i < sizes[b]; i++)
+                q.add(objects[b][i], times[b][i], orderings[b][i]);
+        Comparable[] k = other.getKeys();
+        Object[] o = other.getObjects();
+        for(int i = 0; i < k.length; i++)
+            q.add(o[i], k[i]);
+        return q;
+        }
+
+    // Computes a new width from the average separation among the earliest SAMPLE_SIZE distinct times,
+    // discarding separations more than twice the average.  Separations which are just epsilon bumps
+    // (such as time vs. time + epsilon) aren't considered distinct.  Returns the old width if
+    // there are too few distinct times to say.
+    double computeWidth(double[] allTimes, int len)
+        {
+        double[] sample = new double[SAMPLE_SIZE];
+        int n = 0;
+        for(int i = 0; i < len; i++)
+            {
+            double t = allTimes[i];
+            if (n == SAMPLE_SIZE && t >= sample[n - 1]) continue;  // the common case
+            // find the insertion point
+            int lo = 0;
+            int hi = n;
+            while(lo < hi)
+                {
+                int mid = (lo + hi) >>> 1;
+                if (sample[mid] < t) lo = mid + 1;
+                else hi = mid;
+                }
+            if (lo < n && sample[lo] == t) continue;  // already have it
+            if (n == SAMPLE_SIZE) n--;                // drop the largest
+            System.arraycopy(sample, lo, sample, lo + 1, n - lo);
+            sample[lo] = t;
+            n++;
+            }
+
+        double total = 0;
+        int gaps = 0;
+        for(int i = 1; i < n; i++)
+            {
+            double gap = sample[i] - sample[i-1];
+            if (gap > Math.ulp(sample[i]) * 2) { total += gap; gaps++; }
+            }
+        if (gaps == 0) return width;
+        double average = total / gaps;
+
+        double trimmed = 0;
+        int trimmedGaps = 0;
+        for(int i = 1; i < n; i++)
+            {
+            double gap = sample[i] - sample[i-1];
+            if (gap > Math.ulp(sample[i]) * 2 && gap <= average * 2) { trimmed += gap; trimmedGaps++; }
+            }
+        double w = (trimmedGaps == 0 ? average : trimmed / trimmedGaps);
+        if (!(w > 0) || w == Double.POSITIVE_INFINITY) return width;
+        return w;
+        }
+
+    // Rehashes everything into a new set of buckets with a recomputed width
+    void rebuild(int newNumBuckets)
+        {
+        int len = count;
+        double[] allTimes = new double[len];
+        int[] allOrderings = new int[len];
+        Object[] allObjects = new Object[len];
+        int x = 0;
+        for(int b = 0; b < numBuckets; b++)
+            {
+            int size = sizes[b];
+            if (size == 0) continue;
+            System.arraycopy(times[b], 0, allTimes, x, size);
+            System.arraycopy(orderings[b], 0, allOrderings, x, size);
+            System.arraycopy(objects[b], 0, allObjects, x, size);
+            x += size;
+            }
+
+        buildBuckets(newNumBuckets, computeWidth(allTimes, len));
+        count = 0;
+        directSearches = 0;
+        for(int i = 0; i < len; i++)
+            insert(allObjects[i], allTimes[i], allOrderings[i]);
+        }
+
+
+    // BENCHMARK
+
+    // Schedules n events in the given queue and then runs them, each event rescheduling itself
+    // at a time given by the pattern, until the given number of events have been extracted.
+    // Returns the time taken in milliseconds.
+    static long benchmark(Heap queue, int pattern, int n, long events, long seed)
+        {
+        ec.util.MersenneTwisterFast random = new ec.util.MersenneTwisterFast(seed);
+        Bag bag = new Bag();
+        for(int i = 0; i < n; i++)
+            queue.add(Integer.valueOf(i), new Schedule.Key(nextTime(pattern, 0.0, random), i % 3));
+
+        long ms = System.currentTimeMillis();
+        long extracted = 0;
+        while(extracted < events)
+            {
+            Schedule.Key key = (Schedule.Key)(queue.getMinKey());
+            double time = key.time;
+            // pull out everything at this timestep, like the Schedule does
+            while(key != null && key.time == time)
+                {
+                queue.extractMin(bag);
+                key = (Schedule.Key)(queue.getMinKey());
+                }
+            extracted += bag.numObjs;
+            for(int i = 0; i < bag.numObjs; i++)
+                queue.add(bag.objs[i], new Schedule.Key(nextTime(pattern, time, random), i % 3));
+            bag.clear();
+            }
+        return System.currentTimeMillis() - ms;
+        }
+
+    static final int REPEATING = 0;
+    static final int SPARSE = 1;
+    static final int BURSTY = 2;
+
+    static double nextTime(int pattern, double time, ec.util.MersenneTwisterFast random)
+        {
+        switch(pattern)
+            {
+            case REPEATING:   // everyone on the next integer timestep
+                return Math.floor(time) + 1.0;
+            case SPARSE:      // continuous time, exponentially distributed
+                return time - Math.log(1.0 - random.nextDouble()) * 100.0;
+            default:          // mostly the next step, but occasionally far into the future
+                return Math.floor(time) + (random.nextBoolean(0.05) ? 1.0 + random.nextInt(1000) : 1.0);
+            }
+        }
+
+    /** Benchmarks the CalendarQueue against the binary Heap and the DoubleIntHeap on repeating, sparse, and bursty schedules.
+        Optionally pass in the number of agents (default 100000). */
+    public static void main(String[] args)
+        {
+        int n = (args.length > 0 ? Integer.parseInt(args[0]) : 100000);
+        long events = n * 50L;
+        String[] names = new String[] { "Repeating", "Sparse", "Bursty" };
+
+        System.out.println("Agents: " + n + "   Events per run: " + events);
+        for(int pattern = REPEATING; pattern <= BURSTY; pattern++)
+            {
+            // warm up
+            benchmark(new Heap(), pattern, n, events / 10, 1);
+            benchmark(new DoubleIntHeap(), pattern, n, events / 10, 1);
+            benchmark(new CalendarQueue(), pattern, n, events / 10, 1);
+
+            long heap = benchmark(new Heap(), pattern, n, events, 2);
+            long doubleIntHeap = benchmark(new DoubleIntHeap(), pattern, n, events, 2);
+            long calendar = benchmark(new CalendarQueue(), pattern, n, events, 2);
+            System.out.println(names[pattern] + "\tHeap: " + heap + "ms\tDoubleIntHeap: " + doubleIntHeap + "ms\tCalendarQueue: " + calendar + "ms");
+            }
+        }
+    }
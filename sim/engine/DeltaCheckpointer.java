@@ -0,0 +1,330 @@
+/*
+  Copyright 2006 by Sean Luke and George Mason University
+  Licensed under the Academic Free License version 3.0
+  See the file "LICENSE" for more information
+*/
+
+package sim.engine;
+import sim.util.*;
+import java.io.*;
+import java.util.*;
+import java.util.zip.*;
+
+/**
+   A DeltaCheckpointer writes a series of checkpoints of a simulation, most of which contain only what has
+   changed since the checkpoint before.  You'd ordinarily get at it by passing <tt>-deltas <i>K</i></tt>
+   along with <tt>-docheckpoint</tt> to doLoop(...), but you can also use one yourself.
+
+   <p>First you call writeBase(...), which writes an ordinary checkpoint, which SimState.readFromCheckpoint(...)
+   can read like any other.  As the DeltaCheckpointer writes it out, it notes every DeltaCheckpointable
+   object in the simulation (which includes SparseFields, such as Continuous2D and SparseGrid2D, and DoubleGrid2D
+   and IntGrid2D), and tells each one to start keeping track of how it changes.  From then on, each time you call
+   writeDelta(...), the DeltaCheckpointer writes out the rest of the simulation as usual, but for the DeltaCheckpointable
+   objects it writes only their changes.  Each delta file names the checkpoint before it, and must be in the same
+   directory.  To read a delta file, SimState.readFromCheckpoint(File) reads the base and each delta in turn,
+   bringing the DeltaCheckpointable objects up to date as it goes.
+
+   <p>The base checkpoint is written in full while the simulation waits, like an ordinary checkpoint.  But writeDelta(...)
+   only waits while the rest of the simulation and the changes are serialized, uncompressed, into memory.  Compressing
+   them and writing them to disk, which usually takes most of the time, is done in a background thread while the
+   simulation carries on.  Only one delta is written in the background at a time: if the previous one hasn't finished,
+   writeDelta(...) waits for it.  Call finish() when you're done, to wait for the last one and to tell the objects
+   to stop keeping track of their changes.
+
+   <p>This is worthwhile if most of the memory in your simulation is in the big fields, and most of the fields
+   don't change from checkpoint to checkpoint.  Everything else, including all your agents, is written out in
+   full every time.  Note that the agents in a field are written out with each delta even if they're not held by
+   anything else.  Objects are read in afresh from each delta, so if your agents hold onto the arrays of a grid,
+   they'll have different arrays than the grid does when they're read back in.  DeltaCheckpointable objects
+   inside DeltaCheckpointable objects are treated as ordinary data.
+*/
+
+public class DeltaCheckpointer
+    {
+    // the DeltaCheckpointable objects we know about, by id, or null if they've gone away
+    ArrayList known = new ArrayList();
+    IdentityHashMap ids = new IdentityHashMap();
+    File previous;
+    Thread writer;
+    IOException writerException;
+
+    /** Stands in for a DeltaCheckpointable object in a delta. */
+    static class Ref implements Serializable
+        {
+        private static final long serialVersionUID = 1;
+        int id;
+        Ref(int id) { this.id = id; }
+        }
+
+    /** The first thing in a delta file. */
+    static class Header implements Serializable
+        {
+        private static final long serialVersionUID = 1;
+        String previous;
+        Header(String previous) { this.previous = previous; }
+        }
+
+    // Notes each DeltaCheckpointable as it's written.  In a delta, replaces the ones we already know about with Refs.
+    class Out extends ObjectOutputStream
+        {
+        boolean delta;
+        IdentityHashMap seen = new IdentityHashMap();
+
+        Out(OutputStream out, boolean delta) throws IOException
+            {
+            super(out);
+            this.delta = delta;
+            enableReplaceObject(true);
+            }
+
+        protected Object replaceObject(Object obj)
+            {
+            if (!(obj instanceof DeltaCheckpointable)) return obj;
+            seen.put(obj, obj);
+            Integer id = (Integer)(ids.get(obj));
+            if (delta && id != null) return new Ref(id.intValue());
+            if (id == null)  // new to us, so it's written in full
+                {
+                ids.put(obj, Integer.valueOf(known.size()));
+                known.add(obj);
+                ((DeltaCheckpointable) obj).startDeltas();
+                }
+            return obj;
+            }
+        }
+
+    // Replaces Refs with the objects they stand for
+    static class In extends ObjectInputStream
+        {
+        Object[] known;
+
+        In(InputStream in, Object[] known) throws IOException
+            {
+            super(in);
+            this.known = known;
+            enableResolveObject(true);
+            }
+
+        protected Object resolveObject(Object obj) throws IOException
+            {
+            if (!(obj instanceof Ref)) return obj;
+            int id = ((Ref) obj).id;
+            if (id >= known.length || known[id] == null)
+                throw new InvalidObjectException("Delta checkpoint refers to an unknown object " + id);
+            return known[id];
+            }
+        }
+
+    /** Writes the state in full to the given file.  Later deltas are relative to this one. */
+    public void writeBase(SimState state, File file) throws IOException
+        {
+        waitForWriter();
+        stopDeltas();
+        known.clear();
+        ids.clear();
+
+        state.preCheckpoint();
+        FileOutputStream f = new FileOutputStream(file);
+        try
+            {
+            GZIPOutputStream g = new GZIPOutputStream(new BufferedOutputStream(f));
+            Out s = new Out(g, false);
+            s.writeObject(state);
+            s.writeObject(known.toArray());  // SimState.readFromCheckpoint(...) doesn't read this far
+            s.flush();
+            g.finish();
+            g.flush();
+            }
+        finally
+            {
+            f.close();
+            state.postCheckpoint();
+            }
+        previous = file;
+        }
+
+    /** Writes the changes since the last checkpoint to the given file, compressing it and writing it to disk
+        in the background.  If writeBase(...) hasn't been called yet, calls it instead. */
+    public void writeDelta(SimState state, File file) throws IOException
+        {
+        if (previous == null) { writeBase(state, file); return; }
+        waitForWriter();
+
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        state.preCheckpoint();
+        try
+            {
+            int size = known.size();  // any more than this are new, and will be written in full
+            Out s = new Out(bytes, true);
+            s.writeObject(new Header(previous.getName()));
+            s.writeObject(state);
+
+            // the changes of each object we knew about before which is still around
+            IntBag deltaIds = new IntBag();
+            Bag deltas = new Bag();
+            for(int i = 0; i < size; i++)
+                {
+                Object obj = known.get(i);
+                if (obj == null) continue;
+                if (!s.seen.containsKey(obj))  // it's not part of the simulation any more
+                    {
+                    ((DeltaCheckpointable) obj).stopDeltas();
+                    ids.remove(obj);
+                    known.set(i, null);
+                    continue;
+                    }
+                deltaIds.add(i);
+                deltas.add(((DeltaCheckpointable) obj).getDelta());
+                }
+            s.writeObject(deltaIds.toArray());
+            s.writeObject(deltas.toArray());
+            s.writeObject(known.toArray());
+            s.flush();
+            }
+        finally
+            {
+            state.postCheckpoint();
+            }
+        previous = file;
+
+        final File f = file;
+        writer = new Thread(new Runnable()
+            {
+            public void run()
+                {
+                try
+                    {
+                    FileOutputStream out = new FileOutputStream(f);
+                    try
+                        {
+                        GZIPOutputStream g = new GZIPOutputStream(new BufferedOutputStream(out));
+                        bytes.writeTo(g);
+                        g.finish();
+                        g.flush();
+                        }
+                    finally { out.close(); }
+                    }
+                catch (IOException e) { writerException = e; }
+                }
+            });
+        writer.setName("DeltaCheckpointer writing " + file);
+        writer.start();
+        }
+
+    /** Waits for the delta being written in the background, if any, to finish, and tells the objects
+        to stop keeping track of their changes. */
+    public void finish() throws IOException
+        {
+        waitForWriter();
+        stopDeltas();
+        }
+
+    void stopDeltas()
+        {
+        for(int i = 0; i < known.size(); i++)
+            if (known.get(i) != null)
+                ((DeltaCheckpointable)(known.get(i))).stopDeltas();
+        }
+
+    void waitForWriter() throws IOException
+        {
+        if (writer != null)
+            {
+            while(true)
+                {
+                try { writer.join(); break; }
+                catch (InterruptedException e) { }  // try again
+                }
+            writer = null;
+            }
+        if (writerException != null)
+            {
+            IOException e = writerException;
+            writerException = null;
+            throw e;
+            }
+        }
+
+    /** Returns true if the file is a delta written by a DeltaCheckpointer. */
+    public static boolean isDelta(File file) throws IOException
+        {
+        return readHeader(file) != null;
+        }
+
+    // Thrown when peeking at a file which doesn't start with a Header
+    static class NotADelta extends IOException
+        {
+        private static final long serialVersionUID = 1;
+        }
+
+    // Returns the header of a delta, or null if it's some other checkpoint.  Gives up as soon as it
+    // sees the class of the first object, so as not to read in an entire base checkpoint.
+    static Header readHeader(File file) throws IOException
+        {
+        FileInputStream f = new FileInputStream(file);
+        try
+            {
+            ObjectInputStream s = new ObjectInputStream(new GZIPInputStream(new BufferedInputStream(f)))
+                {
+                protected Class resolveClass(ObjectStreamClass desc) throws IOException, ClassNotFoundException
+                    {
+                    if (!desc.getName().equals(Header.class.getName())) throw new NotADelta();
+                    return super.resolveClass(desc);
+                    }
+                };
+            return (Header)(s.readObject());
+            }
+        catch (NotADelta e) { return null; }
+        catch (ClassNotFoundException e) { return null; }
+        finally { f.close(); }
+        }
+
+    /** Reads the given delta, and the base and deltas before it, and returns the SimState as it was when the
+        delta was written.  Calls awakeFromCheckpoint() on the final SimState only.  If the file is an ordinary
+        checkpoint, just reads it. */
+    public static SimState read(File file) throws IOException, ClassNotFoundException
+        {
+        // figure out the base and the deltas since, from the last back
+        LinkedList files = new LinkedList();
+        Header header;
+        while((header = readHeader(file)) != null)
+            {
+            files.addFirst(file);
+            file = new File(file.getAbsoluteFile().getParentFile(), header.previous);
+            }
+        files.addFirst(file);
+
+        // read the base
+        SimState state = null;
+        Object[] known = new Object[0];
+        FileInputStream f = new FileInputStream((File)(files.removeFirst()));
+        try
+            {
+            ObjectInputStream s = new ObjectInputStream(new GZIPInputStream(new BufferedInputStream(f)));
+            state = (SimState)(s.readObject());
+            if (!files.isEmpty()) known = (Object[])(s.readObject());
+            }
+        finally { f.close(); }
+
+        // read each delta, bringing the objects up to date
+        while(!files.isEmpty())
+            {
+            f = new FileInputStream((File)(files.removeFirst()));
+            try
+                {
+                In s = new In(new GZIPInputStream(new BufferedInputStream(f)), known);
+                s.readObject();  // header
+                state = (SimState)(s.readObject());
+                int[] deltaIds = (int[])(s.readObject());
+                Object[] deltas = (Object[])(s.readObject());
+                for(int i = 0; i < deltaIds.length; i++)
+                    ((DeltaCheckpointable)(known[deltaIds[i]])).applyDelta(deltas[i]);
+                known = (Object[])(s.readObject());
+                }
+            finally { f.close(); }
+            }
+
+        state.awakeFromCheckpoint();
+        return state;
+        }
+    }
@@ -0,0 +1,322 @@
+/*
+  Copyright 2006 by Sean Luke and George Mason University
+  Licensed under the Academic Free License version 3.0
+  See the file "LICENSE" for more information
+*/
+
+package sim.engine;
+import sim.util.*;
+
+/**
+   DoubleIntHeap is the Schedule's default queue.  It is a d-ary heap specialized for Schedule.Key keys:
+   rather than storing Comparable keys and calling compareTo(...) on them, it stores each key's time and
+   ordering in parallel double[] and int[] arrays and compares them inline.  It does not hold onto the
+   Key objects themselves, so the Keys returned by getMinKey() and getKeys() are new Key objects.
+
+   <p>The <i>arity</i> of the heap is the number of children each node has.  An arity of 2 gives an ordinary binary
+   heap, laid out exactly as sim.util.Heap is.  Larger arities make the heap shallower, so adding is cheaper, and
+   because a node's children sit next to one another in memory, extracting touches fewer cache lines even though
+   it compares more children at each level.  But heaps of different arities extract keys with equal times and orderings
+   in different orders, and the Schedule shuffles Steppables in the order they come out of its queue, so changing the
+   arity changes the results of a simulation for a given seed.  The default arity is therefore 2, which extracts
+   everything in exactly the same order as sim.util.Heap.  An arity of 4 is generally faster for large heaps: to use it,
+   override Schedule.createHeap() to return new DoubleIntHeap(4), bearing in mind that your results will no longer
+   match those of the default Schedule.
+
+   <p>Because it extends Heap, a DoubleIntHeap may be returned by Schedule.createHeap().  But it only accepts
+   Schedule.Key keys: if you need a queue for other kinds of keys, use Heap.
+   The main(...) method benchmarks the DoubleIntHeap against Heap.
+*/
+
+public class DoubleIntHeap extends Heap
+    {
+    private static final long serialVersionUID = 1;
+
+    /** The arity of a DoubleIntHeap built with the default constructor. */
+    public static final int DEFAULT_ARITY = 2;
+
+    // the keys, split into times and orderings
+    double[] times;
+    int[] orderings;
+
+    // the information associated with the keys
+    Object[] objects;
+
+    int numElem = 0;
+    final int arity;
+
+    /** Creates an empty DoubleIntHeap of DEFAULT_ARITY. */
+    public DoubleIntHeap()
+        {
+        this(DEFAULT_ARITY);
+        }
+
+    /** Creates an empty DoubleIntHeap of the given arity, which must be at least 2. */
+    public DoubleIntHeap(int arity)
+        {
+        super();
+        if (arity < 2)
+            throw new IllegalArgumentException("Arity must be >= 2: " + arity);
+        this.arity = arity;
+        times = new double[0];
+        orderings = new int[0];
+        objects = new Object[0];
+        }
+
+    /** Returns the arity of the heap. */
+    public int getArity() { return arity; }
+
+    // is (t1, o1) < (t2, o2) ?
+    static final boolean lessThan(double t1, int o1, double t2, int o2)
+        {
+        return (t1 < t2 || (t1 == t2 && o1 < o2));
+        }
+
+    /** Returns the time of the current min element.  Returns Schedule.AFTER_SIMULATION if there is no such element. */
+    public double getMinTime()
+        {
+        if (numElem == 0) return Schedule.AFTER_SIMULATION;
+        return times[0];
+        }
+
+    /** Returns the ordering of the current min element.  Returns 0 if there is no such element. */
+    public int getMinOrdering()
+        {
+        if (numElem == 0) return 0;
+        return orderings[0];
+        }
+
+    public Comparable getMinKey()
+        {
+        if (numElem == 0) return null;
+        return new Schedule.Key(times[0], orderings[0]);
+        }
+
+    public Object getMin()
+        {
+        if (numElem == 0) return null;
+        return objects[0];
+        }
+
+    /** Adds an element to the heap with the given key, which must be a Schedule.Key.  The key itself
+        is not retained. */
+    public void add(Object elem, Comparable key)
+        {
+        Schedule.Key k = (Schedule.Key) key;
+        add(elem, k.time, k.ordering);
+        }
+
+    /** Adds an element to the heap at the given time and ordering. */
+    public void add(Object elem, double time, int ordering)
+        {
+        // make local
+        int numElem = this.numElem;
+        double[] times = this.times;
+        int[] orderings = this.orderings;
+        Object[] objects = this.objects;
+
+        if (numElem >= objects.length)
+            {
+            int newLength = objects.length * 2 + 1;
+            double[] newTimes = new double[newLength];
+            System.arraycopy(times, 0, newTimes, 0, numElem);
+            int[] newOrderings = new int[newLength];
+            System.arraycopy(orderings, 0, newOrderings, 0, numElem);
+            Object[] newObjects = new Object[newLength];
+            System.arraycopy(objects, 0, newObjects, 0, numElem);
+
+            // arrays have changed
+            this.times = times = newTimes;
+            this.orderings = orderings = newOrderings;
+            this.objects = objects = newObjects;
+            }
+
+        // bubble up, moving the hole rather than swapping
+        int arity = this.arity;
+        int i = numElem;
+        while (i > 0)
+            {
+            int parent = (i - 1) / arity;
+            if (!lessThan(time, ordering, times[parent], orderings[parent])) break;
+            times[i] = times[parent];
+            orderings[i] = orderings[parent];
+            objects[i] = objects[parent];
+            i = parent;
+            }
+        times[i] = time;
+        orderings[i] = ordering;
+        objects[i] = elem;
+
+        // put back
+        this.numElem = numElem + 1;
+        }
+
+    /** Removes the first minimum element and its key from the heap, and returns the minimum element.  Will return null if the heap is empty */
+    public Object extractMin()
+        {
+        // make local
+        int numElem = this.numElem;
+        double[] times = this.times;
+        int[] orderings = this.orderings;
+        Object[] objects = this.objects;
+
+        if (numElem == 0)
+            return null;
+        Object result = objects[0];
+        numElem--;
+
+        // pull off the last element and sift it down from the top, moving the hole rather than swapping
+        double time = times[numElem];
+        int ordering = orderings[numElem];
+        Object elem = objects[numElem];
+        objects[numElem] = null;  // let GC
+
+        if (numElem > 0)
+            {
+            int arity = this.arity;
+            int i = 0;
+            while(true)
+                {
+                int first = i * arity + 1;
+                if (first >= numElem) break;
+                int last = first + arity;
+                if (last > numElem) last = numElem;
+
+                // find the smallest child
+                int smallest = first;
+                double smallestTime = times[first];
+                int smallestOrdering = orderings[first];
+                for(int c = first + 1; c < last; c++)
+                    if (lessThan(times[c], orderings[c], smallestTime, smallestOrdering))
+                        {
+                        smallest = c;
+                        smallestTime = times[c];
+                        smallestOrdering = orderings[c];
+                        }
+
+                if (!lessThan(smallestTime, smallestOrdering, time, ordering)) break;
+                times[i] = smallestTime;
+                orderings[i] = smallestOrdering;
+                objects[i] = objects[smallest];
+                i = smallest;
+                }
+            times[i] = time;
+            orderings[i] = ordering;
+            objects[i] = elem;
+            }
+
+        // put back
+        this.numElem = numElem;
+        return result;
+        }
+
+    /** Removes all key-equal minimum elements and adds them to a Bag, which is then is returned.
+        You may provide a Bag -- putInHere -- to be filled in. */
+    public Bag extractMin(Bag putInHere)
+        {
+        if (putInHere == null) putInHere = new Bag();
+        if (numElem == 0) return putInHere;
+        double time = times[0];
+        int ordering = orderings[0];
+        while(numElem > 0 && times[0] == time && orderings[0] == ordering)
+            putInHere.add(extractMin());
+        return putInHere;
+        }
+
+    public int size()
+        {
+        return numElem;
+        }
+
+    public boolean isEmpty()
+        {
+        return (numElem == 0);
+        }
+
+    public void clear()
+        {
+        // let go of the objects so they GC
+        Object[] objects = this.objects;
+        for(int x = 0; x < numElem; x++)
+            objects[x] = null;
+        numElem = 0;
+        }
+
+    public Comparable[] getKeys()
+        {
+        Comparable[] k = new Comparable[numElem];
+        for(int x = 0; x < numElem; x++)
+            k[x] = new Schedule.Key(times[x], orderings[x]);
+        return k;
+        }
+
+    public Object[] getObjects()
+        {
+        Object[] o = new Object[numElem];
+        System.arraycopy(objects, 0, o, 0, numElem);
+        return o;
+        }
+
+    /**
+       Produces a new DoubleIntHeap which is the union of this heap with the other, which may be
+       any Heap whose keys are Schedule.Keys.  The original heaps are not modified.  The new heap is returned.
+    */
+    public Heap merge(Heap other)
+        {
+        DoubleIntHeap h = new DoubleIntHeap(arity);
+        for(int x = 0; x < numElem; x++)
+            h.add(objects[x], times[x], orderings[x]);
+        Comparable[] k = other.getKeys();
+        Object[] o = other.getObjects();
+        for(int x = 0; x < k.length; x++)
+            h.add(o[x], k[x]);
+        return h;
+        }
+
+
+    // BENCHMARK
+
+    // Runs the "hold" model: fill the heap with n elements, then repeatedly extract the minimum and
+    // add it back at a later time, for the given number of operations.  If integral is true, times are
+    // integers and there are three orderings, as is common in MASON models, so many keys are equal.
+    // Returns the time taken in milliseconds.
+    static long benchmark(Heap heap, int n, long operations, boolean integral, long seed)
+        {
+        ec.util.MersenneTwisterFast random = new ec.util.MersenneTwisterFast(seed);
+        for(int i = 0; i < n; i++)
+            heap.add(Integer.valueOf(i), new Schedule.Key(integral ? 1 + random.nextInt(10) : random.nextDouble() * 10.0, integral ? random.nextInt(3) : 0));
+
+        long ms = System.currentTimeMillis();
+        for(long op = 0; op < operations; op++)
+            {
+            Schedule.Key key = (Schedule.Key)(heap.getMinKey());
+            Object obj = heap.extractMin();
+            heap.add(obj, new Schedule.Key(integral ? key.time + 1 + random.nextInt(10) : key.time + random.nextDouble() * 10.0, key.ordering));
+            }
+        return System.currentTimeMillis() - ms;
+        }
+
+    /** Benchmarks the binary and 4-ary DoubleIntHeaps against Heap for 10^4 through 10^7 elements
+        with random real-valued times and with integer times and orderings. */
+    public static void main(String[] args)
+        {
+        long operations = 5000000;
+        System.out.println("Operations per run: " + operations);
+        for(int integral = 0; integral < 2; integral++)
+            {
+            System.out.println(integral == 1 ? "Integer times and orderings" : "Real-valued times");
+            for(int n = 10000; n <= 10000000; n *= 10)
+                {
+                // warm up
+                benchmark(new Heap(), Math.min(n, 10000), operations / 10, integral == 1, 1);
+                benchmark(new DoubleIntHeap(2), Math.min(n, 10000), operations / 10, integral == 1, 1);
+                benchmark(new DoubleIntHeap(4), Math.min(n, 10000), operations / 10, integral == 1, 1);
+
+                long heap = benchmark(new Heap(), n, operations, integral == 1, 2);
+                long binary = benchmark(new DoubleIntHeap(2), n, operations, integral == 1, 2);
+                long quaternary = benchmark(new DoubleIntHeap(4), n, operations, integral == 1, 2);
+                System.out.println("n=" + n + "\tHeap: " + heap + "ms\tDoubleIntHeap(2): " + binary + "ms\tDoubleIntHeap(4): " + quaternary + "ms");
+                }
+            }
+        }
+    }
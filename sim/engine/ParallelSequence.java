@@ -6,6 +6,7 @@
 
 package sim.engine;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 import java.util.*;
 import sim.util.*;
 
@@ -50,6 +51,23 @@ import sim.util.*;
     at the end of the run to call cleanup() on it.  It's not a bad idea for a ParallelSequence which
     is one-shot rather than repeating.
     
+    <p><b>Virtual Threads</b>
+    If you call <b>setUsesVirtualThreads(true)</b>, the ParallelSequence doesn't keep a pool of threads
+    at all.  Instead, each time it's stepped it starts new virtual threads, which are very cheap to build, and
+    lets them go when they're done, so there's nothing to clean up.  If your Java VM doesn't provide virtual threads,
+    you get new ordinary threads instead, which is much more expensive.  See sim.engine.VirtualThreads.
+    
+    <p><b>Work Stealing</b>
+    Ordinarily a ParallelSequence divides its Steppables into one contiguous chunk per thread.  If some
+    Steppables take much longer to step than others, some threads will finish early and sit idle while the
+    others grind away.  If you call <b>setUsesWorkStealing(true)</b>, each thread instead starts on its own
+    chunk but takes it a bit at a time (an eighth of what's left, but no fewer than <b>getMinimumGrain()</b>
+    Steppables), and when it runs out it steals the back half of whatever is left of the chunk of the thread
+    with the most remaining.  This is a bit more expensive per Steppable, so raise the minimum grain if your
+    Steppables are very cheap to step.  You can see how well the threads were balanced during the most recent
+    step() with <b>getWorkerTimes()</b>, <b>getWorkerSteps()</b>, and <b>getWorkerSteals()</b>.  The main(...) method
+    benchmarks the two approaches on Steppables of very uneven cost.
+    
     <p>Be sure to read the class documentation on sim.engine.Sequence</b>
 */
 
@@ -67,16 +85,56 @@ public class ParallelSequence extends Sequence
     public static final int STEPPABLES = -2;
     static int availableProcessors = Runtime.getRuntime().availableProcessors();
         
+    boolean usesVirtualThreads = false;
+    ArrayList virtualThreads = new ArrayList();  // the virtual threads presently running
+    boolean usesWorkStealing = false;
+    int minimumGrain = 1;
+    StealingWorker[] stealers;  // rebuilt as necessary
+    
+    // statistics for each thread during the most recent step()
+    long[] workerTimes = new long[0];
+    int[] workerSteps = new int[0];
+    int[] workerSteals = new int[0];
+
     public boolean getDestroysThreads() { return destroysThreads; }
     public void setDestroysThreads(boolean val) { destroysThreads = val; }
+    
+    /** Returns whether the ParallelSequence steps in new virtual threads each time rather than in its own pool of threads. */
+    public boolean getUsesVirtualThreads() { return usesVirtualThreads; }
+    /** Sets whether the ParallelSequence steps in new virtual threads each time rather than in its own pool of threads. */
+    public void setUsesVirtualThreads(boolean val) { usesVirtualThreads = val; }
+    
+    /** Returns whether the threads steal Steppables from one another rather than each stepping a fixed chunk. */
+    public boolean getUsesWorkStealing() { return usesWorkStealing; }
+    /** Sets whether the threads steal Steppables from one another rather than each stepping a fixed chunk. */
+    public void setUsesWorkStealing(boolean val) { usesWorkStealing = val; }
+    
+    /** Returns the fewest Steppables a thread takes at a time when work stealing. */
+    public int getMinimumGrain() { return minimumGrain; }
+    /** Sets the fewest Steppables a thread takes at a time when work stealing.  Must be at least 1. */
+    public void setMinimumGrain(int val) { if (val >= 1) minimumGrain = val; }
+    
+    /** Returns, for each thread, the time in nanoseconds it spent stepping during the most recent step(). */
+    public long[] getWorkerTimes() { return (long[])(workerTimes.clone()); }
+    /** Returns, for each thread, the number of Steppables it stepped during the most recent step(). */
+    public int[] getWorkerSteps() { return (int[])(workerSteps.clone()); }
+    /** Returns, for each thread, the number of times it stole Steppables from another thread during the most recent step(). */
+    public int[] getWorkerSteals() { return (int[])(workerSteals.clone()); }
         
+    // written first by writeObject, so readObject can tell newer ParallelSequences from older ones
+    static final byte SERIAL_VERSION = 2;
+
     /// Threads are not serializable, so we must manually rebuild here
     private void writeObject(java.io.ObjectOutputStream p)
         throws java.io.IOException
         {
+        p.writeByte(SERIAL_VERSION);
         p.writeBoolean(pleaseDie);
         p.writeBoolean(destroysThreads);
         p.writeInt(numThreads);
+        p.writeBoolean(usesWorkStealing);
+        p.writeInt(minimumGrain);
+        p.writeBoolean(usesVirtualThreads);
         // don't write operating
         // dont' write threads
         }
@@ -85,13 +143,35 @@ public class ParallelSequence extends Sequence
     private void readObject(java.io.ObjectInputStream p)
         throws java.io.IOException, ClassNotFoundException
         {
-        pleaseDie = p.readBoolean();
-        destroysThreads = p.readBoolean();
-        numThreads = p.readInt();
+        // Older ParallelSequences started with pleaseDie, which is written as a byte of 0 or 1, and had nothing
+        // after numThreads.  Newer ones start with SERIAL_VERSION instead, which is never 0 or 1.
+        byte version = p.readByte();
+        if (version == 0 || version == 1)
+            {
+            pleaseDie = (version == 1);
+            destroysThreads = p.readBoolean();
+            numThreads = p.readInt();
+            usesWorkStealing = false;
+            minimumGrain = 1;
+            usesVirtualThreads = false;
+            }
+        else
+            {
+            pleaseDie = p.readBoolean();
+            destroysThreads = p.readBoolean();
+            numThreads = p.readInt();
+            usesWorkStealing = p.readBoolean();
+            minimumGrain = p.readInt();
+            usesVirtualThreads = p.readBoolean();
+            }
+        virtualThreads = new ArrayList();
         // don't write operating
         // dont' write threads
         // rebuild locks
         operatingLock = new Object();
+        workerTimes = new long[0];
+        workerSteps = new int[0];
+        workerSteals = new int[0];
         }
         
     public Steppable getCleaner()
@@ -167,7 +247,12 @@ public class ParallelSequence extends Sequence
 
         loadSteps();
 
-        if (threads == null)  // rebuild threads
+        if (usesVirtualThreads)
+            {
+            if (threads != null)  // we were using ordinary threads, get rid of them
+                cleanup();
+            }
+        else if (threads == null)  // rebuild threads
             threads = new ThreadPool();
 
         // How many threads?
@@ -179,9 +264,31 @@ public class ParallelSequence extends Sequence
             n = size;
         if (n > size)
             n = size;
+        if (n < 1)  // nothing to step
+            n = 0;
+        
+        if (workerTimes.length != n)
+            {
+            workerTimes = new long[n];
+            workerSteps = new int[n];
+            workerSteals = new int[n];
+            }
         
-        int jump = size / n;
-        for(int i = 0; i < n; i++)
+        if (usesWorkStealing && n > 0)
+            {
+            if (stealers == null || stealers.length != n)
+                {
+                stealers = new StealingWorker[n];
+                for(int i = 0; i < n; i++)
+                    stealers[i] = new StealingWorker(i);
+                }
+            // every thread's chunk must be in place before any thread starts stealing
+            for(int i = 0; i < n; i++)
+                stealers[i].set(state, (int)(((long)size * i) / n), (int)(((long)size * (i + 1)) / n));
+            for(int i = 0; i < n; i++)
+                startWorker(stealers[i]);
+            }
+        else for(int i = 0; i < n; i++)
             {
             // The commented out code interleaves the threads with regard to the steppables,
             // which is a bad idea with multiple CPUs because it causes cache contention (generally
@@ -190,12 +297,15 @@ public class ParallelSequence extends Sequence
             
             // this.threads.startThread(new Worker(state, i, numSteps, n));
             
-            // This code instead starts each thread on a different chunk of the steppables array
-            this.threads.startThread(new Worker(state, i * jump, Math.min( (i+1) * jump, size), 1),
-                "ParallelSequence");
+            // This code instead starts each thread on a different chunk of the steppables array.
+            // We compute the boundaries this way, rather than with a fixed size / n jump, so the
+            // size % n leftover Steppables at the end are stepped too.
+            startWorker(new Worker(state, (int)(((long)size * i) / n), (int)(((long)size * (i + 1)) / n), 1, i));
             }
 
-        if (destroysThreads)
+        if (usesVirtualThreads)
+            joinVirtualThreads();
+        else if (destroysThreads)
             cleanup();
         else
             threads.joinThreads();
@@ -205,6 +315,34 @@ public class ParallelSequence extends Sequence
         }
 
 
+    // Starts a worker, either in a thread from the pool or in a new virtual thread
+    void startWorker(Runnable run)
+        {
+        if (usesVirtualThreads)
+            {
+            Thread thread = VirtualThreads.newThread(run, "ParallelSequence");
+            virtualThreads.add(thread);
+            thread.start();
+            }
+        else threads.startThread(run, "ParallelSequence");
+        }
+    
+    // Waits for all the virtual threads started by startWorker(...) to finish, then lets them go
+    void joinVirtualThreads()
+        {
+        for(int i = 0; i < virtualThreads.size(); i++)
+            {
+            Thread thread = (Thread)(virtualThreads.get(i));
+            boolean joined = false;
+            while (!joined)         // force joining regardless of interruptedexceptions
+                {
+                try { thread.join(); joined = true; }
+                catch (InterruptedException e) { }  // ignore
+                }
+            }
+        virtualThreads.clear();
+        }
+
     // a worker is a semaphore and also implements a runnable
     class Worker implements Runnable
         {
@@ -212,25 +350,43 @@ public class ParallelSequence extends Sequence
         int start;
         int end;
         int modulo;
+        int index;  // which thread we are, for the statistics
         public Worker(SimState state, int start, int end, int modulo)
+            {
+            this(state, start, end, modulo, -1);
+            }
+
+        public Worker(SimState state, int start, int end, int modulo, int index)
             {
             this.state = state;
             this.start = start;
             this.end = end;
             this.modulo = modulo;
+            this.index = index;
             }
         
         public void run()
             {
+            long time = System.nanoTime();
             Steppable[] steps = ParallelSequence.this.steps;
             int modulo = this.modulo;
+            int count = 0;
+            Profiler profiler = state.schedule.profiler;
             for(int s = start; s < end; s += modulo)
                 {
                 if (pleaseDie) break;
                 Steppable step = steps[s];
                 assert sim.util.LocationLog.set(step);
-                steps[s].step(state);
+                if (profiler != null) profiler.step(step, state);
+                else step.step(state);
                 assert sim.util.LocationLog.clear();
+                count++;
+                }
+            if (index >= 0)
+                {
+                workerTimes[index] = System.nanoTime() - time;
+                workerSteps[index] = count;
+                workerSteals[index] = 0;
                 }
             }
 
@@ -239,121 +395,174 @@ public class ParallelSequence extends Sequence
         // of different UIDs for inner classes and their parents.
         private static final long serialVersionUID = 1;
         }
-        
-    // explicitly state a UID in order to be 'cross-platform' serializable
-    // because we contain an inner class and compilers come up with all
-    // sorts of different UIDs for inner classes and their parents.
-    private static final long serialVersionUID = 1;
-    }
-    
 
-    // Why do we have a ThreadPool object here instead of using Java's thread
-    // pool facility in java.util.concurrent?  Two reasons.  First, this is
-    // faster and far simpler.  Second, java.util.concurrent has ridiculous
-    // design errors in it -- it's nearly impossible to do basic tasks like
-    // join threads etc.  Was Sun's code written by monkeys?  It appears so.
-    // Seriously, how screwed up a company do you have to be to mess up a
-    // ** thread pool ** ?
-
-
-    class ThreadPool
+    // A StealingWorker owns a range of the steppables array, [lo, hi), packed into a single
+    // AtomicLong so that it can take from the front of the range, and other StealingWorkers
+    // can steal from the back, with a single compareAndSet.
+    class StealingWorker implements Runnable
         {
-        class Node implements Runnable
+        final AtomicLong range = new AtomicLong();
+        final int index;
+        SimState state;
+        
+        public StealingWorker(int index) { this.index = index; }
+        
+        void set(SimState state, int lo, int hi)
             {
-            boolean die = false;
-            boolean go = false;
-            public Thread thread;
-            public Runnable toRun;
-            
-            public Node(String name) 
-                {
-                thread = new Thread(this); 
-                thread.setDaemon(true);
-                thread.setName(name);
-                }
+            this.state = state;
+            range.set(pack(lo, hi));
+            }
+        
+        long pack(int lo, int hi) { return (((long)hi) << 32) | (lo & 0xFFFFFFFFL); }
+        int lo(long range) { return (int)range; }
+        int hi(long range) { return (int)(range >>> 32); }
+        
+        public void run()
+            {
+            long time = System.nanoTime();
+            Steppable[] steps = ParallelSequence.this.steps;
+            SimState state = this.state;
+            int minimumGrain = ParallelSequence.this.minimumGrain;
+            Profiler profiler = state.schedule.profiler;
+            int count = 0;
+            int steals = 0;
             
-            public void run()
+            while(!pleaseDie)
                 {
-                while(true)
+                // take a grain from the front of our own range
+                long r = range.get();
+                int lo = lo(r);
+                int hi = hi(r);
+                if (lo < hi)
                     {
-                    synchronized(this) 
+                    int grain = (hi - lo) / 8;
+                    if (grain < minimumGrain) grain = minimumGrain;
+                    int end = (hi - lo <= grain ? hi : lo + grain);
+                    if (!range.compareAndSet(r, pack(end, hi))) continue;  // someone stole from us, try again
+                    for(int s = lo; s < end; s++)
                         {
-                        while(!go && !die)
-                            {
-                            try { wait(); }
-                            catch (InterruptedException e) { } // ignore
-                            }
-                        go = false;
-                        if (die) { die = false; return; }
+                        if (pleaseDie) break;
+                        Steppable step = steps[s];
+                        assert sim.util.LocationLog.set(step);
+                        if (profiler != null) profiler.step(step, state);
+                        else step.step(state);
+                        assert sim.util.LocationLog.clear();
                         }
-                    toRun.run();
-                    toRun = null;
-                    // add myself back in the list
-                    synchronized(threads)
-                        {
-                        threads.add(this);  // adds to the tail
-                        if (totalThreads == threads.size())  // we're all in the bag, let the pool know if it's joining
-                            threads.notify();
-                        }
-                    // let the pool know I'm home
+                    count += end - lo;
                     }
+                else if (steal()) steals++;
+                else break;  // there's nothing left anywhere
                 }
+            
+            workerTimes[index] = System.nanoTime() - time;
+            workerSteps[index] = count;
+            workerSteals[index] = steals;
+            this.state = null;  // let gc
             }
         
-        LinkedList threads = new LinkedList();
-        int totalThreads = 0;  // synchronize on threads first
-                
-        // Joins and kills all threads, both those running and those sitting in the pool
-        void killThreads()
+        // Steals the back half of the range of whoever has the most left, and makes it our range.
+        // Returns false if there is nothing left to steal.
+        boolean steal()
             {
-            synchronized(threads)
+            StealingWorker[] stealers = ParallelSequence.this.stealers;
+            while(true)
                 {
-                joinThreads();
-                while(!threads.isEmpty())
+                StealingWorker victim = null;
+                int most = 0;
+                for(int i = 0; i < stealers.length; i++)
                     {
-                    Node node = (Node)(threads.remove());  // removes from head
-                    synchronized(node) { node.die = true; node.notify(); }  // reel it in
-                    try { node.thread.join(); }
-                    catch (InterruptedException e) { } // ignore
-                    totalThreads--;
+                    long r = stealers[i].range.get();
+                    int remaining = hi(r) - lo(r);
+                    if (remaining > most) { most = remaining; victim = stealers[i]; }
+                    }
+                if (victim == null) return false;
+                
+                long r = victim.range.get();
+                int lo = lo(r);
+                int hi = hi(r);
+                if (lo >= hi) continue;  // it got emptied out from under us, look again
+                int mid = lo + (hi - lo) / 2;  // the victim keeps [lo, mid), which may be empty
+                if (victim.range.compareAndSet(r, pack(lo, mid)))
+                    {
+                    range.set(pack(mid, hi));
+                    return true;
                     }
                 }
             }
-            
-        // Waits for all presently running threads to complete
-        void joinThreads()
-            {
-            synchronized(threads)
-                {
-                if(totalThreads > threads.size())  // there are still outstanding threads
-                    try { threads.wait(); }
-                    catch (InterruptedException e) { }  // ignore
-                }
-            }
-        
-        // Starts a thread running on the given runnable
-        void startThread(Runnable run) { startThread(run, "ParallelSequence"); }
+
+        // explicitly state a UID in order to be 'cross-platform' serializable 
+        // because we ARE an inner class and compilers come up with all sorts
+        // of different UIDs for inner classes and their parents.
+        private static final long serialVersionUID = 1;
+        }
         
-        void startThread(Runnable run, String name)
+
+
+    // BENCHMARK
+
+    // Steps a ParallelSequence of Steppables of very uneven cost the given number of times,
+    // and returns the time taken in milliseconds.  The first eighth of the Steppables are
+    // 32 times as expensive as the rest, so they all land in the first thread's chunk.
+    static long benchmark(int numSteppables, int threads, boolean stealing, int minimumGrain, int times, final double[] sink)
+        {
+        Steppable[] steps = new Steppable[numSteppables];
+        for(int i = 0; i < numSteppables; i++)
             {
-            Node node;
-            // ensure we have at least one thread
-            synchronized(threads) 
+            final int work = (i < numSteppables / 8 ? 3200 : 100);
+            final int slot = i;
+            steps[i] = new Steppable()
                 {
-                if (threads.isEmpty())
+                public void step(SimState state)
                     {
-                    node = new Node(name + " Thread " + totalThreads);
-                    node.thread.start();
-                    totalThreads++;
+                    double d = slot;
+                    for(int j = 0; j < work; j++)
+                        d = Math.sqrt(d + j);
+                    sink[slot] = d;
                     }
-                else  // pull a thread
-                    {
-                    node = (Node)(threads.remove());  // removes from the head
-                    }
-                }
-            synchronized(node) { node.toRun = run; node.go = true; node.notify(); }  // get it running
+                };
             }
+        ParallelSequence seq = new ParallelSequence(steps, threads);
+        seq.setUsesWorkStealing(stealing);
+        seq.setMinimumGrain(minimumGrain);
+        SimState state = new SimState(1);
+        long ms = System.currentTimeMillis();
+        for(int i = 0; i < times; i++)
+            seq.step(state);
+        ms = System.currentTimeMillis() - ms;
+        
+        long[] workerTimes = seq.getWorkerTimes();
+        int[] workerSteps = seq.getWorkerSteps();
+        int[] workerSteals = seq.getWorkerSteals();
+        StringBuffer buf = new StringBuffer();
+        for(int i = 0; i < workerTimes.length; i++)
+            buf.append("\t" + (workerTimes[i] / 1000) + "us/" + workerSteps[i] + "/" + workerSteals[i]);
+        System.out.println((stealing ? "Stealing, grain " + minimumGrain : "Chunked") + ": " + ms + "ms" +
+            "\tper thread (time/steppables/steals) in final step:" + buf);
+        seq.cleanup();
+        return ms;
+        }
 
-        private static final long serialVersionUID = 1;
+    /** Benchmarks ordinary chunking against work stealing on Steppables of very uneven cost,
+        using one thread per CPU, or the number of threads given as the first argument. */
+    public static void main(String[] args)
+        {
+        int threads = (args.length > 0 ? Integer.parseInt(args[0]) : CPUS);
+        int numSteppables = 10007;  // prime, so there's a size % threads remainder
+        double[] sink = new double[numSteppables];
+        System.out.println("Threads: " + (threads == CPUS ? availableProcessors : threads) + "\tSteppables: " + numSteppables);
+        
+        // warm up
+        benchmark(numSteppables, threads, false, 1, 20, sink);
+        benchmark(numSteppables, threads, true, 1, 20, sink);
+
+        benchmark(numSteppables, threads, false, 1, 100, sink);
+        benchmark(numSteppables, threads, true, 1, 100, sink);
+        benchmark(numSteppables, threads, true, 16, 100, sink);
+        benchmark(numSteppables, threads, true, 256, 100, sink);
         }
-    
\ No newline at end of file
+
+    // explicitly state a UID in order to be 'cross-platform' serializable
+    // because we contain an inner class and compilers come up with all
+    // sorts of different UIDs for inner classes and their parents.
+    private static final long serialVersionUID = 1;
+    }
@@ -0,0 +1,503 @@
+/*
+  Copyright 2006 by Sean Luke and George Mason University
+  Licensed under the Academic Free License version 3.0
+  See the file "LICENSE" for more information
+*/
+
+package sim.engine;
+import sim.util.Properties;
+import java.io.*;
+import java.util.*;
+
+/**
+   A ParameterSweep runs a simulation many times over a grid of parameter settings, several at a time,
+   and writes out one line of summary statistics per run to a CSV file.  You'd ordinarily get at it by passing
+   <tt>-sweep <i>spec</i></tt> to doLoop(...), but you can also build one yourself.
+
+   <p><b>Parameters.</b>  The parameters are the read/write properties of your SimState, the same ones which
+   show up in the GUI's model inspector, and they're set through sim.util.Properties using the name
+   that the inspector shows (for <tt>getNumBugs()</tt> and <tt>setNumBugs(...)</tt>, that's "NumBugs").  You
+   give each parameter a list of values, as Strings, and the sweep runs every combination of them, each
+   combination <i>repeat</i> times.  Values are set after the SimState has been constructed and before start() is
+   called, just as if you had typed them into the inspector.  In the doLoop spec, parameters are separated
+   by semicolons and given either as a list of values, as in <tt>NumBugs=50,100,200</tt>, or as a numerical range
+   <tt>min:max:increment</tt>, as in <tt>RandomMovementProbability=0:1:0.25</tt>.
+
+   <p><b>Jobs.</b>  Each run is a job, numbered from 0.  The repetitions of a parameter combination are
+   adjacent jobs, and the last parameter varies fastest after that.  The seed of each job is the sweep's seed
+   plus the job number, just as in doLoop, so a job always gets the same seed no matter when or on which
+   thread it is run.
+
+   <p><b>Metrics.</b>  When a job is done (its schedule is exhausted, or it has gone <i>for</i> steps, or
+   its time has passed <i>until</i>), the sweep reads the properties you named as metrics, or if you didn't name
+   any, all of the simulation's non-hidden properties that are numbers, booleans, or Strings.  This happens
+   just before finish() is called.  The line for the job holds the job number, its seed, the value of each
+   parameter, the steps, time, and wall-clock milliseconds it took, and then the metrics.  Lines are written
+   out and flushed as jobs finish, so they're in the order the jobs <i>finished</i>, not their job order.
+
+   <p><b>Threads.</b>  Jobs are run on a fixed number of threads, by default the number of processors.
+   Each thread starts out owning an equal range of the jobs, and runs them in order; when it runs out, it
+   steals the back half of the range of the thread with the most jobs left.  As every job takes about as
+   long as every other in most sweeps this rarely matters, but some parameter settings take far longer than
+   others, and they're adjacent.  Each job has its own SimState, so your model must not share
+   anything mutable in static variables.
+
+   <p><b>Resuming.</b>  If the CSV file already exists and was written by the same sweep (its header is
+   the same), the sweep reads the job numbers already in it and runs only the jobs which are missing, appending
+   them to the file.  So if the sweep crashes or is killed, just run it again with the same arguments.  A
+   partly written last line is removed first.  Jobs which throw an exception are reported and skipped, so
+   they'll be tried again on the next run.
+*/
+
+public class ParameterSweep
+    {
+    MakesSimState generator;
+    String[] args = new String[0];
+    ArrayList parameterNames = new ArrayList();
+    ArrayList parameterValues = new ArrayList();
+    String[] metrics = null;
+    long repeat = 1;
+    long seed = 1;
+    long _for = -1;
+    double until = Double.POSITIVE_INFINITY;
+    int threads = Runtime.getRuntime().availableProcessors();
+    boolean quiet = false;
+
+    // the stealable ranges of jobs left for each thread: next[i] ... end[i] - 1.  Guarded by the ParameterSweep.
+    long[] next;
+    long[] end;
+    PrintWriter out;
+    int completed;
+    int failed;
+
+    /** Creates a ParameterSweep for simulations created by the given MakesSimState. */
+    public ParameterSweep(MakesSimState generator) { this.generator = generator; }
+
+    /** Sets the command-line arguments passed to the MakesSimState when each SimState is created. */
+    public void setArguments(String[] args) { this.args = args; }
+
+    /** Adds a parameter, and the values it should take on, as Strings. */
+    public void addParameter(String name, String[] values)
+        {
+        if (values == null || values.length == 0)
+            throw new IllegalArgumentException("Parameter " + name + " has no values");
+        if (parameterNames.contains(name))
+            throw new IllegalArgumentException("Parameter " + name + " was given twice");
+        parameterNames.add(name);
+        parameterValues.add(values.clone());
+        }
+
+    /** Adds the parameters in the given spec, of the form used by the doLoop(...) option -sweep:
+        <tt>name=value,value,...;name=min:max:increment;...</tt> */
+    public void addParameters(String spec)
+        {
+        StringTokenizer tok = new StringTokenizer(spec, ";");
+        while(tok.hasMoreTokens())
+            {
+            String p = tok.nextToken().trim();
+            if (p.length() == 0) continue;
+            int eq = p.indexOf('=');
+            if (eq <= 0) throw new IllegalArgumentException("Invalid sweep parameter: " + p + ", must be name=values");
+            String name = p.substring(0, eq).trim();
+            String v = p.substring(eq + 1).trim();
+            String[] values;
+            if (v.indexOf(':') >= 0) values = range(name, v);
+            else
+                {
+                StringTokenizer t = new StringTokenizer(v, ",");
+                values = new String[t.countTokens()];
+                for(int i = 0; i < values.length; i++)
+                    values[i] = t.nextToken().trim();
+                }
+            addParameter(name, values);
+            }
+        }
+
+    static String[] range(String name, String v)
+        {
+        try
+            {
+            StringTokenizer t = new StringTokenizer(v, ":");
+            if (t.countTokens() != 3) throw new Exception();
+            double min = Double.parseDouble(t.nextToken().trim());
+            double max = Double.parseDouble(t.nextToken().trim());
+            double inc = Double.parseDouble(t.nextToken().trim());
+            if (!(inc > 0) || !(max >= min)) throw new Exception();
+            int count = (int)Math.floor((max - min) / inc + 1e-9) + 1;  // allow for roundoff
+            String[] values = new String[count];
+            for(int i = 0; i < count; i++)
+                {
+                double d = min + i * inc;  // not repeatedly added, so errors don't build up
+                values[i] = (d == (long) d ? "" + (long) d : "" + d);
+                }
+            return values;
+            }
+        catch (Exception e)
+            {
+            throw new IllegalArgumentException("Invalid range for sweep parameter " + name + ": " + v + ", must be min:max:increment with max >= min and increment > 0");
+            }
+        }
+
+    /** Sets the properties read at the end of each job, or null (the default) to read all non-hidden
+        number, boolean, and String properties. */
+    public void setMetrics(String[] metrics) { this.metrics = (metrics == null ? null : (String[])(metrics.clone())); }
+
+    /** Sets how many times each combination of parameters is run.  The default is 1. */
+    public void setRepeat(long repeat)
+        {
+        if (repeat <= 0) throw new IllegalArgumentException("Repeat must be > 0: " + repeat);
+        this.repeat = repeat;
+        }
+
+    /** Sets the seed of job 0.  Job <i>j</i> has the seed <i>seed + j</i>. */
+    public void setSeed(long seed) { this.seed = seed; }
+
+    /** Sets the number of steps each job runs for, or -1 (the default) to not stop after a number of steps. */
+    public void setFor(long steps) { _for = steps; }
+
+    /** Sets the simulation time at which each job stops.  The default is to not stop at any time. */
+    public void setUntil(double time) { until = time; }
+
+    /** Sets the number of jobs run at once.  The default is the number of processors. */
+    public void setThreads(int threads)
+        {
+        if (threads <= 0) throw new IllegalArgumentException("Threads must be > 0: " + threads);
+        this.threads = threads;
+        }
+
+    /** Sets whether the sweep prints a message as each job finishes. */
+    public void setQuiet(boolean quiet) { this.quiet = quiet; }
+
+    /** Returns the total number of jobs in the sweep: the number of combinations of parameter values, times the repeat. */
+    public long getNumJobs()
+        {
+        long n = repeat;
+        for(int i = 0; i < parameterValues.size(); i++)
+            n *= ((String[])(parameterValues.get(i))).length;
+        return n;
+        }
+
+    /** Returns the value of each parameter for the given job. */
+    public String[] getParameterValues(long job)
+        {
+        String[] v = new String[parameterNames.size()];
+        long combination = job / repeat;
+        for(int i = v.length - 1; i >= 0; i--)  // last parameter varies fastest
+            {
+            String[] values = (String[])(parameterValues.get(i));
+            v[i] = values[(int)(combination % values.length)];
+            combination /= values.length;
+            }
+        return v;
+        }
+
+    // Returns the index of the property with the given name, or -1
+    static int indexOf(Properties props, String name)
+        {
+        for(int i = 0; i < props.numProperties(); i++)
+            if (props.getName(i).equals(name)) return i;
+        return -1;
+        }
+
+    // Checks the parameters and figures out the metrics, using a SimState which is never started
+    String[] prepare()
+        {
+        Properties props = Properties.getProperties(generator.newInstance(seed, args));
+        for(int i = 0; i < parameterNames.size(); i++)
+            {
+            String name = (String)(parameterNames.get(i));
+            int index = indexOf(props, name);
+            if (index < 0)
+                throw new RuntimeException("The simulation " + generator.simulationClass().getName() + " has no property called " + name);
+            if (!props.isReadWrite(index))
+                throw new RuntimeException("The property " + name + " cannot be set");
+            }
+        if (metrics != null)
+            {
+            for(int i = 0; i < metrics.length; i++)
+                if (indexOf(props, metrics[i]) < 0)
+                    throw new RuntimeException("The simulation " + generator.simulationClass().getName() + " has no property called " + metrics[i]);
+            return metrics;
+            }
+        ArrayList m = new ArrayList();
+        for(int i = 0; i < props.numProperties(); i++)
+            {
+            Class type = props.getType(i);
+            if (!props.isHidden(i) && (type.isPrimitive() || type == String.class))
+                m.add(props.getName(i));
+            }
+        return (String[])(m.toArray(new String[m.size()]));
+        }
+
+    String header(String[] metrics)
+        {
+        StringBuffer b = new StringBuffer("job,seed");
+        for(int i = 0; i < parameterNames.size(); i++)
+            b.append(",").append(escape((String)(parameterNames.get(i))));
+        b.append(",steps,time,millis");
+        for(int i = 0; i < metrics.length; i++)
+            b.append(",").append(escape(metrics[i]));
+        return b.toString();
+        }
+
+    static String escape(String s)
+        {
+        if (s.indexOf(',') < 0 && s.indexOf('"') < 0 && s.indexOf('\n') < 0 && s.indexOf('\r') < 0) return s;
+        StringBuffer b = new StringBuffer("\"");
+        for(int i = 0; i < s.length(); i++)
+            {
+            char c = s.charAt(i);
+            if (c == '"') b.append('"');
+            b.append(c);
+            }
+        return b.append('"').toString();
+        }
+
+    // Reads the jobs already finished from the file, removing any partial last line.  Returns null if the file is empty.
+    BitSet readFinished(File file, String header) throws IOException
+        {
+        if (!file.exists() || file.length() == 0) return null;
+
+        // chop off anything after the last newline: it was being written when we died
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try
+            {
+            long len = raf.length();
+            while(len > 0)
+                {
+                raf.seek(len - 1);
+                if (raf.read() == '\n') break;
+                len--;
+                }
+            raf.setLength(len);
+            }
+        finally { raf.close(); }
+        if (file.length() == 0) return null;
+
+        BitSet finished = new BitSet();
+        BufferedReader in = new BufferedReader(new FileReader(file));
+        try
+            {
+            String line = in.readLine();
+            if (!header.equals(line))
+                throw new IOException("The file " + file + " was written by a different sweep: its header is\n" + line + "\nbut should have been\n" + header);
+            while((line = in.readLine()) != null)
+                {
+                int comma = line.indexOf(',');
+                if (comma < 0) continue;
+                try
+                    {
+                    long job = Long.parseLong(line.substring(0, comma));
+                    if (job >= 0 && job < Integer.MAX_VALUE) finished.set((int) job);
+                    }
+                catch (NumberFormatException e) { }  // not one of ours, ignore it
+                }
+            }
+        finally { in.close(); }
+        return finished;
+        }
+
+    /** Runs the sweep, writing the results to the given CSV file, or resuming the sweep already in it.
+        Returns the number of jobs which were run successfully. */
+    public int run(File file) throws IOException
+        {
+        long numJobs = getNumJobs();
+        if (numJobs > Integer.MAX_VALUE)
+            throw new RuntimeException("Too many jobs in the sweep: " + numJobs);
+        final String[] metrics = prepare();
+        String header = header(metrics);
+        BitSet finished = readFinished(file, header);
+
+        out = new PrintWriter(new BufferedWriter(new FileWriter(file.getPath(), finished != null)));
+        if (finished == null)
+            {
+            finished = new BitSet();
+            out.println(header);
+            out.flush();
+            }
+        else if (!quiet && finished.cardinality() > 0)
+            SimState.printlnSynchronized("Resuming sweep: " + finished.cardinality() + " of " + numJobs + " jobs already done");
+
+        // Hand each thread an equal range of the jobs
+        int n = (int) Math.min(threads, Math.max(numJobs, 1));
+        next = new long[n];
+        end = new long[n];
+        for(int i = 0; i < n; i++)
+            {
+            next[i] = i * numJobs / n;
+            end[i] = (i + 1) * numJobs / n;
+            }
+        completed = 0;
+        failed = 0;
+
+        final BitSet done = finished;
+        Thread[] t = new Thread[n];
+        for(int i = 0; i < n; i++)
+            {
+            final int thread = i;
+            t[i] = new Thread(new Runnable()
+                {
+                public void run()
+                    {
+                    long job;
+                    while((job = nextJob(thread)) >= 0)
+                        {
+                        boolean skip;
+                        synchronized(ParameterSweep.this) { skip = done.get((int) job); }
+                        if (!skip) runJob(job, metrics);
+                        }
+                    }
+                });
+            t[i].setName("ParameterSweep " + i);
+            t[i].start();
+            }
+        for(int i = 0; i < n; i++)
+            {
+            try { t[i].join(); }
+            catch (InterruptedException e) { i--; }  // go back and try again
+            }
+        out.close();
+        if (failed > 0)
+            SimState.printlnSynchronized("Sweep finished with " + failed + " failed jobs: run it again to retry them");
+        return completed;
+        }
+
+    // Returns the next job for the given thread, stealing from the thread with the most left if it has none, or -1 if there are none at all
+    synchronized long nextJob(int thread)
+        {
+        if (next[thread] >= end[thread])
+            {
+            int victim = -1;
+            long most = 0;
+            for(int i = 0; i < next.length; i++)
+                if (end[i] - next[i] > most) { most = end[i] - next[i]; victim = i; }
+            if (victim < 0) return -1;
+            long mid = end[victim] - (most + 1) / 2;  // take the back half, rounding up so we always get one
+            next[thread] = mid;
+            end[thread] = end[victim];
+            end[victim] = mid;
+            }
+        return next[thread]++;
+        }
+
+    void runJob(long job, String[] metrics)
+        {
+        long jobSeed = seed + job;
+        String[] values = getParameterValues(job);
+        StringBuffer line = new StringBuffer();
+        SimState state = null;
+        Throwable failure = null;
+        try
+            {
+            long wall = System.currentTimeMillis();
+            state = generator.newInstance(jobSeed, args);
+            state.nameThread();
+            state.job = job;
+            state.seed = jobSeed;
+            Properties props = Properties.getProperties(state);
+            for(int i = 0; i < values.length; i++)
+                {
+                String name = (String)(parameterNames.get(i));
+                if (props.setValue(indexOf(props, name), values[i]) == null)
+                    throw new RuntimeException("Could not set " + name + " to " + values[i]);
+                }
+            state.start();
+
+            Schedule schedule = state.schedule;
+            while((_for == -1 || schedule.getSteps() < _for) && schedule.getTime() <= until)
+                if (!schedule.step(state)) break;
+
+            line.append(job).append(",").append(jobSeed);
+            for(int i = 0; i < values.length; i++)
+                line.append(",").append(escape(values[i]));
+            line.append(",").append(schedule.getSteps()).append(",").append(schedule.getTime());
+            line.append(",").append(System.currentTimeMillis() - wall);
+            props = Properties.getProperties(state);  // the properties may have changed if the model is volatile
+            for(int i = 0; i < metrics.length; i++)
+                {
+                int index = indexOf(props, metrics[i]);
+                Object val = (index < 0 ? null : props.getValue(index));
+                line.append(",").append(val == null ? "" : escape(val.toString()));
+                }
+            }
+        catch (Throwable e)
+            {
+            failure = e;
+            }
+        finally
+            {
+            // finish even if the job failed, so the model can close whatever it opened in start(), such as threads
+            if (state != null)
+                {
+                try { state.finish(); }
+                catch (Throwable e)
+                    {
+                    if (failure == null) failure = e;
+                    else SimState.printlnSynchronized("Job " + job + " also failed in finish(): " + e);  // don't hide the original
+                    }
+                }
+            }
+        
+        if (failure != null)
+            {
+            SimState.printlnSynchronized("Job " + job + " failed: " + failure);
+            failure.printStackTrace();
+            synchronized(this) { failed++; }
+            return;
+            }
+
+        synchronized(this)
+            {
+            out.println(line);
+            out.flush();
+            completed++;
+            }
+        if (!quiet) SimState.printlnSynchronized("Job " + job + " Seed: " + jobSeed + " done");
+        }
+
+    /** Runs a sweep from the doLoop(...) arguments, and exits. */
+    static void doSweep(MakesSimState generator, String spec, String[] args, boolean quiet, long seed, long _for, double until, long repeat, String threads_s)
+        {
+        ParameterSweep sweep = new ParameterSweep(generator);
+        sweep.setArguments(args);
+        sweep.addParameters(spec);
+        sweep.setQuiet(quiet);
+        sweep.setSeed(seed);
+        sweep.setFor(_for);
+        sweep.setUntil(until);
+        sweep.setRepeat(repeat);
+        if (threads_s != null)
+            try
+                {
+                sweep.setThreads(Integer.parseInt(threads_s));
+                }
+            catch (Exception e)
+                {
+                throw new RuntimeException("Invalid parallel value: " + threads_s + ", must be a positive integer");
+                }
+        String metrics_s = SimState.argumentForKey("-metrics", args);
+        if (metrics_s != null)
+            {
+            StringTokenizer t = new StringTokenizer(metrics_s, ",");
+            String[] metrics = new String[t.countTokens()];
+            for(int i = 0; i < metrics.length; i++)
+                metrics[i] = t.nextToken().trim();
+            sweep.setMetrics(metrics);
+            }
+        String out = SimState.argumentForKey("-sweepfile", args);
+        if (out == null)
+            out = generator.simulationClass().getName().substring(generator.simulationClass().getName().lastIndexOf(".") + 1) + ".sweep.csv";
+
+        if (!quiet) SimState.printlnSynchronized("Sweeping " + sweep.getNumJobs() + " jobs on " + sweep.threads + " threads into " + out);
+        try
+            {
+            sweep.run(new File(out));
+            }
+        catch (IOException e)
+            {
+            System.err.println("Could not write the sweep to " + out + ": " + e.getMessage());
+            System.exit(1);
+            }
+        System.exit(0);
+        }
+    }
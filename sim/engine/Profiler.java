@@ -0,0 +1,293 @@
+/*
+  Copyright 2006 by Sean Luke and George Mason University
+  Licensed under the Academic Free License version 3.0
+  See the file "LICENSE" for more information
+*/
+
+package sim.engine;
+import java.io.*;
+import java.util.*;
+import java.lang.reflect.*;
+
+/**
+   A Profiler gathers statistics about the Steppables stepped by a Schedule, and by any Sequences,
+   RandomSequences, or ParallelSequences it steps.  To use it, call schedule.setProfiler(new Profiler(...)),
+   or pass <tt>-profile <i>file</i></tt> to doLoop(...).
+
+   <p>For each Steppable stepped, the Profiler records the wall-clock time it took, and (if you ask for it)
+   an estimate of how many bytes it allocated, and adds them to the totals for the Steppable's class and
+   for the ordering in which the Schedule stepped it.  Repeating Steppables are wrapped in a private MASON
+   class when they're scheduled, as are Steppables in a TentativeStep, WeakStep, or MultiStep: these are
+   unwrapped to find the class you actually care about.  The Steppables stepped by a Sequence are
+   also recorded, by class but not by ordering.  This means that times are <i>inclusive</i>: the
+   time for a Sequence class includes the time of all the Steppables it stepped.
+   Additionally the Profiler records the total time spent in Schedule.step(...).
+
+   <p>Allocation estimates come from the Java VM's com.sun.management.ThreadMXBean, if it has one, which
+   reports how many bytes each thread has allocated so far.  This is somewhat expensive to ask for twice per
+   Steppable, so it's off unless you call setMeasuresAllocation(true).  If the VM doesn't support it,
+   allocation is reported as -1.
+
+   <p>If you provided a file when you made the Profiler, SimState.finish() writes the statistics out to it:
+   as JSON if the file name ends in ".json", else as CSV.  You can also write them yourself at any time with
+   writeCSV(...) or writeJSON(...).
+
+   <p>The Profiler synchronizes on itself each time it records a Steppable, so it's safe to use with
+   ParallelSequences and with parallel stepping in the Schedule, but it will slow them down a bit.
+   Profilers are not serializable, and the Schedule forgets its Profiler when checkpointed.
+*/
+
+public class Profiler
+    {
+    /** Recorded statistics for a Steppable class, an ordering, or the Schedule as a whole. */
+    public static class Entry
+        {
+        String name;
+        long calls;
+        long nanos;
+        long maxNanos;
+        long bytes;
+
+        Entry(String name) { this.name = name; }
+
+        void add(long nanos, long bytes)
+            {
+            calls++;
+            this.nanos += nanos;
+            if (nanos > maxNanos) maxNanos = nanos;
+            if (bytes < 0 || this.bytes < 0) this.bytes = -1;
+            else this.bytes += bytes;
+            }
+
+        /** Returns the name of the class, or the ordering, or "Schedule.step". */
+        public String getName() { return name; }
+        /** Returns the number of times something was stepped. */
+        public long getCalls() { return calls; }
+        /** Returns the total wall-clock time, in nanoseconds, spent stepping. */
+        public long getNanos() { return nanos; }
+        /** Returns the longest wall-clock time, in nanoseconds, spent in a single step. */
+        public long getMaxNanos() { return maxNanos; }
+        /** Returns the estimated total bytes allocated while stepping, or -1 if not measured. */
+        public long getBytes() { return bytes; }
+        }
+
+    // com.sun.management.ThreadMXBean.getThreadAllocatedBytes(long), and the bean, or null if not available
+    static Object threadBean;
+    static Method getThreadAllocatedBytes;
+    
+    // the bytes that asking for the bytes allocated allocates itself
+    static long allocationOverhead = 0;
+
+    static
+        {
+        try
+            {
+            Object bean = Class.forName("java.lang.management.ManagementFactory").getMethod("getThreadMXBean", new Class[0]).invoke(null, new Object[0]);
+            Method m = Class.forName("com.sun.management.ThreadMXBean").getMethod("getThreadAllocatedBytes", new Class[] { Long.TYPE });
+            if (m.invoke(bean, new Object[] { Long.valueOf(Thread.currentThread().getId()) }) != null)  // throws an exception if not supported
+                {
+                threadBean = bean;
+                getThreadAllocatedBytes = m;
+                long min = Long.MAX_VALUE;
+                for(int i = 0; i < 100; i++)
+                    {
+                    long bytes = threadAllocated();
+                    bytes = threadAllocated() - bytes;
+                    if (bytes < min) min = bytes;
+                    }
+                allocationOverhead = min;
+                }
+            }
+        catch (Throwable e) { }  // not available
+        }
+
+    File file;
+    boolean measuresAllocation = false;
+    HashMap classes = new HashMap();
+    HashMap orderings = new HashMap();
+    Entry schedule = new Entry("Schedule.step");
+
+    /** Creates a Profiler which doesn't write out its statistics at the end of the simulation. */
+    public Profiler() { }
+
+    /** Creates a Profiler which writes out its statistics to the given file when the simulation is finished, as
+        JSON if the file name ends with ".json", else as CSV. */
+    public Profiler(File file) { this.file = file; }
+
+    /** Sets whether the Profiler estimates the bytes allocated by each Steppable. */
+    public void setMeasuresAllocation(boolean val) { measuresAllocation = val; }
+
+    /** Returns whether the Profiler estimates the bytes allocated by each Steppable. */
+    public boolean getMeasuresAllocation() { return measuresAllocation; }
+
+    /** Returns true if the Java VM can estimate the bytes allocated by each thread. */
+    public static boolean canMeasureAllocation() { return getThreadAllocatedBytes != null; }
+
+    /** Throws away all the statistics gathered so far. */
+    public synchronized void reset()
+        {
+        classes.clear();
+        orderings.clear();
+        schedule = new Entry("Schedule.step");
+        }
+
+    /** Returns the bytes allocated so far by the current thread, or -1 if the Profiler isn't
+        measuring allocation or can't. */
+    public long allocated()
+        {
+        if (!measuresAllocation || getThreadAllocatedBytes == null) return -1;
+        return threadAllocated();
+        }
+
+    static long threadAllocated()
+        {
+        try { return ((Long)(getThreadAllocatedBytes.invoke(threadBean, new Object[] { Long.valueOf(Thread.currentThread().getId()) }))).longValue(); }
+        catch (Exception e) { return -1; }
+        }
+
+    /** Steps the Steppable and records it, by class only.  Sequences use this to step their Steppables. */
+    public void step(Steppable step, SimState state)
+        {
+        long bytes = allocated();
+        long nanos = System.nanoTime();
+        step.step(state);
+        nanos = System.nanoTime() - nanos;
+        record(step, nanos, (bytes < 0 ? -1 : Math.max(0, allocated() - bytes - allocationOverhead)), false, 0);
+        }
+
+    /** Steps the Steppable and records it, by class and by ordering.  The Schedule uses this. */
+    public void step(Steppable step, SimState state, int ordering)
+        {
+        long bytes = allocated();
+        long nanos = System.nanoTime();
+        step.step(state);
+        nanos = System.nanoTime() - nanos;
+        record(step, nanos, (bytes < 0 ? -1 : Math.max(0, allocated() - bytes - allocationOverhead)), true, ordering);
+        }
+
+    synchronized void record(Steppable step, long nanos, long bytes, boolean hasOrdering, int ordering)
+        {
+        Class c = unwrap(step).getClass();
+        Entry entry = (Entry)(classes.get(c));
+        if (entry == null) { entry = new Entry(c.getName()); classes.put(c, entry); }
+        entry.add(nanos, bytes);
+        if (hasOrdering)
+            {
+            Integer o = Integer.valueOf(ordering);
+            entry = (Entry)(orderings.get(o));
+            if (entry == null) { entry = new Entry(o.toString()); orderings.put(o, entry); }
+            entry.add(nanos, bytes);
+            }
+        }
+
+    /** Records one call to Schedule.step(...) */
+    synchronized void recordSchedule(long nanos, long bytes)
+        {
+        schedule.add(nanos, bytes);
+        }
+
+    // Finds the Steppable inside MASON's wrappers, since that's the class that's of interest
+    static Steppable unwrap(Steppable step)
+        {
+        while(true)
+            {
+            Steppable inner = null;
+            if (step instanceof IterativeRepeat) inner = ((IterativeRepeat)step).step;
+            else if (step instanceof RepeatingGroup.Member) inner = ((RepeatingGroup.Member)step).step;
+            else if (step instanceof Repeat) inner = ((Repeat)step).step;
+            else if (step instanceof TentativeStep) inner = ((TentativeStep)step).step;
+            else if (step instanceof MultiStep) inner = ((MultiStep)step).step;
+            else if (step instanceof WeakStep) inner = (Steppable)(((WeakStep)step).weakStep.get());
+            if (inner == null) return step;  // not a wrapper, or it's been stopped
+            step = inner;
+            }
+        }
+
+    /** Returns the statistics for each Steppable class, most expensive first. */
+    public synchronized Entry[] getClassEntries() { return sort(classes.values()); }
+
+    /** Returns the statistics for each ordering, most expensive first. */
+    public synchronized Entry[] getOrderingEntries() { return sort(orderings.values()); }
+
+    /** Returns the statistics for Schedule.step(...) as a whole. */
+    public synchronized Entry getScheduleEntry() { return schedule; }
+
+    static Entry[] sort(Collection c)
+        {
+        Entry[] e = (Entry[])(c.toArray(new Entry[c.size()]));
+        Arrays.sort(e, new Comparator()
+            {
+            public int compare(Object o1, Object o2)
+                {
+                long n1 = ((Entry)o1).nanos;
+                long n2 = ((Entry)o2).nanos;
+                return (n1 > n2 ? -1 : (n1 < n2 ? 1 : 0));
+                }
+            });
+        return e;
+        }
+
+    /** Writes out the statistics as CSV, one line for Schedule.step(...), then one per ordering, then one per class. */
+    public synchronized void writeCSV(PrintWriter out)
+        {
+        out.println("kind,name,calls,totalMillis,meanMicros,maxMicros,bytes");
+        writeCSV(out, "schedule", new Entry[] { schedule });
+        writeCSV(out, "ordering", getOrderingEntries());
+        writeCSV(out, "class", getClassEntries());
+        out.flush();
+        }
+
+    void writeCSV(PrintWriter out, String kind, Entry[] entries)
+        {
+        for(int i = 0; i < entries.length; i++)
+            {
+            Entry e = entries[i];
+            out.println(kind + "," + e.name + "," + e.calls + "," + (e.nanos / 1000000.0) + "," +
+                (e.calls == 0 ? 0 : e.nanos / 1000.0 / e.calls) + "," + (e.maxNanos / 1000.0) + "," + e.bytes);
+            }
+        }
+
+    /** Writes out the statistics as a JSON object with "schedule", "orderings", and "classes" members. */
+    public synchronized void writeJSON(PrintWriter out)
+        {
+        out.println("{");
+        out.println("\"schedule\": " + toJSON(schedule) + ",");
+        writeJSON(out, "orderings", getOrderingEntries());
+        out.println(",");
+        writeJSON(out, "classes", getClassEntries());
+        out.println();
+        out.println("}");
+        out.flush();
+        }
+
+    void writeJSON(PrintWriter out, String name, Entry[] entries)
+        {
+        out.println("\"" + name + "\": [");
+        for(int i = 0; i < entries.length; i++)
+            out.println(toJSON(entries[i]) + (i < entries.length - 1 ? "," : ""));
+        out.print("]");
+        }
+
+    String toJSON(Entry e)
+        {
+        return "{\"name\": \"" + e.name + "\", \"calls\": " + e.calls + ", \"nanos\": " + e.nanos +
+            ", \"maxNanos\": " + e.maxNanos + ", \"bytes\": " + e.bytes + "}";
+        }
+
+    /** Called by SimState.finish().  If the Profiler was given a file, writes the statistics to it. */
+    public void finish()
+        {
+        if (file == null) return;
+        try
+            {
+            PrintWriter out = new PrintWriter(new BufferedWriter(new FileWriter(file)));
+            if (file.getName().toLowerCase().endsWith(".json")) writeJSON(out);
+            else writeCSV(out);
+            out.close();
+            }
+        catch (IOException e)
+            {
+            System.err.println("Profiler could not write to " + file + ": " + e);
+            }
+        }
+    }
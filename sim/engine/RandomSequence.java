@@ -82,12 +82,14 @@ public class RandomSequence extends Sequence
             }
             
         // finally execute
+        Profiler profiler = state.schedule.profiler;
         for(int x=0;x<size;x++)
             {
             if (steps[x]!=null) 
                 {
                 assert sim.util.LocationLog.set(steps[x]);
-                steps[x].step(state);
+                if (profiler != null) profiler.step(steps[x], state);
+                else steps[x].step(state);
                 assert sim.util.LocationLog.clear();
                 }
             }
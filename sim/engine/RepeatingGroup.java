@@ -0,0 +1,134 @@
+/*
+  Copyright 2006 by Sean Luke and George Mason University
+  Licensed under the Academic Free License version 3.0
+  See the file "LICENSE" for more information
+*/
+
+package sim.engine;
+import sim.util.*;
+
+/**
+   Handles repeated steps for Schedules which use repeating groups.  A RepeatingGroup holds all the
+   Steppables scheduled repeating for the same time, ordering, and interval, and sits in the queue
+   as a single entry.  When it comes due, the Schedule replaces it with its members and reschedules it
+   by reusing its Key, so neither the group nor its members allocate anything per timestep.  Each member
+   is wrapped in a Member, which is the Stoppable handed back to the user.  Stopped members are removed
+   from the group the next time the group comes due.  A private class for Schedule.
+*/
+
+class RepeatingGroup implements Steppable
+    {
+    private static final long serialVersionUID = 1;
+
+    double interval;
+    Schedule.Key key;
+    HashKey hashKey;
+    Bag members = new Bag();
+        
+    public RepeatingGroup(final double interval, final Schedule.Key key)
+        {
+        this.interval = interval;
+        this.key = key;
+        this.hashKey = new HashKey(key.time, key.ordering, interval);
+        }
+        
+    Member add(Steppable step)
+        {
+        Member m = new Member(step);
+        members.add(m);
+        return m;
+        }
+                
+    // Adds all the unstopped members to the given Bag, and removes the stopped ones
+    void expand(Bag putInHere)
+        {
+        Bag members = this.members;
+        for(int i = members.numObjs - 1; i >= 0; i--)
+            {
+            Member m = (Member)(members.objs[i]);
+            if (m.isStopped()) members.remove(i);
+            else putInHere.add(m);
+            }
+        }
+
+    /** Ordinarily the Schedule expands the group rather than stepping it.  If it is stepped
+        anyway, it steps all of its members in turn. */
+    public void step(final SimState state)
+        {
+        Bag members = new Bag(this.members);
+        for(int i = 0; i < members.numObjs; i++)
+            ((Member)(members.objs[i])).step(state);
+        }
+        
+    public String toString() { return "Schedule.RepeatingGroup[" + members.numObjs + " members]"; }
+        
+    static class Member implements Steppable, Stoppable
+        {
+        private static final long serialVersionUID = 1;
+
+        Steppable step;  // if null, has been stopped
+        
+        public Member(Steppable step) { this.step = step; }
+        
+        synchronized boolean isStopped() { return step == null; }
+        
+        public synchronized void step(final SimState state)
+            {
+            if (step != null)
+                {
+                assert sim.util.LocationLog.set(step);
+                step.step(state);
+                assert sim.util.LocationLog.clear();
+                }
+            }
+        
+        public synchronized void stop()
+            {
+            step = null;
+            }
+
+        public String toString() { return "Schedule.RepeatingGroup.Member[" + step + "]"; }
+        }
+                
+    /** The hash key for a group: its next time, its ordering, and its interval.  Only modified
+        while it's out of the Schedule's hash table. */
+    static class HashKey implements java.io.Serializable
+        {
+        private static final long serialVersionUID = 1;
+
+        double time;
+        int ordering;
+        double interval;
+                
+        public HashKey(double time, int ordering, double interval)
+            {
+            this.time = time;
+            this.ordering = ordering;
+            this.interval = interval;
+            }
+                
+        public boolean equals(Object obj)
+            {
+            if (obj != null && obj instanceof HashKey)
+                {
+                HashKey o = (HashKey)obj;
+                return (o.time == time && o.ordering == ordering && o.interval == interval);
+                }
+            else return false;
+            }
+                        
+        public int hashCode()
+            {
+            long key = Double.doubleToRawLongBits(time) * 31 + Double.doubleToRawLongBits(interval);
+            key += ~(key << 32);
+            key ^= (key >>> 22);
+            key += ~(key << 13);
+            key ^= (key >>> 8);
+            key += (key << 3);
+            key ^= (key >>> 15);
+            key += ~(key << 27);
+            key ^= (key >>> 31);
+            return (int)(key ^ (key >> 32)) ^ ordering;
+            }
+        }
+    }
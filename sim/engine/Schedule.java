@@ -83,11 +83,47 @@ import ec.util.*;
    <p>One downside to this flexibility is that it's very inefficient to check, at each step of a Steppable, whether the Schedule
    has been reset or not.  Thus now if you call reset() or [better] SimState.kill(), the Schedule will continue to step Steppables
    until it has exhausted ones scheduled for the current timestep.  Only at that point will it cease.
+
+   <p>Another downside is that if many Steppables in different threads (such as in a ParallelSequence) all schedule themselves
+   at once, they will fight over the lock.  You can avoid this by calling setUsesStaging(true).  Thereafter, while step() is stepping
+   Steppables, any scheduleOnce(...) or scheduleOnceIn(...) calls are checked just as they would be otherwise, including bumping events
+   scheduled for the current time to the current time plus epsilon, but instead of being added to the queue they're stashed in a buffer
+   belonging to the calling thread without locking the Schedule.  When the timestep is finished, step() locks the Schedule once and
+   merges all the buffers into the queue.  Since nothing added during a timestep can be stepped until a later timestep, this doesn't
+   change the order in which anything is stepped.  Events which were staged before a clear() or reset() in the same timestep are thrown
+   away, just as they would have been had they gone straight into the queue.  To see how much contention you have, see
+   getLockedScheduleCount(), getStagedScheduleCount(), getStagingBatchCount(), and getLockWaitTime().
+
+   <p><b>Stepping in Parallel</b>.  If the Steppables scheduled for the same time and ordering don't interfere with one another,
+   you can have step() divide them among several threads by calling setParallelThreads(...).  step() still gathers and shuffles
+   the Steppables for the timestep exactly as it would otherwise.  It then divides each ordering into contiguous chunks, one per
+   thread, and waits for every chunk of an ordering to finish before starting on the next ordering, so orderings act as barriers.
+   Events scheduled with scheduleOnce(...) or scheduleOnceIn(...) are staged as described above and added to the queue in the same
+   order they would have been had everything been stepped in one thread.  Your Steppables may not use state.random, which isn't
+   threadsafe: instead they should call <tt>state.schedule.getRandom(state)</tt>, which gives each Steppable its own generator seeded
+   from state.random and the Steppable's position in the timestep.  If your Steppables stick to this, the results for a given seed
+   are the same no matter how many threads you use (though not the same as if you had not stepped in parallel at all).
+   Be careful: scheduleRepeating(...), and anything else in your model which several threads might change at once, isn't covered by this.
+
+   <p><b>Repeating Groups</b>.  Ordinarily each Steppable scheduled with scheduleRepeating(...) is wrapped in its own
+   repeating object which reinserts itself into the queue every time it is stepped.  If you have very large numbers of
+   repeating Steppables, you can instead call setUsesRepeatingGroups(true).  Thereafter, Steppables scheduled repeating
+   for the same time, ordering, and interval are gathered together into a single group which passes through the queue
+   as one entry.  When the group comes due, its members are added to the Steppables for that timestamp and ordering
+   before they are shuffled, so they are shuffled among one another and among any other Steppables scheduled for the
+   same timestamp and ordering exactly as they would have been otherwise.  The group itself is then immediately
+   rescheduled rather than rescheduling each member as it is stepped.  One consequence of this is that if you clear()
+   the schedule (or call SimState.kill()) in the middle of a timestep, members of a group will not reinsert themselves
+   into the schedule as ordinary repeating Steppables might.
    
-   <p><b>Heaps and Calendar Queues</b>.  Schedule uses a plain-old binary heap for its queueing mechanism.  This is reasonably efficient,
-   but it could be made more efficient with a Calendar Queue designed for the purposes of your simulation.  We settled on a Heap because
-   we do not know what the expected scheduling pattern will be for any given simulation, and so had to go for the most general case.  If you'd
-   care to customize your queue, you can do so by overriding the createHeap() method in a custom Schedule.  We imagine this would be rare.
+   <p><b>Heaps and Calendar Queues</b>.  Schedule uses a heap for its queueing mechanism: specifically a DoubleIntHeap, a binary heap
+   which stores the time and ordering of each key in primitive arrays rather than calling compareTo(...) on Key objects,
+   and which extracts Steppables in the same order as sim.util.Heap, so results for a given seed don't depend on which is used.  This is reasonably efficient,
+   but it could be made more efficient with a Calendar Queue designed for the purposes of your simulation.  We settled on a heap because
+   we do not know what the expected scheduling pattern will be for any given simulation, and so had to go for the most general case.
+   If your simulation schedules large numbers of agents on the same timesteps (for example, everyone repeating every 1.0), you can
+   switch to a CalendarQueue by calling setUsesCalendarQueue(true), or by passing <tt>-calendarqueue</tt> to doLoop(...).  If you'd
+   care to customize your queue further, you can do so by overriding the createHeap() method in a custom Schedule.  We imagine this would be rare.
 */
     
 
@@ -109,14 +145,178 @@ public class Schedule implements java.io.Serializable
     // should we shuffle individuals with the same timestep and ordering?
     boolean shuffling = true;  // by default, we WANT to shuffle
 
+    // should createHeap() build a CalendarQueue rather than a DoubleIntHeap?  Must be declared before queue.
+    boolean usesCalendarQueue = false;
+
     /** The Schedule's queue. */
     protected Heap queue = createHeap();
     
     /** Returns a Heap to be used by the Schedule.  By default, returns a
-        binary heap.  Override this to provide your own
-        subclass of Heap tuned for your particular problem. */
-    protected Heap createHeap() { return new Heap(); }
+        DoubleIntHeap, or a CalendarQueue if setUsesCalendarQueue(true) has been called.  Override this to provide your own
+        subclass of Heap tuned for your particular problem: sim.util.Heap is a general-purpose binary heap, and
+        a DoubleIntHeap of higher arity may be faster for large queues, though it breaks ties differently and so changes your results. */
+    protected Heap createHeap() { return usesCalendarQueue ? new CalendarQueue() : new DoubleIntHeap(); }
+    
+    /** Sets whether the Schedule uses a CalendarQueue rather than a DoubleIntHeap as its queue.  Any
+        events presently in the queue are moved to the new queue.  This has no effect if you have
+        overridden createHeap(). */
+    public void setUsesCalendarQueue(boolean val)
+        {
+        synchronized(lock)
+            {
+            if (val == usesCalendarQueue) return;
+            usesCalendarQueue = val;
+            Heap old = queue;
+            queue = createHeap();
+            Comparable[] keys = old.getKeys();
+            Object[] objects = old.getObjects();
+            for(int i = 0; i < keys.length; i++)
+                queue.add(objects[i], keys[i]);
+            }
+        }
+        
+    /** Returns whether the Schedule uses a CalendarQueue rather than a DoubleIntHeap as its queue. */
+    public boolean getUsesCalendarQueue() { synchronized(lock) { return usesCalendarQueue; } }
+
+    // should scheduleRepeating(...) gather Steppables into RepeatingGroups?
+    boolean usesRepeatingGroups = false;
+    
+    // all the RepeatingGroups presently in the queue, hashed by their next time, ordering, and interval
+    java.util.HashMap repeatingGroups = new java.util.HashMap();
     
+    /** Sets whether Steppables scheduled repeating for the same time, ordering, and interval are gathered
+        together into groups which pass through the queue as a single entry.  This only affects Steppables
+        which are scheduled repeating after this method is called.  See the class documentation. */
+    public void setUsesRepeatingGroups(boolean val) { synchronized(lock) { usesRepeatingGroups = val; } }
+        
+    /** Returns whether Steppables scheduled repeating for the same time, ordering, and interval are gathered
+        together into groups which pass through the queue as a single entry. */
+    public boolean getUsesRepeatingGroups() { synchronized(lock) { return usesRepeatingGroups; } }
+
+    private void readObject(java.io.ObjectInputStream in) throws java.io.IOException, ClassNotFoundException
+        {
+        in.defaultReadObject();
+        // checkpoints written before repeating groups came along don't have this
+        if (repeatingGroups == null) repeatingGroups = new java.util.HashMap();
+        // ... or these
+        if (orderingEnds == null) orderingEnds = new IntBag();
+        if (orderingValues == null) orderingValues = new IntBag();
+        }
+
+    // should step() have scheduleOnce(...) calls made during the timestep go into per-thread staging buffers?
+    boolean usesStaging = false;
+
+    // true while step() is stepping Steppables and usesStaging is on.  stagingTime is the time of that timestep.
+    transient volatile boolean staging = false;
+    transient double stagingTime;  // always written before staging is set to true
+
+    // bumped whenever the queue is thrown away, so that anything staged before then is discarded when merged
+    volatile int generation = 0;
+
+    // each thread's StagingBuffer, and all the StagingBuffers we know about.  Built lazily in step(), since they're transient
+    transient ThreadLocal stagingBuffers;
+    transient Bag allStagingBuffers;
+
+    /** Sets whether events scheduled with scheduleOnce(...) or scheduleOnceIn(...) while the Schedule is stepping
+        Steppables are staged in a per-thread buffer rather than added directly to the queue.  This only matters
+        if many Steppables are scheduling from several threads at once, as in a ParallelSequence.  See the class documentation. */
+    public void setUsesStaging(boolean val) { synchronized(lock) { usesStaging = val; } }
+
+    /** Returns whether events scheduled with scheduleOnce(...) or scheduleOnceIn(...) while the Schedule is stepping
+        Steppables are staged in a per-thread buffer rather than added directly to the queue. */
+    public boolean getUsesStaging() { synchronized(lock) { return usesStaging; } }
+
+    // how many threads step() divides each ordering among.  0 means don't step in parallel.
+    int parallelThreads = 0;
+
+    // the threads which step in parallel, and one ParallelChunk per thread.  Built lazily in step(), since they're transient
+    transient ThreadPool pool;
+    transient ParallelChunk[] chunks;
+
+    // the ParallelChunk presently running in each thread, if any
+    transient ThreadLocal currentChunk;
+
+    // where each ordering ends in currentSteps, and what the ordering is, when stepping in parallel or profiling
+    IntBag orderingEnds = new IntBag();
+    IntBag orderingValues = new IntBag();
+
+    // if non-null, records everything that step() steps
+    transient volatile Profiler profiler;
+
+    /** Sets the Profiler which records the time taken by each Steppable stepped by the Schedule (and by Sequences
+        it steps), or null to stop profiling.  See sim.engine.Profiler. */
+    public void setProfiler(Profiler val) { profiler = val; }
+
+    /** Returns the Profiler which records the time taken by each Steppable stepped by the Schedule, or null if none. */
+    public Profiler getProfiler() { return profiler; }
+
+    /** Sets the number of threads among which step() divides the Steppables of each ordering in a timestep.
+        If this is 0 (the default), step() steps everything itself in the usual way.  A value of 1 steps
+        everything in step()'s own thread, but otherwise exactly as if it were being done in parallel, which
+        is useful for checking that the results don't change as you add threads.  See the class documentation. */
+    public void setParallelThreads(int val) { synchronized(lock) { parallelThreads = val; } }
+
+    /** Returns the number of threads among which step() divides the Steppables of each ordering in a timestep. */
+    public int getParallelThreads() { synchronized(lock) { return parallelThreads; } }
+
+    /** Returns the random number generator that the presently stepping Steppable should use.  If the Schedule is
+        stepping in parallel (see setParallelThreads(...)) and this method is called from within a Steppable's step(...)
+        method, the generator is one seeded just for that Steppable at that timestep, from a seed drawn from state.random.
+        This generator may only be used by the calling Steppable, only during its step(...) method.
+        Otherwise, state.random is returned. */
+    public MersenneTwisterFast getRandom(SimState state)
+        {
+        ThreadLocal currentChunk = this.currentChunk;
+        if (currentChunk != null)
+            {
+            ParallelChunk chunk = (ParallelChunk)(currentChunk.get());
+            if (chunk != null) return chunk.getRandom();
+            }
+        return state.random;
+        }
+
+    // contention statistics.  The counts are guarded by lock.
+    volatile boolean collectsContentionStatistics = false;
+    long lockedScheduleCount = 0;
+    long stagedScheduleCount = 0;
+    long stagingBatchCount = 0;
+    long lockWaitTime = 0;
+
+    /** Sets whether the Schedule measures how long scheduleOnce(...) and scheduleOnceIn(...) calls wait to acquire
+        its lock.  This costs two calls to System.nanoTime() per locked schedule, so it's off by default.  The
+        other contention statistics are always gathered. */
+    public void setCollectsContentionStatistics(boolean val) { collectsContentionStatistics = val; }
+
+    /** Returns whether the Schedule measures how long scheduleOnce(...) and scheduleOnceIn(...) calls wait to acquire its lock. */
+    public boolean getCollectsContentionStatistics() { return collectsContentionStatistics; }
+
+    /** Returns the number of events scheduled with scheduleOnce(...) or scheduleOnceIn(...), including
+        the rescheduling of ordinary repeating Steppables, which locked the Schedule to do so. */
+    public long getLockedScheduleCount() { synchronized(lock) { return lockedScheduleCount; } }
+
+    /** Returns the number of events which were staged in a per-thread buffer rather than locking the Schedule. */
+    public long getStagedScheduleCount() { synchronized(lock) { return stagedScheduleCount; } }
+
+    /** Returns the number of nonempty per-thread buffers which have been merged into the queue.  Each one
+        of these locked the Schedule only once. */
+    public long getStagingBatchCount() { synchronized(lock) { return stagingBatchCount; } }
+
+    /** Returns the total time, in nanoseconds, that scheduleOnce(...) and scheduleOnceIn(...) calls have spent
+        waiting to acquire the Schedule's lock while setCollectsContentionStatistics(true) was in effect. */
+    public long getLockWaitTime() { synchronized(lock) { return lockWaitTime; } }
+
+    /** Sets all the contention statistics back to 0. */
+    public void resetContentionStatistics()
+        {
+        synchronized(lock)
+            {
+            lockedScheduleCount = 0;
+            stagedScheduleCount = 0;
+            stagingBatchCount = 0;
+            lockWaitTime = 0;
+            }
+        }
+
     /** The current time, as returned by getTime().  
         If you modify this in a subclass, be sure to synchronize on Schedule.lock first. */
     protected double time;
@@ -210,7 +410,10 @@ public class Schedule implements java.io.Serializable
             {
             time = AFTER_SIMULATION;
             queue = createHeap();  // let 'em GC  -- must be inside the lock so scheduleOnce doesn't try to add more
+            repeatingGroups.clear();
+            generation++;  // throw away anything staged
             }
+        releaseThreads();
         }
 
     /** Empties out the schedule but does not reset the time or steps.  If you're
@@ -222,7 +425,10 @@ public class Schedule implements java.io.Serializable
         synchronized(lock)
             {
             queue = createHeap();  // let 'em GC  -- must be inside the lock so scheduleOnce doesn't try to add more
+            repeatingGroups.clear();
+            generation++;  // throw away anything staged
             }
+        releaseThreads();
         }
 
     /** Seals the schedule: after a schedule is sealed, no further Steppables may be scheduled on it. 
@@ -245,8 +451,11 @@ public class Schedule implements java.io.Serializable
             time = BEFORE_SIMULATION;
             steps = 0;
             queue = createHeap();  // let 'em GC  -- must be inside the lock so scheduleOnce doesn't try to add more
+            repeatingGroups.clear();
+            generation++;  // throw away anything staged
             sealed = false;
             }
+        releaseThreads();
         }
     
     /** Returns true if the schedule has nothing left to do. */
@@ -276,6 +485,15 @@ public class Schedule implements java.io.Serializable
             }
         
         queue = queue.merge(other.queue);
+        
+        // pick up the other schedule's groups so new repeating Steppables can join them
+        java.util.Iterator i = other.repeatingGroups.values().iterator();
+        while(i.hasNext())
+            {
+            RepeatingGroup group = (RepeatingGroup)(i.next());
+            if (!repeatingGroups.containsKey(group.hashKey))
+                repeatingGroups.put(group.hashKey, group);
+            }
         }
 
     Bag currentSteps = new Bag();
@@ -296,6 +514,11 @@ public class Schedule implements java.io.Serializable
         final MersenneTwisterFast random = state.random; // locals are faster
         
         int topSubstep = 0;  // we set this as a hack to avoid having to clear all the substeps each time until the very end
+        boolean stages = false;
+        int parallelThreads = 0;
+        final Profiler profiler = this.profiler;  // may change out from under us
+        long startNanos = (profiler == null ? 0 : System.nanoTime());
+        long startBytes = (profiler == null ? 0 : profiler.allocated());
 
         // grab the events as quickly as possible
         synchronized(lock)
@@ -304,9 +527,20 @@ public class Schedule implements java.io.Serializable
                 { time = AFTER_SIMULATION; inStep = false; return false; }  // bump the time for the queue.isEmpty() bit
             
             // now change the time
-            time = ((Key)(queue.getMinKey())).time;  // key shouldn't be able to be null; time should always be one bigger
+            Key minKey = (Key)(queue.getMinKey());
+            time = minKey.time;  // key shouldn't be able to be null; time should always be one bigger
+            int ordering = minKey.ordering;
 
             final boolean shuffling = this.shuffling; // locals are faster.  This one needs to be synchronized inside lock
+            parallelThreads = this.parallelThreads;
+            stages = usesStaging || parallelThreads > 0;  // stepping in parallel always stages, so we can merge in a predictable order
+            orderingEnds.clear();
+            orderingValues.clear();
+            if (stages && allStagingBuffers == null)
+                {
+                stagingBuffers = new ThreadLocal();
+                allStagingBuffers = new Bag();
+                }
 
             // grab all of the steppables in the right order.  To do this, we employ two Bags:
             // 1. Each iteration of the while-loop, we grab all the steppables of the next ordering, put into the substeps Bag
@@ -318,6 +552,7 @@ public class Schedule implements java.io.Serializable
                 {
                 // Suck out the contents of the next ordering
                 queue.extractMin(substeps);  // come out in reverse order
+                if (!repeatingGroups.isEmpty()) expandRepeatingGroups(substeps);
 
                 // shuffle
                 if (substeps.numObjs > 1) 
@@ -329,14 +564,27 @@ public class Schedule implements java.io.Serializable
                 // dump
                 if (topSubstep < substeps.numObjs) topSubstep = substeps.numObjs;  // remember index of largest substep since we're violating clear()
                 currentSteps.addAll(substeps);
+                orderingEnds.add(currentSteps.numObjs);
+                orderingValues.add(ordering);
                 substeps.numObjs = 0;  // temporarily clear
                 
                 // check next key and break if we don't need to go on
                 Key currentKey = (Key)(queue.getMinKey());
                 if (currentKey == null || currentKey.time != time) break;  // looks like no more substeps at this timestamp
+                ordering = currentKey.ordering;
                 }
             }
             
+        // if we're stepping in parallel, build or rebuild the threads, and draw the seed for this timestep's generators
+        long seed = 0;
+        if (parallelThreads > 0)
+            {
+            if (chunks != null && chunks.length != parallelThreads) killThreads();
+            if (chunks == null) buildThreads(parallelThreads);
+            seed = random.nextLong();
+            }
+        else if (chunks != null) killThreads();
+
         // now finally clear out the substeps for real
         substeps.numObjs = topSubstep;
         substeps.clear();  // clear for real so everything can GC
@@ -346,39 +594,241 @@ public class Schedule implements java.io.Serializable
         Object[] objs = currentSteps.objs;
         try
             {
-            for(int x=0;x<len;x++)  // if we're not being killed...
+            // from here on, scheduleOnce(...) and scheduleOnceIn(...) go into the StagingBuffers
+            if (stages) { stagingTime = time; staging = true; }
+            if (parallelThreads > 0)
+                stepInParallel(state, seed, profiler);
+            else if (profiler != null)
                 {
-                assert sim.util.LocationLog.set(((Steppable)(objs[x])));
-                ((Steppable)(objs[x])).step(state);
-                assert sim.util.LocationLog.clear();
-                objs[x] = null;  // let gc even if being killed
+                int[] ends = orderingEnds.objs;
+                int[] orderings = orderingValues.objs;
+                for(int x=0, e=0;x<len;x++)
+                    {
+                    while (x >= ends[e]) e++;  // move on to the next ordering
+                    assert sim.util.LocationLog.set(((Steppable)(objs[x])));
+                    profiler.step((Steppable)(objs[x]), state, orderings[e]);
+                    assert sim.util.LocationLog.clear();
+                    objs[x] = null;  // let gc even if being killed
+                    }
                 }
+            else
+                for(int x=0;x<len;x++)  // if we're not being killed...
+                    {
+                    assert sim.util.LocationLog.set(((Steppable)(objs[x])));
+                    ((Steppable)(objs[x])).step(state);
+                    assert sim.util.LocationLog.clear();
+                    objs[x] = null;  // let gc even if being killed
+                    }
             }
         finally
             {
             // reuse currentSteps -- all objects should have been released to gc already, no need to call clear()
             currentSteps.numObjs = 0;
-                
+            
+            if (stages) { staging = false; mergeStagingBuffers(); }
             synchronized(lock) { steps++; }
+            if (profiler != null) profiler.recordSchedule(System.nanoTime() - startNanos, startBytes < 0 ? -1 : profiler.allocated() - startBytes);
+            if (killThreadsAfterStep) { killThreadsAfterStep = false; killThreads(); }
             inStep = false;
             }
         return true;
         }
         
+    // Moves everything in the StagingBuffers into the queue, in one lock.  staging must be false by now
+    // so nobody adds to the buffers while we're emptying them: anyone who tries will schedule the usual way.
+    void mergeStagingBuffers()
+        {
+        synchronized(lock)
+            {
+            Bag buffers = allStagingBuffers;
+            for(int i = buffers.numObjs - 1; i >= 0; i--)
+                {
+                StagingBuffer buffer = (StagingBuffer)(buffers.objs[i]);
+                mergeStagingBuffer(buffer);
+                if (!buffer.owner.isAlive()) buffers.remove(i);  // ParallelSequence may have thrown its threads away
+                }
+            }
+        }
+
+    // Moves everything in a StagingBuffer into the queue, in the order it was staged.
+    // You must synchronize on this.lock before calling this method.
+    void mergeStagingBuffer(StagingBuffer buffer)
+        {
+        int generation = this.generation;
+        synchronized(buffer)
+            {
+            int size = buffer.size;
+            if (size == 0) return;
+            double[] times = buffer.times;
+            int[] orderings = buffer.orderings;
+            int[] generations = buffer.generations;
+            Steppable[] events = buffer.events;
+            for(int j = 0; j < size; j++)
+                if (generations[j] == generation)  // else the queue was thrown away after it was staged
+                    _scheduleOnce(new Key(times[j], orderings[j]), events[j]);  // already bumped, may return false if sealed
+            stagedScheduleCount += size;
+            stagingBatchCount++;
+            buffer.clear();
+            }
+        }
+
+    // Builds the threads, and their ParallelChunks, for stepping in parallel.
+    void buildThreads(int n)
+        {
+        pool = new ThreadPool();
+        chunks = new ParallelChunk[n];
+        for(int i = 0; i < n; i++)
+            chunks[i] = new ParallelChunk(this);
+        if (currentChunk == null) currentChunk = new ThreadLocal();
+        }
+
+    // Kills the threads for stepping in parallel.
+    void killThreads()
+        {
+        if (pool != null) pool.killThreads();
+        pool = null;
+        chunks = null;
+        }
+
+    // set when the threads should be killed as soon as step() is done with them
+    transient boolean killThreadsAfterStep = false;
+
+    // Kills the threads for stepping in parallel when the Schedule is cleared or reset, so they don't outlive the run.
+    // If we're in the middle of step() (say a Steppable called SimState.kill()), the rest of the timestep may still need
+    // them, and a worker thread can't kill its own pool anyway, so step() kills them when it's done instead.
+    void releaseThreads()
+        {
+        if (inStep) killThreadsAfterStep = true;
+        else killThreads();
+        }
+
+    // Steps each ordering of currentSteps in turn by dividing it into contiguous chunks, one per thread, and waiting
+    // until all the chunks are done before going on to the next ordering.  Each chunk stages its events in its own
+    // StagingBuffer, and when an ordering is done, the buffers are merged in chunk order.  This adds events to the
+    // queue in exactly the order that stepping everything in a single thread would, no matter how many threads there are.
+    void stepInParallel(final SimState state, final long seed, final Profiler profiler)
+        {
+        ThreadPool pool = this.pool;
+        ParallelChunk[] chunks = this.chunks;
+        int n = chunks.length;
+        Object[] objs = currentSteps.objs;
+        int[] ends = orderingEnds.objs;
+        int numEnds = orderingEnds.numObjs;
+
+        int start = 0;
+        for(int e = 0; e < numEnds; e++)
+            {
+            int end = ends[e];
+            int size = end - start;
+            for(int i = 0; i < n; i++)
+                // the size % n remainder is spread over the chunks rather than dumped on the last one
+                chunks[i].set(state, objs, start + (int)(((long)size * i) / n), start + (int)(((long)size * (i + 1)) / n), seed, orderingValues.objs[e], profiler);
+
+            for(int i = 1; i < n; i++)
+                if (chunks[i].start < chunks[i].end)
+                    pool.startThread(chunks[i], "Schedule");
+            chunks[0].run();  // we do the first chunk ourselves
+            pool.joinThreads();
+
+            synchronized(lock)
+                {
+                for(int i = 0; i < n; i++)
+                    mergeStagingBuffer(chunks[i].buffer);
+                }
+
+            for(int i = 0; i < n; i++)
+                {
+                Throwable t = chunks[i].exception;
+                if (t != null)
+                    {
+                    for(int j = 0; j < n; j++) chunks[j].exception = null;
+                    if (t instanceof RuntimeException) throw (RuntimeException) t;
+                    else if (t instanceof Error) throw (Error) t;
+                    else throw new RuntimeException(t);  // a checked exception thrown sneakily
+                    }
+                }
+            start = end;
+            }
+        }
+
+    // Returns the current thread's StagingBuffer, building and registering one if necessary.
+    StagingBuffer getStagingBuffer()
+        {
+        StagingBuffer buffer = (StagingBuffer)(stagingBuffers.get());
+        if (buffer == null)
+            {
+            buffer = new StagingBuffer();
+            stagingBuffers.set(buffer);
+            synchronized(lock) { allStagingBuffers.add(buffer); }
+            }
+        return buffer;
+        }
+
+    // results of stage(...)
+    static final int NOT_STAGED = -1;
+    static final int REFUSED = 0;
+    static final int STAGED = 1;
+
+    // Stages an event at time t, or at the staging time plus t if relative, in the current thread's StagingBuffer.
+    // Follows the same rules as _scheduleOnce(...), but checks them against stagingTime.  If key is non-null, its time is
+    // bumped as _scheduleOnce(...) would bump it.  Returns NOT_STAGED if we've stopped staging, in which case you have to
+    // schedule the usual way, else REFUSED or STAGED, which correspond to _scheduleOnce(...) returning false or true.
+    int stage(double t, boolean relative, int ordering, Steppable event, Key key)
+        {
+        StagingBuffer buffer = getStagingBuffer();
+        synchronized(buffer)
+            {
+            if (!staging) return NOT_STAGED;  // step() is merging or has finished
+            double time = stagingTime;
+            if (relative) t += time;
+            if (t == time && t != AFTER_SIMULATION)
+                t = Double.longBitsToDouble(Double.doubleToRawLongBits(t)+1L);
+            if (key != null) key.time = t;
+            
+            if (sealed | t >= AFTER_SIMULATION)  // sealed is read unlocked, but _scheduleOnce(...) checks it again when we merge
+                return REFUSED;
+            checkScheduleOnce(t, time, event);
+            buffer.add(t, ordering, event, generation);
+            return STAGED;
+            }
+        }
+
+    // Replaces each RepeatingGroup in substeps with its members, and reschedules the group.
+    // You must synchronize on this.lock before calling this method.
+    void expandRepeatingGroups(Bag substeps)
+        {
+        Object[] objs = substeps.objs;
+        // we go backwards so anything swapped into position i by remove(i) is either a member
+        // (which we don't need to look at) or something we've already looked at
+        for(int i = substeps.numObjs - 1; i >= 0; i--)
+            if (objs[i] instanceof RepeatingGroup)
+                {
+                RepeatingGroup group = (RepeatingGroup)(substeps.remove(i));
+                group.expand(substeps);
+                objs = substeps.objs;  // may have been resized
+                
+                if (repeatingGroups.get(group.hashKey) == group)
+                    repeatingGroups.remove(group.hashKey);
+                if (group.members.numObjs == 0) continue;  // everyone's been stopped, let the group drop out
+                group.key.time += group.interval;
+                if (group.key.time < AFTER_SIMULATION && _scheduleOnce(group.key, group))  // may return false if we couldn't schedule, which is fine
+                    {
+                    group.hashKey.time = group.key.time;
+                    if (!repeatingGroups.containsKey(group.hashKey))
+                        repeatingGroups.put(group.hashKey, group);
+                    }
+                }
+        }
+        
     /** Schedules the event to occur at getTime() + 1.0, 0 ordering. If this is a valid time
         and event, schedules the event and returns TRUE.
         This method at present returns FALSE if the schedule cannot
         schedule any more events (it's sealed or the time is AFTER_SIMULATION), or if the
         event is being scheduled for AFTER_SIMULATION.  The method 
         throws an IllegalArgumentException if the event is being scheduled for an invalid time, or is null. */
-    
-    // synchronized so getting the time can be atomic with the subsidiary scheduleOnce function call
     public boolean scheduleOnce(final Steppable event)
         {
-        synchronized(lock)
-            {
-            return _scheduleOnce(new Key(/*must lock for:*/time +1.0,0),event);
-            }
+        return scheduleOnce(1.0, true, 0, event);
         }
     
     /** Schedules the event to occur at getTime() + delta, 0 ordering. If this is a valid time
@@ -387,14 +837,9 @@ public class Schedule implements java.io.Serializable
         schedule any more events (it's sealed or the time is AFTER_SIMULATION), or if the
         event is being scheduled for AFTER_SIMULATION.  The method 
         throws an IllegalArgumentException if the event is being scheduled for an invalid time, or is null. */
-    
-    // synchronized so getting the time can be atomic with the subsidiary scheduleOnce function call
     public boolean scheduleOnceIn(final double delta, final Steppable event)
         {
-        synchronized(lock)
-            {
-            return _scheduleOnce(new Key(/*must lock for:*/ time + delta, 0), event);
-            }
+        return scheduleOnce(delta, true, 0, event);
         }
         
     /** Schedules the event to occur at getTime() + 1.0, and in the ordering provided. If this is a valid time
@@ -403,14 +848,9 @@ public class Schedule implements java.io.Serializable
         schedule any more events (it's sealed or the time is AFTER_SIMULATION), or if the
         event is being scheduled for AFTER_SIMULATION.  The method 
         throws an IllegalArgumentException if the event is being scheduled for an invalid time, or is null. */
-    
-    // synchronized so getting the time can be atomic with the subsidiary scheduleOnce function call
     public boolean scheduleOnce(final Steppable event, final int ordering)
         {
-        synchronized(lock)
-            {
-            return _scheduleOnce(new Key(/*must lock for:*/time +1.0,ordering),event);
-            }
+        return scheduleOnce(1.0, true, ordering, event);
         }
 
     /** Schedules the event to occur at getTime() + delta, and in the ordering provided. If this is a valid time
@@ -419,14 +859,9 @@ public class Schedule implements java.io.Serializable
         schedule any more events (it's sealed or the time is AFTER_SIMULATION), or if the
         event is being scheduled for AFTER_SIMULATION.  The method 
         throws an IllegalArgumentException if the event is being scheduled for an invalid time, or is null. */
-    
-    // synchronized so getting the time can be atomic with the subsidiary scheduleOnce function call
     public boolean scheduleOnceIn(final double delta, final Steppable event, final int ordering)
         {
-        synchronized(lock)
-            {
-            return _scheduleOnce(new Key(/*must lock for:*/ time + delta, ordering), event);
-            }
+        return scheduleOnce(delta, true, ordering, event);
         }
 
     /** Schedules the event to occur at the provided time, 0 ordering.  If the getTime() == the provided
@@ -440,10 +875,7 @@ public class Schedule implements java.io.Serializable
     
     public boolean scheduleOnce(double time, final Steppable event)
         {
-        synchronized(lock)
-            {
-            return _scheduleOnce(new Key(time,0),event);
-            }
+        return scheduleOnce(time, false, 0, event);
         }
         
     /** Schedules the event to occur at the provided time, and in the ordering provided.  If the getTime() == the provided
@@ -457,10 +889,7 @@ public class Schedule implements java.io.Serializable
     */
     public boolean scheduleOnce(double time, final int ordering, final Steppable event)
         {
-        synchronized(lock)
-            {
-            return _scheduleOnce(new Key(time,ordering),event);
-            }
+        return scheduleOnce(time, false, ordering, event);
         }
     
     /** Schedules an item. 
@@ -470,12 +899,38 @@ public class Schedule implements java.io.Serializable
         throws an IllegalArgumentException if the event is being scheduled for an invalid time, or is null. */
     protected boolean scheduleOnce(Key key, final Steppable event)
         {
+        if (staging)
+            {
+            int result = stage(key.time, false, key.ordering, event, key);
+            if (result != NOT_STAGED) return (result == STAGED);
+            }
+        long start = (collectsContentionStatistics ? System.nanoTime() : 0L);
         synchronized(lock)
             {
+            if (start != 0L) lockWaitTime += System.nanoTime() - start;
+            lockedScheduleCount++;
             return _scheduleOnce(key, event);
             }
         }
 
+    // Schedules an item at the given time, or if relative is true, at the current time plus the given time.
+    // If we're staging, the item goes into the current thread's StagingBuffer rather than the queue.
+    boolean scheduleOnce(double time, boolean relative, final int ordering, final Steppable event)
+        {
+        if (staging)
+            {
+            int result = stage(time, relative, ordering, event, null);
+            if (result != NOT_STAGED) return (result == STAGED);
+            }
+        long start = (collectsContentionStatistics ? System.nanoTime() : 0L);
+        synchronized(lock)
+            {
+            if (start != 0L) lockWaitTime += System.nanoTime() - start;
+            lockedScheduleCount++;
+            return _scheduleOnce(new Key(/*must lock for:*/ relative ? this.time + time : time, ordering), event);
+            }
+        }
+
     
     /** Schedules an item.  You must synchronize on this.lock before calling this method.   This allows us to avoid synchronizing twice,
         and incurring any overhead (not sure if that's an issue really).  This method at present returns FALSE if the schedule cannot
@@ -497,7 +952,16 @@ public class Schedule implements java.io.Serializable
             {
             return false;
             }
-        else if (t < EPOCH)
+        checkScheduleOnce(t, time, event);
+        
+        queue.add(event, key);
+        return true;
+        }
+
+    // Throws an IllegalArgumentException if the event may not be scheduled at time t when the current time is time.
+    static void checkScheduleOnce(double t, double time, final Steppable event)
+        {
+        if (t < EPOCH)
             throw new IllegalArgumentException("For the Steppable...\n\n"+event+
                 "\n\n...the time provided ("+t+") is < EPOCH (" + EPOCH + ")");
         else if (t != t /* NaN */)
@@ -508,9 +972,6 @@ public class Schedule implements java.io.Serializable
                 "\n\n...the time provided ("+t+") is less than the current time (" + time + ")");
         else if (event == null)
             throw new IllegalArgumentException("The provided Steppable is null");
-        
-        queue.add(event, key);
-        return true;
         }
 
 
@@ -674,6 +1135,13 @@ public class Schedule implements java.io.Serializable
     public Stoppable scheduleRepeating(final double time, final int ordering, final Steppable event, final double interval)
         {
         if (interval <= 0) throw new IllegalArgumentException("The steppable " +  event + " was scheduled repeating with an impossible interval ("+interval+")");
+
+        synchronized(lock)
+            {
+            if (usesRepeatingGroups)
+                return _scheduleRepeatingInGroup(time, ordering, event, interval);
+            }
+
         Schedule.Key k = new Schedule.Key(time,ordering);
         IterativeRepeat r = new IterativeRepeat(event,interval,k);
 
@@ -683,6 +1151,31 @@ public class Schedule implements java.io.Serializable
             else return null;
             }
         }
+        
+    // Adds the event to the RepeatingGroup for the given time, ordering, and interval, creating
+    // and scheduling the group if necessary.  You must synchronize on this.lock before calling this method.
+    Stoppable _scheduleRepeatingInGroup(double time, final int ordering, final Steppable event, final double interval)
+        {
+        if (event == null)
+            throw new IllegalArgumentException("The provided Steppable is null");
+        
+        // bump up the time the same way _scheduleOnce would, so we find the right group
+        if (time == this.time && time != AFTER_SIMULATION)
+            time = Double.longBitsToDouble(Double.doubleToRawLongBits(time)+1L);
+        
+        RepeatingGroup.HashKey probe = new RepeatingGroup.HashKey(time, ordering, interval);
+        RepeatingGroup group = (RepeatingGroup)(repeatingGroups.get(probe));
+        if (group == null)
+            {
+            group = new RepeatingGroup(interval, new Schedule.Key(time, ordering));
+            if (!_scheduleOnce(group.key, group)) return null;
+            group.hashKey.time = group.key.time;
+            repeatingGroups.put(group.hashKey, group);
+            }
+        else if (sealed)
+            return null;
+        return group.add(event);
+        }
 
     /** Timestamps stored as keys in the heap.  Comps are comparable by their time first, and their ordering second. */
     protected static class Key implements Comparable, Serializable
@@ -754,60 +1247,142 @@ public class Schedule implements java.io.Serializable
 
 
 /**
-   Handles repeated steps.  This is done by wrapping the Steppable with a IterativeRepeat object
-   which is itself Steppable, and on its step calls its subsidiary Steppable, then reschedules
-   itself.  IterativeRepeat is stopped by setting its subsidiary to null, and so the next time it's
-   scheduled it won't reschedule itself (or call the subsidiary).   A private class for
-   Schedule.  We've moved it out of being an inner class of Schedule and will ultimately make
-   it a separate class in the package.
+   A StagingBuffer holds the events which one thread has scheduled during a timestep while
+   the Schedule is staging, until the Schedule merges them into its queue at the end of the timestep.
+   Only the owning thread adds to the buffer, and only the Schedule removes from it, but we synchronize
+   on the buffer anyway so the Schedule can tell whether an add got in before it started merging.
 */
 
-class IterativeRepeat implements Steppable, Stoppable
+class StagingBuffer
     {
-    double interval;
-    Steppable step;  // if null, does not reschedule
-    Schedule.Key key;
-        
-    public IterativeRepeat(final Steppable step, final double interval, final Schedule.Key key)
+    double[] times = new double[16];
+    int[] orderings = new int[16];
+    int[] generations = new int[16];
+    Steppable[] events = new Steppable[16];
+    int size = 0;
+    final Thread owner = Thread.currentThread();
+    
+    void add(double time, int ordering, Steppable event, int generation)
         {
-        if (interval < 0)
-            throw new IllegalArgumentException("For the Steppable...\n\n" + step +
-                "\n\n...the interval provided ("+interval+") is less than zero");
-        else if (interval != interval)  /* NaN */
-            throw new IllegalArgumentException("For the Steppable...\n\n" + step +
-                "\n\n...the interval provided ("+interval+") is NaN");
+        if (size >= events.length)
+            {
+            int newLength = events.length * 2;
+            double[] newTimes = new double[newLength];
+            System.arraycopy(times, 0, newTimes, 0, size);
+            times = newTimes;
+            int[] newOrderings = new int[newLength];
+            System.arraycopy(orderings, 0, newOrderings, 0, size);
+            orderings = newOrderings;
+            int[] newGenerations = new int[newLength];
+            System.arraycopy(generations, 0, newGenerations, 0, size);
+            generations = newGenerations;
+            Steppable[] newEvents = new Steppable[newLength];
+            System.arraycopy(events, 0, newEvents, 0, size);
+            events = newEvents;
+            }
+        times[size] = time;
+        orderings[size] = ordering;
+        generations[size] = generation;
+        events[size] = event;
+        size++;
+        }
+    
+    void clear()
+        {
+        for(int i = 0; i < size; i++)
+            events[i] = null;  // let GC
+        size = 0;
+        }
+    }
+
+
+/**
+   A ParallelChunk steps a contiguous range of the Schedule's currentSteps in one thread
+   when the Schedule is stepping in parallel.  It stages everything its Steppables schedule in its
+   own StagingBuffer, and provides each Steppable with its own random number generator, seeded
+   from the timestep's seed and the Steppable's position in currentSteps, so that neither depends
+   on how currentSteps was divided up among the threads.
+*/
 
-        this.step = step;
-        this.interval = interval;
-        this.key = key;
+class ParallelChunk implements Runnable
+    {
+    final Schedule schedule;
+    final StagingBuffer buffer = new StagingBuffer();
+    final MersenneTwisterFast random = new MersenneTwisterFast();
+    final int[] seedArray = new int[2];
+    
+    SimState state;
+    Object[] objs;
+    int start;
+    int end;
+    long seed;
+    int ordering;
+    Profiler profiler;
+    
+    int current;  // the index of the Steppable presently being stepped
+    boolean seeded;  // has random been seeded for the current Steppable?
+    Throwable exception;  // the first thing thrown by a Steppable, if any
+
+    ParallelChunk(Schedule schedule) { this.schedule = schedule; }
+    
+    void set(SimState state, Object[] objs, int start, int end, long seed, int ordering, Profiler profiler)
+        {
+        this.ordering = ordering;
+        this.profiler = profiler;
+        this.state = state;
+        this.objs = objs;
+        this.start = start;
+        this.end = end;
+        this.seed = seed;
         }
-        
-    public synchronized void step(final SimState state)
+    
+    // Seeds the generator lazily, since many Steppables never ask for it, and seeding is expensive
+    MersenneTwisterFast getRandom()
         {
-        if (step!=null)
+        if (!seeded)
             {
-            try
-                {
-                // reuse the Key to save some gc perhaps -- it's been pulled out and discarded at this point
-                key.time += interval;
-                if (key.time < Schedule.AFTER_SIMULATION) 
-                    state.schedule.scheduleOnce(key,this);  // may return false if we couldn't schedule, which is fine
-                }
-            catch (IllegalArgumentException e)
-                {
-                e.printStackTrace(); // something bad happened
-                }
-            assert sim.util.LocationLog.set(step);
-            step.step(state);
-            assert sim.util.LocationLog.clear();
+            // a SplitMix64 hash of the seed and the Steppable's position
+            long z = seed + (current + 1) * 0x9E3779B97F4A7C15L;
+            z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+            z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+            z = z ^ (z >>> 31);
+            seedArray[0] = (int)(z >>> 32);
+            seedArray[1] = (int)z;
+            random.setSeed(seedArray);
+            seeded = true;
             }
+        return random;
         }
-        
-    public synchronized void stop()  
+    
+    public void run()
         {
-        step = null;
+        ThreadLocal stagingBuffers = schedule.stagingBuffers;
+        ThreadLocal currentChunk = schedule.currentChunk;
+        Object oldBuffer = stagingBuffers.get();  // we may be running in the Schedule's own thread
+        stagingBuffers.set(buffer);
+        currentChunk.set(this);
+        Object[] objs = this.objs;
+        try
+            {
+            for(current = start; current < end; current++)
+                {
+                seeded = false;
+                Steppable step = (Steppable)(objs[current]);
+                assert sim.util.LocationLog.set(step);
+                if (profiler != null) profiler.step(step, state, ordering);
+                else step.step(state);
+                assert sim.util.LocationLog.clear();
+                objs[current] = null;  // let gc even if being killed
+                }
+            }
+        catch (Throwable e) { exception = e; }  // rethrown by the Schedule
+        finally
+            {
+            stagingBuffers.set(oldBuffer);
+            currentChunk.set(null);
+            state = null;  // let gc
+            this.objs = null;
+            profiler = null;
+            }
         }
-        
-    public String toString() { return "Schedule.IterativeRepeat[" + step + "]"; }
     }
-
@@ -346,12 +346,14 @@ public class Sequence implements Steppable
 
         int stepsSize = this.size;
         Steppable[] steps = this.steps;
+        Profiler profiler = state.schedule.profiler;
         
         for(int x=0;x<stepsSize;x++)
             {
             if (steps[x]!=null) 
                 {
-                steps[x].step(state);
+                if (profiler != null) profiler.step(steps[x], state);
+                else steps[x].step(state);
                 }
             }
         }
@@ -132,6 +132,8 @@ public class SimState implements java.io.Serializable
         and clear it in the first finish(). */
     public void finish()
         {
+        Profiler profiler = schedule.getProfiler();
+        if (profiler != null) profiler.finish();  // write out the profile, if anywhere
         kill();  // cleans up asynchronous and resets the schedule, a good ending
         }
 
@@ -283,10 +285,13 @@ public class SimState implements java.io.Serializable
         catch(Exception e) { e.printStackTrace(); return null; }
         }
     
-    /** Creates a SimState from checkpoint.  If an exception is raised, it is printed and null is returned. */
+    /** Creates a SimState from checkpoint.  If the checkpoint is a delta written by a DeltaCheckpointer, reads
+        the checkpoints it depends on as well.  If an exception is raised, it is printed and null is returned. */
     public static SimState readFromCheckpoint(File file)
         {
         try {
+            if (DeltaCheckpointer.isDelta(file))
+                return DeltaCheckpointer.read(file);
             FileInputStream f = new FileInputStream(file);
             SimState state = readFromCheckpoint(f);
             f.close();
@@ -307,7 +312,10 @@ public class SimState implements java.io.Serializable
             new ObjectInputStream(
                 new GZIPInputStream (
                     new BufferedInputStream(stream)));
-        SimState state = (SimState) (s.readObject());
+        Object obj = s.readObject();
+        if (obj instanceof DeltaCheckpointer.Header)
+            throw new IOException("This is a delta checkpoint, which must be read with readFromCheckpoint(File)");
+        SimState state = (SimState) obj;
         state.awakeFromCheckpoint();
         return state;
         }
@@ -387,7 +395,10 @@ public class SimState implements java.io.Serializable
                 "Format:           java " + generator.simulationClass().getName() + " \\\n" +
                 "                       [-help] [-repeat R] [-parallel P] [-seed S] \\\n" +
                 "                       [-until U] [-for F] [-time T] [-docheckpoint D] \\\n" +
-                "                       [-checkpoint C] [-quiet] \n\n" +
+                "                       [-deltas K] \\\n" +
+                "                       [-checkpoint C] [-calendarqueue] [-profile P] \\\n" +
+                "                       [-profileallocation] \\\n" +
+                "                       [-sweep S] [-sweepfile F] [-metrics M] [-quiet] \n\n" +
                 "-help             Shows this message and exits.\n\n" +
                 "-repeat R         Long value > 0: Runs the job R times.  Unless overridden by a\n" +
                 "                  checkpoint recovery (see -checkpoint), the random seed for\n" +
@@ -424,6 +435,15 @@ public class SimState implements java.io.Serializable
                 "                  <steps>.<job#>." + 
                 generator.simulationClass().getName().substring(generator.simulationClass().getName().lastIndexOf(".") + 1) + 
                 ".checkpoint\n\n" + 
+                "-deltas K         Long value > 0: with -docheckpoint, writes a full checkpoint\n" +
+                "                  only every K checkpoints.  In between, writes just the\n" +
+                "                  changes to fields since the previous checkpoint, in the\n" +
+                "                  background, to files named\n" +
+                "                  <steps>.<job#>." + 
+                generator.simulationClass().getName().substring(generator.simulationClass().getName().lastIndexOf(".") + 1) + 
+                ".delta\n" +
+                "                  which -checkpoint can load, along with the files before them.\n" +
+                "                  Default: every checkpoint is a full one.\n\n" +
                 "-checkpoint C     String: loads the simulation from file C, recovering the job\n" +
                 "                  number and the seed.  If the checkpointed simulation was begun\n" +
                 "                  on the command line but was passed through the GUI for a while\n" +
@@ -435,6 +455,40 @@ public class SimState implements java.io.Serializable
                 "                  from the recovered job and seed.\n" +
                 "                  Default: starts a new simulation rather than loading one, at\n" +
                 "                  job 0 and with the seed given in -seed.\n\n" + 
+                "-calendarqueue    Schedules events using a calendar queue rather than a\n" +
+                "                  heap.  Often faster when many agents are scheduled\n" +
+                "                  for the same timesteps.\n" +
+                "                  Default: uses a heap.\n\n" +
+                "-profile P        String: records the time taken by each class of Steppable\n" +
+                "                  and by each ordering, and writes it to file P when each job\n" +
+                "                  finishes: as JSON if P ends in .json, else as CSV.  If there is\n" +
+                "                  more than one job, each job's file is named <job#>.P instead,\n" +
+                "                  in the same directory as P.\n" +
+                "                  Default: does not profile.\n\n" +
+                "-profileallocation With -profile, also estimates the memory allocated by each\n" +
+                "                  class of Steppable and by each ordering.  This slows the\n" +
+                "                  simulation down a good deal more than -profile alone.\n" +
+                "                  Default: does not estimate allocation.\n\n" +
+                "-sweep S          String: runs a parameter sweep rather than a single batch of\n" +
+                "                  jobs.  S has the form name=v1,v2,...;name=min:max:inc;...\n" +
+                "                  where each name is a read/write property of the simulation,\n" +
+                "                  given the list of values or the range of numbers.  Every\n" +
+                "                  combination of the values is run R times (see -repeat), as\n" +
+                "                  job numbers 0, 1, 2, ..., with -seed plus the job number as\n" +
+                "                  the seed.  -parallel gives the number of jobs run at once\n" +
+                "                  (default: the number of processors).  -sweep may not be\n" +
+                "                  used in combination with -checkpoint or -docheckpoint.\n" +
+                "                  Default: does not sweep.\n\n" +
+                "-sweepfile F      String: the CSV file to which -sweep writes one line per job.\n" +
+                "                  If F already has jobs from the same sweep, they are not run\n" +
+                "                  again, so a crashed sweep may be resumed.  In this case, be\n" +
+                "                  sure to give the same -seed: a sweep without -seed uses 1.\n" +
+                "                  Default: " + 
+                generator.simulationClass().getName().substring(generator.simulationClass().getName().lastIndexOf(".") + 1) + 
+                ".sweep.csv\n\n" +
+                "-metrics M        String: the comma-separated properties of the simulation\n" +
+                "                  which -sweep writes out for each job when it is done.\n" +
+                "                  Default: all non-hidden number, boolean, and String properties.\n\n" +
                 "-quiet            Does not print messages except for errors and warnings.\n" + 
                 "                  This option implies -time 0.\n" +
                 "                  Default: prints all messages.\n"
@@ -443,6 +497,9 @@ public class SimState implements java.io.Serializable
             }
 
         final boolean quiet = keyExists("-quiet", args);
+        final boolean calendarQueue = keyExists("-calendarqueue", args);
+        final String profileFile = argumentForKey("-profile", args);
+        final boolean profileAllocation = keyExists("-profileallocation", args);
 
         java.text.NumberFormat n = java.text.NumberFormat.getInstance();
         n.setMinimumFractionDigits(0);
@@ -519,6 +576,20 @@ public class SimState implements java.io.Serializable
                 }
     	final long cmod = _cmod;
         
+        long _deltas = 0;
+        String deltas_s = argumentForKey("-deltas", args);
+        if (deltas_s != null)
+            try
+                {
+                _deltas = Long.parseLong(deltas_s);
+                if (_deltas <= 0) throw new Exception();
+                }
+            catch (Exception e)
+                {
+                throw new RuntimeException("Invalid deltas value: " + deltas_s + ", must be a positive integer");
+                }
+        final long deltas = _deltas;
+        
         long _repeat = 1;
         String repeat_s = argumentForKey("-repeat", args);
         if (repeat_s != null)
@@ -554,7 +625,18 @@ public class SimState implements java.io.Serializable
         	System.err.println("Cannot load from checkpoint and run in parallel at the same time.  Sorry.");
         	System.exit(1);
         	}
-       
+
+        // sweep rather than run a batch?
+        String sweep = argumentForKey("-sweep", args);
+        if (sweep != null)
+            {
+            if (checkpointFile != null || cmod > 0)
+                {
+                System.err.println("Cannot checkpoint and sweep at the same time.  Sorry.");
+                System.exit(1);
+                }
+            ParameterSweep.doSweep(generator, sweep, args, quiet, (seed_s == null ? 1 : seed_init), _for, until, repeat, parallel_s);
+            }
        
         // okay, now we actually get down to brass tacks
         
@@ -593,6 +675,7 @@ public class SimState implements java.io.Serializable
 								}
 										
 							state.nameThread();
+							if (calendarQueue) state.schedule.setUsesCalendarQueue(true);
 
 							job = state.job();
 							if (state.seed() != 0) // likely good seed from the command line earlier
@@ -610,9 +693,18 @@ public class SimState implements java.io.Serializable
 							state.nameThread();
 							state.job = job;
 							state.seed = seed;
+							if (calendarQueue) state.schedule.setUsesCalendarQueue(true);
 							if (!quiet) printlnSynchronized("Job: " + state.job() + " Seed: " + state.seed());
 							state.start();
 							}
+						if (profileFile != null)
+							{
+							File f = new File(profileFile);
+							if (repeat * parallel > 1) f = new File(f.getParentFile(), job + "." + f.getName());
+							Profiler profiler = new Profiler(f);
+							profiler.setMeasuresAllocation(profileAllocation);
+							state.schedule.setProfiler(profiler);
+							}
 			
 						NumberFormat rateFormat = NumberFormat.getInstance();
 						rateFormat.setMaximumFractionDigits(5);
@@ -625,6 +717,8 @@ public class SimState implements java.io.Serializable
 						long oldClock = System.currentTimeMillis();
 						Schedule schedule = state.schedule;
 						long firstSteps = schedule.getSteps();
+						DeltaCheckpointer checkpointer = (deltas > 0 ? new DeltaCheckpointer() : null);
+						long checkpoints = 0;
 			
 						while((_for == -1 || steps < _for) && schedule.getTime() <= until)
 							{
@@ -650,11 +744,32 @@ public class SimState implements java.io.Serializable
 								}
 							if (cmod > 0 && steps % cmod == 0)
 								{
-								String s = "" + steps + "." + state.job() +  "." + state.getClass().getName().substring(state.getClass().getName().lastIndexOf(".") + 1) + ".checkpoint";
-								if (!quiet) printlnSynchronized("Job " + job + ": " + "Checkpointing to file: " + s);
-								state.writeToCheckpoint(new File(s));
+								String s = "" + steps + "." + state.job() +  "." + state.getClass().getName().substring(state.getClass().getName().lastIndexOf(".") + 1);
+								if (checkpointer != null && checkpoints++ % deltas != 0)
+									{
+									if (!quiet) printlnSynchronized("Job " + job + ": " + "Checkpointing changes to file: " + s + ".delta");
+									try { checkpointer.writeDelta(state, new File(s + ".delta")); }
+									catch (Exception e) { e.printStackTrace(); }
+									}
+								else if (checkpointer != null)
+									{
+									if (!quiet) printlnSynchronized("Job " + job + ": " + "Checkpointing to file: " + s + ".checkpoint");
+									try { checkpointer.writeBase(state, new File(s + ".checkpoint")); }
+									catch (Exception e) { e.printStackTrace(); }
+									}
+								else
+									{
+									if (!quiet) printlnSynchronized("Job " + job + ": " + "Checkpointing to file: " + s + ".checkpoint");
+									state.writeToCheckpoint(new File(s + ".checkpoint"));
+									}
 								}
 							}
+						
+						if (checkpointer != null)
+							{
+							try { checkpointer.finish(); }
+							catch (Exception e) { e.printStackTrace(); }
+							}
 				
 						state.finish();
 			
@@ -0,0 +1,118 @@
+/*
+  Copyright 2006 by Sean Luke and George Mason University
+  Licensed under the Academic Free License version 3.0
+  See the file "LICENSE" for more information
+*/
+
+package sim.engine;
+import java.util.*;
+
+// Why do we have a ThreadPool object instead of using Java's thread
+// pool facility in java.util.concurrent?  Two reasons.  First, this is
+// faster and far simpler.  Second, java.util.concurrent has ridiculous
+// design errors in it -- it's nearly impossible to do basic tasks like
+// join threads etc.  Was Sun's code written by monkeys?  It appears so.
+// Seriously, how screwed up a company do you have to be to mess up a
+// ** thread pool ** ?
+
+
+class ThreadPool
+    {
+    class Node implements Runnable
+        {
+        boolean die = false;
+        boolean go = false;
+        public Thread thread;
+        public Runnable toRun;
+        
+        public Node(String name) 
+            {
+            thread = new Thread(this); 
+            thread.setDaemon(true);
+            thread.setName(name);
+            }
+        
+        public void run()
+            {
+            while(true)
+                {
+                synchronized(this) 
+                    {
+                    while(!go && !die)
+                        {
+                        try { wait(); }
+                        catch (InterruptedException e) { } // ignore
+                        }
+                    go = false;
+                    if (die) { die = false; return; }
+                    }
+                toRun.run();
+                toRun = null;
+                // add myself back in the list
+                synchronized(threads)
+                    {
+                    threads.add(this);  // adds to the tail
+                    if (totalThreads == threads.size())  // we're all in the bag, let the pool know if it's joining
+                        threads.notify();
+                    }
+                // let the pool know I'm home
+                }
+            }
+        }
+    
+    LinkedList threads = new LinkedList();
+    int totalThreads = 0;  // synchronize on threads first
+            
+    // Joins and kills all threads, both those running and those sitting in the pool
+    void killThreads()
+        {
+        synchronized(threads)
+            {
+            joinThreads();
+            while(!threads.isEmpty())
+                {
+                Node node = (Node)(threads.remove());  // removes from head
+                synchronized(node) { node.die = true; node.notify(); }  // reel it in
+                try { node.thread.join(); }
+                catch (InterruptedException e) { } // ignore
+                totalThreads--;
+                }
+            }
+        }
+        
+    // Waits for all presently running threads to complete
+    void joinThreads()
+        {
+        synchronized(threads)
+            {
+            while(totalThreads > threads.size())  // there are still outstanding threads
+                try { threads.wait(); }
+                catch (InterruptedException e) { }  // ignore
+            }
+        }
+    
+    // Starts a thread running on the given runnable
+    void startThread(Runnable run) { startThread(run, "ParallelSequence"); }
+    
+    void startThread(Runnable run, String name)
+        {
+        Node node;
+        // ensure we have at least one thread
+        synchronized(threads) 
+            {
+            if (threads.isEmpty())
+                {
+                node = new Node(name + " Thread " + totalThreads);
+                node.thread.start();
+                totalThreads++;
+                }
+            else  // pull a thread
+                {
+                node = (Node)(threads.remove());  // removes from the head
+                }
+            }
+        synchronized(node) { node.toRun = run; node.go = true; node.notify(); }  // get it running
+        }
+
+    private static final long serialVersionUID = 1;
+    }
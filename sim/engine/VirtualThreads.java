@@ -0,0 +1,72 @@
+/*
+  Copyright 2006 by Sean Luke and George Mason University
+  Licensed under the Academic Free License version 3.0
+  See the file "LICENSE" for more information
+*/
+
+package sim.engine;
+import java.lang.reflect.*;
+
+/**
+   VirtualThreads builds threads for AsynchronousSteppable and ParallelSequence when they've been asked
+   to use virtual threads.  Virtual threads are very cheap threads, managed by the Java VM rather than
+   the operating system, which are available in Java 21 and later.  A model can have hundreds of thousands
+   of them blocking on I/O or sleeping at once, where it would run out of ordinary threads long before then.
+
+   <p>MASON is compiled for older versions of Java, so we get at virtual threads through reflection.  If
+   they're not available, newThread(...) instead returns an ordinary daemon thread with a small stack, which
+   is the best we can do.  You can check which you're getting with isAvailable().
+*/
+
+public class VirtualThreads
+    {
+    /** The stack size, in bytes, requested for ordinary threads when virtual threads aren't available. */
+    public static final long FALLBACK_STACK_SIZE = 128 * 1024;
+
+    // Thread.ofVirtual(), Thread.Builder.name(String), and Thread.Builder.unstarted(Runnable), or null if not available
+    static Method ofVirtual;
+    static Method name;
+    static Method unstarted;
+
+    static
+        {
+        try
+            {
+            Class builder = Class.forName("java.lang.Thread$Builder");
+            Method o = Thread.class.getMethod("ofVirtual", new Class[0]);
+            Method n = builder.getMethod("name", new Class[] { String.class });
+            Method u = builder.getMethod("unstarted", new Class[] { Runnable.class });
+            ofVirtual = o;
+            name = n;
+            unstarted = u;
+            }
+        catch (Exception e) { }  // not available, or blocked by a security manager
+        }
+
+    // can't make one
+    private VirtualThreads() { }
+
+    /** Returns true if this Java VM provides virtual threads. */
+    public static boolean isAvailable() { return unstarted != null; }
+
+    /** Returns a new, unstarted virtual thread with the given name which will run the given Runnable.
+        If virtual threads are not available, returns a new, unstarted daemon thread with a stack
+        of FALLBACK_STACK_SIZE instead. */
+    public static Thread newThread(Runnable run, String threadName)
+        {
+        if (unstarted != null)
+            {
+            try
+                {
+                Object builder = ofVirtual.invoke(null, new Object[0]);
+                builder = name.invoke(builder, new Object[] { threadName });
+                return (Thread)(unstarted.invoke(builder, new Object[] { run }));
+                }
+            catch (IllegalAccessException e) { }  // fall through
+            catch (InvocationTargetException e) { }  // fall through
+            }
+        Thread thread = new Thread(null, run, threadName, FALLBACK_STACK_SIZE);
+        thread.setDaemon(true);
+        return thread;
+        }
+    }
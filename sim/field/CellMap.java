@@ -0,0 +1,453 @@
+/*
+  Copyright 2006 by Sean Luke and George Mason University
+  Licensed under the Academic Free License version 3.0
+  See the file "LICENSE" for more information
+*/
+
+package sim.field;
+import sim.util.*;
+import java.util.*;
+
+/**
+   A CellMap is a Map from cells (Int2D or MutableInt2D, or Int3D or MutableInt3D, depending on
+   how many dimensions you make it with) to objects, usually Bags.  It's meant to stand in for the
+   HashMap which SparseFields use for their objectHash, and does so for Continuous2D and Continuous3D when you call
+   setUsesCellMap(true) on them.
+
+   <p>Rather than hashing Int2D objects into buckets of Map.Entry objects, as HashMap does, CellMap packs
+   the coordinates of each cell into a long, and stores the longs and their values in two arrays,
+   using open addressing with linear probing.  Looking up a cell calls no hashCode() or equals() methods,
+   allocates nothing, and usually touches one slot of each array.  You can also look up cells by their
+   coordinates directly with get(x, y) or get(x, y, z), without making an Int2D or Int3D at all.
+
+   <p>In two dimensions, every cell packs into a long.  In three dimensions each coordinate must be
+   between -2^20 and 2^20 - 1.  Cells outside these bounds, and keys which aren't cells at all, are stored in an
+   ordinary HashMap off to the side, so the CellMap still works, just more slowly.
+
+   <p>Iterating over a CellMap creates a new Int2D or Int3D for each key.  Entries may not be removed through
+   an iterator.
+*/
+
+public class CellMap extends AbstractMap implements java.io.Serializable
+    {
+    private static final long serialVersionUID = 1;
+
+    static final int BITS_3D = 21;
+    static final int MIN_3D = -(1 << (BITS_3D - 1));
+    static final int MAX_3D = (1 << (BITS_3D - 1)) - 1;
+    static final long MASK_3D = (1L << BITS_3D) - 1;
+    static final int MINIMUM_CAPACITY = 16;
+
+    // stands in for null values, since an empty slot has a null value
+    static final Object NULL = new Object[0];
+
+    int dimensions;
+    long[] keys;
+    Object[] values;
+    int size;
+    int shift;  // 64 - log2(capacity)
+    HashMap others;  // keys which won't pack, or null
+
+    /** Creates an empty CellMap for cells of the given number of dimensions, 2 or 3. */
+    public CellMap(int dimensions)
+        {
+        this(dimensions, 0);
+        }
+
+    /** Creates an empty CellMap for cells of the given number of dimensions, 2 or 3,
+        which will hold <i>size</i> cells before it needs to grow. */
+    public CellMap(int dimensions, int size)
+        {
+        if (dimensions != 2 && dimensions != 3)
+            throw new IllegalArgumentException("CellMaps must have 2 or 3 dimensions, not " + dimensions);
+        this.dimensions = dimensions;
+        int capacity = MINIMUM_CAPACITY;
+        while(capacity < size * 2 && capacity < (1 << 30)) capacity *= 2;  // at most half full
+        allocate(capacity);
+        }
+
+    /** Creates a CellMap for cells of the given number of dimensions, 2 or 3, holding the entries in the given Map. */
+    public CellMap(int dimensions, Map other)
+        {
+        this(dimensions, other.size());
+        putAll(other);
+        }
+
+    void allocate(int capacity)
+        {
+        keys = new long[capacity];
+        values = new Object[capacity];
+        shift = 64 - Integer.numberOfTrailingZeros(capacity);
+        }
+
+    /** Returns the number of dimensions of the cells. */
+    public int getDimensions() { return dimensions; }
+
+    static long pack(int x, int y)
+        {
+        return (((long) x) << 32) | (y & 0xFFFFFFFFL);
+        }
+
+    static long pack(int x, int y, int z)
+        {
+        return ((x & MASK_3D) << (BITS_3D * 2)) | ((y & MASK_3D) << BITS_3D) | (z & MASK_3D);
+        }
+
+    static boolean packs(int x, int y, int z)
+        {
+        return x >= MIN_3D && x <= MAX_3D && y >= MIN_3D && y <= MAX_3D && z >= MIN_3D && z <= MAX_3D;
+        }
+
+    // Returns the Int2D or Int3D for a packed key
+    Object unpack(long key)
+        {
+        if (dimensions == 2) return new Int2D((int)(key >> 32), (int) key);
+        // sign-extend each 21-bit coordinate
+        return new Int3D((int)((key << (64 - BITS_3D * 3)) >> (64 - BITS_3D)),
+            (int)((key << (64 - BITS_3D * 2)) >> (64 - BITS_3D)),
+            (int)((key << (64 - BITS_3D)) >> (64 - BITS_3D)));
+        }
+
+    int slot(long key)
+        {
+        return (int)((key * 0x9E3779B97F4A7C15L) >>> shift);
+        }
+
+    // Returns true if the key is a cell which packs into a long
+    boolean packable(Object key)
+        {
+        if (dimensions == 2) return (key instanceof Int2D || key instanceof MutableInt2D);
+        if (key instanceof Int3D) { Int3D k = (Int3D) key; return packs(k.x, k.y, k.z); }
+        if (key instanceof MutableInt3D) { MutableInt3D k = (MutableInt3D) key; return packs(k.x, k.y, k.z); }
+        return false;
+        }
+
+    // Packs a key for which packable(key) is true
+    long packKey(Object key)
+        {
+        if (key instanceof Int2D) { Int2D k = (Int2D) key; return pack(k.x, k.y); }
+        if (key instanceof MutableInt2D) { MutableInt2D k = (MutableInt2D) key; return pack(k.x, k.y); }
+        if (key instanceof Int3D) { Int3D k = (Int3D) key; return pack(k.x, k.y, k.z); }
+        MutableInt3D k = (MutableInt3D) key;
+        return pack(k.x, k.y, k.z);
+        }
+
+    // Returns the slot holding the key, or -1
+    int find(long key)
+        {
+        final long[] keys = this.keys;
+        final Object[] values = this.values;
+        final int mask = keys.length - 1;
+        int i = slot(key);
+        while(values[i] != null)
+            {
+            if (keys[i] == key) return i;
+            i = (i + 1) & mask;
+            }
+        return -1;
+        }
+
+    Object getPacked(long key)
+        {
+        int i = find(key);
+        if (i < 0) return null;
+        Object val = values[i];
+        return (val == NULL ? null : val);
+        }
+
+    /** Returns the value for the cell (x, y), or null.  The CellMap must have 2 dimensions. */
+    public Object get(int x, int y)
+        {
+        return getPacked(pack(x, y));
+        }
+
+    /** Returns the value for the cell (x, y, z), or null.  The CellMap must have 3 dimensions. */
+    public Object get(int x, int y, int z)
+        {
+        if (!packs(x, y, z)) return (others == null ? null : others.get(new Int3D(x, y, z)));
+        return getPacked(pack(x, y, z));
+        }
+
+    public Object get(Object key)
+        {
+        if (packable(key)) return getPacked(packKey(key));
+        return (others == null ? null : others.get(key));
+        }
+
+    public boolean containsKey(Object key)
+        {
+        if (packable(key)) return find(packKey(key)) >= 0;
+        return (others != null && others.containsKey(key));
+        }
+
+    public Object put(Object key, Object value)
+        {
+        if (!packable(key))
+            {
+            if (others == null) others = new HashMap();
+            // keep the key: a MutableInt2D could change under us
+            if (key instanceof MutableInt2D) key = new Int2D(((MutableInt2D) key).x, ((MutableInt2D) key).y);
+            else if (key instanceof MutableInt3D) key = new Int3D(((MutableInt3D) key).x, ((MutableInt3D) key).y, ((MutableInt3D) key).z);
+            return others.put(key, value);
+            }
+        return putPacked(packKey(key), value);
+        }
+
+    Object putPacked(long key, Object value)
+        {
+        if (value == null) value = NULL;
+        int mask = keys.length - 1;
+        int i = slot(key);
+        while(values[i] != null)
+            {
+            if (keys[i] == key)
+                {
+                Object old = values[i];
+                values[i] = value;
+                return (old == NULL ? null : old);
+                }
+            i = (i + 1) & mask;
+            }
+        keys[i] = key;
+        values[i] = value;
+        if (++size * 2 > keys.length) grow();
+        return null;
+        }
+
+    void grow()
+        {
+        long[] oldKeys = keys;
+        Object[] oldValues = values;
+        allocate(oldKeys.length * 2);
+        int mask = keys.length - 1;
+        for(int j = 0; j < oldKeys.length; j++)
+            if (oldValues[j] != null)
+                {
+                int i = slot(oldKeys[j]);
+                while(values[i] != null) i = (i + 1) & mask;
+                keys[i] = oldKeys[j];
+                values[i] = oldValues[j];
+                }
+        }
+
+    public Object remove(Object key)
+        {
+        if (!packable(key))
+            return (others == null ? null : others.remove(key));
+        int i = find(packKey(key));
+        if (i < 0) return null;
+        Object old = values[i];
+        removeSlot(i);
+        return (old == NULL ? null : old);
+        }
+
+    // Empties the slot, then moves later entries in the same run back into the hole, so there are no tombstones
+    void removeSlot(int i)
+        {
+        final long[] keys = this.keys;
+        final Object[] values = this.values;
+        final int mask = keys.length - 1;
+        int j = i;
+        while(true)
+            {
+            j = (j + 1) & mask;
+            if (values[j] == null) break;
+            int k = slot(keys[j]);
+            // if k lies cyclically in (i, j], the entry at j is still reachable from its home slot
+            if (i <= j ? (i < k && k <= j) : (i < k || k <= j)) continue;
+            keys[i] = keys[j];
+            values[i] = values[j];
+            i = j;
+            }
+        values[i] = null;
+        size--;
+        }
+
+    public int size()
+        {
+        return size + (others == null ? 0 : others.size());
+        }
+
+    public void clear()
+        {
+        Arrays.fill(values, null);
+        size = 0;
+        others = null;
+        }
+
+    public Set entrySet()
+        {
+        return new AbstractSet()
+            {
+            public int size() { return CellMap.this.size(); }
+            public Iterator iterator()
+                {
+                return new Iterator()
+                    {
+                    int i = -1;
+                    Iterator o = null;
+                    { advance(); }
+                    void advance()
+                        {
+                        if (o != null) return;
+                        for(i++; i < values.length; i++)
+                            if (values[i] != null) return;
+                        if (others != null) o = others.entrySet().iterator();
+                        }
+                    public boolean hasNext()
+                        {
+                        return (o == null ? i < values.length : o.hasNext());
+                        }
+                    public Object next()
+                        {
+                        if (o != null) return o.next();
+                        if (i >= values.length) throw new NoSuchElementException();
+                        Object e = new Entry(i);
+                        advance();
+                        return e;
+                        }
+                    public void remove() { throw new UnsupportedOperationException("Remove not supported in CellMap iterators"); }
+                    };
+                }
+            };
+        }
+
+    class Entry implements Map.Entry
+        {
+        int i;
+        Object key;
+        Entry(int i) { this.i = i; key = unpack(keys[i]); }
+        public Object getKey() { return key; }
+        public Object getValue() { return (values[i] == NULL ? null : values[i]); }
+        public Object setValue(Object value)
+            {
+            Object old = getValue();
+            values[i] = (value == null ? NULL : value);
+            return old;
+            }
+        public boolean equals(Object obj)
+            {
+            if (!(obj instanceof Map.Entry)) return false;
+            Map.Entry e = (Map.Entry) obj;
+            Object v = getValue();
+            return key.equals(e.getKey()) && (v == null ? e.getValue() == null : v.equals(e.getValue()));
+            }
+        public int hashCode()
+            {
+            Object v = getValue();
+            return key.hashCode() ^ (v == null ? 0 : v.hashCode());
+            }
+        }
+
+    // NULL isn't the same object once it's been read back in, so write the entries out ourselves
+    private void writeObject(java.io.ObjectOutputStream out) throws java.io.IOException
+        {
+        out.writeInt(dimensions);
+        out.writeInt(size);
+        for(int i = 0; i < keys.length; i++)
+            if (values[i] != null)
+                {
+                out.writeLong(keys[i]);
+                out.writeObject(values[i] == NULL ? null : values[i]);
+                }
+        out.writeObject(others);
+        }
+
+    private void readObject(java.io.ObjectInputStream in) throws java.io.IOException, ClassNotFoundException
+        {
+        dimensions = in.readInt();
+        int n = in.readInt();
+        int capacity = MINIMUM_CAPACITY;
+        while(capacity < n * 2) capacity *= 2;
+        allocate(capacity);
+        for(int i = 0; i < n; i++)
+            {
+            long key = in.readLong();
+            putPacked(key, in.readObject());
+            }
+        others = (HashMap)(in.readObject());
+        }
+    
+    /** Benchmarks a Continuous2D with a HashMap, a CellMap, and a DenseCellMap, moving N agents and then looking up each
+        one's neighbors, and its nearest neighbors.  Checks that all three give the same neighbors in the same order.  
+        Usage: java sim.field.CellMap [N] [steps] */
+    public static void main(String[] args)
+        {
+        int n = (args.length > 0 ? Integer.parseInt(args[0]) : 200000);
+        int steps = (args.length > 1 ? Integer.parseInt(args[1]) : 5);
+        double width = Math.sqrt(n) * 10;  // about one agent per 100 units, a bit denser than Flockers
+        double radius = 10;
+        String[] names = new String[] { "HashMap", "CellMap", "DenseCellMap" };
+
+        ec.util.MersenneTwisterFast random = new ec.util.MersenneTwisterFast(1);
+        Object[] agents = new Object[n];
+        double[] xs = new double[n];
+        double[] ys = new double[n];
+        sim.field.continuous.Continuous2D[] fields = new sim.field.continuous.Continuous2D[names.length];
+        for(int f = 0; f < fields.length; f++)
+            {
+            fields[f] = new sim.field.continuous.Continuous2D(radius / 1.5, width, width);
+            fields[f].setUsesCellMap(f == 1);
+            fields[f].setUsesDenseCells(f == 2);
+            }
+        for(int i = 0; i < n; i++)
+            {
+            agents[i] = new Object();
+            xs[i] = random.nextDouble() * width;
+            ys[i] = random.nextDouble() * width;
+            }
+
+        for(int toroidal = 0; toroidal < 2; toroidal++)
+            {
+            long[] moveTime = new long[fields.length];
+            long[] queryTime = new long[fields.length];
+            long[] nearestTime = new long[fields.length];
+            long[] check = new long[fields.length];
+            for(int step = 0; step < steps; step++)
+                {
+                for(int i = 0; i < n; i++)
+                    {
+                    xs[i] = (xs[i] + random.nextDouble() * 2 - 1 + width) % width;
+                    ys[i] = (ys[i] + random.nextDouble() * 2 - 1 + width) % width;
+                    }
+                for(int f = 0; f < fields.length; f++)
+                    {
+                    sim.field.continuous.Continuous2D field = fields[f];
+                    long time = System.nanoTime();
+                    for(int i = 0; i < n; i++)
+                        field.setObjectLocation(agents[i], new Double2D(xs[i], ys[i]));
+                    moveTime[f] += System.nanoTime() - time;
+
+                    Bag result = new Bag();
+                    long c = check[f];
+                    time = System.nanoTime();
+                    for(int i = 0; i < n; i++)
+                        {
+                        field.getNeighborsWithinDistance(new Double2D(xs[i], ys[i]), radius, toroidal == 1, false, result);
+                        for(int j = 0; j < result.numObjs; j++)
+                            c = c * 31 + System.identityHashCode(result.objs[j]);
+                        }
+                    queryTime[f] += System.nanoTime() - time;
+
+                    if (toroidal == 0)  // getNearestNeighbors isn't toroidal
+                        {
+                        time = System.nanoTime();
+                        for(int i = 0; i < n; i += 10)
+                            {
+                            field.getNearestNeighbors(new Double2D(xs[i], ys[i]), 10, false, false, true, result);
+                            for(int j = 0; j < result.numObjs; j++)
+                                c = c * 31 + System.identityHashCode(result.objs[j]);
+                            }
+                        nearestTime[f] += System.nanoTime() - time;
+                        }
+                    check[f] = c;
+                    }
+                }
+            System.out.println((toroidal == 1 ? "Toroidal" : "Non-toroidal") + ", " + n + " agents, " + steps + " steps");
+            for(int f = 0; f < fields.length; f++)
+                System.out.println("    " + names[f] + ": move " + (moveTime[f] / 1000000) + " ms, neighbors " + (queryTime[f] / 1000000) + " ms" +
+                    (toroidal == 0 ? ", nearest neighbors " + (nearestTime[f] / 1000000) + " ms" : ""));
+            System.out.println("    Same neighbors: " + (check[0] == check[1] && check[0] == check[2]));
+            }
+        }
+    }
@@ -0,0 +1,216 @@
+/*
+  Copyright 2006 by Sean Luke and George Mason University
+  Licensed under the Academic Free License version 3.0
+  See the file "LICENSE" for more information
+*/
+
+package sim.field;
+import sim.util.*;
+import java.util.*;
+
+/**
+   A DenseCellMap is a two-dimensional CellMap which keeps the cells from (0,0) to (width-1, height-1)
+   in a flat array, indexed by x * height + y, rather than in a hash table.  Looking up one of these cells
+   is a bounds check and an array access, and neighboring cells in the same column are next to one another
+   in memory.  Cells outside these bounds are kept in the usual CellMap hash table, so the map still
+   holds any cell at all, just more slowly.  Continuous2D uses a DenseCellMap for its objectHash if you call
+   setUsesDenseCells(true) on it.
+
+   <p>The array holds width * height references whether the cells are full or not, so this is only
+   a good idea if the field is bounded and a reasonable fraction of its cells are occupied.  Iterating
+   over a DenseCellMap runs through the whole array.
+*/
+
+public class DenseCellMap extends CellMap
+    {
+    private static final long serialVersionUID = 1;
+
+    int width;
+    int height;
+    transient Object[] cells;  // x * height + y
+    transient int count;  // the number of cells in the array which hold something
+
+    /** Creates an empty DenseCellMap whose cells from (0,0) to (width-1, height-1) are kept in an array. */
+    public DenseCellMap(int width, int height)
+        {
+        super(2);
+        if (width < 0 || height < 0 || ((long) width) * height > Integer.MAX_VALUE - 8)
+            throw new IllegalArgumentException("A DenseCellMap can't be " + width + " by " + height + " cells");
+        this.width = width;
+        this.height = height;
+        cells = new Object[width * height];
+        }
+
+    /** Creates a DenseCellMap whose cells from (0,0) to (width-1, height-1) are kept in an array, holding the entries in the given Map. */
+    public DenseCellMap(int width, int height, Map other)
+        {
+        this(width, height);
+        putAll(other);
+        }
+
+    /** Returns the width of the array of cells. */
+    public int getWidth() { return width; }
+
+    /** Returns the height of the array of cells. */
+    public int getHeight() { return height; }
+
+    // Returns the index of (x, y) in the array, or -1 if it's out of bounds
+    final int index(int x, int y)
+        {
+        if (x < 0 || x >= width || y < 0 || y >= height) return -1;
+        return x * height + y;
+        }
+
+    // Returns the index in the array of a cell key, or -1 if it's not a cell or is out of bounds
+    final int index(Object key)
+        {
+        if (key instanceof Int2D) { Int2D k = (Int2D) key; return index(k.x, k.y); }
+        if (key instanceof MutableInt2D) { MutableInt2D k = (MutableInt2D) key; return index(k.x, k.y); }
+        return -1;
+        }
+
+    public Object get(int x, int y)
+        {
+        if (x < 0 || x >= width || y < 0 || y >= height) return super.get(x, y);
+        Object val = cells[x * height + y];
+        return (val == NULL ? null : val);
+        }
+
+    public Object get(Object key)
+        {
+        int i = index(key);
+        if (i < 0) return super.get(key);
+        Object val = cells[i];
+        return (val == NULL ? null : val);
+        }
+
+    public boolean containsKey(Object key)
+        {
+        int i = index(key);
+        if (i < 0) return super.containsKey(key);
+        return cells[i] != null;
+        }
+
+    public Object put(Object key, Object value)
+        {
+        int i = index(key);
+        if (i < 0) return super.put(key, value);
+        Object old = cells[i];
+        cells[i] = (value == null ? NULL : value);
+        if (old == null) { count++; return null; }
+        return (old == NULL ? null : old);
+        }
+
+    public Object remove(Object key)
+        {
+        int i = index(key);
+        if (i < 0) return super.remove(key);
+        Object old = cells[i];
+        if (old == null) return null;
+        cells[i] = null;
+        count--;
+        return (old == NULL ? null : old);
+        }
+
+    public int size()
+        {
+        return count + super.size();
+        }
+
+    public void clear()
+        {
+        Arrays.fill(cells, null);
+        count = 0;
+        super.clear();
+        }
+
+    public Set entrySet()
+        {
+        final Set outside = super.entrySet();
+        return new AbstractSet()
+            {
+            public int size() { return DenseCellMap.this.size(); }
+            public Iterator iterator()
+                {
+                return new Iterator()
+                    {
+                    int i = -1;
+                    Iterator o = null;
+                    { advance(); }
+                    void advance()
+                        {
+                        if (o != null) return;
+                        for(i++; i < cells.length; i++)
+                            if (cells[i] != null) return;
+                        o = outside.iterator();
+                        }
+                    public boolean hasNext()
+                        {
+                        return (o == null ? true : o.hasNext());
+                        }
+                    public Object next()
+                        {
+                        if (o != null) return o.next();
+                        Object e = new DenseEntry(i);
+                        advance();
+                        return e;
+                        }
+                    public void remove() { throw new UnsupportedOperationException("Remove not supported in CellMap iterators"); }
+                    };
+                }
+            };
+        }
+
+    class DenseEntry implements Map.Entry
+        {
+        int i;
+        Object key;
+        DenseEntry(int i) { this.i = i; key = new Int2D(i / height, i % height); }
+        public Object getKey() { return key; }
+        public Object getValue() { return (cells[i] == NULL ? null : cells[i]); }
+        public Object setValue(Object value)
+            {
+            Object old = getValue();
+            cells[i] = (value == null ? NULL : value);
+            return old;
+            }
+        public boolean equals(Object obj)
+            {
+            if (!(obj instanceof Map.Entry)) return false;
+            Map.Entry e = (Map.Entry) obj;
+            Object v = getValue();
+            return key.equals(e.getKey()) && (v == null ? e.getValue() == null : v.equals(e.getValue()));
+            }
+        public int hashCode()
+            {
+            Object v = getValue();
+            return key.hashCode() ^ (v == null ? 0 : v.hashCode());
+            }
+        }
+
+    // As in CellMap, NULL isn't the same object once it's been read back in, and most of the array is usually empty
+    private void writeObject(java.io.ObjectOutputStream out) throws java.io.IOException
+        {
+        out.defaultWriteObject();
+        out.writeInt(count);
+        for(int i = 0; i < cells.length; i++)
+            if (cells[i] != null)
+                {
+                out.writeInt(i);
+                out.writeObject(cells[i] == NULL ? null : cells[i]);
+                }
+        }
+
+    private void readObject(java.io.ObjectInputStream in) throws java.io.IOException, ClassNotFoundException
+        {
+        in.defaultReadObject();
+        cells = new Object[width * height];
+        count = in.readInt();
+        for(int n = 0; n < count; n++)
+            {
+            int i = in.readInt();
+            Object val = in.readObject();
+            cells[i] = (val == null ? NULL : val);
+            }
+        }
+    }
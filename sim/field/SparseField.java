@@ -49,14 +49,28 @@ import java.util.*;
     provides as a key.
     
     <p><b>Computational Complexity.</b>  Adding a new object to a location is O(1).  Changing
-    an object's location, or removing the object, is O(M), where M is the number of objects
-    currently located at the object's old location.  Scanning through all objects is O(N) and fast,
+    an object's location, or removing the object, is also O(1), no matter how many other objects
+    share its location: each object remembers its slot in its location's bag.  Scanning through all objects is O(N) and fast,
     where N is the number of objects total -- just scan through the allObjects Bag.  
     Scanning through all stored locations is potentially slow, probably O(H), where H is the 
     number of hash table buckets in the objectHash hash table -- you'd have to get a hash table 
     iterator and iterate through it.  Removing all objects at a given location is O(O), where O
     is the number of objects at that location.  Clearing the hash table is O(1) discounting GC.
 
+    <p><b>Moving Many Objects at Once.</b>  If most of your objects move every step, rather than calling setObjectLocation(...)
+    on each, your agents can stage their new locations with the subclass's stageObjectLocation(...) methods during the step,
+    and you then call commitObjectLocations() once, after they're done.  This moves all of the objects in one pass,
+    and each new location is looked up once per object.  Staging is synchronized, so agents in different threads may stage at the same time.
+    Until you commit, the field doesn't change.  If an object is staged more than once, its last location wins.
+    The order of objects within a location's bag may differ from what you'd get by moving them one by one.
+    Staged moves are not written out in checkpoints.
+
+    <p><b>Delta Checkpoints.</b>  SparseField is DeltaCheckpointable, so when sim.engine.DeltaCheckpointer writes
+    out only the changes since the last checkpoint, it writes out the locations whose bags of objects have changed
+    and where each object sat in allObjects before, rather than the whole of the hash tables.  While it's keeping
+    track of its changes, the SparseField does a little more work when objects are added, moved, or removed.
+    If your subclass changes the hash tables or allObjects directly, it must keep track of those changes itself.
+
     <p><b>Example Usage.</b>  
     Here is an example of a simple subclass which allows locations to be positive, non-zero integers:
     
@@ -85,7 +99,7 @@ import java.util.*;
     *    </pre>
     */
 
-public abstract class SparseField implements java.io.Serializable
+public abstract class SparseField implements DeltaCheckpointable
     {
     private static final long serialVersionUID = 1;
 
@@ -113,11 +127,21 @@ public abstract class SparseField implements java.io.Serializable
     public Map locationAndIndexHash = buildMap(ANY_SIZE);
 
     /** Bags of objects hashed by location.  Do not rely on these bags always being the same objects. */
-    public Map objectHash = buildMap(ANY_SIZE);
+    public Map objectHash = buildObjectHash(ANY_SIZE);
 
     /** All the objects in the sparse field.  For fast scans.  Do not rely on this bag always being the same object. */
     public Bag allObjects = new Bag();
     
+    // While keeping track of changes for delta checkpoints, the index in allObjects at the last checkpoint
+    // of each object now in allObjects (-1 if it's new), and the locations whose bags have changed, else null.
+    transient IntBag deltaOrigins;
+    transient HashSet deltaLocations;
+    transient boolean deltaCleared;
+    
+    // Moves staged by stageObjectLocation(...), waiting for commitObjectLocations(), or null
+    transient Bag stagedObjects;
+    transient Bag stagedLocations;
+
     /** Pass this into buildMap to indicate that it should make a map of any size it likes. */
     public static final int ANY_SIZE = 0;
     /** Creates a Map which is a copy of another. By default, HashMap is used. */
@@ -128,6 +152,10 @@ public abstract class SparseField implements java.io.Serializable
         if (size <= ANY_SIZE) return new HashMap();
         else return new HashMap(size);
         }
+    /** Creates the map used for objectHash, of the provided size (or any size it likes if ANY_SIZE is passed in).  
+        By default, calls buildMap(size).  Note that this is called during construction, before your subclass's
+        instance variables have been initialized. */
+    public Map buildObjectHash(int size) { return buildMap(size); }
 
     protected SparseField() { }
         
@@ -208,6 +236,26 @@ public abstract class SparseField implements java.io.Serializable
         assert sim.util.LocationLog.it(this, location);
         return b;
         }
+
+    // 0 if we don't know yet whether getObjectsAtLocation(Object) has been overridden, 1 if not, -1 if it has
+    transient int rawObjectsAtLocation = 0;
+
+    /** Returns true if getObjectsAtLocation(Object) hasn't been overridden, so it's the same as getRawObjectsAtLocation(Object).
+        Subclasses which look up bags some faster way than getObjectsAtLocation(Object) should only do so when this is true. */
+    protected final boolean getObjectsAtLocationIsRaw()
+        {
+        if (rawObjectsAtLocation == 0)
+            {
+            boolean overridden = true;
+            try
+                {
+                overridden = (getClass().getMethod("getObjectsAtLocation", new Class[] { Object.class }).getDeclaringClass() != SparseField.class);
+                }
+            catch (NoSuchMethodException e) { }  // can't happen
+            rawObjectsAtLocation = (overridden ? -1 : 1);
+            }
+        return rawObjectsAtLocation > 0;
+        }
                 
     /** Returns a bag containing all the objects at the same location as a given object, including the object itself, 
         or null if the object is not in the Field.
@@ -242,6 +290,8 @@ public abstract class SparseField implements java.io.Serializable
         {
         Bag objs = (Bag)objectHash.remove(location);
         if (objs!=null)
+            {
+            if (deltaOrigins != null) deltaLocations.add(location);
             for(int j=0;j<objs.numObjs;j++)
                 {
                 // remove location
@@ -249,9 +299,11 @@ public abstract class SparseField implements java.io.Serializable
                 // remove object from allobjects bag
                 assert sim.util.LocationLog.it(this, lai.location);
                 allObjects.remove(lai.index);
+                if (deltaOrigins != null) deltaOrigins.remove(lai.index);
                 if (allObjects.numObjs > lai.index)    // update the index of the guy who just got moved
                     ((LocationAndIndex)(locationAndIndexHash.get(allObjects.objs[lai.index]))).index = lai.index;
                 }
+            }
         return objs;
         }
     
@@ -261,9 +313,15 @@ public abstract class SparseField implements java.io.Serializable
     public Bag clear()
         {
         locationAndIndexHash = buildMap(ANY_SIZE);
-        objectHash = buildMap(ANY_SIZE);
+        objectHash = buildObjectHash(ANY_SIZE);
         Bag retval = allObjects;
         allObjects = new Bag();
+        if (deltaOrigins != null)  // everything left
+            {
+            deltaOrigins.clear();
+            deltaLocations.clear();
+            deltaCleared = true;
+            }
         return retval;
         }
     
@@ -275,8 +333,8 @@ public abstract class SparseField implements java.io.Serializable
         if (lai!=null)
             {
             // remove from objectHash
-            Bag objs = (Bag)(objectHash.get(lai.location));
-            objs.remove(obj);
+            Bag objs = lai.otherObjectsAtLocation;
+            removeFromBag(lai);
             
             ///// You can comment this out for speed -- but it doesn't look like it has much effect.
             ///// Commenting it would mean that big empty bags can be sitting around in the hashtable
@@ -289,6 +347,11 @@ public abstract class SparseField implements java.io.Serializable
             
             // remove object from bag
             allObjects.remove(lai.index);
+            if (deltaOrigins != null)
+                {
+                deltaOrigins.remove(lai.index);
+                deltaLocations.add(lai.location);
+                }
             if (allObjects.numObjs > lai.index)    // update the index of the guy who just got moved
                 ((LocationAndIndex)(locationAndIndexHash.get(allObjects.objs[lai.index]))).index = lai.index;
             
@@ -308,10 +371,17 @@ public abstract class SparseField implements java.io.Serializable
         if (obj==null) return false;  // RuntimeException("Cannot add null as an object to a SparseField");
         if (location==null) return false;  // RuntimeException("Cannot use null as a location in a SparseField");
                 
+        // check if previously somewhere
+        return setObjectLocation(obj, (LocationAndIndex)(locationAndIndexHash.get(obj)), location);  // HASH
+        }
+
+    /** Does the work of setObjectLocation(obj, location), given the object's LocationAndIndex from locationAndIndexHash,
+        or null if the object isn't in the field yet.  This lets subclasses which have already looked the object up,
+        say to see whether it's moving at all, avoid looking it up again.  Neither obj nor location may be null. */
+    protected final boolean setObjectLocation(final Object obj, LocationAndIndex lai, final Object location)
+        {
         Bag canUse = null;  // reusable bag perhaps
             
-        // check if previously somewhere
-        LocationAndIndex lai = (LocationAndIndex)(locationAndIndexHash.get(obj));  // HASH
         if (lai!=null)
             {
             // first check to see if we need to bother putting it back in
@@ -319,7 +389,7 @@ public abstract class SparseField implements java.io.Serializable
             
             // remove from old objectHash
             Bag objs = lai.otherObjectsAtLocation;
-            objs.remove(obj);                                                   // O(N) SCAN
+            removeFromBag(lai);                                                 // MAYBE HASH
             
             ///// You can comment this out for speed -- but it doesn't look like it has much effect.
             ///// Commenting it would mean that big empty bags can be sitting around in the hashtable
@@ -336,12 +406,14 @@ public abstract class SparseField implements java.io.Serializable
             
             // write in new location  -- we're reusing the LocationAndIndex
             assert sim.util.LocationLog.it(this, lai.location);
+            if (deltaOrigins != null) deltaLocations.add(lai.location);
             lai.location = location;
             }
         else   // add new object
             {
             // put object into bag
             allObjects.add(obj);
+            if (deltaOrigins != null) deltaOrigins.add(-1);
             
             // put object into locationAndIndexHash, with bag index and location
             locationAndIndexHash.put(obj, lai = new LocationAndIndex(location, allObjects.numObjs - 1));    // HASH
@@ -349,6 +421,7 @@ public abstract class SparseField implements java.io.Serializable
 
         // put into objectHash
         assert sim.util.LocationLog.it(this, location);
+        if (deltaOrigins != null) deltaLocations.add(location);
         Bag objs = (Bag)(objectHash.get(location));                         // HASH
         if (objs==null)
             {
@@ -360,10 +433,125 @@ public abstract class SparseField implements java.io.Serializable
             }
         else objs.add(obj);
         lai.otherObjectsAtLocation = objs;
+        lai.slot = objs.numObjs - 1;
 
         return true; // yay, done
         }
+
+    // Takes the object out of its bag in O(1) by moving the bag's last object into its slot,
+    // then tells that object where it went.
+    void removeFromBag(final LocationAndIndex lai)
+        {
+        Bag objs = lai.otherObjectsAtLocation;
+        int slot = lai.slot;
+        objs.remove(slot);
+        if (objs.numObjs > slot)
+            ((LocationAndIndex)(locationAndIndexHash.get(objs.objs[slot]))).slot = slot;  // HASH
+        }
         
+    /** Stages a move of the object to the location, or its addition if it's not in the field, which will happen when
+        commitObjectLocations() is called.  Subclasses should create <b>stageObjectLocation(</b><i>Object obj, Location location</i><b>)</b>
+        methods which call this one, much as they do for setObjectLocation().  Null objects and locations are ignored.
+        May be called from several threads at once. */
+    protected void stageObjectLocation(final Object obj, final Object location)
+        {
+        if (obj == null || location == null) return;
+        synchronized(this)
+            {
+            if (stagedObjects == null) { stagedObjects = new Bag(); stagedLocations = new Bag(); }
+            stagedObjects.add(obj);
+            stagedLocations.add(location);
+            }
+        }
+
+    /** Returns the number of moves staged since the last commitObjectLocations(). */
+    public synchronized int getNumStagedObjectLocations()
+        {
+        return (stagedObjects == null ? 0 : stagedObjects.numObjs);
+        }
+
+    /** Carries out all of the moves staged by stageObjectLocation(...), in one pass, and returns how many there were. */
+    public int commitObjectLocations()
+        {
+        Bag objs;
+        Bag locations;
+        synchronized(this)
+            {
+            if (stagedObjects == null) return 0;
+            objs = stagedObjects;
+            locations = stagedLocations;
+            stagedObjects = stagedLocations = null;
+            }
+        commitObjectLocations(objs.objs, locations.objs, objs.numObjs);
+        return objs.numObjs;
+        }
+
+    /** Moves each object objs[i] to locations[i], for i from 0 to n-1, adding it if it's not in the field, all in one pass.
+        If an object appears more than once, its last location wins.  Subclasses which keep more information about
+        their objects' locations, or whose staged locations aren't the locations used by the SparseField, should override
+        this method to do their own work and then call super.commitObjectLocations(...) with SparseField locations. */
+    protected void commitObjectLocations(final Object[] objs, final Object[] locations, final int n)
+        {
+        // look up every object, adding new ones, and note which staging of each is its last
+        LocationAndIndex[] lais = new LocationAndIndex[n];
+        for(int i = 0; i < n; i++)
+            {
+            if (objs[i] == null || locations[i] == null) continue;
+            LocationAndIndex lai = (LocationAndIndex)(locationAndIndexHash.get(objs[i]));           // HASH
+            if (lai == null)
+                {
+                allObjects.add(objs[i]);
+                if (deltaOrigins != null) deltaOrigins.add(-1);
+                locationAndIndexHash.put(objs[i], lai = new LocationAndIndex(null, allObjects.numObjs - 1));
+                }
+            lai.staged = i;
+            lais[i] = lai;
+            }
+
+        // take everyone out of their old bags
+        Bag spares = new Bag();  // emptied bags we can reuse
+        for(int i = 0; i < n; i++)
+            {
+            LocationAndIndex lai = lais[i];
+            if (lai == null) continue;
+            if (lai.staged != i || (lai.location != null && lai.location.equals(locations[i])))  // superseded, or not going anywhere
+                { lais[i] = null; continue; }
+            if (lai.location == null) continue;  // new
+            if (deltaOrigins != null) deltaLocations.add(lai.location);
+            Bag bag = lai.otherObjectsAtLocation;
+            removeFromBag(lai);                                                     // MAYBE HASH
+            int numObjs = bag.numObjs;
+            if (removeEmptyBags && numObjs == 0)
+                {
+                objectHash.remove(lai.location);                                        // MAYBE HASH
+                spares.add(bag);
+                }
+            else if (replaceLargeBags && numObjs >= MIN_BAG_SIZE && numObjs * LARGE_BAG_RATIO <= bag.objs.length)
+                bag.shrink(numObjs * REPLACEMENT_BAG_RATIO);
+            }
+
+        // drop everyone into their new bags
+        for(int i = 0; i < n; i++)
+            {
+            LocationAndIndex lai = lais[i];
+            if (lai == null) continue;
+            Object location = locations[i];
+            assert sim.util.LocationLog.it(this, location);
+            if (deltaOrigins != null) deltaLocations.add(location);
+            Bag bag = (Bag)(objectHash.get(location));                                  // HASH
+            if (bag == null)
+                {
+                if (spares.numObjs > 0) { bag = (Bag)(spares.pop()); bag.clear(); }
+                else bag = new Bag(INITIAL_BAG_SIZE);
+                objectHash.put(location, bag);                                          // MAYBE HASH
+                }
+            bag.add(objs[i]);
+            lai.location = location;
+            lai.otherObjectsAtLocation = bag;
+            lai.slot = bag.numObjs - 1;
+            }
+        }
+
     /** Returns all the objects in the Sparse Field.  Do NOT modify the bag that you receive from this method -- it
         is used internally.  If you wish to modify the Bag you receive, make a copy of the Bag first, 
         using something like <b>new Bag(<i>foo</i>.getAllObjects())</b>. */
@@ -431,6 +619,133 @@ public abstract class SparseField implements java.io.Serializable
             };
         }
 
+    // slots aren't written out (so old checkpoints still load), so we figure them out again here
+    private void readObject(java.io.ObjectInputStream in) throws java.io.IOException, ClassNotFoundException
+        {
+        in.defaultReadObject();
+        Iterator i = objectHash.values().iterator();
+        while(i.hasNext())
+            {
+            Bag bag = (Bag)(i.next());
+            for(int j = 0; j < bag.numObjs; j++)
+                ((LocationAndIndex)(locationAndIndexHash.get(bag.objs[j]))).slot = j;
+            }
+        }
+
+    public void startDeltas()
+        {
+        int n = allObjects.numObjs;
+        deltaOrigins = new IntBag(n);
+        for(int i = 0; i < n; i++) deltaOrigins.add(i);
+        deltaLocations = new HashSet();
+        deltaCleared = false;
+        }
+        
+    public void stopDeltas()
+        {
+        deltaOrigins = null;
+        deltaLocations = null;
+        }
+        
+    public Object getDelta()
+        {
+        if (deltaOrigins == null) throw new IllegalStateException("getDelta() called without startDeltas()");
+        Delta delta = new Delta();
+        delta.cleared = deltaCleared;
+        delta.origins = deltaOrigins.toArray();
+        delta.objects = allObjects;
+        delta.locations = deltaLocations.toArray();
+        delta.slots = new int[delta.locations.length][];
+        for(int i = 0; i < delta.locations.length; i++)
+            {
+            Bag objs = (Bag)(objectHash.get(delta.locations[i]));
+            if (objs == null) continue;  // the bag's gone
+            int[] slots = delta.slots[i] = new int[objs.numObjs];
+            for(int j = 0; j < slots.length; j++)
+                slots[j] = ((LocationAndIndex)(locationAndIndexHash.get(objs.objs[j]))).index;
+            }
+        startDeltas();
+        return delta;
+        }
+        
+    public void applyDelta(Object d)
+        {
+        Delta delta = (Delta) d;
+        Object[] oldObjs = allObjects.objs;
+        Object[] objs = delta.objects.objs;
+        int numObjs = delta.objects.numObjs;
+        
+        // the new instances of the old objects
+        IdentityHashMap renamed = new IdentityHashMap();
+        for(int i = 0; i < numObjs; i++)
+            if (delta.origins[i] >= 0)
+                renamed.put(oldObjs[delta.origins[i]], objs[i]);
+        
+        Map newObjectHash = buildObjectHash(ANY_SIZE);
+        HashSet changed = new HashSet(Arrays.asList(delta.locations));
+        if (!delta.cleared)
+            {
+            // bags which haven't changed have the same objects in the same order: just rename them
+            Iterator i = objectHash.entrySet().iterator();
+            while(i.hasNext())
+                {
+                Map.Entry entry = (Map.Entry)(i.next());
+                if (changed.contains(entry.getKey())) continue;
+                Bag bag = (Bag)(entry.getValue());
+                for(int j = 0; j < bag.numObjs; j++)
+                    bag.objs[j] = renamed.get(bag.objs[j]);
+                newObjectHash.put(entry.getKey(), bag);
+                }
+            }
+        for(int i = 0; i < delta.locations.length; i++)
+            {
+            int[] slots = delta.slots[i];
+            if (slots == null) continue;
+            Bag bag = new Bag(Math.max(slots.length, INITIAL_BAG_SIZE));
+            for(int j = 0; j < slots.length; j++)
+                bag.add(objs[slots[j]]);
+            newObjectHash.put(delta.locations[i], bag);
+            }
+        
+        Map newLocationAndIndexHash = buildMap(numObjs);
+        for(int i = 0; i < numObjs; i++)
+            newLocationAndIndexHash.put(objs[i], new LocationAndIndex(null, i));
+        Iterator i = newObjectHash.entrySet().iterator();
+        while(i.hasNext())
+            {
+            Map.Entry entry = (Map.Entry)(i.next());
+            Bag bag = (Bag)(entry.getValue());
+            for(int j = 0; j < bag.numObjs; j++)
+                {
+                LocationAndIndex lai = (LocationAndIndex)(newLocationAndIndexHash.get(bag.objs[j]));
+                lai.location = entry.getKey();
+                lai.otherObjectsAtLocation = bag;
+                lai.slot = j;
+                }
+            }
+        
+        allObjects = delta.objects;
+        objectHash = newObjectHash;
+        locationAndIndexHash = newLocationAndIndexHash;
+        }
+
+    /** The changes to a SparseField since its last checkpoint: every object in the field, where each sat
+        in allObjects at the last checkpoint (or -1), and the locations whose bags have changed, with the
+        index in allObjects of each object in the bag, or null if the bag is gone.  Subclasses may
+        hang their own changes on <i>extra</i>. */
+    protected static class Delta implements java.io.Serializable
+        {
+        boolean cleared;
+        int[] origins;
+        Bag objects;
+        Object[] locations;
+        int[][] slots;
+        public Object extra;
+        
+        public int[] getOrigins() { return origins; }
+        public Bag getObjects() { return objects; }
+        }
+
     /** Objects stored in SparseField's locationAndIndexHash table.  This class contains
         an Object <i>location</i> and an int <i>index</i>.  index is the position of
         the objects in the allObjects bag. */
@@ -439,6 +754,8 @@ public abstract class SparseField implements java.io.Serializable
         Object location;
         int index;
         Bag otherObjectsAtLocation;
+        private transient int slot;  // position in otherObjectsAtLocation, rebuilt by SparseField.readObject(...)
+        private transient int staged;  // used by commitObjectLocations(...)
         
         public Object getLocation() { return location; }
         public int getIndex() { return index; }
@@ -91,11 +91,17 @@ public /*strictfp*/ class Continuous2D extends SparseField implements SparseFiel
     /** Where we store the Double2D values hashed by object */
     public Map doubleLocationHash = buildMap(ANY_SIZE);
     
+    // objects whose Double2D locations have changed since the last delta checkpoint, or null if not keeping track
+    transient HashSet deltaObjects;
+    
     public double width;
     public double height;
     
     public final double discretization;
     
+    boolean usesCellMap = false;
+    boolean usesDenseCells = false;
+    
     /** Provide expected bounds on the SparseContinuous2D */
     public Continuous2D(final double discretization, double width, double height)
         {
@@ -110,6 +116,8 @@ public /*strictfp*/ class Continuous2D extends SparseField implements SparseFiel
         discretization = other.discretization;
         width = other.width;
         height = other.height;
+        if (other.usesCellMap) setUsesCellMap(true);
+        if (other.usesDenseCells) setUsesDenseCells(true);  // needs the width and height
         }
 
     public final Double2D getObjectLocation(Object obj)
@@ -142,13 +150,38 @@ public /*strictfp*/ class Continuous2D extends SparseField implements SparseFiel
     public final boolean setObjectLocation(Object obj, final Double2D location)
         {
         boolean result = super.setObjectLocation(obj, discretize(location));
-        if (result) doubleLocationHash.put(obj,location);
+        if (result) 
+            {
+            doubleLocationHash.put(obj,location);
+            if (deltaObjects != null) deltaObjects.add(obj);
+            }
         return result;
         }
+
+    /** Stages a move of the object to the location, or its addition, to happen when commitObjectLocations() is called. */
+    public void stageObjectLocation(Object obj, final Double2D location)
+        {
+        super.stageObjectLocation(obj, location);
+        }
+
+    // our staged locations are Double2Ds: note them, and commit their cells
+    protected void commitObjectLocations(final Object[] objs, final Object[] locations, final int n)
+        {
+        Object[] cells = new Object[n];
+        for(int i = 0; i < n; i++)
+            {
+            if (objs[i] == null || locations[i] == null) continue;
+            doubleLocationHash.put(objs[i], locations[i]);
+            if (deltaObjects != null) deltaObjects.add(objs[i]);
+            cells[i] = discretize((Double2D)(locations[i]));
+            }
+        super.commitObjectLocations(objs, cells, n);
+        }
         
     public final Bag clear()
         {
         doubleLocationHash = buildMap(ANY_SIZE);
+        if (deltaObjects != null) deltaObjects.clear();
         return super.clear();
         }
         
@@ -158,6 +191,99 @@ public /*strictfp*/ class Continuous2D extends SparseField implements SparseFiel
         doubleLocationHash.remove(obj);
         return result;
         }
+
+    /** Sets whether the bags of objects in each discretized cell are kept in a CellMap, which packs each cell
+        into a long, rather than in a HashMap keyed by Int2D.  This makes getNeighborsWithinDistance(...)
+        and its relatives faster when they look at many cells.  The default is false. */
+    public void setUsesCellMap(boolean val)
+        {
+        if (val == usesCellMap) return;
+        usesCellMap = val;
+        Map old = objectHash;
+        objectHash = buildObjectHash(old.size());
+        objectHash.putAll(old);
+        }
+
+    /** Returns whether the bags of objects in each discretized cell are kept in a CellMap. */
+    public boolean getUsesCellMap() { return usesCellMap; }
+
+    /** Sets whether the bags of objects in each discretized cell within the width and height of the field
+        are kept in a flat array, a DenseCellMap, rather than being hashed.  Looking up a cell is then just an array access,
+        which makes getNeighborsWithinDistance(...) and getNearestNeighbors(...) faster still, but the array takes
+        one reference per cell whether it's occupied or not, so this only makes sense for bounded fields whose
+        cells are reasonably full.  Objects outside the bounds are still found, just more slowly.  The results of
+        all lookups are the same either way.  This overrides setUsesCellMap(...).  The default is false.
+        If you change the width, height, or discretization later, call this again to resize the array. */
+    public void setUsesDenseCells(boolean val)
+        {
+        usesDenseCells = val;
+        Map old = objectHash;
+        objectHash = buildObjectHash(old.size());
+        objectHash.putAll(old);
+        }
+
+    /** Returns whether the bags of objects in each discretized cell are kept in a DenseCellMap. */
+    public boolean getUsesDenseCells() { return usesDenseCells; }
+
+    public Map buildObjectHash(int size)
+        {
+        if (usesDenseCells) 
+            return new DenseCellMap((int)(StrictMath.ceil(width / discretization)), (int)(StrictMath.ceil(height / discretization)));
+        if (usesCellMap) return new CellMap(2, size);
+        return super.buildObjectHash(size);
+        }
+
+    public void startDeltas()
+        {
+        super.startDeltas();
+        deltaObjects = new HashSet();
+        }
+
+    public void stopDeltas()
+        {
+        super.stopDeltas();
+        deltaObjects = null;
+        }
+
+    public Object getDelta()
+        {
+        // the exact locations of the objects which have moved, by index in allObjects
+        IntBag indexes = new IntBag();
+        Bag locations = new Bag();
+        Iterator i = deltaObjects.iterator();
+        while(i.hasNext())
+            {
+            Object obj = i.next();
+            int index = getObjectIndex(obj);
+            if (index < 0) continue;  // it's been removed
+            indexes.add(index);
+            locations.add(doubleLocationHash.get(obj));
+            }
+        Delta delta = (Delta)(super.getDelta());
+        delta.extra = new Object[] { indexes.toArray(), locations.toArray() };
+        deltaObjects.clear();
+        return delta;
+        }
+
+    public void applyDelta(Object d)
+        {
+        Delta delta = (Delta) d;
+        Object[] oldObjs = allObjects.objs;
+        Map oldLocations = doubleLocationHash;
+        super.applyDelta(d);
+        
+        // objects which haven't moved are where they were
+        int[] origins = delta.getOrigins();
+        Object[] objs = allObjects.objs;
+        doubleLocationHash = buildMap(allObjects.numObjs);
+        for(int i = 0; i < allObjects.numObjs; i++)
+            if (origins[i] >= 0)
+                doubleLocationHash.put(objs[i], oldLocations.get(oldObjs[origins[i]]));
+        int[] indexes = (int[])(((Object[])(delta.extra))[0]);
+        Object[] locations = (Object[])(((Object[])(delta.extra))[1]);
+        for(int i = 0; i < indexes.length; i++)
+            doubleLocationHash.put(objs[indexes[i]], locations[i]);
+        }
     
     /** Get the width */
     public double getWidth() { return width; }
@@ -290,6 +416,7 @@ public /*strictfp*/ class Continuous2D extends SparseField implements SparseFiel
        set 'nonPointObjects' to true.  If you want the distance to be radial -- that is, the region searched will be a circle centered at the position,
        set 'radial' to true (almost always you want this).  If you want the region searched to be a rectangle centered at the position, set
        'radial' to be false.  Returns a bag of items.  If 'result' is provided, clears that Bag and reuses it.
+       If you want exactly the k nearest items, in order, or need a toroidal search, use getKNearestNeighbors(...) instead.
     */
     public Bag getNearestNeighbors(Double2D position, int atLeastThisMany, final boolean toroidal, final boolean nonPointObjects, boolean radial, Bag result)
         {
@@ -313,8 +440,7 @@ public /*strictfp*/ class Continuous2D extends SparseField implements SparseFiel
             
         if (searches >= maxSearches) { result.clear(); result.addAll(allObjects); return result; }
         searches++;
-        speedyMutableInt2D.x = x1; speedyMutableInt2D.y = y1;
-        Bag temp = getRawObjectsAtLocation(speedyMutableInt2D);
+        Bag temp = getRawObjectsAtCell(x1, y1, speedyMutableInt2D);
         if (temp!= null) result.addAll(temp);
         
         boolean nonPointOneMoreTime = false;
@@ -330,46 +456,38 @@ public /*strictfp*/ class Continuous2D extends SparseField implements SparseFiel
                 
             x1--; y1--; x2++; y2++;
             // do top onion layer
-            speedyMutableInt2D.y = y1;
             for(int x = x1 ; x <= x2 /* yes, <= */ ; x++)
                 {
                 if (searches >= maxSearches) { result.clear(); result.addAll(allObjects); return result; }
                 searches++;
-                speedyMutableInt2D.x = x;
-                temp = getRawObjectsAtLocation(speedyMutableInt2D);
+                temp = getRawObjectsAtCell(x, y1, speedyMutableInt2D);
                 if (temp!=null) result.addAll(temp);
                 }
 
             // do bottom onion layer
-            speedyMutableInt2D.y = y2;
             for(int x = x1 ; x <= x2 /* yes, <= */ ; x++)
                 {
                 if (searches >= maxSearches) { result.clear(); result.addAll(allObjects); return result; }
                 searches++;
-                speedyMutableInt2D.x = x;
-                temp = getRawObjectsAtLocation(speedyMutableInt2D);
+                temp = getRawObjectsAtCell(x, y2, speedyMutableInt2D);
                 if (temp!=null) result.addAll(temp);
                 }
                 
             // do left onion layer not including corners
-            speedyMutableInt2D.x = x1;
             for(int y = y1 + 1 ; y <= y2 - 1 /* yes, <= */ ; y++)
                 {
                 if (searches >= maxSearches) { result.clear(); result.addAll(allObjects); return result; }
                 searches++;
-                speedyMutableInt2D.y = y;
-                temp = getRawObjectsAtLocation(speedyMutableInt2D);
+                temp = getRawObjectsAtCell(x1, y, speedyMutableInt2D);
                 if (temp!=null) result.addAll(temp);
                 }
 
             // do right onion layer not including corners
-            speedyMutableInt2D.x = x2;
             for(int y = y1 + 1 ; y <= y2 - 1 /* yes, <= */ ; y++)
                 {
                 if (searches >= maxSearches) { result.clear(); result.addAll(allObjects); return result; }
                 searches++;
-                speedyMutableInt2D.y = y;
-                temp = getRawObjectsAtLocation(speedyMutableInt2D);
+                temp = getRawObjectsAtCell(x2, y, speedyMutableInt2D);
                 if (temp!=null) result.addAll(temp);
                 }
             }
@@ -405,27 +523,19 @@ public /*strictfp*/ class Continuous2D extends SparseField implements SparseFiel
             for(int y = 0 ; y < e; y++)
                 {
                 // top
-                speedyMutableInt2D.x = x1 + x ;
-                speedyMutableInt2D.y = y1 - e - 1 ;
-                temp = getRawObjectsAtLocation(speedyMutableInt2D);
+                temp = getRawObjectsAtCell(x1 + x, y1 - e - 1, speedyMutableInt2D);
                 if (temp!=null) result.addAll(temp);
 
                 // bottom
-                speedyMutableInt2D.x = x1 + x ;
-                speedyMutableInt2D.y = y2 + e + 1 ;
-                temp = getRawObjectsAtLocation(speedyMutableInt2D);
+                temp = getRawObjectsAtCell(x1 + x, y2 + e + 1, speedyMutableInt2D);
                 if (temp!=null) result.addAll(temp);
 
                 // left
-                speedyMutableInt2D.x = x1 - e - 1 ;
-                speedyMutableInt2D.y = y1 + x;
-                temp = getRawObjectsAtLocation(speedyMutableInt2D);
+                temp = getRawObjectsAtCell(x1 - e - 1, y1 + x, speedyMutableInt2D);
                 if (temp!=null) result.addAll(temp);
 
                 // right
-                speedyMutableInt2D.x = x2 + e + 1 ;
-                speedyMutableInt2D.y = y1 + x;
-                temp = getRawObjectsAtLocation(speedyMutableInt2D);
+                temp = getRawObjectsAtCell(x2 + e + 1, y1 + x, speedyMutableInt2D);
                 if (temp!=null) result.addAll(temp);
                 }
             }
@@ -435,6 +545,162 @@ public /*strictfp*/ class Continuous2D extends SparseField implements SparseFiel
         }
 
 
+    /** Returns the k objects nearest to the given position, nearest first, measuring toroidally if 'toroidal' is true.
+        See getKNearestNeighbors(position, k, toroidal, maxDistance, result, distances). */
+    public Bag getKNearestNeighbors(Double2D position, int k, final boolean toroidal)
+        {
+        return getKNearestNeighbors(position, k, toroidal, Double.POSITIVE_INFINITY, null, null);
+        }
+
+    /** Returns EXACTLY the k objects nearest to the given position, nearest first, not counting any farther away than
+        maxDistance (which may be Double.POSITIVE_INFINITY).  If there are fewer than k such objects, returns all of them.
+        If 'toroidal' is true, distances are measured assuming the environment is toroidal.  If 'result' is provided,
+        clears it and reuses it.  If 'distances' is provided, clears it and fills it with the distance to each object.
+        Objects at the same distance are returned in no particular order.  Assumes point objects, and for toroidal fields,
+        that the objects lie within the bounds.
+
+        <p>Unlike getNearestNeighbors(...), this searches outwards from the position one ring of discretized cells at a time,
+        keeping the k nearest so far in a heap, and stops as soon as no unsearched cell could hold anything nearer.  For most
+        fields this looks at a handful of cells.  If the objects are so sparse that searching cells would take longer than
+        looking at every object, it looks at every object instead.
+
+        <p> Note: if the field is toroidal, and position is outside the boundaries, it will be wrapped
+        to within the boundaries before computation.
+    */
+    public Bag getKNearestNeighbors(Double2D position, int k, final boolean toroidal, final double maxDistance, Bag result, DoubleBag distances)
+        {
+        if (result == null) result = new Bag(Math.max(k, 0));
+        else result.clear();
+        if (distances != null) distances.clear();
+        final int numObjs = allObjects.numObjs;
+        if (k <= 0 || numObjs == 0) return result;
+        if (k > numObjs) k = numObjs;
+
+        double x = position.x;
+        double y = position.y;
+        if (toroidal) { x = tx(x); y = ty(y); }
+        final double maxsq = maxDistance * maxDistance;
+        final NearestNeighborHeap heap = new NearestNeighborHeap(k);
+        final MutableInt2D probe = (objectHash instanceof CellMap ? null : new MutableInt2D());
+
+        // the cell the position is in, discretized the same way as the objects are
+        final int cx = (int)(x / discretization);
+        final int cy = (int)(y / discretization);
+        final int iWidth = (int)(StrictMath.ceil(width / discretization));
+        final int iHeight = (int)(StrictMath.ceil(height / discretization));
+
+        // In a toroidal field whose width or height isn't a multiple of the discretization, we might wrap around through
+        // a narrower last cell, so we just use the fact that every other cell is at least discretization wide.
+        final boolean partial = (toroidal && (iWidth * discretization != width || iHeight * discretization != height));
+
+        int seen = 0;
+        int cells = 0;
+        for(int r = 0; ; r++)
+            {
+            // in a toroidal field, don't look at any cell twice
+            int loX = -r, hiX = r, loY = -r, hiY = r;
+            if (toroidal)
+                {
+                loX = Math.max(loX, -((iWidth - 1) / 2));
+                hiX = Math.min(hiX, iWidth / 2);
+                loY = Math.max(loY, -((iHeight - 1) / 2));
+                hiY = Math.min(hiY, iHeight / 2);
+                if (loX > -r && hiX < r && loY > -r && hiY < r) break;  // we've looked at every cell
+                }
+
+            for(int dx = loX; dx <= hiX; dx++)
+                {
+                final boolean side = (dx == -r || dx == r);  // if so, the whole column is in the ring, else just its ends
+                final double gx = gap(dx, cx, x, toroidal, partial);
+                for(int dy = (side ? loY : -r); dy <= hiY; dy += (side ? 1 : 2 * r))
+                    {
+                    if (dy < loY) continue;
+                    cells++;
+                    final double gy = gap(dy, cy, y, toroidal, partial);
+                    if (gx * gx + gy * gy > heap.worst()) continue;  // nothing in this cell could be nearer
+                    if (toroidal)
+                        seen += offerCell(toroidal(cx + dx, iWidth), toroidal(cy + dy, iHeight), x, y, true, maxsq, heap, probe);
+                    else
+                        seen += offerCell(cx + dx, cy + dy, x, y, false, maxsq, heap, probe);
+                    }
+                }
+
+            if (seen >= numObjs) break;  // we've seen everything
+
+            // how far away is the nearest cell we haven't searched?
+            double bound;
+            if (partial) bound = (r - 1) * discretization;
+            else if (toroidal)
+                {
+                // the unsearched columns run from the right edge of the searched ones around to their left edge
+                double bx = (hiX - loX + 1 >= iWidth ? Double.POSITIVE_INFINITY :
+                    Math.min((cx + hiX + 1) * discretization - x, x - (cx + loX) * discretization));
+                double by = (hiY - loY + 1 >= iHeight ? Double.POSITIVE_INFINITY :
+                    Math.min((cy + hiY + 1) * discretization - y, y - (cy + loY) * discretization));
+                bound = Math.min(bx, by);
+                }
+            else bound = Math.min(Math.min(x - cellLow(cx - r), cellHigh(cx + r) - x),
+                Math.min(y - cellLow(cy - r), cellHigh(cy + r) - y));
+            if (bound > 0 && (bound * bound > maxsq || (heap.isFull() && bound * bound >= heap.worst()))) break;
+
+            if (cells > numObjs + 64)  // too sparse to bother with cells, just look at everyone
+                {
+                heap.clear();
+                final Object[] objs = allObjects.objs;
+                for(int i = 0; i < numObjs; i++)
+                    {
+                    Double2D loc = (Double2D)(doubleLocationHash.get(objs[i]));
+                    double ddx = (toroidal ? tdx(x, loc.x) : x - loc.x);
+                    double ddy = (toroidal ? tdy(y, loc.y) : y - loc.y);
+                    double d = ddx * ddx + ddy * ddy;
+                    if (d <= maxsq) heap.offer(objs[i], d);
+                    }
+                break;
+                }
+            }
+
+        heap.drain(result, distances);
+        return result;
+        }
+
+    // used internally in getKNearestNeighbors.  The lowest and highest values which discretize to the given cell.
+    // Since discretize(...) truncates rather than floors, cell 0 is twice as wide as the others.
+    final double cellLow(int c) { return (c > 0 ? c : c - 1) * discretization; }
+    final double cellHigh(int c) { return (c >= 0 ? c + 1 : c) * discretization; }
+
+    // used internally in getKNearestNeighbors.  A lower bound on how far along one axis the position p, in cell c,
+    // is from cell c + offset.
+    final double gap(int offset, int c, double p, boolean toroidal, boolean partial)
+        {
+        if (offset == 0) return 0;
+        if (toroidal)  // we may be measuring around the wrap, so just count the cells in between
+            {
+            int between = (offset > 0 ? offset : -offset) - (partial ? 2 : 1);
+            return (between > 0 ? between * discretization : 0);
+            }
+        return (offset > 0 ? cellLow(c + offset) - p : p - cellHigh(c + offset));
+        }
+
+    // used internally in getKNearestNeighbors.  Offers the objects in the cell within sqrt(maxsq) of (x, y) to the heap,
+    // and returns how many objects the cell holds.
+    int offerCell(int cellX, int cellY, double x, double y, boolean toroidal, double maxsq, NearestNeighborHeap heap, MutableInt2D probe)
+        {
+        Bag temp = getRawObjectsAtCell(cellX, cellY, probe);
+        if (temp == null) return 0;
+        final Object[] objs = temp.objs;
+        final int n = temp.numObjs;
+        for(int i = 0; i < n; i++)
+            {
+            Double2D loc = (Double2D)(doubleLocationHash.get(objs[i]));
+            double dx = (toroidal ? tdx(x, loc.x) : x - loc.x);
+            double dy = (toroidal ? tdy(y, loc.y) : y - loc.y);
+            double d = dx * dx + dy * dy;
+            if (d <= maxsq) heap.offer(objs[i], d);
+            }
+        return n;
+        }
+
+
     /** Returns a Bag containing EXACTLY those objects within a certain distance of a given position, or equal to that distance, measuring
         using a circle of radius 'distance' around the given position.  Assumes non-toroidal point objects. 
         
@@ -782,9 +1048,7 @@ public /*strictfp*/ class Continuous2D extends SparseField implements SparseFiel
                 do
                     {
                     // grab location
-                    speedyMutableInt2D.x=x;
-                    speedyMutableInt2D.y=y;
-                    temp = getRawObjectsAtLocation(speedyMutableInt2D);
+                    temp = getRawObjectsAtCell(x, y, speedyMutableInt2D);
                     if( temp != null && !temp.isEmpty())
                         {
                         // a little efficiency: add if we're 1, addAll if we're > 1, 
@@ -831,9 +1095,7 @@ public /*strictfp*/ class Continuous2D extends SparseField implements SparseFiel
                 for(int y = minY ; y <= maxY; y++)
                     {
                     // grab location
-                    speedyMutableInt2D.x=x;
-                    speedyMutableInt2D.y=y;
-                    temp = getRawObjectsAtLocation(speedyMutableInt2D);
+                    temp = getRawObjectsAtCell(x, y, speedyMutableInt2D);
                     if( temp != null && !temp.isEmpty())
                         {
                         // a little efficiency: add if we're 1, addAll if we're > 1, 
@@ -848,6 +1110,138 @@ public /*strictfp*/ class Continuous2D extends SparseField implements SparseFiel
         return result;
         }
         
+    /** Calls visitor.visit(...) on EXACTLY those objects whose locations are within, or equal to, the given distance of the
+        point (x, y), along with each one's location and squared distance.  If 'toroidal' is true, then the distance is measured
+        assuming the environment is toroidal.  These are the same objects that getNeighborsExactlyWithinDistance(...) would
+        return, visited in the order that getNeighborsWithinDistance(...) finds them.  Stops early if visitor.visit(...)
+        returns false.  Returns the number of objects visited.
+        Assumes point objects.
+
+        <p>Unlike getNeighborsExactlyWithinDistance(...), this method doesn't need a Double2D, doesn't fill a Bag, and
+        tests each object's distance as it comes to it.  If you have called setUsesCellMap(true) or setUsesDenseCells(true),
+        it allocates nothing at all, else it allocates a single MutableInt2D.
+
+        <p> Note: if the field is toroidal, and (x, y) is outside the boundaries, it will be wrapped
+        to within the boundaries before computation.
+    */
+    public int visitNeighborsWithinDistance(double x, double y, final double distance, final boolean toroidal, final NeighborVisitor2D visitor)
+        {
+        // push location to within legal boundaries
+        if (toroidal && (x >= width || y >= height || x < 0 || y < 0))
+            { x = tx(x); y = ty(y); }
+
+        final double discDistance = distance / discretization;
+        final double discX = x / discretization;
+        final double discY = y / discretization;
+        final double distsq = distance * distance;
+        final MutableInt2D probe = (objectHash instanceof CellMap ? null : new MutableInt2D());
+
+        int minX = (int) StrictMath.floor(discX - discDistance);
+        int maxX = (int) StrictMath.floor(discX + discDistance);
+        int minY = (int) StrictMath.floor(discY - discDistance);
+        int maxY = (int) StrictMath.floor(discY + discDistance);
+        int count = 0;
+
+        if (toroidal)
+            {
+            // the same cells as getNeighborsWithinDistance(...) looks at
+            final int iWidth = (int)(StrictMath.ceil(width / discretization));
+            final int iHeight = (int)(StrictMath.ceil(height / discretization));
+
+            if (x + distance >= width && maxX == iWidth - 1)
+                maxX = 0;
+            if (y + distance >= height && maxY == iHeight - 1)
+                maxY = 0;
+            if ((long)maxX - (long)minX >= iWidth)
+                { minX = 0; maxX = iWidth-1; }
+            if ((long)maxY - (long)minY >= iHeight)
+                { minY = 0; maxY = iHeight-1; }
+
+            final int tmaxX = toroidal(maxX,iWidth);
+            final int tmaxY = toroidal(maxY,iHeight);
+            final int tminX = toroidal(minX,iWidth);
+            final int tminY = toroidal(minY,iHeight);
+
+            int cx = tminX;
+            do
+                {
+                int cy = tminY;
+                do
+                    {
+                    Bag temp = getRawObjectsAtCell(cx, cy, probe);
+                    if (temp != null)
+                        {
+                        final Object[] objs = temp.objs;
+                        final int n = temp.numObjs;
+                        for(int i = 0; i < n; i++)
+                            {
+                            final Double2D loc = (Double2D)(doubleLocationHash.get(objs[i]));
+                            final double dx = tdx(x, loc.x);
+                            final double dy = tdy(y, loc.y);
+                            final double d = dx * dx + dy * dy;
+                            if (d <= distsq)
+                                {
+                                count++;
+                                if (!visitor.visit(objs[i], loc, d)) return count;
+                                }
+                            }
+                        }
+
+                    if (cy == tmaxY) break;
+                    else if (cy == iHeight-1) cy = 0;
+                    else cy++;
+                    }
+                while(true);
+
+                if (cx == tmaxX) break;
+                else if (cx == iWidth-1) cx = 0;
+                else cx++;
+                }
+            while(true);
+            }
+        else
+            {
+            for(int cx = minX; cx <= maxX; cx++)
+                for(int cy = minY; cy <= maxY; cy++)
+                    {
+                    Bag temp = getRawObjectsAtCell(cx, cy, probe);
+                    if (temp != null)
+                        {
+                        final Object[] objs = temp.objs;
+                        final int n = temp.numObjs;
+                        for(int i = 0; i < n; i++)
+                            {
+                            final Double2D loc = (Double2D)(doubleLocationHash.get(objs[i]));
+                            final double dx = x - loc.x;
+                            final double dy = y - loc.y;
+                            final double d = dx * dx + dy * dy;
+                            if (d <= distsq)
+                                {
+                                count++;
+                                if (!visitor.visit(objs[i], loc, d)) return count;
+                                }
+                            }
+                        }
+                    }
+            }
+        return count;
+        }
+
+    // used internally in getNeighborsWithinDistance and getNearestNeighbors.  Returns the bag at the discretized cell <x,y>,
+    // or null if there isn't one or it's empty.  Looks it up directly if we have a CellMap (or a DenseCellMap), else through the probe.
+    final Bag getRawObjectsAtCell(final int x, final int y, final MutableInt2D probe)
+        {
+        if (objectHash instanceof CellMap)
+            {
+            assert sim.util.LocationLog.it(this, new Int2D(x, y));
+            Bag b = (Bag)(((CellMap)objectHash).get(x, y));
+            return (b == null || b.numObjs == 0 ? null : b);
+            }
+        probe.x = x;
+        probe.y = y;
+        return getRawObjectsAtLocation(probe);
+        }
+
     // used internally in getNeighborsWithinDistance.  Note similarity to
     // AbstractGrid2D's tx method
     final int toroidal(final int x, final int width) 
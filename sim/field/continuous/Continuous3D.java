@@ -80,12 +80,17 @@ public /*strictfp*/ class Continuous3D extends SparseField implements SparseFiel
     /** Where we store the Double3D values hashed by object */
     public Map doubleLocationHash = buildMap(ANY_SIZE);
     
+    // objects whose Double3D locations have changed since the last delta checkpoint, or null if not keeping track
+    transient HashSet deltaObjects;
+    
     public double width;
     public double height;
     public double length;
 
     public final double discretization;
     
+    boolean usesCellMap = false;
+    
     /** Provide expected bounds on the SparseContinuous3D */
     public Continuous3D(double discretization, double width, double height, double length)
         {
@@ -97,6 +102,7 @@ public /*strictfp*/ class Continuous3D extends SparseField implements SparseFiel
         {
         super(other);
         discretization = other.discretization;
+        if (other.usesCellMap) setUsesCellMap(true);
         width = other.width;
         height = other.height;
         length = other.length;
@@ -129,13 +135,38 @@ public /*strictfp*/ class Continuous3D extends SparseField implements SparseFiel
     public final boolean setObjectLocation(Object obj, final Double3D location)
         {
         boolean result = super.setObjectLocation(obj, discretize(location));
-        if (result) doubleLocationHash.put(obj,location);
+        if (result) 
+            {
+            doubleLocationHash.put(obj,location);
+            if (deltaObjects != null) deltaObjects.add(obj);
+            }
         return result;
         }
+
+    /** Stages a move of the object to the location, or its addition, to happen when commitObjectLocations() is called. */
+    public void stageObjectLocation(Object obj, final Double3D location)
+        {
+        super.stageObjectLocation(obj, location);
+        }
+
+    // our staged locations are Double3Ds: note them, and commit their cells
+    protected void commitObjectLocations(final Object[] objs, final Object[] locations, final int n)
+        {
+        Object[] cells = new Object[n];
+        for(int i = 0; i < n; i++)
+            {
+            if (objs[i] == null || locations[i] == null) continue;
+            doubleLocationHash.put(objs[i], locations[i]);
+            if (deltaObjects != null) deltaObjects.add(objs[i]);
+            cells[i] = discretize((Double3D)(locations[i]));
+            }
+        super.commitObjectLocations(objs, cells, n);
+        }
         
     public final Bag clear()
         {
         doubleLocationHash = buildMap(ANY_SIZE);
+        if (deltaObjects != null) deltaObjects.clear();
         return super.clear();
         }
         
@@ -145,6 +176,79 @@ public /*strictfp*/ class Continuous3D extends SparseField implements SparseFiel
         doubleLocationHash.remove(obj);
         return result;
         }
+
+    /** Sets whether the bags of objects in each discretized cell are kept in a CellMap, which packs each cell
+        into a long, rather than in a HashMap keyed by Int3D.  This makes getNeighborsWithinDistance(...)
+        and its relatives faster when they look at many cells.  The default is false. */
+    public void setUsesCellMap(boolean val)
+        {
+        if (val == usesCellMap) return;
+        usesCellMap = val;
+        Map old = objectHash;
+        objectHash = buildObjectHash(old.size());
+        objectHash.putAll(old);
+        }
+
+    /** Returns whether the bags of objects in each discretized cell are kept in a CellMap. */
+    public boolean getUsesCellMap() { return usesCellMap; }
+
+    public Map buildObjectHash(int size)
+        {
+        if (usesCellMap) return new CellMap(3, size);
+        return super.buildObjectHash(size);
+        }
+
+    public void startDeltas()
+        {
+        super.startDeltas();
+        deltaObjects = new HashSet();
+        }
+
+    public void stopDeltas()
+        {
+        super.stopDeltas();
+        deltaObjects = null;
+        }
+
+    public Object getDelta()
+        {
+        // the exact locations of the objects which have moved, by index in allObjects
+        IntBag indexes = new IntBag();
+        Bag locations = new Bag();
+        Iterator i = deltaObjects.iterator();
+        while(i.hasNext())
+            {
+            Object obj = i.next();
+            int index = getObjectIndex(obj);
+            if (index < 0) continue;  // it's been removed
+            indexes.add(index);
+            locations.add(doubleLocationHash.get(obj));
+            }
+        Delta delta = (Delta)(super.getDelta());
+        delta.extra = new Object[] { indexes.toArray(), locations.toArray() };
+        deltaObjects.clear();
+        return delta;
+        }
+
+    public void applyDelta(Object d)
+        {
+        Delta delta = (Delta) d;
+        Object[] oldObjs = allObjects.objs;
+        Map oldLocations = doubleLocationHash;
+        super.applyDelta(d);
+        
+        // objects which haven't moved are where they were
+        int[] origins = delta.getOrigins();
+        Object[] objs = allObjects.objs;
+        doubleLocationHash = buildMap(allObjects.numObjs);
+        for(int i = 0; i < allObjects.numObjs; i++)
+            if (origins[i] >= 0)
+                doubleLocationHash.put(objs[i], oldLocations.get(oldObjs[origins[i]]));
+        int[] indexes = (int[])(((Object[])(delta.extra))[0]);
+        Object[] locations = (Object[])(((Object[])(delta.extra))[1]);
+        for(int i = 0; i < indexes.length; i++)
+            doubleLocationHash.put(objs[indexes[i]], locations[i]);
+        }
  
 
     /** Get the width */
@@ -322,6 +426,178 @@ public /*strictfp*/ class Continuous3D extends SparseField implements SparseFiel
         }
 
 
+    /** Returns the k objects nearest to the given position, nearest first, measuring toroidally if 'toroidal' is true.
+        See getKNearestNeighbors(position, k, toroidal, maxDistance, result, distances). */
+    public Bag getKNearestNeighbors(Double3D position, int k, final boolean toroidal)
+        {
+        return getKNearestNeighbors(position, k, toroidal, Double.POSITIVE_INFINITY, null, null);
+        }
+
+    /** Returns EXACTLY the k objects nearest to the given position, nearest first, not counting any farther away than
+        maxDistance (which may be Double.POSITIVE_INFINITY).  If there are fewer than k such objects, returns all of them.
+        If 'toroidal' is true, distances are measured assuming the environment is toroidal.  If 'result' is provided,
+        clears it and reuses it.  If 'distances' is provided, clears it and fills it with the distance to each object.
+        Objects at the same distance are returned in no particular order.  Assumes point objects, and for toroidal fields,
+        that the objects lie within the bounds.
+
+        <p>This searches outwards from the position one shell of discretized cells at a time, keeping the k nearest
+        so far in a heap, and stops as soon as no unsearched cell could hold anything nearer.  If the objects are so sparse
+        that searching cells would take longer than looking at every object, it looks at every object instead.
+
+        <p> Note: if the field is toroidal, and position is outside the boundaries, it will be wrapped
+        to within the boundaries before computation.
+    */
+    public Bag getKNearestNeighbors(Double3D position, int k, final boolean toroidal, final double maxDistance, Bag result, DoubleBag distances)
+        {
+        if (result == null) result = new Bag(Math.max(k, 0));
+        else result.clear();
+        if (distances != null) distances.clear();
+        final int numObjs = allObjects.numObjs;
+        if (k <= 0 || numObjs == 0) return result;
+        if (k > numObjs) k = numObjs;
+
+        double x = position.x;
+        double y = position.y;
+        double z = position.z;
+        if (toroidal) { x = tx(x); y = ty(y); z = tz(z); }
+        final double maxsq = maxDistance * maxDistance;
+        final NearestNeighborHeap heap = new NearestNeighborHeap(k);
+        final MutableInt3D probe = (objectHash instanceof CellMap ? null : new MutableInt3D());
+
+        // the cell the position is in, discretized the same way as the objects are
+        final int cx = (int)(x / discretization);
+        final int cy = (int)(y / discretization);
+        final int cz = (int)(z / discretization);
+        final int iWidth = (int)(StrictMath.ceil(width / discretization));
+        final int iHeight = (int)(StrictMath.ceil(height / discretization));
+        final int iLength = (int)(StrictMath.ceil(length / discretization));
+
+        // In a toroidal field whose dimensions aren't multiples of the discretization, we might wrap around through
+        // a narrower last cell, so we just use the fact that every other cell is at least discretization wide.
+        final boolean partial = (toroidal && (iWidth * discretization != width || iHeight * discretization != height ||
+                iLength * discretization != length));
+
+        int seen = 0;
+        int cells = 0;
+        for(int r = 0; ; r++)
+            {
+            // in a toroidal field, don't look at any cell twice
+            int loX = -r, hiX = r, loY = -r, hiY = r, loZ = -r, hiZ = r;
+            if (toroidal)
+                {
+                loX = Math.max(loX, -((iWidth - 1) / 2));
+                hiX = Math.min(hiX, iWidth / 2);
+                loY = Math.max(loY, -((iHeight - 1) / 2));
+                hiY = Math.min(hiY, iHeight / 2);
+                loZ = Math.max(loZ, -((iLength - 1) / 2));
+                hiZ = Math.min(hiZ, iLength / 2);
+                if (loX > -r && hiX < r && loY > -r && hiY < r && loZ > -r && hiZ < r) break;  // we've looked at every cell
+                }
+
+            for(int dx = loX; dx <= hiX; dx++)
+                {
+                final double gx = gap(dx, cx, x, toroidal, partial);
+                for(int dy = loY; dy <= hiY; dy++)
+                    {
+                    final boolean side = (dx == -r || dx == r || dy == -r || dy == r);  // if so, the whole row is in the shell, else just its ends
+                    final double gy = gap(dy, cy, y, toroidal, partial);
+                    for(int dz = (side ? loZ : -r); dz <= hiZ; dz += (side ? 1 : 2 * r))
+                        {
+                        if (dz < loZ) continue;
+                        cells++;
+                        final double gz = gap(dz, cz, z, toroidal, partial);
+                        if (gx * gx + gy * gy + gz * gz > heap.worst()) continue;  // nothing in this cell could be nearer
+                        if (toroidal)
+                            seen += offerCell(toroidal(cx + dx, iWidth), toroidal(cy + dy, iHeight), toroidal(cz + dz, iLength),
+                                x, y, z, true, maxsq, heap, probe);
+                        else
+                            seen += offerCell(cx + dx, cy + dy, cz + dz, x, y, z, false, maxsq, heap, probe);
+                        }
+                    }
+                }
+
+            if (seen >= numObjs) break;  // we've seen everything
+
+            // how far away is the nearest cell we haven't searched?
+            double bound;
+            if (partial) bound = (r - 1) * discretization;
+            else if (toroidal)
+                {
+                // the unsearched columns run from the right edge of the searched ones around to their left edge
+                double bx = (hiX - loX + 1 >= iWidth ? Double.POSITIVE_INFINITY :
+                    Math.min((cx + hiX + 1) * discretization - x, x - (cx + loX) * discretization));
+                double by = (hiY - loY + 1 >= iHeight ? Double.POSITIVE_INFINITY :
+                    Math.min((cy + hiY + 1) * discretization - y, y - (cy + loY) * discretization));
+                double bz = (hiZ - loZ + 1 >= iLength ? Double.POSITIVE_INFINITY :
+                    Math.min((cz + hiZ + 1) * discretization - z, z - (cz + loZ) * discretization));
+                bound = Math.min(bx, Math.min(by, bz));
+                }
+            else bound = Math.min(Math.min(x - cellLow(cx - r), cellHigh(cx + r) - x),
+                Math.min(Math.min(y - cellLow(cy - r), cellHigh(cy + r) - y),
+                    Math.min(z - cellLow(cz - r), cellHigh(cz + r) - z)));
+            if (bound > 0 && (bound * bound > maxsq || (heap.isFull() && bound * bound >= heap.worst()))) break;
+
+            if (cells > numObjs + 64)  // too sparse to bother with cells, just look at everyone
+                {
+                heap.clear();
+                final Object[] objs = allObjects.objs;
+                for(int i = 0; i < numObjs; i++)
+                    {
+                    Double3D loc = (Double3D)(doubleLocationHash.get(objs[i]));
+                    double ddx = (toroidal ? tdx(x, loc.x) : x - loc.x);
+                    double ddy = (toroidal ? tdy(y, loc.y) : y - loc.y);
+                    double ddz = (toroidal ? tdz(z, loc.z) : z - loc.z);
+                    double d = ddx * ddx + ddy * ddy + ddz * ddz;
+                    if (d <= maxsq) heap.offer(objs[i], d);
+                    }
+                break;
+                }
+            }
+
+        heap.drain(result, distances);
+        return result;
+        }
+
+    // used internally in getKNearestNeighbors.  The lowest and highest values which discretize to the given cell.
+    // Since discretize(...) truncates rather than floors, cell 0 is twice as wide as the others.
+    final double cellLow(int c) { return (c > 0 ? c : c - 1) * discretization; }
+    final double cellHigh(int c) { return (c >= 0 ? c + 1 : c) * discretization; }
+
+    // used internally in getKNearestNeighbors.  A lower bound on how far along one axis the position p, in cell c,
+    // is from cell c + offset.
+    final double gap(int offset, int c, double p, boolean toroidal, boolean partial)
+        {
+        if (offset == 0) return 0;
+        if (toroidal)  // we may be measuring around the wrap, so just count the cells in between
+            {
+            int between = (offset > 0 ? offset : -offset) - (partial ? 2 : 1);
+            return (between > 0 ? between * discretization : 0);
+            }
+        return (offset > 0 ? cellLow(c + offset) - p : p - cellHigh(c + offset));
+        }
+
+    // used internally in getKNearestNeighbors.  Offers the objects in the cell within sqrt(maxsq) of (x, y, z) to the heap,
+    // and returns how many objects the cell holds.
+    int offerCell(int cellX, int cellY, int cellZ, double x, double y, double z, boolean toroidal, double maxsq,
+        NearestNeighborHeap heap, MutableInt3D probe)
+        {
+        Bag temp = getRawObjectsAtCell(cellX, cellY, cellZ, probe);
+        if (temp == null) return 0;
+        final Object[] objs = temp.objs;
+        final int n = temp.numObjs;
+        for(int i = 0; i < n; i++)
+            {
+            Double3D loc = (Double3D)(doubleLocationHash.get(objs[i]));
+            double dx = (toroidal ? tdx(x, loc.x) : x - loc.x);
+            double dy = (toroidal ? tdy(y, loc.y) : y - loc.y);
+            double dz = (toroidal ? tdz(z, loc.z) : z - loc.z);
+            double d = dx * dx + dy * dy + dz * dz;
+            if (d <= maxsq) heap.offer(objs[i], d);
+            }
+        return n;
+        }
+
+
     /** Returns a Bag containing EXACTLY those objects within a certain distance of a given position, or equal to that distance, measuring
         using a circle of radius 'distance' around the given position.  Assumes non-toroidal point objects.   
         
@@ -687,8 +963,7 @@ public /*strictfp*/ class Continuous3D extends SparseField implements SparseFiel
                     do
                         {
                         // grab location
-                        speedyMutableInt3D.x=x; speedyMutableInt3D.y=y; speedyMutableInt3D.z=z;
-                        temp =  getRawObjectsAtLocation(speedyMutableInt3D);
+                        temp = getRawObjectsAtCell(x, y, z, speedyMutableInt3D);
                         if( temp != null && !temp.isEmpty())
                             {
                             // a little efficiency: add if we're 1, addAll if we're > 1, 
@@ -748,8 +1023,7 @@ public /*strictfp*/ class Continuous3D extends SparseField implements SparseFiel
                     for (int z = minZ ; z <= maxZ; z++)
                         {
                         // grab location
-                        speedyMutableInt3D.x=x; speedyMutableInt3D.y=y; speedyMutableInt3D.z=z;
-                        temp =  getRawObjectsAtLocation(speedyMutableInt3D);
+                        temp = getRawObjectsAtCell(x, y, z, speedyMutableInt3D);
                         if( temp != null && !temp.isEmpty())
                             {
                             // a little efficiency: add if we're 1, addAll if we're > 1, 
@@ -764,6 +1038,22 @@ public /*strictfp*/ class Continuous3D extends SparseField implements SparseFiel
         return result;
         }
 
+    // used internally in getNeighborsWithinDistance.  Returns the bag at the discretized cell <x,y,z>,
+    // or null if there isn't one or it's empty.  Looks it up directly if we have a CellMap, else through the probe.
+    final Bag getRawObjectsAtCell(final int x, final int y, final int z, final MutableInt3D probe)
+        {
+        if (objectHash instanceof CellMap)
+            {
+            assert sim.util.LocationLog.it(this, new Int3D(x, y, z));
+            Bag b = (Bag)(((CellMap)objectHash).get(x, y, z));
+            return (b == null || b.numObjs == 0 ? null : b);
+            }
+        probe.x = x;
+        probe.y = y;
+        probe.z = z;
+        return getRawObjectsAtLocation(probe);
+        }
+
     // used internally in getNeighborsWithinDistance.  Note similarity to
     // AbstractGrid3D's tx method
     final int toroidal(final int x, final int width) 
@@ -0,0 +1,397 @@
+/*
+  Copyright 2006 by Sean Luke and George Mason University
+  Licensed under the Academic Free License version 3.0
+  See the file "LICENSE" for more information
+*/
+
+package sim.field.continuous;
+import sim.field.*;
+import sim.util.*;
+
+/**
+   A KDTree2D is a k-d tree over the objects in a Continuous2D, an alternative way of finding neighbors when the
+   objects are too unevenly spread for any one discretization to suit them all.  If most of your agents are
+   crowded into a city and the rest are scattered over the countryside, a discretization small enough for the
+   city will leave the countryside as a great many empty cells, and one large enough for the countryside will
+   put thousands of agents into each cell of the city.  A k-d tree divides the space where the objects are,
+   not where they might be, so it doesn't care.
+
+   <p>The tree is built in one go from the locations of the objects in the Continuous2D when you call rebuild(),
+   and doesn't change when the objects move, so it answers queries about where the objects were when it was
+   built.  Typically you'd rebuild it once per step, before your agents look for their neighbors, by scheduling
+   a Steppable along the lines of:
+
+   <pre><tt>
+   schedule.scheduleRepeating(Schedule.EPOCH, -1, new Steppable()
+       { public void step(SimState state) { tree.rebuild(); } });
+   </tt></pre>
+
+   <p>Rebuilding takes O(n log n) time.  If you call setThreads(...), the two halves of the tree are built at the
+   same time in separate threads, and their halves, and so on, until each thread has a part of its own.
+
+   <p>The tree is stored implicitly, like a heap, in arrays of objects and their coordinates: each range of the
+   arrays is split at its median, alternately in x and y, so looking something up allocates very little.
+   KDTree2D can find the objects in a rectangle, the objects within a distance, and the k nearest objects, the last
+   two either toroidally or not.  For toroidal queries, it assumes that the objects lie within the bounds of the field.
+   It implements SparseField2D, but just passes those methods on to the Continuous2D.
+*/
+
+public class KDTree2D implements SparseField2D, java.io.Serializable
+    {
+    private static final long serialVersionUID = 1;
+
+    /** Ranges of at most this many objects are not split further, but searched one by one. */
+    public static final int LEAF_SIZE = 16;
+
+    Continuous2D field;
+    int threads = 1;
+
+    int size;
+    Object[] objs = new Object[0];
+    double[] xs = new double[0];
+    double[] ys = new double[0];
+    // the bounds of all the objects
+    double minX, maxX, minY, maxY;
+
+    /** Creates a KDTree2D for the given field, and builds it. */
+    public KDTree2D(Continuous2D field)
+        {
+        this.field = field;
+        rebuild();
+        }
+
+    public Continuous2D getField() { return field; }
+
+    /** Sets the number of threads used to rebuild the tree.  The default is 1. */
+    public void setThreads(int val) { if (val > 0) threads = val; }
+    public int getThreads() { return threads; }
+
+    /** Returns the number of objects in the tree as of the last rebuild(). */
+    public int size() { return size; }
+
+    public Double2D getDimensions() { return field.getDimensions(); }
+
+    public Double2D getObjectLocationAsDouble2D(Object obj) { return field.getObjectLocationAsDouble2D(obj); }
+
+    /** Rebuilds the tree from the current locations of the objects in the field. */
+    public void rebuild()
+        {
+        Bag all = field.allObjects;
+        size = all.numObjs;
+        if (objs.length < size || objs.length > size * 4)  // don't hang on to a lot more than we need
+            {
+            objs = new Object[size];
+            xs = new double[size];
+            ys = new double[size];
+            }
+        minX = minY = Double.POSITIVE_INFINITY;
+        maxX = maxY = Double.NEGATIVE_INFINITY;
+        for(int i = 0; i < size; i++)
+            {
+            Object obj = all.objs[i];
+            Double2D loc = field.getObjectLocation(obj);
+            objs[i] = obj;
+            xs[i] = loc.x;
+            ys[i] = loc.y;
+            if (loc.x < minX) minX = loc.x;
+            if (loc.x > maxX) maxX = loc.x;
+            if (loc.y < minY) minY = loc.y;
+            if (loc.y > maxY) maxY = loc.y;
+            }
+        for(int i = size; i < objs.length; i++) objs[i] = null;  // let go of old objects
+        build(0, size, 0, threads);
+        }
+
+    // Splits [lo, hi) at its median along the axis for the depth, then splits each half, using up to 'threads' threads
+    void build(final int lo, final int hi, final int depth, final int threads)
+        {
+        if (hi - lo <= LEAF_SIZE) return;
+        final int m = (lo + hi) >>> 1;
+        select(lo, hi - 1, m, (depth & 1) == 0 ? xs : ys);
+        if (threads > 1)
+            {
+            Thread thread = new Thread(new Runnable()
+                {
+                public void run() { build(lo, m, depth + 1, threads / 2); }
+                });
+            thread.start();
+            build(m + 1, hi, depth + 1, threads - threads / 2);
+            while(true)
+                {
+                try { thread.join(); break; }
+                catch (InterruptedException e) { }  // try again
+                }
+            }
+        else
+            {
+            build(lo, m, depth + 1, 1);
+            build(m + 1, hi, depth + 1, 1);
+            }
+        }
+
+    // Rearranges [lo, hi] so that everything before k has a coordinate no larger than k's, and everything after, no smaller
+    void select(int lo, int hi, final int k, final double[] c)
+        {
+        while(hi > lo)
+            {
+            final double pivot = c[(lo + hi) >>> 1];
+            int i = lo;
+            int j = hi;
+            while(i <= j)
+                {
+                while(c[i] < pivot) i++;
+                while(c[j] > pivot) j--;
+                if (i <= j) { swap(i, j); i++; j--; }
+                }
+            if (k <= j) hi = j;
+            else if (k >= i) lo = i;
+            else break;  // everything between j and i equals the pivot
+            }
+        }
+
+    void swap(int i, int j)
+        {
+        Object o = objs[i]; objs[i] = objs[j]; objs[j] = o;
+        double d = xs[i]; xs[i] = xs[j]; xs[j] = d;
+        d = ys[i]; ys[i] = ys[j]; ys[j] = d;
+        }
+
+    // The distance from q to the nearest point in [a, b] along an axis of the given length, toroidally or not
+    static double gap(double q, double a, double b, double length, boolean toroidal)
+        {
+        if (q >= a && q <= b) return 0;
+        double d = (q < a ? a - q : q - b);
+        if (toroidal)
+            {
+            double d2 = (q < a ? q + length - b : a + length - q);
+            if (d2 < d) d = d2;
+            if (d < 0) d = 0;
+            }
+        return d;
+        }
+
+    /** Returns the objects whose locations lie within the rectangle from (x1, y1) to (x2, y2) inclusive, as of the last rebuild().
+        If 'result' is provided, clears it and reuses it. */
+    public Bag getObjectsWithinRectangle(double x1, double y1, double x2, double y2, Bag result)
+        {
+        if (result == null) result = new Bag();
+        else result.clear();
+        rectangle(0, size, 0, Math.min(x1, x2), Math.max(x1, x2), Math.min(y1, y2), Math.max(y1, y2), result);
+        return result;
+        }
+
+    void rectangle(int lo, int hi, int depth, final double x1, final double x2, final double y1, final double y2, final Bag result)
+        {
+        while(true)
+            {
+            if (hi - lo <= LEAF_SIZE)
+                {
+                for(int i = lo; i < hi; i++)
+                    if (xs[i] >= x1 && xs[i] <= x2 && ys[i] >= y1 && ys[i] <= y2)
+                        result.add(objs[i]);
+                return;
+                }
+            final int m = (lo + hi) >>> 1;
+            if (xs[m] >= x1 && xs[m] <= x2 && ys[m] >= y1 && ys[m] <= y2)
+                result.add(objs[m]);
+            final double split = ((depth & 1) == 0 ? xs[m] : ys[m]);
+            final double low = ((depth & 1) == 0 ? x1 : y1);
+            final double high = ((depth & 1) == 0 ? x2 : y2);
+            boolean left = (low <= split);
+            boolean right = (high >= split);
+            depth++;
+            if (left && right) rectangle(lo, m, depth, x1, x2, y1, y2, result);
+            if (right) lo = m + 1;
+            else if (left) hi = m;
+            else return;
+            }
+        }
+
+    // The state of one query, so that queries may be made from several threads at once
+    class Search
+        {
+        double x;
+        double y;
+        boolean toroidal;
+        double maxsq;
+        double width;
+        double height;
+        Bag result;  // for distance queries
+        NearestNeighborHeap heap;  // for nearest neighbor queries
+
+        Search(double x, double y, boolean toroidal, double distance)
+            {
+            width = field.width;
+            height = field.height;
+            if (toroidal) { x = field.tx(x); y = field.ty(y); }
+            this.x = x;
+            this.y = y;
+            this.toroidal = toroidal;
+            maxsq = distance * distance;
+            }
+
+        double distanceSq(int i)
+            {
+            double dx = (toroidal ? field.tdx(x, xs[i]) : x - xs[i]);
+            double dy = (toroidal ? field.tdy(y, ys[i]) : y - ys[i]);
+            return dx * dx + dy * dy;
+            }
+
+        // searches [lo, hi), whose objects lie in the given box, skipping it if it can't hold anything we want
+        void search(int lo, int hi, int depth, double bx1, double bx2, double by1, double by2)
+            {
+            if (lo >= hi) return;
+            double limit = (heap == null ? maxsq : Math.min(maxsq, heap.worst()));
+            double gx = gap(x, bx1, bx2, width, toroidal);
+            double gy = gap(y, by1, by2, height, toroidal);
+            if (gx * gx + gy * gy > limit) return;
+
+            if (hi - lo <= LEAF_SIZE)
+                {
+                for(int i = lo; i < hi; i++) consider(i);
+                return;
+                }
+            final int m = (lo + hi) >>> 1;
+            consider(m);
+            // look at the nearer half first, so that a nearest neighbor search can skip more of the farther one
+            if ((depth & 1) == 0)
+                {
+                double split = xs[m];
+                if (x < split)
+                    { search(lo, m, depth + 1, bx1, split, by1, by2); search(m + 1, hi, depth + 1, split, bx2, by1, by2); }
+                else
+                    { search(m + 1, hi, depth + 1, split, bx2, by1, by2); search(lo, m, depth + 1, bx1, split, by1, by2); }
+                }
+            else
+                {
+                double split = ys[m];
+                if (y < split)
+                    { search(lo, m, depth + 1, bx1, bx2, by1, split); search(m + 1, hi, depth + 1, bx1, bx2, split, by2); }
+                else
+                    { search(m + 1, hi, depth + 1, bx1, bx2, split, by2); search(lo, m, depth + 1, bx1, bx2, by1, split); }
+                }
+            }
+
+        void consider(int i)
+            {
+            double d = distanceSq(i);
+            if (d > maxsq) return;
+            if (heap != null) heap.offer(objs[i], d);
+            else result.add(objs[i]);
+            }
+        }
+
+    /** Returns EXACTLY those objects within, or equal to, the given distance of the given position, as of the last rebuild(),
+        measuring toroidally if 'toroidal' is true.  If 'result' is provided, clears it and reuses it.
+        The objects are in no particular order. */
+    public Bag getNeighborsExactlyWithinDistance(Double2D position, double distance, boolean toroidal, Bag result)
+        {
+        if (result == null) result = new Bag();
+        else result.clear();
+        Search search = new Search(position.x, position.y, toroidal, distance);
+        search.result = result;
+        search.search(0, size, 0, minX, maxX, minY, maxY);
+        return result;
+        }
+
+    /** Returns EXACTLY the k objects nearest to the given position, as of the last rebuild(), nearest first, not counting any
+        farther away than maxDistance (which may be Double.POSITIVE_INFINITY).  If there are fewer than k such objects, returns
+        all of them.  Measures toroidally if 'toroidal' is true.  If 'result' is provided, clears it and reuses it.  If 'distances'
+        is provided, clears it and fills it with the distance to each object.  Objects at the same distance are returned in no
+        particular order. */
+    public Bag getKNearestNeighbors(Double2D position, int k, boolean toroidal, double maxDistance, Bag result, DoubleBag distances)
+        {
+        if (result == null) result = new Bag(Math.max(k, 0));
+        else result.clear();
+        if (distances != null) distances.clear();
+        if (k <= 0 || size == 0) return result;
+        Search search = new Search(position.x, position.y, toroidal, maxDistance);
+        search.heap = new NearestNeighborHeap(Math.min(k, size));
+        search.search(0, size, 0, minX, maxX, minY, maxY);
+        search.heap.drain(result, distances);
+        return result;
+        }
+
+    /** Returns the k objects nearest to the given position, nearest first.
+        See getKNearestNeighbors(position, k, toroidal, maxDistance, result, distances). */
+    public Bag getKNearestNeighbors(Double2D position, int k, boolean toroidal)
+        {
+        return getKNearestNeighbors(position, k, toroidal, Double.POSITIVE_INFINITY, null, null);
+        }
+
+    /** Benchmarks a KDTree2D against its Continuous2D on a clustered population: most of the N agents are crowded into a
+        few small cities, and the rest are scattered.  Checks that both find the same neighbors.
+        Usage: java sim.field.continuous.KDTree2D [N] [threads] */
+    public static void main(String[] args)
+        {
+        int n = (args.length > 0 ? Integer.parseInt(args[0]) : 200000);
+        int threads = (args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors());
+        double width = 10000;
+        double radius = 5;
+
+        ec.util.MersenneTwisterFast random = new ec.util.MersenneTwisterFast(1);
+        Continuous2D field = new Continuous2D(radius * 2, width, width);
+        field.setUsesCellMap(true);
+        Double2D[] cities = new Double2D[5];
+        for(int i = 0; i < cities.length; i++)
+            cities[i] = new Double2D(random.nextDouble() * width, random.nextDouble() * width);
+        for(int i = 0; i < n; i++)
+            {
+            Double2D loc;
+            if (random.nextDouble() < 0.9)
+                {
+                Double2D city = cities[random.nextInt(cities.length)];
+                loc = new Double2D(field.tx(city.x + random.nextGaussian() * 20), field.ty(city.y + random.nextGaussian() * 20));
+                }
+            else loc = new Double2D(random.nextDouble() * width, random.nextDouble() * width);
+            field.setObjectLocation(new Object(), loc);
+            }
+
+        for(int t = 1; t <= threads; t *= 2)
+            {
+            KDTree2D tree = new KDTree2D(field);
+            tree.setThreads(t);
+            long time = System.nanoTime();
+            for(int i = 0; i < 5; i++) tree.rebuild();
+            System.out.println("Rebuild with " + t + " thread(s): " + (System.nanoTime() - time) / 5000000 + " ms");
+            if (t * 2 > threads) break;
+            }
+
+        KDTree2D tree = new KDTree2D(field);
+        int queries = Math.min(n, 20000);
+        Bag a = new Bag();
+        Bag b = new Bag();
+        boolean same = true;
+        long fieldTime = 0;
+        long treeTime = 0;
+        long knnFieldTime = 0;
+        long knnTreeTime = 0;
+        for(int i = 0; i < queries; i++)
+            {
+            Double2D p = field.getObjectLocation(field.allObjects.objs[i * (n / queries)]);
+            long time = System.nanoTime();
+            field.getNeighborsExactlyWithinDistance(p, radius, true, true, true, a);
+            fieldTime += System.nanoTime() - time;
+            time = System.nanoTime();
+            tree.getNeighborsExactlyWithinDistance(p, radius, true, b);
+            treeTime += System.nanoTime() - time;
+            if (a.numObjs != b.numObjs || !new java.util.HashSet(java.util.Arrays.asList(a.toArray())).containsAll(java.util.Arrays.asList(b.toArray())))
+                same = false;
+
+            DoubleBag da = new DoubleBag();
+            DoubleBag db = new DoubleBag();
+            time = System.nanoTime();
+            field.getKNearestNeighbors(p, 10, true, Double.POSITIVE_INFINITY, a, da);
+            knnFieldTime += System.nanoTime() - time;
+            time = System.nanoTime();
+            tree.getKNearestNeighbors(p, 10, true, Double.POSITIVE_INFINITY, b, db);
+            knnTreeTime += System.nanoTime() - time;
+            for(int j = 0; j < da.numObjs; j++)
+                if (da.numObjs != db.numObjs || da.objs[j] != db.objs[j]) same = false;
+            }
+        System.out.println(queries + " toroidal queries on " + n + " clustered agents");
+        System.out.println("    Within distance: Continuous2D " + (fieldTime / 1000000) + " ms, KDTree2D " + (treeTime / 1000000) + " ms");
+        System.out.println("    10 nearest:      Continuous2D " + (knnFieldTime / 1000000) + " ms, KDTree2D " + (knnTreeTime / 1000000) + " ms");
+        System.out.println("    Same neighbors: " + same);
+        }
+    }
@@ -0,0 +1,99 @@
+/*
+  Copyright 2006 by Sean Luke and George Mason University
+  Licensed under the Academic Free License version 3.0
+  See the file "LICENSE" for more information
+*/
+
+package sim.field.continuous;
+import sim.util.*;
+
+/**
+   A max-heap of at most k objects, keyed by their squared distances, used by getKNearestNeighbors(...) in
+   Continuous2D and Continuous3D.  The farthest object kept is always at the top, so a closer one can replace
+   it in O(log k) time.
+*/
+
+class NearestNeighborHeap
+    {
+    int k;
+    int size;
+    Object[] objs;
+    double[] dists;  // squared
+
+    NearestNeighborHeap(int k)
+        {
+        this.k = k;
+        objs = new Object[k];
+        dists = new double[k];
+        }
+
+    boolean isFull() { return size == k; }
+
+    /** The squared distance of the farthest object kept, or infinity if the heap isn't full yet. */
+    double worst() { return (size < k ? Double.POSITIVE_INFINITY : dists[0]); }
+
+    void clear()
+        {
+        for(int i = 0; i < size; i++) objs[i] = null;
+        size = 0;
+        }
+
+    /** Keeps the object if it's closer than the farthest one kept, or if there's room. */
+    void offer(Object obj, double dist)
+        {
+        if (size < k)
+            {
+            // sift up
+            int i = size++;
+            while(i > 0)
+                {
+                int parent = (i - 1) >> 1;
+                if (dists[parent] >= dist) break;
+                objs[i] = objs[parent];
+                dists[i] = dists[parent];
+                i = parent;
+                }
+            objs[i] = obj;
+            dists[i] = dist;
+            }
+        else if (k > 0 && dist < dists[0])
+            siftDown(0, obj, dist, size);
+        }
+
+    // puts obj at i, moving it down until the heap of the given size is in order again
+    void siftDown(int i, Object obj, double dist, int size)
+        {
+        while(true)
+            {
+            int child = 2 * i + 1;
+            if (child >= size) break;
+            if (child + 1 < size && dists[child + 1] > dists[child]) child++;
+            if (dists[child] <= dist) break;
+            objs[i] = objs[child];
+            dists[i] = dists[child];
+            i = child;
+            }
+        objs[i] = obj;
+        dists[i] = dist;
+        }
+
+    /** Empties the heap into the result, nearest first, and puts the (not squared) distances into 'distances' if it's not null. */
+    void drain(Bag result, DoubleBag distances)
+        {
+        // heapsort in place: repeatedly swap the farthest to the end
+        for(int end = size - 1; end > 0; end--)
+            {
+            Object obj = objs[end];
+            double dist = dists[end];
+            objs[end] = objs[0];
+            dists[end] = dists[0];
+            siftDown(0, obj, dist, end);
+            }
+        for(int i = 0; i < size; i++)
+            {
+            result.add(objs[i]);
+            if (distances != null) distances.add(Math.sqrt(dists[i]));
+            }
+        clear();
+        }
+    }
@@ -0,0 +1,389 @@
+/*
+  Copyright 2006 by Sean Luke and George Mason University
+  Licensed under the Academic Free License version 3.0
+  See the file "LICENSE" for more information
+*/
+
+package sim.field.continuous;
+import sim.util.*;
+
+/**
+   A NeighborCache2D finds the neighbors of every object in a Continuous2D at once, and holds on to them so your
+   agents can look them up for the rest of the step.  Many models have each agent call getNeighborsWithinDistance(...)
+   with the same distance every step: this does all of that work in one sweep, which is a good deal cheaper, and
+   can split it among several threads.
+
+   <p>When you call rebuild(), the cache notes where each object in the field is, sorts the objects into cells as wide
+   as the distance, and for each object checks the objects in its own and the surrounding cells.  The neighbors
+   of each object are those exactly within the distance (measured toroidally if you like), including the object itself,
+   just as getNeighborsExactlyWithinDistance(...) would return them, though maybe in a different order.
+   The cache doesn't change when the objects move, so it tells you about where the objects were when it was rebuilt.
+   Typically you'd rebuild it once per step, before your agents look for their neighbors, by scheduling a Steppable
+   along the lines of:
+
+   <pre><tt>
+   schedule.scheduleRepeating(Schedule.EPOCH, -1, new Steppable()
+       { public void step(SimState state) { cache.rebuild(); } });
+   </tt></pre>
+
+   <p>If you call setThreads(...), the objects are divided among that many threads while their neighbors are found.
+
+   <p>The neighbors are stored compactly, in "compressed sparse row" form: the neighbors of the object at index i in
+   the field's allObjects Bag (as of the rebuild) are the objects at the indices neighbors[offsets[i]] through
+   neighbors[offsets[i+1] - 1].  You can get at these arrays directly with getOffsets() and getNeighborIndices(),
+   or let getNeighbors(...) put an object's neighbors into a Bag for you.  For toroidal fields, the cache
+   assumes that the objects lie within the bounds of the field.  Note that in a toroidal field whose width or height
+   isn't a multiple of its discretization, getNeighborsWithinDistance(...) can miss a few neighbors just across the
+   edge, but the cache won't.
+*/
+
+public class NeighborCache2D implements java.io.Serializable
+    {
+    private static final long serialVersionUID = 1;
+
+    Continuous2D field;
+    double distance;
+    boolean toroidal;
+    int threads = 1;
+
+    int size;
+    Object[] objs = new Object[0];
+    double[] xs = new double[0];
+    double[] ys = new double[0];
+    int[] offsets = new int[1];
+    int[] neighbors = new int[0];
+
+    // the cells: the objects sorted by cell, and where each cell's objects start in 'sorted'
+    int cellsX, cellsY;
+    double cellWidth, cellHeight, originX, originY;
+    int[] sorted = new int[0];
+    int[] cellStart = new int[0];
+
+    /** Creates a NeighborCache2D which finds the objects within the given distance of each object in the field,
+        toroidally or not, and builds it. */
+    public NeighborCache2D(Continuous2D field, double distance, boolean toroidal)
+        {
+        this.field = field;
+        this.distance = distance;
+        this.toroidal = toroidal;
+        rebuild();
+        }
+
+    public Continuous2D getField() { return field; }
+    public double getDistance() { return distance; }
+    public boolean isToroidal() { return toroidal; }
+
+    /** Sets the distance used by the next rebuild(). */
+    public void setDistance(double val) { if (val >= 0) distance = val; }
+
+    /** Sets whether the next rebuild() measures distances toroidally. */
+    public void setToroidal(boolean val) { toroidal = val; }
+
+    /** Sets the number of threads used to find neighbors in rebuild().  The default is 1. */
+    public void setThreads(int val) { if (val > 0) threads = val; }
+    public int getThreads() { return threads; }
+
+    /** Returns the number of objects in the cache as of the last rebuild(). */
+    public int size() { return size; }
+
+    /** Returns the object at the given index as of the last rebuild(). */
+    public Object getObject(int index) { return objs[index]; }
+
+    /** Returns the index of the object as of the last rebuild(), or -1 if it wasn't in the field then. */
+    public int getIndex(Object obj)
+        {
+        int index = field.getObjectIndex(obj);
+        if (index >= 0 && index < size && objs[index] == obj) return index;
+        // the field's changed since: look for it the slow way
+        for(int i = 0; i < size; i++)
+            if (objs[i] == obj) return i;
+        return -1;
+        }
+
+    /** Returns the offsets into getNeighborIndices() of each object's neighbors, plus one more at the end.  Do NOT modify this array. */
+    public int[] getOffsets() { return offsets; }
+
+    /** Returns the indices of every object's neighbors, one after the other.  Do NOT modify this array. */
+    public int[] getNeighborIndices() { return neighbors; }
+
+    /** Returns the number of neighbors of the object at the given index, including itself. */
+    public int getNumNeighbors(int index) { return offsets[index + 1] - offsets[index]; }
+
+    /** Puts the neighbors of the object at the given index, including itself, into the result and returns it.
+        If the result is null, one will be created. */
+    public Bag getNeighbors(int index, Bag result)
+        {
+        if (result == null) result = new Bag();
+        int end = offsets[index + 1];
+        for(int i = offsets[index]; i < end; i++)
+            result.add(objs[neighbors[i]]);
+        return result;
+        }
+
+    /** Puts the neighbors of the object, including itself, into the result and returns it, or returns null
+        if the object wasn't in the field as of the last rebuild().  If the result is null, one will be created. */
+    public Bag getNeighbors(Object obj, Bag result)
+        {
+        int index = getIndex(obj);
+        if (index < 0) return null;
+        return getNeighbors(index, result);
+        }
+
+    /** Finds the neighbors of every object in the field, from where they are now. */
+    public void rebuild()
+        {
+        Bag all = field.allObjects;
+        size = all.numObjs;
+        if (objs.length < size || objs.length > size * 4)  // don't hang on to a lot more than we need
+            {
+            objs = new Object[size];
+            xs = new double[size];
+            ys = new double[size];
+            sorted = new int[size];
+            }
+        for(int i = 0; i < size; i++)
+            {
+            Object obj = all.objs[i];
+            Double2D loc = field.getObjectLocation(obj);
+            objs[i] = obj;
+            xs[i] = loc.x;
+            ys[i] = loc.y;
+            }
+        for(int i = size; i < objs.length; i++) objs[i] = null;  // let go of old objects
+        buildCells();
+        findNeighbors();
+        }
+
+    // Sorts the objects into cells at least as wide and tall as the distance, but not many more cells than objects
+    void buildCells()
+        {
+        double minX, maxX, minY, maxY;
+        if (toroidal)
+            {
+            minX = minY = 0;
+            maxX = field.width;
+            maxY = field.height;
+            }
+        else
+            {
+            minX = minY = Double.POSITIVE_INFINITY;
+            maxX = maxY = Double.NEGATIVE_INFINITY;
+            for(int i = 0; i < size; i++)
+                {
+                if (xs[i] < minX) minX = xs[i];
+                if (xs[i] > maxX) maxX = xs[i];
+                if (ys[i] < minY) minY = ys[i];
+                if (ys[i] > maxY) maxY = ys[i];
+                }
+            if (size == 0) minX = maxX = minY = maxY = 0;
+            }
+        double w = maxX - minX;
+        double h = maxY - minY;
+        double side = Math.max(distance, Math.sqrt(w * h / (2.0 * size + 1)));
+        if (side <= 0) side = 1;
+        // the cells must tile a toroidal field exactly, so we round down the count, making them a little bigger
+        cellsX = (int) Math.min(Math.max(toroidal ? Math.floor(w / side) : Math.floor(w / side) + 1, 1), size + 1);
+        cellsY = (int) Math.min(Math.max(toroidal ? Math.floor(h / side) : Math.floor(h / side) + 1, 1), size + 1);
+        cellWidth = (toroidal ? w / cellsX : Math.max(side, w / cellsX));
+        cellHeight = (toroidal ? h / cellsY : Math.max(side, h / cellsY));
+        originX = minX;
+        originY = minY;
+
+        // counting sort by cell
+        int numCells = cellsX * cellsY;
+        if (cellStart.length < numCells + 1 || cellStart.length > (numCells + 1) * 4)
+            cellStart = new int[numCells + 1];
+        else for(int c = 0; c <= numCells; c++) cellStart[c] = 0;
+        int[] cellOf = new int[size];
+        for(int i = 0; i < size; i++)
+            {
+            int c = cellX(xs[i]) * cellsY + cellY(ys[i]);
+            cellOf[i] = c;
+            cellStart[c + 1]++;
+            }
+        for(int c = 0; c < numCells; c++) cellStart[c + 1] += cellStart[c];
+        int[] next = new int[numCells];
+        System.arraycopy(cellStart, 0, next, 0, numCells);
+        for(int i = 0; i < size; i++)
+            sorted[next[cellOf[i]]++] = i;
+        }
+
+    int cellX(double x)
+        {
+        int c = (int)((x - originX) / cellWidth);
+        return (c < 0 ? 0 : c >= cellsX ? cellsX - 1 : c);
+        }
+
+    int cellY(double y)
+        {
+        int c = (int)((y - originY) / cellHeight);
+        return (c < 0 ? 0 : c >= cellsY ? cellsY - 1 : c);
+        }
+
+    // Finds each object's neighbors, going through the objects cell by cell so that nearby ones are
+    // done together, with each thread taking its own stretch of cells
+    void findNeighbors()
+        {
+        final int threads = Math.min(this.threads, size / 256 + 1);  // don't bother with threads for a few objects
+        final int[][] rows = new int[threads][];  // each thread's neighbors, object after object
+        final int[] counts = new int[size];        // how many neighbors each object has
+        Thread[] t = new Thread[threads - 1];
+        for(int i = 0; i < t.length; i++)
+            {
+            final int j = i + 1;
+            t[i] = new Thread(new Runnable()
+                {
+                public void run() { rows[j] = findNeighbors((int)(((long) size) * j / threads), (int)(((long) size) * (j + 1) / threads), counts); }
+                });
+            t[i].start();
+            }
+        rows[0] = findNeighbors(0, (int)(((long) size) / threads), counts);
+        for(int i = 0; i < t.length; i++)
+            while(true)
+                {
+                try { t[i].join(); break; }
+                catch (InterruptedException e) { }  // try again
+                }
+
+        // lay the rows out in index order
+        if (offsets.length < size + 1 || offsets.length > (size + 1) * 4) offsets = new int[size + 1];
+        offsets[0] = 0;
+        for(int i = 0; i < size; i++) offsets[i + 1] = offsets[i] + counts[i];
+        int total = offsets[size];
+        if (neighbors.length < total || neighbors.length > total * 4) neighbors = new int[total];
+        for(int j = 0; j < threads; j++)
+            {
+            int from = (int)(((long) size) * j / threads);
+            int to = (int)(((long) size) * (j + 1) / threads);
+            int[] row = rows[j];
+            int r = 0;
+            for(int s = from; s < to; s++)
+                {
+                int i = sorted[s];
+                System.arraycopy(row, r, neighbors, offsets[i], counts[i]);
+                r += counts[i];
+                }
+            }
+        }
+
+    // Finds the neighbors of the objects sorted[from] through sorted[to - 1], putting how many each has into
+    // counts, and returns all of them, one object after another
+    int[] findNeighbors(int from, int to, int[] counts)
+        {
+        final double distsq = distance * distance;
+        final double width = field.width;
+        final double height = field.height;
+        final double halfWidth = width / 2;
+        final double halfHeight = height / 2;
+        final int rx = (int) Math.ceil(distance / cellWidth);
+        final int ry = (int) Math.ceil(distance / cellHeight);
+        // in a toroidal field, the cells to check mustn't wrap around onto one another
+        final int spanX = Math.min(2 * rx + 1, cellsX);
+        final int spanY = Math.min(2 * ry + 1, cellsY);
+        final double[] xs = this.xs;
+        final double[] ys = this.ys;
+        final int[] sorted = this.sorted;
+        final int[] cellStart = this.cellStart;
+
+        int[] row = new int[Math.max(16, (to - from) * 8)];
+        int n = 0;
+        for(int s = from; s < to; s++)
+            {
+            final int i = sorted[s];
+            final double x = xs[i];
+            final double y = ys[i];
+            final int cx = cellX(x);
+            final int cy = cellY(y);
+            int count = 0;
+            int loX = (toroidal ? (spanX == cellsX ? 0 : cx - rx) : Math.max(cx - rx, 0));
+            int hiX = (toroidal ? loX + spanX - 1 : Math.min(cx + rx, cellsX - 1));
+            int loY = (toroidal ? (spanY == cellsY ? 0 : cy - ry) : Math.max(cy - ry, 0));
+            int hiY = (toroidal ? loY + spanY - 1 : Math.min(cy + ry, cellsY - 1));
+            for(int xx = loX; xx <= hiX; xx++)
+                {
+                int wx = (xx < 0 ? xx + cellsX : xx >= cellsX ? xx - cellsX : xx);
+                for(int yy = loY; yy <= hiY; yy++)
+                    {
+                    int wy = (yy < 0 ? yy + cellsY : yy >= cellsY ? yy - cellsY : yy);
+                    int c = wx * cellsY + wy;
+                    int end = cellStart[c + 1];
+                    for(int k = cellStart[c]; k < end; k++)
+                        {
+                        int j = sorted[k];
+                        double dx = xs[j] - x;
+                        double dy = ys[j] - y;
+                        if (toroidal)
+                            {
+                            if (dx < 0) dx = -dx;
+                            if (dy < 0) dy = -dy;
+                            if (dx > halfWidth) dx = width - dx;
+                            if (dy > halfHeight) dy = height - dy;
+                            }
+                        if (dx * dx + dy * dy <= distsq)
+                            {
+                            if (n == row.length)
+                                {
+                                int[] newRow = new int[row.length * 2];
+                                System.arraycopy(row, 0, newRow, 0, n);
+                                row = newRow;
+                                }
+                            row[n++] = j;
+                            count++;
+                            }
+                        }
+                    }
+                }
+            counts[i] = count;
+            }
+        return row;
+        }
+
+    /** Times finding every agent's neighbors with getNeighborsExactlyWithinDistance(...) against a NeighborCache2D.
+        Pass in the number of agents, the distance, the number of threads, and the number of steps. */
+    public static void main(String[] args)
+        {
+        int n = (args.length > 0 ? Integer.parseInt(args[0]) : 20000);
+        double distance = (args.length > 1 ? Double.parseDouble(args[1]) : 10);
+        int threads = (args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors());
+        int steps = (args.length > 3 ? Integer.parseInt(args[3]) : 5);
+        ec.util.MersenneTwisterFast random = new ec.util.MersenneTwisterFast(1);
+        double side = Math.ceil(Math.sqrt(n / 0.2) / distance) * distance;  // about one agent per five square units
+        Continuous2D field = new Continuous2D(distance, side, side);
+        for(int i = 0; i < n; i++)
+            field.setObjectLocation(new Integer(i), new Double2D(random.nextDouble() * side, random.nextDouble() * side));
+
+        for(int t = 0; t < 2; t++)
+            {
+            boolean toroidal = (t == 1);
+            Bag result = new Bag();
+            long found = 0;
+            long time = System.currentTimeMillis();
+            for(int s = 0; s < steps; s++)
+                for(int i = 0; i < n; i++)
+                    {
+                    Object obj = field.allObjects.objs[i];
+                    result.clear();
+                    found += field.getNeighborsExactlyWithinDistance(field.getObjectLocation(obj), distance, toroidal, true, true, result).numObjs;
+                    }
+            long perAgent = System.currentTimeMillis() - time;
+
+            NeighborCache2D cache = new NeighborCache2D(field, distance, toroidal);
+            cache.setThreads(threads);
+            long cached = 0;
+            time = System.currentTimeMillis();
+            for(int s = 0; s < steps; s++)
+                {
+                cache.rebuild();
+                for(int i = 0; i < n; i++)
+                    {
+                    result.clear();
+                    cached += cache.getNeighbors(field.allObjects.objs[i], result).numObjs;
+                    }
+                }
+            long sweep = System.currentTimeMillis() - time;
+
+            System.out.println((toroidal ? "Toroidal: " : "Non-toroidal: ") + n + " agents, distance " + distance + ", " + steps + " steps: " +
+                "per agent " + perAgent + " ms, NeighborCache2D (" + threads + " threads) " + sweep + " ms, same neighbors: " + (found == cached));
+            }
+        }
+    }
@@ -0,0 +1,23 @@
+/*
+  Copyright 2006 by Sean Luke and George Mason University
+  Licensed under the Academic Free License version 3.0
+  See the file "LICENSE" for more information
+*/
+
+package sim.field.continuous;
+import sim.util.*;
+
+/**
+   A NeighborVisitor2D is handed each of the objects found by Continuous2D.visitNeighborsWithinDistance(...),
+   one at a time, rather than having them all put into a Bag.  Your visitor can add up forces, count neighbors,
+   look for the nearest one, and so on as it goes.  It's usually best to make one visitor per agent (or one per
+   thread) and reuse it, so that nothing is allocated per query.
+*/
+
+public interface NeighborVisitor2D
+    {
+    /** Called for each object within the distance.  <i>location</i> is the object's location in the field, and
+        <i>distanceSquared</i> is the square of its distance from the position you asked about (measured toroidally if
+        you asked for that).  Return false to stop the search, else true. */
+    public boolean visit(Object obj, Double2D location, double distanceSquared);
+    }
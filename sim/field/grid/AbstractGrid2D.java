@@ -376,6 +376,11 @@ public abstract class AbstractGrid2D implements Grid2D
         getHexagonalLocations(x, y, dist, toroidal ? TOROIDAL : BOUNDED, true, xPos, yPos);
         }
 
+    /**
+     * Gets the locations in a hexagon centered at (X,Y), as described in Grid2D.getHexagonalLocations(...).
+     * In unbounded mode, the columns to the left of x=0 and the right of x=width-1 used to be left out as
+     * if the mode were bounded: they're included now.
+     */
     public void getHexagonalLocations( final int x, final int y, final int dist, int mode, boolean includeOrigin, IntBag xPos, IntBag yPos )
         {
         boolean toroidal = (mode == TOROIDAL);
@@ -503,7 +508,7 @@ public abstract class AbstractGrid2D implements Grid2D
     
                 // yuBound =  (( ymax<height  || !bounded) ? ymax : height-1);
 
-                if( x0 >= 0 )
+                if( x0 >= 0 || !bounded )
                     for( int y0 = ylBound ; y0 <= yuBound ; y0 = downy(x0,y0) )
                         {
                         if( y0 >= 0 || !bounded )
@@ -529,7 +534,7 @@ public abstract class AbstractGrid2D implements Grid2D
                 
                 // yuBound =  ((ymax<height) || !bounded ?ymax:height);
                 
-                if( x0 < width )
+                if( x0 < width || !bounded )
                     for( int y0 = ymin ; y0 <= yuBound; y0 = downy(x0,y0) )
                         {
                         if( y0 >= 0 || !bounded )
@@ -543,12 +548,84 @@ public abstract class AbstractGrid2D implements Grid2D
             }
         }
         
-    double ds(double d1x, double d1y, double d2x, double d2y)
+    // Is (xp,yp) within the radial neighborhood of (x,y)?  Shared by getRadialLocations(...) and the visitors.
+    static boolean inRadius(int x, int y, int xp, int yp, double dist, double distsq, int measurementRule, boolean closed)
+        {
+        boolean remove = false;
+            
+        if (measurementRule == Grid2D.ANY)
+            {
+            if (x == xp)
+                {
+                if (y < yp)
+                    {
+                    double d = (yp - 0.5) -  y;
+                    remove = !(d < dist || (d == dist && closed));
+                    }
+                else
+                    {
+                    double d = -((yp - 0.5) - y);
+                    remove = !(d < dist || (d == dist && closed));
+                    }
+                }
+            else if (y == yp)
+                {
+                if (x < xp)
+                    {
+                    double d = (xp - 0.5) - x;
+                    remove = !(d < dist || (d == dist && closed));
+                    }
+                else
+                    {
+                    double d = -((xp - 0.5) - x);
+                    remove = !(d < dist || (d == dist && closed));
+                    }
+                }
+            if (x < xp)
+                {
+                if (y < yp)
+                    remove = !within(x,y,xp-0.5,yp-0.5,distsq,closed);
+                else
+                    remove = !within(x,y,xp-0.5,yp+0.5,distsq,closed);
+                }
+            else
+                {
+                if (y < yp)
+                    remove = !within(x,y,xp+0.5,yp-0.5,distsq,closed);
+                else
+                    remove = !within(x,y,xp+0.5,yp+0.5,distsq,closed);
+                }
+            }
+        else if (measurementRule == Grid2D.ALL)
+            {
+            if (x < xp)
+                {
+                if (y < yp)
+                    remove = !within(x,y,xp+0.5,yp+0.5,distsq,closed);
+                else
+                    remove = !within(x,y,xp+0.5,yp-0.5,distsq,closed);
+                }
+            else
+                {
+                if (y < yp)
+                    remove = !within(x,y,xp-0.5,yp+0.5,distsq,closed);
+                else
+                    remove = !within(x,y,xp-0.5,yp-0.5,distsq,closed);
+                }
+            }
+        else // (measurementRule == Grid2D.CENTER)
+            {
+            remove = !within(x,y,xp,yp,distsq,closed);
+            }
+        return !remove;
+        }
+
+    static double ds(double d1x, double d1y, double d2x, double d2y)
         {
         return ((d1x - d2x) * (d1x - d2x) + (d1y - d2y) * (d1y - d2y));
         }
     
-    boolean within(double d1x, double d1y, double d2x, double d2y, double distanceSquared, boolean closed)
+    static boolean within(double d1x, double d1y, double d2x, double d2y, double distanceSquared, boolean closed)
         {
         double d= ds(d1x, d1y, d2x, d2y);
         return (d < distanceSquared || (d == distanceSquared && closed));
@@ -559,117 +636,346 @@ public abstract class AbstractGrid2D implements Grid2D
         getRadialLocations(x, y, dist, mode, includeOrigin, Grid2D.ANY, true, xPos, yPos);
         }
         
+    /**
+     * Gets the locations in a circle centered at (X,Y), as described in Grid2D.getRadialLocations(...).
+     * The locations come out in the same order they always have, with two deliberate fixes to toroidal
+     * neighborhoods.  Locations off the top or bottom of the grid used to be wrapped around by its width
+     * rather than its height, and neighborhoods so big that they wrap around onto themselves used to include
+     * some locations more than once.
+     */
     public void getRadialLocations( final int x, final int y, final double dist, int mode, boolean includeOrigin, int measurementRule, boolean closed, IntBag xPos, IntBag yPos )
         {
-        boolean toroidal = (mode == TOROIDAL);
-
-        // won't work for negative distances
-        if( dist < 0 )
-            {
-            throw new RuntimeException( "Distance must be positive" );
-            }
-            
-        if (measurementRule != Grid2D.ANY && measurementRule != Grid2D.ALL && measurementRule != Grid2D.CENTER)
+        if( xPos == null || yPos == null )
             {
-            throw new RuntimeException(" Measurement rule must be one of ANY, ALL, or CENTER" );
+            throw new RuntimeException( "xPos and yPos should not be null" );
             }
-                
+
+        Neighborhood2D neighborhood = Neighborhood2D.radial(dist, measurementRule, closed);
+        
         // grab the rectangle
-        if (toroidal)
-            getMooreLocations(x,y, (int) Math.ceil(dist + 0.5), UNBOUNDED, includeOrigin, xPos, yPos);
+        if (mode == TOROIDAL)
+            getMooreLocations(x, y, neighborhood.reach, UNBOUNDED, includeOrigin, xPos, yPos);
         else
-            getMooreLocations(x,y, (int) Math.ceil(dist + 0.5), mode, includeOrigin, xPos, yPos);
+            getMooreLocations(x, y, neighborhood.reach, mode, includeOrigin, xPos, yPos);
+        keepRadial(this, x, y, neighborhood, mode, includeOrigin, xPos, yPos);
+        }
+
+    /* Whittles the rectangle getMooreLocations(...) put into xPos and yPos down to the locations in the radial neighborhood,
+       wrapping them around if toroidal.  Locations are dropped by swapping the last one into their place, as getRadialLocations(...)
+       always has, so they come out in the same order they always did.  If a toroidal neighborhood wraps around onto itself,
+       duplicates (and the extra copies of the origin, if it's not wanted) are removed as well.  This does the work for
+       both AbstractGrid2D and SparseGrid2D. */
+    static void keepRadial(Grid2D grid, final int x, final int y, final Neighborhood2D neighborhood, final int mode, final boolean includeOrigin,
+        IntBag xPos, IntBag yPos)
+        {
+        boolean toroidal = (mode == TOROIDAL);
+        final int width = grid.getWidth();
+        final int height = grid.getHeight();
         int len = xPos.size();
-        double distsq = dist * dist;
-        
-        int width = this.width;
-        int height = this.height;
-        int widthtimestwo = width * 2;
-        int heighttimestwo = height * 2;
         
         for(int i = 0; i < len; i++)
             {
             int xp = xPos.get(i);
             int yp = yPos.get(i);
-            boolean remove = false;
-                
-            if (measurementRule == Grid2D.ANY)
+            if (!neighborhood.contains(x, xp - x, yp - y))
+                { xPos.remove(i); yPos.remove(i); i--;  len--; }
+            else if (toroidal) // need to convert to toroidal position
                 {
-                if (x == xp)
-                    {
-                    if (y < yp)
-                        {
-                        double d = (yp - 0.5) -  y;
-                        remove = !(d < dist || (d == dist && closed));
-                        }
-                    else
-                        {
-                        double d = -((yp - 0.5) - y);
-                        remove = !(d < dist || (d == dist && closed));
-                        }
-                    }
-                else if (y == yp)
-                    {
-                    if (x < xp)
-                        {
-                        double d = (xp - 0.5) - x;
-                        remove = !(d < dist || (d == dist && closed));
-                        }
-                    else
-                        {
-                        double d = -((xp - 0.5) - x);
-                        remove = !(d < dist || (d == dist && closed));
-                        }
-                    }
-                if (x < xp)
+                xPos.set(i, wrap(xp, width));
+                yPos.set(i, wrap(yp, height));
+                }
+            }
+
+        if (toroidal && (neighborhood.reach * 2 >= width || neighborhood.reach * 2 >= height))  // too big, will have to remove duplicates
+            {
+            Map map = grid.buildMap(len);
+            for(int i = 0 ; i < len; i++)
+                {
+                Double2D elem = new Double2D(xPos.get(i), yPos.get(i));
+                if (map.containsKey(elem) || (!includeOrigin && xPos.get(i) == x && yPos.get(i) == y)) // already there, or unwanted
                     {
-                    if (y < yp)
-                        remove = !within(x,y,xp-0.5,yp-0.5,distsq,closed);
-                    else
-                        remove = !within(x,y,xp-0.5,yp+0.5,distsq,closed);
+                    xPos.remove(i);
+                    yPos.remove(i);
+                    i--;
+                    len--;
                     }
                 else
                     {
-                    if (y < yp)
-                        remove = !within(x,y,xp+0.5,yp-0.5,distsq,closed);
-                    else
-                        remove = !within(x,y,xp+0.5,yp+0.5,distsq,closed);
+                    map.put(elem, elem);
                     }
                 }
-            else if (measurementRule == Grid2D.ALL)
+            }
+        }
+
+    /**
+     * Gets the locations in the given neighborhood of (x,y) and places them into xPos and yPos, which are cleared first.
+     * The modes work as they do in getMooreLocations(...), and toroidal locations will not be included more than once.
+     * Neighborhood2Ds are worked out once and then reused, so this is a good deal faster than getRadialLocations(...)
+     * if you hang onto one and use it over and over.
+     *
+     * <p>You can also opt to include the origin -- that is, the (x,y) point at the center of the neighborhood -- in the neighborhood results.
+     */
+    public void getLocations( final int x, final int y, Neighborhood2D neighborhood, int mode, boolean includeOrigin, IntBag xPos, IntBag yPos )
+        {
+        if( xPos == null || yPos == null )
+            {
+            throw new RuntimeException( "xPos and yPos should not be null" );
+            }
+        xPos.clear();
+        yPos.clear();
+        walk(width, height, x, y, neighborhood, mode, includeOrigin, null, xPos, yPos);
+        }
+
+    /**
+     * Shows the visitor, one at a time, each of the locations getLocations(...) would have put into xPos and yPos,
+     * in the same fashion as visitMooreLocations(...).
+     */
+    public boolean visitLocations( final int x, final int y, Neighborhood2D neighborhood, int mode, boolean includeOrigin, LocationVisitor2D visitor )
+        {
+        if( visitor == null )
+            {
+            throw new RuntimeException( "visitor should not be null" );
+            }
+        return walk(width, height, x, y, neighborhood, mode, includeOrigin, visitor, null, null);
+        }
+
+    /**
+     * Shows the visitor, one at a time, each of the locations getMooreLocations(...) would have put into xPos and yPos,
+     * column by column, without making or filling any IntBags.  The modes work as they do in getMooreLocations(...), and
+     * toroidal locations will not be shown more than once.  If the visitor returns false, the walk stops there.
+     * Returns false if the visitor stopped the walk, else true.
+     */
+    public boolean visitMooreLocations( final int x, final int y, final int dist, int mode, boolean includeOrigin, LocationVisitor2D visitor )
+        {
+        return walk(width, height, x, y, WALK_MOORE, dist, mode, includeOrigin, visitor);
+        }
+
+    /**
+     * Shows the visitor, one at a time, each of the locations getVonNeumannLocations(...) would have put into xPos and yPos,
+     * in the same fashion as visitMooreLocations(...).
+     */
+    public boolean visitVonNeumannLocations( final int x, final int y, final int dist, int mode, boolean includeOrigin, LocationVisitor2D visitor )
+        {
+        return walk(width, height, x, y, WALK_VON_NEUMANN, dist, mode, includeOrigin, visitor);
+        }
+
+    /**
+     * Shows the visitor, one at a time, each of the locations getHexagonalLocations(...) would have put into xPos and yPos,
+     * in the same fashion as visitLocations(...).  These are the same locations, but they may come in a different order.
+     */
+    public boolean visitHexagonalLocations( final int x, final int y, final int dist, int mode, boolean includeOrigin, LocationVisitor2D visitor )
+        {
+        return visitLocations(x, y, Neighborhood2D.hexagonal(dist), mode, includeOrigin, visitor);
+        }
+
+    /**
+     * Shows the visitor, one at a time, each of the locations getRadialLocations(...) would have put into xPos and yPos,
+     * in the same fashion as visitLocations(...).  These are the same locations, but they may come in a different order.
+     */
+    public boolean visitRadialLocations( final int x, final int y, final double dist, int mode, boolean includeOrigin, int measurementRule, boolean closed, LocationVisitor2D visitor )
+        {
+        return visitLocations(x, y, Neighborhood2D.radial(dist, measurementRule, closed), mode, includeOrigin, visitor);
+        }
+
+    // The shapes of neighborhood Neighborhood2D and walk(...) know about
+    static final int WALK_MOORE = 0;
+    static final int WALK_VON_NEUMANN = 1;
+    static final int WALK_HEXAGONAL = 2;
+    static final int WALK_RADIAL = 3;
+
+    /* Shows the visitor each location in the Moore or von Neumann neighborhood of (x,y), column by column.  These are
+       simple enough that the locations are worked out as we go, wrapping around or staying inside the grid as the
+       mode says.  If a toroidal von Neumann neighborhood is so big that it wraps around onto itself, each location
+       is only shown the first time it turns up.  Returns false if the visitor stopped early.  This does the work for
+       both AbstractGrid2D and SparseGrid2D. */
+    static boolean walk(final int width, final int height, final int x, final int y, final int shape, final int dist,
+        final int mode, final boolean includeOrigin, final LocationVisitor2D visitor)
+        {
+        boolean toroidal = (mode == TOROIDAL);
+        boolean bounded = (mode == BOUNDED);
+
+        if (mode != BOUNDED && mode != UNBOUNDED && mode != TOROIDAL)
+            {
+            throw new RuntimeException("Mode must be either Grid2D.BOUNDED, Grid2D.UNBOUNDED, or Grid2D.TOROIDAL");
+            }
+        
+        // won't work for negative distances
+        if( dist < 0 )
+            {
+            throw new RuntimeException( "Distance must be positive" );
+            }
+
+        if( visitor == null )
+            {
+            throw new RuntimeException( "visitor should not be null" );
+            }
+
+        if( ( x < 0 || x >= width || y < 0 || y >= height ) && !bounded)
+            throw new RuntimeException( "Invalid initial position" );
+
+        int xmin = x - dist;
+        int xmax = x + dist;
+        boolean overlaps = false;  // does the neighborhood wrap around onto itself?
+        if (toroidal)
+            {
+            if (shape == WALK_MOORE)  // easy: just don't go all the way around
                 {
-                if (x < xp)
+                if (xmax - xmin >= width) xmax = xmin + width - 1;
+                }
+            else overlaps = (dist * 2 >= width || dist * 2 >= height);
+            }
+        else if (bounded)
+            {
+            if (xmin < 0) xmin = 0;
+            if (xmax > width - 1) xmax = width - 1;
+            }
+
+        for(int x0 = xmin; x0 <= xmax; x0++)
+            {
+            int ymin;
+            int ymax;
+            if (shape == WALK_VON_NEUMANN)
+                {
+                int d = dist - (x0 >= x ? x0 - x : x - x0);
+                ymin = y - d;
+                ymax = y + d;
+                }
+            else
+                {
+                ymin = y - dist;
+                ymax = y + dist;
+                if (toroidal && ymax - ymin >= height) ymax = ymin + height - 1;
+                }
+            if (bounded)
+                {
+                if (ymin < 0) ymin = 0;
+                if (ymax > height - 1) ymax = height - 1;
+                }
+            final int x_0 = (toroidal ? wrap(x0, width) : x0);
+            for(int y0 = ymin; y0 <= ymax; y0++)
+                {
+                if (overlaps && seenBefore(width, height, x, y, shape, dist, 0, 0, 0, false, x0, y0)) continue;
+                final int y_0 = (toroidal ? wrap(y0, height) : y0);
+                if (!includeOrigin && x_0 == x && y_0 == y) continue;
+                if (!visitor.visit(x_0, y_0)) return false;
+                }
+            }
+        return true;
+        }
+
+    /* Goes through the locations in a Neighborhood2D around (x,y), in the order of its offsets, wrapping around or staying
+       inside the grid as the mode says.  Each location is handed to the visitor, or if there isn't one, added to xPos and yPos.
+       If a toroidal neighborhood is so big that it wraps around onto itself, each location only turns up the first time.
+       Returns false if the visitor stopped early.  This does the work for both AbstractGrid2D and SparseGrid2D. */
+    static boolean walk(final int width, final int height, final int x, final int y, final Neighborhood2D neighborhood,
+        final int mode, final boolean includeOrigin, final LocationVisitor2D visitor, final IntBag xPos, final IntBag yPos)
+        {
+        boolean toroidal = (mode == TOROIDAL);
+        boolean bounded = (mode == BOUNDED);
+
+        if (mode != BOUNDED && mode != UNBOUNDED && mode != TOROIDAL)
+            {
+            throw new RuntimeException("Mode must be either Grid2D.BOUNDED, Grid2D.UNBOUNDED, or Grid2D.TOROIDAL");
+            }
+
+        if( neighborhood == null )
+            {
+            throw new RuntimeException( "neighborhood should not be null" );
+            }
+
+        if( ( x < 0 || x >= width || y < 0 || y >= height ) && !bounded)
+            throw new RuntimeException( "Invalid initial position" );
+
+        if( neighborhood.shape == WALK_HEXAGONAL && toroidal && height%2==1 )
+            throw new RuntimeException( "toroidal hexagonal environment should have even heights" );
+
+        final int[] xs = neighborhood.getXOffsets(x);
+        final int[] ys = neighborhood.getYOffsets(x);
+        final int len = xs.length;
+        final int origin = (includeOrigin ? -1 : (x & 1) == 0 ? neighborhood.evenOrigin : neighborhood.oddOrigin);
+        final boolean overlaps = toroidal && (neighborhood.reach * 2 >= width || neighborhood.reach * 2 >= height);
+
+        for(int i = 0; i < len; i++)
+            {
+            if (i == origin) continue;
+            int x0 = x + xs[i];
+            int y0 = y + ys[i];
+            if (toroidal)
+                {
+                if (overlaps)
                     {
-                    if (y < yp)
-                        remove = !within(x,y,xp+0.5,yp+0.5,distsq,closed);
-                    else
-                        remove = !within(x,y,xp+0.5,yp-0.5,distsq,closed);
+                    if (wrapsOnto(xs, ys, i, width, height)) continue;
+                    x0 = wrap(x0, width);
+                    y0 = wrap(y0, height);
                     }
-                else
+                else  // we're never more than one width or height off the grid
                     {
-                    if (y < yp)
-                        remove = !within(x,y,xp-0.5,yp+0.5,distsq,closed);
-                    else
-                        remove = !within(x,y,xp-0.5,yp-0.5,distsq,closed);
+                    if (x0 < 0) x0 += width;
+                    else if (x0 >= width) x0 -= width;
+                    if (y0 < 0) y0 += height;
+                    else if (y0 >= height) y0 -= height;
                     }
+                if (!includeOrigin && x0 == x && y0 == y) continue;
                 }
-            else // (measurementRule == Grid2D.CENTER)
+            else if (bounded && (x0 < 0 || x0 >= width || y0 < 0 || y0 >= height)) continue;
+            if (visitor == null) { xPos.add(x0); yPos.add(y0); }
+            else if (!visitor.visit(x0, y0)) return false;
+            }
+        return true;
+        }
+
+    // Does some offset before offset i wrap around onto the same location?
+    static boolean wrapsOnto(int[] xs, int[] ys, int i, int width, int height)
+        {
+        for(int j = 0; j < i; j++)
+            if ((xs[j] - xs[i]) % width == 0 && (ys[j] - ys[i]) % height == 0) return true;
+        return false;
+        }
+
+    // Is (xp,yp), not yet wrapped around, in the neighborhood of (x,y)?
+    static boolean inShape(int x, int y, int shape, int dist, double radius, double distsq, int measurementRule, boolean closed, int xp, int yp)
+        {
+        int dx = (xp >= x ? xp - x : x - xp);
+        int dy = (yp >= y ? yp - y : y - yp);
+        switch(shape)
+            {
+            case WALK_VON_NEUMANN:
+                return dx + dy <= dist;
+            case WALK_HEXAGONAL:
                 {
-                remove = !within(x,y,xp,yp,distsq,closed);
-                }
-                
-            if (remove)
-                { xPos.remove(i); yPos.remove(i); i--;  len--; }
-            else if (toroidal) // need to convert to toroidal position
-                { 
-                int _x = xPos.get(i);
-                int _y = yPos.get(i);
-                xPos.set(i, tx(_x, width, widthtimestwo, _x + width, _x - width));
-                yPos.set(i, tx(_y, height, heighttimestwo, _y + width, _y - width));
+                // convert to cube coordinates
+                int dq = xp - x;
+                int dr = (yp - ((xp - (xp & 1)) >> 1)) - (y - ((x - (x & 1)) >> 1));
+                int ds = -dq - dr;
+                return Math.max(Math.max(Math.abs(dq), Math.abs(dr)), Math.abs(ds)) <= dist;
                 }
+            case WALK_RADIAL:
+                return dx <= dist && dy <= dist && inRadius(x, y, xp, yp, radius, distsq, measurementRule, closed);
+            default:
+                return dx <= dist && dy <= dist;
             }
         }
 
+    // Has walk(...) already come across a location which wraps around to the same place as (x0,y0)?  It walks column by column
+    // from x-dist, and each column from top to bottom, and no part of the neighborhood reaches beyond y-dist or y+dist.
+    static boolean seenBefore(int width, int height, int x, int y, int shape, int dist, double radius, double distsq, int measurementRule, boolean closed, int x0, int y0)
+        {
+        for(int xi = x0; xi >= x - dist; xi -= width)
+            for(int yi = y0 - ((y0 - (y - dist)) / height) * height; yi <= y + dist; yi += height)
+                {
+                if (xi == x0 && yi >= y0) break;
+                if (inShape(x, y, shape, dist, radius, distsq, measurementRule, closed, xi, yi)) return true;
+                }
+        return false;
+        }
+
+    static int wrap(int i, int size)
+        {
+        i = i % size;
+        if (i < 0) i = i + size;
+        return i;
+        }
+
 
     protected void checkBounds(Grid2D other)
     	{
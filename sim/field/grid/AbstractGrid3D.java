@@ -469,12 +469,144 @@ public abstract class AbstractGrid3D implements Grid3D
 
 
 
-    double ds(double d1x, double d1y, double d1z, double d2x, double d2y, double d2z)
+    // Is (xp,yp,zp) within the radial neighborhood of (x,y,z)?  Shared by getRadialLocations(...) and the visitors.
+    static boolean inRadius(int x, int y, int z, int xp, int yp, int zp, double dist, double distsq, int measurementRule, boolean closed)
+        {
+        boolean remove = false;
+            
+        if (measurementRule == Grid2D.ANY)
+            {
+            if (z == zp)
+                {
+                if (x == xp)
+                    {
+                    if (y < yp)
+                        {
+                        double d = (yp - 0.5) -  y;
+                        remove = !(d < dist || (d == dist && closed));
+                        }
+                    else
+                        {
+                        double d = -((yp - 0.5) - y);
+                        remove = !(d < dist || (d == dist && closed));
+                        }
+                    }
+                else if (y == yp)
+                    {
+                    if (x < xp)
+                        {
+                        double d = (xp - 0.5) - x;
+                        remove = !(d < dist || (d == dist && closed));
+                        }
+                    else
+                        {
+                        double d = -((xp - 0.5) - x);
+                        remove = !(d < dist || (d == dist && closed));
+                        }
+                    }
+                }
+            else if (x == xp)
+                {
+                if (y == yp)
+                    {
+                    if (z  < zp)
+                        {
+                        double d = (zp - 0.5) -  z;
+                        remove = !(d < dist || (d == dist && closed));
+                        }
+                    else
+                        {
+                        double d = -((zp - 0.5) - z);
+                        remove = !(d < dist || (d == dist && closed));
+                        }
+                    }
+                }
+            else if (z < zp)
+                {
+                if (x < xp)
+                    {
+                    if (y < yp)
+                        remove = !within(x,y,z,xp-0.5,yp-0.5,zp-0.5,distsq,closed);
+                    else
+                        remove = !within(x,y,z,xp-0.5,yp+0.5,zp-0.5,distsq,closed);
+                    }
+                else
+                    {
+                    if (y < yp)
+                        remove = !within(x,y,z,xp+0.5,yp-0.5,zp-0.5,distsq,closed);
+                    else
+                        remove = !within(x,y,z,xp+0.5,yp+0.5,zp-0.5,distsq,closed);
+                    }
+                }
+            else
+                {
+                if (x < xp)
+                    {
+                    if (y < yp)
+                        remove = !within(x,y,z,xp-0.5,yp-0.5,zp+0.5,distsq,closed);
+                    else
+                        remove = !within(x,y,z,xp-0.5,yp+0.5,zp+0.5,distsq,closed);
+                    }
+                else
+                    {
+                    if (y < yp)
+                        remove = !within(x,y,z,xp+0.5,yp-0.5,zp+0.5,distsq,closed);
+                    else
+                        remove = !within(x,y,z,xp+0.5,yp+0.5,zp+0.5,distsq,closed);
+                    }
+                }
+            }
+        else if (measurementRule == Grid2D.ALL)
+            {
+            if (z < zp)
+                {
+                if (x < xp)
+                    {
+                    if (y < yp)
+                        remove = !within(x,y,z,xp+0.5,yp+0.5,zp+0.5,distsq,closed);
+                    else
+                        remove = !within(x,y,z,xp+0.5,yp-0.5,zp+0.5,distsq,closed);
+                    }
+                else
+                    {
+                    if (y < yp)
+                        remove = !within(x,y,z,xp-0.5,yp+0.5,zp+0.5,distsq,closed);
+                    else
+                        remove = !within(x,y,z,xp-0.5,yp-0.5,zp+0.5,distsq,closed);
+                    }
+                }
+            else
+                {
+                if (x < xp)
+                    {
+                    if (y < yp)
+                        remove = !within(x,y,z,xp+0.5,yp+0.5,zp-0.5,distsq,closed);
+                    else
+                        remove = !within(x,y,z,xp+0.5,yp-0.5,zp-0.5,distsq,closed);
+                    }
+                else
+                    {
+                    if (y < yp)
+                        remove = !within(x,y,z,xp-0.5,yp+0.5,zp-0.5,distsq,closed);
+                    else
+                        remove = !within(x,y,z,xp-0.5,yp-0.5,zp-0.5,distsq,closed);
+                    }
+                }
+
+            }
+        else // (measurementRule == Grid2D.CENTER)
+            {
+            remove = !within(x,y,z,xp,yp,zp,distsq,closed);
+            }
+        return !remove;
+        }
+
+    static double ds(double d1x, double d1y, double d1z, double d2x, double d2y, double d2z)
         {
         return ((d1x - d2x) * (d1x - d2x) + (d1y - d2y) * (d1y - d2y) + (d1z - d2z) * (d1z - d2z));
         }
     
-    boolean within(double d1x, double d1y, double d1z, double d2x, double d2y, double d2z, double distanceSquared, boolean closed)
+    static boolean within(double d1x, double d1y, double d1z, double d2x, double d2y, double d2z, double distanceSquared, boolean closed)
         {
         double d= ds(d1x, d1y, d1z, d2x, d2y, d2z);
         return (d < distanceSquared || (d == distanceSquared && closed));
@@ -486,180 +618,302 @@ public abstract class AbstractGrid3D implements Grid3D
         }
         
 
+    /**
+     * Gets the locations in a spherical region centered at (X,Y,Z), as described in Grid3D.getRadialLocations(...).
+     * The locations come out in the same order they always have, with two deliberate fixes.  First, toroidal
+     * distances are measured the short way around the grid: they used to be measured after the locations had been
+     * wrapped around, so locations near the edges of the grid were wrongly left out or kept.  Second, if
+     * includeOrigin is true, the origin is now included in toroidal neighborhoods: getMooreLocations(...) leaves
+     * it out of them, and so this method always used to as well.  It's added at the end.
+     */
     public void getRadialLocations( final int x, final int y, final int z, final double dist, int mode, boolean includeOrigin, int measurementRule, boolean closed, IntBag xPos, IntBag yPos, IntBag zPos )
+        {
+        if( xPos == null || yPos == null || zPos == null )
+            {
+            throw new RuntimeException( "xPos and yPos and zPos should not be null" );
+            }
+
+        Neighborhood3D neighborhood = Neighborhood3D.radial(dist, measurementRule, closed);
+        
+        // grab the rectangle
+        getMooreLocations(x, y, z, neighborhood.reach, mode, includeOrigin, xPos, yPos, zPos);
+        keepRadial(this, x, y, z, neighborhood, mode, includeOrigin, xPos, yPos, zPos);
+        }
+
+    /* Whittles the box getMooreLocations(...) put into xPos, yPos, and zPos down to the locations in the radial neighborhood,
+       as AbstractGrid2D.keepRadial(...) does in 2D.  Toroidal locations have already been wrapped around by then, so each is
+       kept if any of the offsets which wrap around onto it is in the neighborhood.  If the origin is wanted and in the
+       neighborhood but getMooreLocations(...) left it out, it's added at the end.  This does the work for both
+       AbstractGrid3D and SparseGrid3D. */
+    static void keepRadial(Grid3D grid, final int x, final int y, final int z, final Neighborhood3D neighborhood, final int mode, final boolean includeOrigin,
+        IntBag xPos, IntBag yPos, IntBag zPos)
         {
         boolean toroidal = (mode == TOROIDAL);
+        final int width = grid.getWidth();
+        final int height = grid.getHeight();
+        final int length = grid.getLength();
+        boolean sawOrigin = false;
+        int len = xPos.size();
+        
+        for(int i = 0; i < len; i++)
+            {
+            int dx = xPos.get(i) - x;
+            int dy = yPos.get(i) - y;
+            int dz = zPos.get(i) - z;
+            if (toroidal ? !neighborhood.containsWrapped(dx, dy, dz, width, height, length) : !neighborhood.contains(dx, dy, dz))
+                { xPos.remove(i); yPos.remove(i); zPos.remove(i); i--; len--; }
+            else if (dx == 0 && dy == 0 && dz == 0) sawOrigin = true;
+            }
+            
+        if (includeOrigin && !sawOrigin && neighborhood.origin >= 0)
+            { xPos.add(x); yPos.add(y); zPos.add(z); }
+        }
+
+    /**
+     * Gets the locations in the given neighborhood of (x,y,z) and places them into xPos, yPos, and zPos, which are cleared first.
+     * The modes work as they do in getMooreLocations(...), and toroidal locations will not be included more than once.
+     * Neighborhood3Ds are worked out once and then reused, so this is a good deal faster than getRadialLocations(...)
+     * if you hang onto one and use it over and over.
+     *
+     * <p>You can also opt to include the origin -- that is, the (x,y,z) point at the center of the neighborhood -- in the neighborhood results.
+     */
+    public void getLocations( final int x, final int y, final int z, Neighborhood3D neighborhood, int mode, boolean includeOrigin, IntBag xPos, IntBag yPos, IntBag zPos )
+        {
+        if( xPos == null || yPos == null || zPos == null )
+            {
+            throw new RuntimeException( "xPos and yPos and zPos should not be null" );
+            }
+        xPos.clear();
+        yPos.clear();
+        zPos.clear();
+        walk(width, height, length, x, y, z, neighborhood, mode, includeOrigin, null, xPos, yPos, zPos);
+        }
+
+    /**
+     * Shows the visitor, one at a time, each of the locations getLocations(...) would have put into xPos, yPos, and zPos,
+     * in the same fashion as visitMooreLocations(...).
+     */
+    public boolean visitLocations( final int x, final int y, final int z, Neighborhood3D neighborhood, int mode, boolean includeOrigin, LocationVisitor3D visitor )
+        {
+        if( visitor == null )
+            {
+            throw new RuntimeException( "visitor should not be null" );
+            }
+        return walk(width, height, length, x, y, z, neighborhood, mode, includeOrigin, visitor, null, null, null);
+        }
+
+    /**
+     * Shows the visitor, one at a time, each of the locations getMooreLocations(...) would have put into xPos, yPos, and zPos,
+     * without making or filling any IntBags.  The modes work as they do in getMooreLocations(...), and
+     * toroidal locations will not be shown more than once.  If the visitor returns false, the walk stops there.
+     * Returns false if the visitor stopped the walk, else true.
+     */
+    public boolean visitMooreLocations( final int x, final int y, final int z, final int dist, int mode, boolean includeOrigin, LocationVisitor3D visitor )
+        {
+        return walk(width, height, length, x, y, z, WALK_MOORE, dist, mode, includeOrigin, visitor);
+        }
+
+    /**
+     * Shows the visitor, one at a time, each of the locations getVonNeumannLocations(...) would have put into xPos, yPos, and zPos,
+     * in the same fashion as visitMooreLocations(...).
+     */
+    public boolean visitVonNeumannLocations( final int x, final int y, final int z, final int dist, int mode, boolean includeOrigin, LocationVisitor3D visitor )
+        {
+        return walk(width, height, length, x, y, z, WALK_VON_NEUMANN, dist, mode, includeOrigin, visitor);
+        }
+
+    /**
+     * Shows the visitor, one at a time, each of the locations getRadialLocations(...) would have put into xPos, yPos, and zPos,
+     * in the same fashion as visitLocations(...).  These are the same locations, but they may come in a different order.
+     */
+    public boolean visitRadialLocations( final int x, final int y, final int z, final double dist, int mode, boolean includeOrigin, int measurementRule, boolean closed, LocationVisitor3D visitor )
+        {
+        return visitLocations(x, y, z, Neighborhood3D.radial(dist, measurementRule, closed), mode, includeOrigin, visitor);
+        }
 
+    // The shapes of neighborhood Neighborhood3D and walk(...) know about
+    static final int WALK_MOORE = 0;
+    static final int WALK_VON_NEUMANN = 1;
+    static final int WALK_RADIAL = 3;
+
+    /* Shows the visitor each location in the Moore or von Neumann neighborhood of (x,y,z), as AbstractGrid2D.walk(...) does
+       in 2D.  This does the work for both AbstractGrid3D and SparseGrid3D. */
+    static boolean walk(final int width, final int height, final int length, final int x, final int y, final int z, final int shape, final int dist,
+        final int mode, final boolean includeOrigin, final LocationVisitor3D visitor)
+        {
+        boolean toroidal = (mode == TOROIDAL);
+        boolean bounded = (mode == BOUNDED);
+
+        if (mode != BOUNDED && mode != UNBOUNDED && mode != TOROIDAL)
+            {
+            throw new RuntimeException("Mode must be either Grid3D.BOUNDED, Grid3D.UNBOUNDED, or Grid3D.TOROIDAL");
+            }
+        
         // won't work for negative distances
         if( dist < 0 )
             {
             throw new RuntimeException( "Distance must be positive" );
             }
-            
-        if (measurementRule != Grid2D.ANY && measurementRule != Grid2D.ALL && measurementRule != Grid2D.CENTER)
+
+        if( visitor == null )
             {
-            throw new RuntimeException(" Measurement rule must be one of ANY, ALL, or CENTER" );
+            throw new RuntimeException( "visitor should not be null" );
             }
-                
-        // grab the rectangle
-        getMooreLocations(x,y, z, (int) Math.ceil(dist + 0.5), mode, includeOrigin, xPos, yPos, zPos);
-        int len = xPos.size();
-        double distsq = dist * dist;
-        
 
-        int width = this.width;
-        int height = this.height;
-        int length = this.length;
-        int widthtimestwo = width * 2;
-        int heighttimestwo = height * 2;
-        int lengthtimestwo = length * 2;
-        
+        if( ( x < 0 || x >= width || y < 0 || y >= height || z < 0 || z >= length ) && !bounded)
+            throw new RuntimeException( "Invalid initial position" );
 
-        for(int i = 0; i < len; i++)
+        int xmin = x - dist;
+        int xmax = x + dist;
+        boolean overlaps = false;  // does the neighborhood wrap around onto itself?
+        if (toroidal)
             {
-            int xp = xPos.get(i);
-            int yp = yPos.get(i);
-            int zp = zPos.get(i);
-            boolean remove = false;
-                
-            if (measurementRule == Grid2D.ANY)
+            if (shape == WALK_MOORE)  // easy: just don't go all the way around
                 {
-                if (z == zp)
-                    {
-                    if (x == xp)
-                        {
-                        if (y < yp)
-                            {
-                            double d = (yp - 0.5) -  y;
-                            remove = !(d < dist || (d == dist && closed));
-                            }
-                        else
-                            {
-                            double d = -((yp - 0.5) - y);
-                            remove = !(d < dist || (d == dist && closed));
-                            }
-                        }
-                    else if (y == yp)
-                        {
-                        if (x < xp)
-                            {
-                            double d = (xp - 0.5) - x;
-                            remove = !(d < dist || (d == dist && closed));
-                            }
-                        else
-                            {
-                            double d = -((xp - 0.5) - x);
-                            remove = !(d < dist || (d == dist && closed));
-                            }
-                        }
-                    }
-                else if (x == xp)
-                    {
-                    if (y == yp)
-                        {
-                        if (z  < zp)
-                            {
-                            double d = (zp - 0.5) -  z;
-                            remove = !(d < dist || (d == dist && closed));
-                            }
-                        else
-                            {
-                            double d = -((zp - 0.5) - z);
-                            remove = !(d < dist || (d == dist && closed));
-                            }
-                        }
-                    }
-                else if (z < zp)
+                if (xmax - xmin >= width) xmax = xmin + width - 1;
+                }
+            else overlaps = (dist * 2 >= width || dist * 2 >= height || dist * 2 >= length);
+            }
+        else if (bounded)
+            {
+            if (xmin < 0) xmin = 0;
+            if (xmax > width - 1) xmax = width - 1;
+            }
+
+        for(int x0 = xmin; x0 <= xmax; x0++)
+            {
+            final int dx = (x0 >= x ? x0 - x : x - x0);
+            int ymin = y - dist;
+            int ymax = y + dist;
+            if (shape == WALK_VON_NEUMANN) { ymin += dx; ymax -= dx; }
+            if (toroidal && shape == WALK_MOORE && ymax - ymin >= height) ymax = ymin + height - 1;
+            if (bounded)
+                {
+                if (ymin < 0) ymin = 0;
+                if (ymax > height - 1) ymax = height - 1;
+                }
+            final int x_0 = (toroidal ? AbstractGrid2D.wrap(x0, width) : x0);
+            for(int y0 = ymin; y0 <= ymax; y0++)
+                {
+                final int dy = (y0 >= y ? y0 - y : y - y0);
+                int zmin = z - dist;
+                int zmax = z + dist;
+                if (shape == WALK_VON_NEUMANN) { zmin += dx + dy; zmax -= dx + dy; }
+                if (toroidal && shape == WALK_MOORE && zmax - zmin >= length) zmax = zmin + length - 1;
+                if (bounded)
                     {
-                    if (x < xp)
-                        {
-                        if (y < yp)
-                            remove = !within(x,y,z,xp-0.5,yp-0.5,zp-0.5,distsq,closed);
-                        else
-                            remove = !within(x,y,z,xp-0.5,yp+0.5,zp-0.5,distsq,closed);
-                        }
-                    else
-                        {
-                        if (y < yp)
-                            remove = !within(x,y,z,xp+0.5,yp-0.5,zp-0.5,distsq,closed);
-                        else
-                            remove = !within(x,y,z,xp+0.5,yp+0.5,zp-0.5,distsq,closed);
-                        }
+                    if (zmin < 0) zmin = 0;
+                    if (zmax > length - 1) zmax = length - 1;
                     }
-                else
+                final int y_0 = (toroidal ? AbstractGrid2D.wrap(y0, height) : y0);
+                for(int z0 = zmin; z0 <= zmax; z0++)
                     {
-                    if (x < xp)
-                        {
-                        if (y < yp)
-                            remove = !within(x,y,z,xp-0.5,yp-0.5,zp+0.5,distsq,closed);
-                        else
-                            remove = !within(x,y,z,xp-0.5,yp+0.5,zp+0.5,distsq,closed);
-                        }
-                    else
-                        {
-                        if (y < yp)
-                            remove = !within(x,y,z,xp+0.5,yp-0.5,zp+0.5,distsq,closed);
-                        else
-                            remove = !within(x,y,z,xp+0.5,yp+0.5,zp+0.5,distsq,closed);
-                        }
+                    if (overlaps && seenBefore(width, height, length, x, y, z, shape, dist, 0, 0, 0, false, x0, y0, z0)) continue;
+                    final int z_0 = (toroidal ? AbstractGrid2D.wrap(z0, length) : z0);
+                    if (!includeOrigin && x_0 == x && y_0 == y && z_0 == z) continue;
+                    if (!visitor.visit(x_0, y_0, z_0)) return false;
                     }
                 }
-            else if (measurementRule == Grid2D.ALL)
+            }
+        return true;
+        }
+
+    /* Goes through the locations in a Neighborhood3D around (x,y,z), as AbstractGrid2D.walk(...) does for a Neighborhood2D.
+       This does the work for both AbstractGrid3D and SparseGrid3D. */
+    static boolean walk(final int width, final int height, final int length, final int x, final int y, final int z, final Neighborhood3D neighborhood,
+        final int mode, final boolean includeOrigin, final LocationVisitor3D visitor, final IntBag xPos, final IntBag yPos, final IntBag zPos)
+        {
+        boolean toroidal = (mode == TOROIDAL);
+        boolean bounded = (mode == BOUNDED);
+
+        if (mode != BOUNDED && mode != UNBOUNDED && mode != TOROIDAL)
+            {
+            throw new RuntimeException("Mode must be either Grid3D.BOUNDED, Grid3D.UNBOUNDED, or Grid3D.TOROIDAL");
+            }
+
+        if( neighborhood == null )
+            {
+            throw new RuntimeException( "neighborhood should not be null" );
+            }
+
+        if( ( x < 0 || x >= width || y < 0 || y >= height || z < 0 || z >= length ) && !bounded)
+            throw new RuntimeException( "Invalid initial position" );
+
+        final int[] xs = neighborhood.xs;
+        final int[] ys = neighborhood.ys;
+        final int[] zs = neighborhood.zs;
+        final int len = xs.length;
+        final int origin = (includeOrigin ? -1 : neighborhood.origin);
+        final int reach = neighborhood.reach;
+        final boolean overlaps = toroidal && (reach * 2 >= width || reach * 2 >= height || reach * 2 >= length);
+
+        for(int i = 0; i < len; i++)
+            {
+            if (i == origin) continue;
+            int x0 = x + xs[i];
+            int y0 = y + ys[i];
+            int z0 = z + zs[i];
+            if (toroidal)
                 {
-                if (z < zp)
+                if (overlaps)
                     {
-                    if (x < xp)
-                        {
-                        if (y < yp)
-                            remove = !within(x,y,z,xp+0.5,yp+0.5,zp+0.5,distsq,closed);
-                        else
-                            remove = !within(x,y,z,xp+0.5,yp-0.5,zp+0.5,distsq,closed);
-                        }
-                    else
-                        {
-                        if (y < yp)
-                            remove = !within(x,y,z,xp-0.5,yp+0.5,zp+0.5,distsq,closed);
-                        else
-                            remove = !within(x,y,z,xp-0.5,yp-0.5,zp+0.5,distsq,closed);
-                        }
+                    if (wrapsOnto(xs, ys, zs, i, width, height, length)) continue;
+                    x0 = AbstractGrid2D.wrap(x0, width);
+                    y0 = AbstractGrid2D.wrap(y0, height);
+                    z0 = AbstractGrid2D.wrap(z0, length);
                     }
-                else
+                else  // we're never more than one width, height, or length off the grid
                     {
-                    if (x < xp)
-                        {
-                        if (y < yp)
-                            remove = !within(x,y,z,xp+0.5,yp+0.5,zp-0.5,distsq,closed);
-                        else
-                            remove = !within(x,y,z,xp+0.5,yp-0.5,zp-0.5,distsq,closed);
-                        }
-                    else
-                        {
-                        if (y < yp)
-                            remove = !within(x,y,z,xp-0.5,yp+0.5,zp-0.5,distsq,closed);
-                        else
-                            remove = !within(x,y,z,xp-0.5,yp-0.5,zp-0.5,distsq,closed);
-                        }
+                    if (x0 < 0) x0 += width;
+                    else if (x0 >= width) x0 -= width;
+                    if (y0 < 0) y0 += height;
+                    else if (y0 >= height) y0 -= height;
+                    if (z0 < 0) z0 += length;
+                    else if (z0 >= length) z0 -= length;
                     }
-
+                if (!includeOrigin && x0 == x && y0 == y && z0 == z) continue;
                 }
-            else // (measurementRule == Grid2D.CENTER)
+            else if (bounded && (x0 < 0 || x0 >= width || y0 < 0 || y0 >= height || z0 < 0 || z0 >= length)) continue;
+            if (visitor == null) { xPos.add(x0); yPos.add(y0); zPos.add(z0); }
+            else if (!visitor.visit(x0, y0, z0)) return false;
+            }
+        return true;
+        }
+
+    // Does some offset before offset i wrap around onto the same location?
+    static boolean wrapsOnto(int[] xs, int[] ys, int[] zs, int i, int width, int height, int length)
+        {
+        for(int j = 0; j < i; j++)
+            if ((xs[j] - xs[i]) % width == 0 && (ys[j] - ys[i]) % height == 0 && (zs[j] - zs[i]) % length == 0) return true;
+        return false;
+        }
+
+    // Is (xp,yp,zp), not yet wrapped around, in the neighborhood of (x,y,z)?
+    static boolean inShape(int x, int y, int z, int shape, int dist, double radius, double distsq, int measurementRule, boolean closed, int xp, int yp, int zp)
+        {
+        int dx = (xp >= x ? xp - x : x - xp);
+        int dy = (yp >= y ? yp - y : y - yp);
+        int dz = (zp >= z ? zp - z : z - zp);
+        if (shape == WALK_VON_NEUMANN) return dx + dy + dz <= dist;
+        if (dx > dist || dy > dist || dz > dist) return false;
+        return (shape == WALK_MOORE || inRadius(x, y, z, xp, yp, zp, radius, distsq, measurementRule, closed));
+        }
+
+    // Has walk(...) already come across a location which wraps around to the same place as (x0,y0,z0)?  It walks x, then y,
+    // then z, each from (location - dist) upwards.
+    static boolean seenBefore(int width, int height, int length, int x, int y, int z, int shape, int dist, double radius, double distsq, int measurementRule, boolean closed, int x0, int y0, int z0)
+        {
+        for(int xi = x0; xi >= x - dist; xi -= width)
+            for(int yi = y0 - ((y0 - (y - dist)) / height) * height; yi <= y + dist; yi += height)
                 {
-                remove = !within(x,y,z,xp,yp,zp,distsq,closed);
-                }
-                
-            if (remove)
-                { xPos.remove(i); yPos.remove(i); zPos.remove(i); i--; len--; }
-            else if (toroidal) // need to convert to toroidal position
-                { 
-                int _x = xPos.get(i);
-                int _y = yPos.get(i);
-                int _z = zPos.get(i);
-                xPos.set(i, tx(_x, width, widthtimestwo, _x + width, _x - width));
-                yPos.set(i, ty(_y, height, heighttimestwo, _y + width, _y - width));
-                zPos.set(i, tz(_z, length, lengthtimestwo, _z + length, _z - length));
+                if (xi == x0 && yi > y0) break;
+                for(int zi = z0 - ((z0 - (z - dist)) / length) * length; zi <= z + dist; zi += length)
+                    {
+                    if (xi == x0 && yi == y0 && zi >= z0) break;
+                    if (inShape(x, y, z, shape, dist, radius, distsq, measurementRule, closed, xi, yi, zi)) return true;
+                    }
                 }
-
-            }
+        return false;
         }
 
 
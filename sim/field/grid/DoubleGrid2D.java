@@ -15,13 +15,22 @@ import sim.util.*;
     or hexagonal grids.
     
     <p>The width and height of the object are provided to avoid having to say field[x].length, etc.  
+
+    <p>For delta checkpoints, the grid remembers a hash of each stretch of 1024 values in each column, and writes out
+    only the stretches which have changed.  Don't hold onto the field's arrays anywhere else in your model across
+    a delta checkpoint: they'll be separate arrays when the model is read back in.
 */
 
-public /*strictfp*/ class DoubleGrid2D extends AbstractGrid2D
+public /*strictfp*/ class DoubleGrid2D extends AbstractGrid2D implements DeltaCheckpointable
     {
     private static final long serialVersionUID = 1;
 
     public double[/**x*/][/**y*/] field;
+
+    // hashes of the stretches of each column at the last delta checkpoint, or null if not keeping track
+    transient long[] deltaHashes;
+    transient int deltaWidth;
+    transient int deltaHeight;
     
     public double[][] getField() { return field; }
     
@@ -444,6 +453,67 @@ public /*strictfp*/ class DoubleGrid2D extends AbstractGrid2D
 			}
 		}
 
+    /** The neighborhood for diffuse(...) and applyStencil(...) of the cell and the eight cells around it. */
+    public static final int MOORE_STENCIL = 0;
+    /** The neighborhood for diffuse(...) and applyStencil(...) of the cell and the four cells above, below, left, and right of it. */
+    public static final int VON_NEUMANN_STENCIL = 1;
+    /** The neighborhood for diffuse(...) and applyStencil(...) of the cell and the six cells around it in a hexagonal grid. */
+    public static final int HEXAGONAL_STENCIL = 2;
+
+    // the other half of the double buffer, when diffuse(...) or applyStencil(...) isn't given one
+    transient double[][] scratch;
+
+    /** Evaporates and diffuses the grid in one step, just as HeatBugs' Diffuser does: each value v becomes
+        <tt>evaporationRate * (v + diffusionRate * (average - v))</tt>, where <i>average</i> is the average of
+        v and its neighbors in the given neighborhood (MOORE_STENCIL, VON_NEUMANN_STENCIL, or HEXAGONAL_STENCIL).
+        If <i>toroidal</i> is false, neighbors off the edge of the grid are left out of the average.
+
+        <p>The new values are written into <i>buffer</i>, which must be the same size as the grid, and then the grid
+        and the buffer swap arrays, so afterwards the grid has the new values and the buffer has the old ones.  If the
+        buffer is null, the grid keeps its own.  Either way, field is a different array afterwards, so don't hold onto it.
+        The columns of the grid are divided among <i>threads</i> threads.  Returns the grid. */
+    public final DoubleGrid2D diffuse(int neighborhood, boolean toroidal, double evaporationRate, double diffusionRate, DoubleGrid2D buffer, int threads)
+        {
+        return applyStencil(new Stencil(checkStencil(neighborhood), toroidal, true, evaporationRate, diffusionRate), buffer, threads);
+        }
+
+    /** Replaces each value v with <tt>centerWeight * v + neighborWeight * (the sum of its neighbors)</tt>, where
+        the neighbors are those in the given neighborhood (MOORE_STENCIL, VON_NEUMANN_STENCIL, or HEXAGONAL_STENCIL).
+        If <i>toroidal</i> is false, neighbors off the edge of the grid count as 0.  The buffer and threads are used as
+        in diffuse(...).  Returns the grid. */
+    public final DoubleGrid2D applyStencil(int neighborhood, boolean toroidal, double centerWeight, double neighborWeight, DoubleGrid2D buffer, int threads)
+        {
+        return applyStencil(new Stencil(checkStencil(neighborhood), toroidal, false, centerWeight, neighborWeight), buffer, threads);
+        }
+
+    int checkStencil(int neighborhood)
+        {
+        if (neighborhood != MOORE_STENCIL && neighborhood != VON_NEUMANN_STENCIL && neighborhood != HEXAGONAL_STENCIL)
+            throw new IllegalArgumentException("Unknown neighborhood " + neighborhood);
+        return neighborhood;
+        }
+
+    DoubleGrid2D applyStencil(Stencil stencil, DoubleGrid2D buffer, int threads)
+        {
+        double[][] to;
+        if (buffer != null)
+            {
+            checkBounds(buffer);
+            to = buffer.field;
+            }
+        else
+            {
+            if (scratch == null || scratch.length != width || (width > 0 && scratch[0].length != height))
+                scratch = new double[width][height];
+            to = scratch;
+            }
+        stencil.apply(field, to, width, threads);
+        if (buffer != null) buffer.field = field;
+        else scratch = field;
+        field = to;
+        return this;
+        }
+
 
 /*
 
@@ -910,4 +980,44 @@ public /*strictfp*/ class DoubleGrid2D extends AbstractGrid2D
             }
         return result;
         }  
-    }
\ No newline at end of file
+    
+    public void startDeltas()
+        {
+        deltaWidth = width;
+        deltaHeight = height;
+        deltaHashes = GridDelta.hash(field, width, height);
+        }
+
+    public void stopDeltas()
+        {
+        deltaHashes = null;
+        }
+
+    /** Returns the stretches of 1024 values in each column which have changed since the last delta checkpoint.
+        To save keeping a second copy of the grid, a stretch is judged to have changed if its 64-bit hash has.
+        Changing a single value in a stretch always changes its hash.  But if several values in a stretch have
+        changed, there's about a one in 2^64 chance that the hash comes out the same, and then the stretch is
+        left out of the delta and is silently wrong in the grid restored from it.  If that's not acceptable,
+        use ordinary checkpoints rather than delta checkpoints. */
+    public Object getDelta()
+        {
+        if (width != deltaWidth || height != deltaHeight)  // reshaped, so write the whole thing
+            {
+            startDeltas();
+            return new GridDelta(width, height, field);
+            }
+        return GridDelta.diff(field, width, height, deltaHashes);
+        }
+
+    public void applyDelta(Object d)
+        {
+        GridDelta delta = (GridDelta) d;
+        if (delta.field != null)
+            {
+            field = (double[][])(delta.field);
+            width = delta.width;
+            height = delta.height;
+            }
+        else delta.apply(field);
+        }
+    }
@@ -548,6 +548,65 @@ public /*strictfp*/ class DoubleGrid3D extends AbstractGrid3D
 				}
 			}
 		}
+
+    /** The neighborhood for diffuse(...) and applyStencil(...) of the cell and the twenty-six cells around it. */
+    public static final int MOORE_STENCIL = 0;
+    /** The neighborhood for diffuse(...) and applyStencil(...) of the cell and the six cells which share a face with it. */
+    public static final int VON_NEUMANN_STENCIL = 1;
+
+    // the other half of the double buffer, when diffuse(...) or applyStencil(...) isn't given one
+    transient double[][][] scratch;
+
+    /** Evaporates and diffuses the grid in one step: each value v becomes
+        <tt>evaporationRate * (v + diffusionRate * (average - v))</tt>, where <i>average</i> is the average of
+        v and its neighbors in the given neighborhood (MOORE_STENCIL or VON_NEUMANN_STENCIL).
+        If <i>toroidal</i> is false, neighbors off the edge of the grid are left out of the average.
+
+        <p>The new values are written into <i>buffer</i>, which must be the same size as the grid, and then the grid
+        and the buffer swap arrays, so afterwards the grid has the new values and the buffer has the old ones.  If the
+        buffer is null, the grid keeps its own.  Either way, field is a different array afterwards, so don't hold onto it.
+        The x slices of the grid are divided among <i>threads</i> threads.  Returns the grid. */
+    public final DoubleGrid3D diffuse(int neighborhood, boolean toroidal, double evaporationRate, double diffusionRate, DoubleGrid3D buffer, int threads)
+        {
+        return applyStencil(new Stencil(checkStencil(neighborhood), toroidal, true, evaporationRate, diffusionRate), buffer, threads);
+        }
+
+    /** Replaces each value v with <tt>centerWeight * v + neighborWeight * (the sum of its neighbors)</tt>, where
+        the neighbors are those in the given neighborhood (MOORE_STENCIL or VON_NEUMANN_STENCIL).
+        If <i>toroidal</i> is false, neighbors off the edge of the grid count as 0.  The buffer and threads are used as
+        in diffuse(...).  Returns the grid. */
+    public final DoubleGrid3D applyStencil(int neighborhood, boolean toroidal, double centerWeight, double neighborWeight, DoubleGrid3D buffer, int threads)
+        {
+        return applyStencil(new Stencil(checkStencil(neighborhood), toroidal, false, centerWeight, neighborWeight), buffer, threads);
+        }
+
+    int checkStencil(int neighborhood)
+        {
+        if (neighborhood != MOORE_STENCIL && neighborhood != VON_NEUMANN_STENCIL)
+            throw new IllegalArgumentException("Unknown neighborhood " + neighborhood);
+        return neighborhood;
+        }
+
+    DoubleGrid3D applyStencil(Stencil stencil, DoubleGrid3D buffer, int threads)
+        {
+        double[][][] to;
+        if (buffer != null)
+            {
+            checkBounds(buffer);
+            to = buffer.field;
+            }
+        else
+            {
+            if (scratch == null || scratch.length != width || (width > 0 && (scratch[0].length != height || (height > 0 && scratch[0][0].length != length))))
+                scratch = new double[width][height][length];
+            to = scratch;
+            }
+        stencil.apply(field, to, width, threads);
+        if (buffer != null) buffer.field = field;
+        else scratch = field;
+        field = to;
+        return this;
+        }
     
     
     /**
@@ -0,0 +1,444 @@
+/*
+  Copyright 2006 by Sean Luke and George Mason University
+  Licensed under the Academic Free License version 3.0
+  See the file "LICENSE" for more information
+*/
+
+package sim.field.grid;
+import sim.util.*;
+
+/**
+   A DoubleGrid2D stored in one flat array rather than an array of arrays.  The value at (x,y) is
+   field[x * height + y]: each column is laid out one after the other, just as DoubleGrid2D.toArray() would lay them out.
+   This saves looking up the column array (and checking its bounds) on each access, and keeps the whole grid in
+   one block of memory rather than scattered about the heap, which makes whole-grid operations such as add(...),
+   multiply(...), and the like, and stencils such as diffusion, a good deal faster on large grids.
+   As with DoubleGrid2D, you are encouraged to access the array directly.
+
+   <p>Older code, and the portrayals, want a double[][].  getField() builds one the first time you ask
+   for it and copies the grid into it each time you ask again, so it's up to date as of when you called it, but
+   changes you make to that array don't make it back into the grid unless you pass it to setTo(...).
+   To display the grid, you might copy it once per step into a DoubleGrid2D which you've handed to your portrayal,
+   with <tt>displayGrid.setTo(grid.getField())</tt>.
+
+   <p>For delta checkpoints, the grid remembers a hash of each stretch of 1024 values, and writes out
+   only the stretches which have changed.
+*/
+
+public /*strictfp*/ class FlatDoubleGrid2D extends AbstractGrid2D implements DeltaCheckpointable
+    {
+    private static final long serialVersionUID = 1;
+
+    public double[/** x * height + y */] field;
+
+    // the double[][] made by getField(), or null
+    transient double[][] view;
+
+    // hashes of the stretches of the field at the last delta checkpoint, or null if not keeping track
+    transient long[] deltaHashes;
+    transient int deltaWidth;
+    transient int deltaHeight;
+
+    public FlatDoubleGrid2D (int width, int height)
+        {
+        this.width = width;
+        this.height = height;
+        field = new double[width * height];
+        }
+
+    public FlatDoubleGrid2D (int width, int height, double initialValue)
+        {
+        this(width,height);
+        setTo(initialValue);
+        }
+
+    public FlatDoubleGrid2D (FlatDoubleGrid2D values)
+        {
+        setTo(values);
+        }
+
+    public FlatDoubleGrid2D (DoubleGrid2D values)
+        {
+        setTo(values.field);
+        }
+
+    public FlatDoubleGrid2D(double[][] values)
+        {
+        setTo(values);
+        }
+
+    /** Returns a double[][] copy of the grid, which is made once and refreshed each time you call this method.
+        Changes you make to it aren't made to the grid: use setTo(double[][]) for that. */
+    public double[][] getField()
+        {
+        final int width = this.width;
+        final int height = this.height;
+        if (view == null || view.length != width || (width > 0 && view[0].length != height))
+            view = new double[width][height];
+        for(int x = 0; x < width; x++)
+            System.arraycopy(field, x * height, view[x], 0, height);
+        return view;
+        }
+
+    /** Sets location (x,y) to val */
+    public final void set(final int x, final int y, final double val)
+        {
+        field[x * height + y] = val;
+        }
+
+    /** Returns the element at location (x,y) */
+    public final double get(final int x, final int y)
+        {
+        return field[x * height + y];
+        }
+
+    /** Sets all the locations in the grid the provided element */
+    public final FlatDoubleGrid2D setTo(final double thisMuch)
+        {
+        java.util.Arrays.fill(field, thisMuch);
+        return this;
+        }
+
+    /** Sets the grid to a copy of the provided array, which must be rectangular. */
+    public FlatDoubleGrid2D setTo(double[][] field)
+        {
+        // check info
+
+        if (field == null)
+            throw new RuntimeException("FlatDoubleGrid2D set to null field.");
+        int w = field.length;
+        int h = 0;
+        if (w != 0) h = field[0].length;
+        for(int i = 0; i < w; i++)
+            if (field[i].length != h) // uh oh
+                throw new RuntimeException("FlatDoubleGrid2D initialized with a non-rectangular field.");
+
+        // load
+
+        if (this.field == null || this.field.length != w * h) this.field = new double[w * h];
+        for(int i = 0; i < w; i++)
+            System.arraycopy(field[i], 0, this.field, i * h, h);
+        width = w;
+        height = h;
+        return this;
+        }
+
+    /** Changes the dimensions of the grid to be the same as the one provided, then
+        sets all the locations in the grid to the elements at the quivalent locations in the
+        provided grid. */
+    public final FlatDoubleGrid2D setTo(final FlatDoubleGrid2D values)
+        {
+        width = values.width;
+        height = values.height;
+        if (field == null || field.length != values.field.length) field = (double[])(values.field.clone());
+        else System.arraycopy(values.field, 0, field, 0, field.length);
+        return this;
+        }
+
+    /** Flattens the grid to a one-dimensional array, storing the elements in row-major order,including duplicates and null values.
+        Returns the grid. */
+    public final double[] toArray()
+        {
+        return (double[])(field.clone());
+        }
+
+    /** Returns the maximum value stored in the grid */
+    public final double max()
+        {
+        double max = Double.NEGATIVE_INFINITY;
+        final double[] field = this.field;
+        for(int i = 0; i < field.length; i++)
+            if (max < field[i]) max = field[i];
+        return max;
+        }
+
+    /** Returns the minimum value stored in the grid */
+    public final double min()
+        {
+        double min = Double.POSITIVE_INFINITY;
+        final double[] field = this.field;
+        for(int i = 0; i < field.length; i++)
+            if (min > field[i]) min = field[i];
+        return min;
+        }
+
+    /** Returns the mean value stored in the grid */
+    public final double mean()
+        {
+        double mean = 0;
+        final double[] field = this.field;
+        for(int i = 0; i < field.length; i++)
+            mean += field[i];
+        return (field.length == 0 ? 0 : mean / field.length);
+        }
+
+    /** Thresholds the grid so that values greater to <i>toNoMoreThanThisMuch</i> are changed to <i>toNoMoreThanThisMuch</i>.
+        Returns the modified grid.
+    */
+    public final FlatDoubleGrid2D upperBound(final double toNoMoreThanThisMuch)
+        {
+        final double[] field = this.field;
+        for(int i = 0; i < field.length; i++)
+            if (field[i] > toNoMoreThanThisMuch)
+                field[i] = toNoMoreThanThisMuch;
+        return this;
+        }
+
+    /** Thresholds the grid so that values smaller than <i>toNoLowerThanThisMuch</i> are changed to <i>toNoLowerThanThisMuch</i>
+        Returns the modified grid.
+    */
+    public final FlatDoubleGrid2D lowerBound(final double toNoLowerThanThisMuch)
+        {
+        final double[] field = this.field;
+        for(int i = 0; i < field.length; i++)
+            if (field[i] < toNoLowerThanThisMuch)
+                field[i] = toNoLowerThanThisMuch;
+        return this;
+        }
+
+    /** Sets each value in the grid to that value added to <i>withThisMuch</i>
+        Returns the modified grid.
+    */
+    public final FlatDoubleGrid2D add(final double withThisMuch)
+        {
+        if (withThisMuch==0.0) return this;
+        final double[] field = this.field;
+        for(int i = 0; i < field.length; i++)
+            field[i] += withThisMuch;
+        return this;
+        }
+
+    /** Sets the value at each location in the grid to that value added to the value at the equivalent location in the provided grid.
+        Returns the modified grid.
+    */
+    public final FlatDoubleGrid2D add(final FlatIntGrid2D withThis)
+        {
+        checkBounds(withThis);
+        final double[] field = this.field;
+        final int[] otherField = withThis.field;
+        for(int i = 0; i < field.length; i++)
+            field[i] += otherField[i];
+        return this;
+        }
+
+    /** Sets the value at each location in the grid to that value added to the value at the equivalent location in the provided grid.
+        Returns the modified grid.
+    */
+    public final FlatDoubleGrid2D add(final FlatDoubleGrid2D withThis)
+        {
+        checkBounds(withThis);
+        final double[] field = this.field;
+        final double[] otherField = withThis.field;
+        for(int i = 0; i < field.length; i++)
+            field[i] += otherField[i];
+        return this;
+        }
+
+    /** Sets each value in the grid to that value multiplied <i>byThisMuch</i>
+        Returns the modified grid.
+    */
+    public final FlatDoubleGrid2D multiply(final double byThisMuch)
+        {
+        if (byThisMuch==1.0) return this;
+        final double[] field = this.field;
+        for(int i = 0; i < field.length; i++)
+            field[i] *= byThisMuch;
+        return this;
+        }
+
+    /** Sets the value at each location in the grid to that value multiplied by to the value at the equivalent location in the provided grid.
+        Returns the modified grid.
+    */
+    public final FlatDoubleGrid2D multiply(final FlatIntGrid2D withThis)
+        {
+        checkBounds(withThis);
+        final double[] field = this.field;
+        final int[] otherField = withThis.field;
+        for(int i = 0; i < field.length; i++)
+            field[i] *= otherField[i];
+        return this;
+        }
+
+    /** Sets the value at each location in the grid to that value multiplied by to the value at the equivalent location in the provided grid.
+        Returns the modified grid.
+    */
+    public final FlatDoubleGrid2D multiply(final FlatDoubleGrid2D withThis)
+        {
+        checkBounds(withThis);
+        final double[] field = this.field;
+        final double[] otherField = withThis.field;
+        for(int i = 0; i < field.length; i++)
+            field[i] *= otherField[i];
+        return this;
+        }
+
+    /** Sets each value in the grid to floor(value).
+        Returns the modified grid.
+    */
+    public final FlatDoubleGrid2D floor()
+        {
+        final double[] field = this.field;
+        for(int i = 0; i < field.length; i++)
+            field[i] = /*Strict*/Math.floor(field[i]);
+        return this;
+        }
+
+    /** Sets each value in the grid to ceil(value).
+        Returns the modified grid.
+    */
+    public final FlatDoubleGrid2D ceiling()
+        {
+        final double[] field = this.field;
+        for(int i = 0; i < field.length; i++)
+            field[i] = /*Strict*/Math.ceil(field[i]);
+        return this;
+        }
+
+    /** Eliminates the decimal portion of each value in the grid (rounds towards zero).
+        Returns the modified grid.
+    */
+    public final FlatDoubleGrid2D truncate()
+        {
+        final double[] field = this.field;
+        for(int i = 0; i < field.length; i++)
+            field[i] = (int) field[i];
+        return this;
+        }
+
+    /** Sets each value in the grid to rint(value).  That is, each value
+        is rounded to the closest integer value.  If two integers are the same
+        distance, the value is rounded to the even integer.
+        Returns the modified grid.
+    */
+    public final FlatDoubleGrid2D rint()
+        {
+        final double[] field = this.field;
+        for(int i = 0; i < field.length; i++)
+            field[i] = /*Strict*/Math.rint(field[i]);
+        return this;
+        }
+
+    /**
+     * Replace instances of one value to another.
+     * @param from any element that matches this value will be replaced
+     * @param to with this value
+     */
+    public final void replaceAll(double from, double to)
+        {
+        final double[] field = this.field;
+        for(int i = 0; i < field.length; i++)
+            if (field[i] == from)
+                field[i] = to;
+        }
+
+    /**
+     * Gets the values at all locations that satisfy max( abs(x-X) , abs(y-Y) ) <= dist, just as
+     * DoubleGrid2D.getMooreNeighbors(...) does.
+     */
+    public DoubleBag getMooreNeighbors( final int x, final int y, final int dist, int mode, boolean includeOrigin, DoubleBag result, IntBag xPos, IntBag yPos )
+        {
+        if( xPos == null )
+            xPos = new IntBag();
+        if( yPos == null )
+            yPos = new IntBag();
+
+        getMooreLocations( x, y, dist, mode, includeOrigin, xPos, yPos );
+        return getObjectsAtLocations(xPos,yPos,result);
+        }
+
+    /**
+     * Gets the values at all locations that satisfy abs(x-X) + abs(y-Y) <= dist, just as
+     * DoubleGrid2D.getVonNeumannNeighbors(...) does.
+     */
+    public DoubleBag getVonNeumannNeighbors( final int x, final int y, final int dist, int mode, boolean includeOrigin, DoubleBag result, IntBag xPos, IntBag yPos )
+        {
+        if( xPos == null )
+            xPos = new IntBag();
+        if( yPos == null )
+            yPos = new IntBag();
+
+        getVonNeumannLocations( x, y, dist, mode, includeOrigin, xPos, yPos );
+        return getObjectsAtLocations(xPos,yPos,result);
+        }
+
+    /**
+     * Gets the values at all locations within the hexagon centered at (X,Y) and 2*dist+1 cells from point to opposite point
+     * inclusive, just as DoubleGrid2D.getHexagonalNeighbors(...) does.
+     */
+    public DoubleBag getHexagonalNeighbors( final int x, final int y, final int dist, int mode, boolean includeOrigin, DoubleBag result, IntBag xPos, IntBag yPos )
+        {
+        if( xPos == null )
+            xPos = new IntBag();
+        if( yPos == null )
+            yPos = new IntBag();
+
+        getHexagonalLocations( x, y, dist, mode, includeOrigin, xPos, yPos );
+        return getObjectsAtLocations(xPos,yPos,result);
+        }
+
+    /**
+     * Gets the values at all locations within the given distance, measured by the given rule, just as
+     * DoubleGrid2D.getRadialNeighbors(...) does.
+     */
+    public DoubleBag getRadialNeighbors( final int x, final int y, final int dist, int mode, boolean includeOrigin,  int measurementRule, boolean closed,  DoubleBag result, IntBag xPos, IntBag yPos )
+        {
+        if( xPos == null )
+            xPos = new IntBag();
+        if( yPos == null )
+            yPos = new IntBag();
+
+        getRadialLocations( x, y, dist, mode, includeOrigin, measurementRule, closed, xPos, yPos );
+        return getObjectsAtLocations(xPos,yPos,result);
+        }
+
+    /* For each <xPos,yPos> location, puts all such objects into the result DoubleBag.  Returns the result DoubleBag.
+       If the provided result DoubleBag is null, one will be created and returned. */
+    DoubleBag getObjectsAtLocations(final IntBag xPos, final IntBag yPos, DoubleBag result)
+        {
+        if (result==null) result = new DoubleBag();
+        else result.clear();
+
+        final int height = this.height;
+        for( int i = 0 ; i < xPos.numObjs ; i++ )
+            {
+            assert sim.util.LocationLog.it(this, new Int2D(xPos.objs[i],yPos.objs[i]));
+            result.add( field[xPos.objs[i] * height + yPos.objs[i]] );
+            }
+        return result;
+        }
+
+    // The delta checkpoint code works on columns, so we hand it the field as one long column
+    public void startDeltas()
+        {
+        deltaWidth = width;
+        deltaHeight = height;
+        deltaHashes = GridDelta.hash(new double[][] { field }, 1, field.length);
+        }
+
+    public void stopDeltas()
+        {
+        deltaHashes = null;
+        }
+
+    public Object getDelta()
+        {
+        if (width != deltaWidth || height != deltaHeight)  // reshaped, so write the whole thing
+            {
+            startDeltas();
+            return new GridDelta(width, height, field);
+            }
+        return GridDelta.diff(new double[][] { field }, 1, field.length, deltaHashes);
+        }
+
+    public void applyDelta(Object d)
+        {
+        GridDelta delta = (GridDelta) d;
+        if (delta.field != null)
+            {
+            field = (double[])(delta.field);
+            width = delta.width;
+            height = delta.height;
+            }
+        else delta.apply(new double[][] { field });
+        }
+    }
@@ -0,0 +1,372 @@
+/*
+  Copyright 2006 by Sean Luke and George Mason University
+  Licensed under the Academic Free License version 3.0
+  See the file "LICENSE" for more information
+*/
+
+package sim.field.grid;
+import sim.util.*;
+
+/**
+   An IntGrid2D stored in one flat array rather than an array of arrays.  The value at (x,y) is
+   field[x * height + y]: each column is laid out one after the other, just as IntGrid2D.toArray() would lay them out.
+   This saves looking up the column array (and checking its bounds) on each access, and keeps the whole grid in
+   one block of memory rather than scattered about the heap, which makes whole-grid operations such as add(...),
+   multiply(...), and the like, and stencils such as diffusion, a good deal faster on large grids.
+   As with IntGrid2D, you are encouraged to access the array directly.
+
+   <p>Older code, and the portrayals, want an int[][].  getField() builds one the first time you ask
+   for it and copies the grid into it each time you ask again, so it's up to date as of when you called it, but
+   changes you make to that array don't make it back into the grid unless you pass it to setTo(...).
+   To display the grid, you might copy it once per step into an IntGrid2D which you've handed to your portrayal,
+   with <tt>displayGrid.setTo(grid.getField())</tt>.
+
+   <p>For delta checkpoints, the grid remembers a hash of each stretch of 1024 values, and writes out
+   only the stretches which have changed.
+*/
+
+public /*strictfp*/ class FlatIntGrid2D extends AbstractGrid2D implements DeltaCheckpointable
+    {
+    private static final long serialVersionUID = 1;
+
+    public int[/** x * height + y */] field;
+
+    // the int[][] made by getField(), or null
+    transient int[][] view;
+
+    // hashes of the stretches of the field at the last delta checkpoint, or null if not keeping track
+    transient long[] deltaHashes;
+    transient int deltaWidth;
+    transient int deltaHeight;
+
+    public FlatIntGrid2D (int width, int height)
+        {
+        this.width = width;
+        this.height = height;
+        field = new int[width * height];
+        }
+
+    public FlatIntGrid2D (int width, int height, int initialValue)
+        {
+        this(width,height);
+        setTo(initialValue);
+        }
+
+    public FlatIntGrid2D (FlatIntGrid2D values)
+        {
+        setTo(values);
+        }
+
+    public FlatIntGrid2D (IntGrid2D values)
+        {
+        setTo(values.field);
+        }
+
+    public FlatIntGrid2D(int[][] values)
+        {
+        setTo(values);
+        }
+
+    /** Returns an int[][] copy of the grid, which is made once and refreshed each time you call this method.
+        Changes you make to it aren't made to the grid: use setTo(int[][]) for that. */
+    public int[][] getField()
+        {
+        final int width = this.width;
+        final int height = this.height;
+        if (view == null || view.length != width || (width > 0 && view[0].length != height))
+            view = new int[width][height];
+        for(int x = 0; x < width; x++)
+            System.arraycopy(field, x * height, view[x], 0, height);
+        return view;
+        }
+
+    /** Sets location (x,y) to val */
+    public final void set(final int x, final int y, final int val)
+        {
+        field[x * height + y] = val;
+        }
+
+    /** Returns the element at location (x,y) */
+    public final int get(final int x, final int y)
+        {
+        return field[x * height + y];
+        }
+
+    /** Sets all the locations in the grid the provided element */
+    public final FlatIntGrid2D setTo(final int thisMuch)
+        {
+        java.util.Arrays.fill(field, thisMuch);
+        return this;
+        }
+
+    /** Sets the grid to a copy of the provided array, which must be rectangular. */
+    public FlatIntGrid2D setTo(int[][] field)
+        {
+        // check info
+
+        if (field == null)
+            throw new RuntimeException("FlatIntGrid2D set to null field.");
+        int w = field.length;
+        int h = 0;
+        if (w != 0) h = field[0].length;
+        for(int i = 0; i < w; i++)
+            if (field[i].length != h) // uh oh
+                throw new RuntimeException("FlatIntGrid2D initialized with a non-rectangular field.");
+
+        // load
+
+        if (this.field == null || this.field.length != w * h) this.field = new int[w * h];
+        for(int i = 0; i < w; i++)
+            System.arraycopy(field[i], 0, this.field, i * h, h);
+        width = w;
+        height = h;
+        return this;
+        }
+
+    /** Changes the dimensions of the grid to be the same as the one provided, then
+        sets all the locations in the grid to the elements at the quivalent locations in the
+        provided grid. */
+    public final FlatIntGrid2D setTo(final FlatIntGrid2D values)
+        {
+        width = values.width;
+        height = values.height;
+        if (field == null || field.length != values.field.length) field = (int[])(values.field.clone());
+        else System.arraycopy(values.field, 0, field, 0, field.length);
+        return this;
+        }
+
+    /** Flattens the grid to a one-dimensional array, storing the elements in row-major order,including duplicates and null values.
+        Returns the grid. */
+    public final int[] toArray()
+        {
+        return (int[])(field.clone());
+        }
+
+    /** Returns the maximum value stored in the grid */
+    public final int max()
+        {
+        int max = Integer.MIN_VALUE;
+        final int[] field = this.field;
+        for(int i = 0; i < field.length; i++)
+            if (max < field[i]) max = field[i];
+        return max;
+        }
+
+    /** Returns the minimum value stored in the grid */
+    public final int min()
+        {
+        int min = Integer.MAX_VALUE;
+        final int[] field = this.field;
+        for(int i = 0; i < field.length; i++)
+            if (min > field[i]) min = field[i];
+        return min;
+        }
+
+    /** Returns the mean value stored in the grid */
+    public final double mean()
+        {
+        double mean = 0;
+        final int[] field = this.field;
+        for(int i = 0; i < field.length; i++)
+            mean += field[i];
+        return (field.length == 0 ? 0 : mean / field.length);
+        }
+
+    /** Thresholds the grid so that values greater to <i>toNoMoreThanThisMuch</i> are changed to <i>toNoMoreThanThisMuch</i>.
+        Returns the modified grid.
+    */
+    public final FlatIntGrid2D upperBound(final int toNoMoreThanThisMuch)
+        {
+        final int[] field = this.field;
+        for(int i = 0; i < field.length; i++)
+            if (field[i] > toNoMoreThanThisMuch)
+                field[i] = toNoMoreThanThisMuch;
+        return this;
+        }
+
+    /** Thresholds the grid so that values smaller than <i>toNoLowerThanThisMuch</i> are changed to <i>toNoLowerThanThisMuch</i>
+        Returns the modified grid.
+    */
+    public final FlatIntGrid2D lowerBound(final int toNoLowerThanThisMuch)
+        {
+        final int[] field = this.field;
+        for(int i = 0; i < field.length; i++)
+            if (field[i] < toNoLowerThanThisMuch)
+                field[i] = toNoLowerThanThisMuch;
+        return this;
+        }
+
+    /** Sets each value in the grid to that value added to <i>withThisMuch</i>
+        Returns the modified grid.
+    */
+    public final FlatIntGrid2D add(final int withThisMuch)
+        {
+        if (withThisMuch==0) return this;
+        final int[] field = this.field;
+        for(int i = 0; i < field.length; i++)
+            field[i] += withThisMuch;
+        return this;
+        }
+
+    /** Sets the value at each location in the grid to that value added to the value at the equivalent location in the provided grid.
+        Returns the modified grid.
+    */
+    public final FlatIntGrid2D add(final FlatIntGrid2D withThis)
+        {
+        checkBounds(withThis);
+        final int[] field = this.field;
+        final int[] otherField = withThis.field;
+        for(int i = 0; i < field.length; i++)
+            field[i] += otherField[i];
+        return this;
+        }
+
+    /** Sets each value in the grid to that value multiplied <i>byThisMuch</i>
+        Returns the modified grid.
+    */
+    public final FlatIntGrid2D multiply(final int byThisMuch)
+        {
+        if (byThisMuch==1) return this;
+        final int[] field = this.field;
+        for(int i = 0; i < field.length; i++)
+            field[i] *= byThisMuch;
+        return this;
+        }
+
+    /** Sets the value at each location in the grid to that value multiplied by to the value at the equivalent location in the provided grid.
+        Returns the modified grid.
+    */
+    public final FlatIntGrid2D multiply(final FlatIntGrid2D withThis)
+        {
+        checkBounds(withThis);
+        final int[] field = this.field;
+        final int[] otherField = withThis.field;
+        for(int i = 0; i < field.length; i++)
+            field[i] *= otherField[i];
+        return this;
+        }
+
+    /**
+     * Replace instances of one value to another.
+     * @param from any element that matches this value will be replaced
+     * @param to with this value
+     */
+    public final void replaceAll(int from, int to)
+        {
+        final int[] field = this.field;
+        for(int i = 0; i < field.length; i++)
+            if (field[i] == from)
+                field[i] = to;
+        }
+
+    /**
+     * Gets the values at all locations that satisfy max( abs(x-X) , abs(y-Y) ) <= dist, just as
+     * IntGrid2D.getMooreNeighbors(...) does.
+     */
+    public IntBag getMooreNeighbors( final int x, final int y, final int dist, int mode, boolean includeOrigin, IntBag result, IntBag xPos, IntBag yPos )
+        {
+        if( xPos == null )
+            xPos = new IntBag();
+        if( yPos == null )
+            yPos = new IntBag();
+
+        getMooreLocations( x, y, dist, mode, includeOrigin, xPos, yPos );
+        return getObjectsAtLocations(xPos,yPos,result);
+        }
+
+    /**
+     * Gets the values at all locations that satisfy abs(x-X) + abs(y-Y) <= dist, just as
+     * IntGrid2D.getVonNeumannNeighbors(...) does.
+     */
+    public IntBag getVonNeumannNeighbors( final int x, final int y, final int dist, int mode, boolean includeOrigin, IntBag result, IntBag xPos, IntBag yPos )
+        {
+        if( xPos == null )
+            xPos = new IntBag();
+        if( yPos == null )
+            yPos = new IntBag();
+
+        getVonNeumannLocations( x, y, dist, mode, includeOrigin, xPos, yPos );
+        return getObjectsAtLocations(xPos,yPos,result);
+        }
+
+    /**
+     * Gets the values at all locations within the hexagon centered at (X,Y) and 2*dist+1 cells from point to opposite point
+     * inclusive, just as IntGrid2D.getHexagonalNeighbors(...) does.
+     */
+    public IntBag getHexagonalNeighbors( final int x, final int y, final int dist, int mode, boolean includeOrigin, IntBag result, IntBag xPos, IntBag yPos )
+        {
+        if( xPos == null )
+            xPos = new IntBag();
+        if( yPos == null )
+            yPos = new IntBag();
+
+        getHexagonalLocations( x, y, dist, mode, includeOrigin, xPos, yPos );
+        return getObjectsAtLocations(xPos,yPos,result);
+        }
+
+    /**
+     * Gets the values at all locations within the given distance, measured by the given rule, just as
+     * IntGrid2D.getRadialNeighbors(...) does.
+     */
+    public IntBag getRadialNeighbors( final int x, final int y, final int dist, int mode, boolean includeOrigin,  int measurementRule, boolean closed,  IntBag result, IntBag xPos, IntBag yPos )
+        {
+        if( xPos == null )
+            xPos = new IntBag();
+        if( yPos == null )
+            yPos = new IntBag();
+
+        getRadialLocations( x, y, dist, mode, includeOrigin, measurementRule, closed, xPos, yPos );
+        return getObjectsAtLocations(xPos,yPos,result);
+        }
+
+    /* For each <xPos,yPos> location, puts all such objects into the result IntBag.  Returns the result IntBag.
+       If the provided result IntBag is null, one will be created and returned. */
+    IntBag getObjectsAtLocations(final IntBag xPos, final IntBag yPos, IntBag result)
+        {
+        if (result==null) result = new IntBag();
+        else result.clear();
+
+        final int height = this.height;
+        for( int i = 0 ; i < xPos.numObjs ; i++ )
+            {
+            assert sim.util.LocationLog.it(this, new Int2D(xPos.objs[i],yPos.objs[i]));
+            result.add( field[xPos.objs[i] * height + yPos.objs[i]] );
+            }
+        return result;
+        }
+
+    // The delta checkpoint code works on columns, so we hand it the field as one long column
+    public void startDeltas()
+        {
+        deltaWidth = width;
+        deltaHeight = height;
+        deltaHashes = GridDelta.hash(new int[][] { field }, 1, field.length);
+        }
+
+    public void stopDeltas()
+        {
+        deltaHashes = null;
+        }
+
+    public Object getDelta()
+        {
+        if (width != deltaWidth || height != deltaHeight)  // reshaped, so write the whole thing
+            {
+            startDeltas();
+            return new GridDelta(width, height, field);
+            }
+        return GridDelta.diff(new int[][] { field }, 1, field.length, deltaHashes);
+        }
+
+    public void applyDelta(Object d)
+        {
+        GridDelta delta = (GridDelta) d;
+        if (delta.field != null)
+            {
+            field = (int[])(delta.field);
+            width = delta.width;
+            height = delta.height;
+            }
+        else delta.apply(new int[][] { field });
+        }
+    }
@@ -0,0 +1,147 @@
+/*
+  Copyright 2006 by Sean Luke and George Mason University
+  Licensed under the Academic Free License version 3.0
+  See the file "LICENSE" for more information
+*/
+
+package sim.field.grid;
+
+/**
+   The changes to a DoubleGrid2D or IntGrid2D since its last delta checkpoint.  The grids' arrays are public
+   and you're encouraged to write to them directly, so we can't know what's been written.  Instead each
+   column is cut into stretches of SEGMENT values, and we remember a 64-bit hash of each stretch at the
+   last checkpoint.  The stretches whose hashes have changed are the ones which get copied into the delta.
+   Each step of the hash is invertible, so a change to just one value in a stretch always changes its hash.
+   Changes to several values have about a one in 2^64 chance of being missed.  See DoubleGrid2D.getDelta().
+*/
+
+class GridDelta implements java.io.Serializable
+    {
+    private static final long serialVersionUID = 1;
+
+    /** The number of values in a stretch of a column. */
+    static final int SEGMENT = 1024;
+
+    int width;
+    int height;
+    Object field;  // the entire field, if it's been reshaped, else null
+    int[] xs;
+    int[] ys;
+    Object[] segments;
+
+    GridDelta(int width, int height, Object field)
+        {
+        this.width = width;
+        this.height = height;
+        this.field = field;
+        }
+
+    static int segmentsPerColumn(int height) { return (height + SEGMENT - 1) / SEGMENT; }
+
+    static long hash(double[] column, int from, int to)
+        {
+        long h = 0x9E3779B97F4A7C15L;
+        for(int y = from; y < to; y++)
+            {
+            h ^= Double.doubleToRawLongBits(column[y]);
+            h *= 0xBF58476D1CE4E5B9L;
+            h ^= (h >>> 31);
+            }
+        return h;
+        }
+
+    static long hash(int[] column, int from, int to)
+        {
+        long h = 0x9E3779B97F4A7C15L;
+        for(int y = from; y < to; y++)
+            {
+            h ^= column[y];
+            h *= 0xBF58476D1CE4E5B9L;
+            h ^= (h >>> 31);
+            }
+        return h;
+        }
+
+    static long[] hash(double[][] field, int width, int height)
+        {
+        int s = segmentsPerColumn(height);
+        long[] hashes = new long[width * s];
+        for(int x = 0; x < width; x++)
+            for(int i = 0; i < s; i++)
+                hashes[x * s + i] = hash(field[x], i * SEGMENT, Math.min(height, (i + 1) * SEGMENT));
+        return hashes;
+        }
+
+    static long[] hash(int[][] field, int width, int height)
+        {
+        int s = segmentsPerColumn(height);
+        long[] hashes = new long[width * s];
+        for(int x = 0; x < width; x++)
+            for(int i = 0; i < s; i++)
+                hashes[x * s + i] = hash(field[x], i * SEGMENT, Math.min(height, (i + 1) * SEGMENT));
+        return hashes;
+        }
+
+    /** Returns the stretches whose hashes differ from the given ones, and updates the hashes. */
+    static GridDelta diff(double[][] field, int width, int height, long[] hashes)
+        {
+        int s = segmentsPerColumn(height);
+        sim.util.IntBag xs = new sim.util.IntBag();
+        sim.util.IntBag ys = new sim.util.IntBag();
+        sim.util.Bag segments = new sim.util.Bag();
+        for(int x = 0; x < width; x++)
+            for(int i = 0; i < s; i++)
+                {
+                int from = i * SEGMENT;
+                int to = Math.min(height, from + SEGMENT);
+                long h = hash(field[x], from, to);
+                if (h == hashes[x * s + i]) continue;
+                hashes[x * s + i] = h;
+                double[] segment = new double[to - from];
+                System.arraycopy(field[x], from, segment, 0, to - from);
+                xs.add(x);
+                ys.add(from);
+                segments.add(segment);
+                }
+        GridDelta delta = new GridDelta(width, height, null);
+        delta.xs = xs.toArray();
+        delta.ys = ys.toArray();
+        delta.segments = segments.toArray();
+        return delta;
+        }
+
+    /** Returns the stretches whose hashes differ from the given ones, and updates the hashes. */
+    static GridDelta diff(int[][] field, int width, int height, long[] hashes)
+        {
+        int s = segmentsPerColumn(height);
+        sim.util.IntBag xs = new sim.util.IntBag();
+        sim.util.IntBag ys = new sim.util.IntBag();
+        sim.util.Bag segments = new sim.util.Bag();
+        for(int x = 0; x < width; x++)
+            for(int i = 0; i < s; i++)
+                {
+                int from = i * SEGMENT;
+                int to = Math.min(height, from + SEGMENT);
+                long h = hash(field[x], from, to);
+                if (h == hashes[x * s + i]) continue;
+                hashes[x * s + i] = h;
+                int[] segment = new int[to - from];
+                System.arraycopy(field[x], from, segment, 0, to - from);
+                xs.add(x);
+                ys.add(from);
+                segments.add(segment);
+                }
+        GridDelta delta = new GridDelta(width, height, null);
+        delta.xs = xs.toArray();
+        delta.ys = ys.toArray();
+        delta.segments = segments.toArray();
+        return delta;
+        }
+
+    /** Copies the changed stretches into the given double[][] or int[][] field. */
+    void apply(Object[] field)
+        {
+        for(int i = 0; i < segments.length; i++)
+            System.arraycopy(segments[i], 0, field[xs[i]], ys[i], java.lang.reflect.Array.getLength(segments[i]));
+        }
+    }
@@ -16,13 +16,22 @@ import sim.util.*;
    or hexagonal grids.
     
    <p>The width and height of the object are provided to avoid having to say field[x].length, etc.  
+
+   <p>For delta checkpoints, the grid remembers a hash of each stretch of 1024 values in each column, and writes out
+   only the stretches which have changed.  Don't hold onto the field's arrays anywhere else in your model across
+   a delta checkpoint: they'll be separate arrays when the model is read back in.
 */
 
-public /*strictfp*/ class IntGrid2D extends AbstractGrid2D
+public /*strictfp*/ class IntGrid2D extends AbstractGrid2D implements DeltaCheckpointable
     {
     private static final long serialVersionUID = 1;
 
     public int[/**x*/][/**y*/] field;
+
+    // hashes of the stretches of each column at the last delta checkpoint, or null if not keeping track
+    transient long[] deltaHashes;
+    transient int deltaWidth;
+    transient int deltaHeight;
     
     public IntGrid2D (int width, int height)
         {
@@ -827,4 +836,44 @@ public /*strictfp*/ class IntGrid2D extends AbstractGrid2D
             }
         return result;
         }  
+    
+    public void startDeltas()
+        {
+        deltaWidth = width;
+        deltaHeight = height;
+        deltaHashes = GridDelta.hash(field, width, height);
+        }
+
+    public void stopDeltas()
+        {
+        deltaHashes = null;
+        }
+
+    /** Returns the stretches of 1024 values in each column which have changed since the last delta checkpoint.
+        To save keeping a second copy of the grid, a stretch is judged to have changed if its 64-bit hash has.
+        Changing a single value in a stretch always changes its hash.  But if several values in a stretch have
+        changed, there's about a one in 2^64 chance that the hash comes out the same, and then the stretch is
+        left out of the delta and is silently wrong in the grid restored from it.  If that's not acceptable,
+        use ordinary checkpoints rather than delta checkpoints. */
+    public Object getDelta()
+        {
+        if (width != deltaWidth || height != deltaHeight)  // reshaped, so write the whole thing
+            {
+            startDeltas();
+            return new GridDelta(width, height, field);
+            }
+        return GridDelta.diff(field, width, height, deltaHashes);
+        }
+
+    public void applyDelta(Object d)
+        {
+        GridDelta delta = (GridDelta) d;
+        if (delta.field != null)
+            {
+            field = (int[][])(delta.field);
+            width = delta.width;
+            height = delta.height;
+            }
+        else delta.apply(field);
+        }
     }
@@ -0,0 +1,19 @@
+/*
+  Copyright 2006 by Sean Luke and George Mason University
+  Licensed under the Academic Free License version 3.0
+  See the file "LICENSE" for more information
+*/
+
+package sim.field.grid;
+
+/**
+   Something which is shown, one at a time, each of the locations in a neighborhood by the visit...Locations(...)
+   methods of AbstractGrid2D and SparseGrid2D, in place of filling IntBags with them.  Return false from visit(x, y)
+   to stop the walk early.
+*/
+
+public interface LocationVisitor2D
+    {
+    /** Called with each location (x,y) in the neighborhood.  Return true to carry on, or false to stop. */
+    public boolean visit(int x, int y);
+    }
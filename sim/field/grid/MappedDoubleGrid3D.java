@@ -0,0 +1,330 @@
+/*
+  Copyright 2006 by Sean Luke and George Mason University
+  Licensed under the Academic Free License version 3.0
+  See the file "LICENSE" for more information
+*/
+
+package sim.field.grid;
+import sim.util.*;
+import java.io.*;
+
+/**
+   A 3D grid of doubles kept in a memory-mapped file rather than in the Java heap, for grids too big for the heap, or
+   big enough to give the garbage collector trouble.  The values sit in the operating system's file cache and are
+   paged in from the file as you touch them, so a grid can be as large as your disk allows, and opening a grid
+   saved earlier takes no time at all: nothing is read until it's needed.
+
+   <p>Make a new grid with MappedDoubleGrid3D(file, width, height, length), which replaces whatever is in the file, and open an
+   existing one with MappedDoubleGrid3D(file).  get(...), set(...), the neighborhood methods, and the whole-grid operations
+   work as they do in DoubleGrid3D, though a mapped grid can't be reshaped.  flush() writes changes back to the file,
+   and close() flushes and lets go of it.
+
+   <p><b>Checkpointing.</b> Serializing a MappedDoubleGrid3D flushes it and writes out only the name of its file and its
+   dimensions, not its values: reading it back in just maps the file again.  This makes checkpoints of huge grids
+   nearly free, but it means a checkpoint refers to the file <i>as it is when the checkpoint is loaded</i>, not as
+   it was when it was made.  If you need to go back to an earlier state, copy the file when you checkpoint.
+
+   <p>getField() builds a double[][][] copy of the whole grid, for older code and the portrayals; don't call it on a grid
+   which doesn't fit in the heap.
+*/
+
+public /*strictfp*/ class MappedDoubleGrid3D extends AbstractGrid3D
+    {
+    private static final long serialVersionUID = 1;
+
+    // values are read and written this many at a time by the whole-grid operations
+    static final int BLOCK = 4096;
+
+    File file;
+    transient MappedStorage storage;
+
+    /** Creates a grid of the given dimensions in the given file, replacing whatever was there.  All the values start at 0. */
+    public MappedDoubleGrid3D(File file, int width, int height, int length) throws IOException
+        {
+        this.width = width;
+        this.height = height;
+        this.length = length;
+        this.file = file;
+        storage = new MappedStorage(file, MappedStorage.DOUBLE, new int[] { width, height, length });
+        }
+
+    /** Opens a grid previously created in the given file. */
+    public MappedDoubleGrid3D(File file) throws IOException
+        {
+        this.file = file;
+        storage = new MappedStorage(file, MappedStorage.DOUBLE, 3);
+        width = storage.dims[0];
+        height = storage.dims[1];
+        length = storage.dims[2];
+        }
+
+    /** Returns the file holding the grid. */
+    public File getFile() { return file; }
+
+    /** Writes any changed values back to the file. */
+    public void flush()
+        {
+        storage.force();
+        }
+
+    /** Writes any changed values back to the file and closes it.  The grid can't be used after this. */
+    public void close() throws IOException
+        {
+        storage.close();
+        }
+
+    /** Returns a double[][][] copy of the grid.  Changes you make to it aren't made to the grid: use setTo(...) for that. */
+    public double[][][] getField()
+        {
+        double[][][] field = new double[width][height][length];
+        for(int x = 0; x < width; x++)
+            for(int y = 0; y < height; y++)
+                storage.getDoubles((((long) x) * height + y) * length, field[x][y], 0, length);
+        return field;
+        }
+
+    /** Sets location (x,y,z) to val */
+    public final void set(final int x, final int y, final int z, final double val)
+        {
+        storage.putDouble((((long) x) * height + y) * length + z, val);
+        }
+
+    /** Returns the element at location (x,y,z) */
+    public final double get(final int x, final int y, final int z)
+        {
+        return storage.getDouble((((long) x) * height + y) * length + z);
+        }
+
+    /** Sets all the locations in the grid the provided element */
+    public final MappedDoubleGrid3D setTo(final double thisMuch)
+        {
+        double[] block = new double[(int) Math.min(BLOCK, storage.count)];
+        java.util.Arrays.fill(block, thisMuch);
+        for(long i = 0; i < storage.count; i += BLOCK)
+            storage.putDoubles(i, block, 0, (int) Math.min(BLOCK, storage.count - i));
+        return this;
+        }
+
+    /** Sets all the locations in the grid to the values at the equivalent locations in the provided grid,
+        which must be the same size. */
+    public final MappedDoubleGrid3D setTo(final DoubleGrid3D values)
+        {
+        checkBounds(values);
+        for(int x = 0; x < width; x++)
+            for(int y = 0; y < height; y++)
+                storage.putDoubles((((long) x) * height + y) * length, values.field[x][y], 0, length);
+        return this;
+        }
+
+    /** Sets all the locations in the grid to the values at the equivalent locations in the provided grid,
+        which must be the same size. */
+    public final MappedDoubleGrid3D setTo(final MappedDoubleGrid3D values)
+        {
+        checkBounds(values);
+        double[] block = new double[(int) Math.min(BLOCK, storage.count)];
+        for(long i = 0; i < storage.count; i += BLOCK)
+            {
+            int n = (int) Math.min(BLOCK, storage.count - i);
+            values.storage.getDoubles(i, block, 0, n);
+            storage.putDoubles(i, block, 0, n);
+            }
+        return this;
+        }
+
+    /** Returns the maximum value stored in the grid */
+    public final double max()
+        {
+        double max = Double.NEGATIVE_INFINITY;
+        double[] block = new double[(int) Math.min(BLOCK, storage.count)];
+        for(long i = 0; i < storage.count; i += BLOCK)
+            {
+            int n = (int) Math.min(BLOCK, storage.count - i);
+            storage.getDoubles(i, block, 0, n);
+            for(int j = 0; j < n; j++)
+                if (max < block[j]) max = block[j];
+            }
+        return max;
+        }
+
+    /** Returns the minimum value stored in the grid */
+    public final double min()
+        {
+        double min = Double.POSITIVE_INFINITY;
+        double[] block = new double[(int) Math.min(BLOCK, storage.count)];
+        for(long i = 0; i < storage.count; i += BLOCK)
+            {
+            int n = (int) Math.min(BLOCK, storage.count - i);
+            storage.getDoubles(i, block, 0, n);
+            for(int j = 0; j < n; j++)
+                if (min > block[j]) min = block[j];
+            }
+        return min;
+        }
+
+    /** Returns the mean value stored in the grid */
+    public final double mean()
+        {
+        double mean = 0;
+        double[] block = new double[(int) Math.min(BLOCK, storage.count)];
+        for(long i = 0; i < storage.count; i += BLOCK)
+            {
+            int n = (int) Math.min(BLOCK, storage.count - i);
+            storage.getDoubles(i, block, 0, n);
+            for(int j = 0; j < n; j++)
+                mean += block[j];
+            }
+        return (storage.count == 0 ? 0 : mean / storage.count);
+        }
+
+    // the operations which change every value: 0 upperBound, 1 lowerBound, 2 add, 3 multiply, 4 replaceAll
+    void modify(int op, double a, double b)
+        {
+        double[] block = new double[(int) Math.min(BLOCK, storage.count)];
+        for(long i = 0; i < storage.count; i += BLOCK)
+            {
+            int n = (int) Math.min(BLOCK, storage.count - i);
+            storage.getDoubles(i, block, 0, n);
+            switch(op)
+                {
+                case 0: for(int j = 0; j < n; j++) if (block[j] > a) block[j] = a; break;
+                case 1: for(int j = 0; j < n; j++) if (block[j] < a) block[j] = a; break;
+                case 2: for(int j = 0; j < n; j++) block[j] += a; break;
+                case 3: for(int j = 0; j < n; j++) block[j] *= a; break;
+                default: for(int j = 0; j < n; j++) if (block[j] == a) block[j] = b; break;
+                }
+            storage.putDoubles(i, block, 0, n);
+            }
+        }
+
+    /** Thresholds the grid so that values greater to <i>toNoMoreThanThisMuch</i> are changed to <i>toNoMoreThanThisMuch</i>.
+        Returns the modified grid.
+    */
+    public final MappedDoubleGrid3D upperBound(final double toNoMoreThanThisMuch)
+        {
+        modify(0, toNoMoreThanThisMuch, 0);
+        return this;
+        }
+
+    /** Thresholds the grid so that values smaller than <i>toNoLowerThanThisMuch</i> are changed to <i>toNoLowerThanThisMuch</i>
+        Returns the modified grid.
+    */
+    public final MappedDoubleGrid3D lowerBound(final double toNoLowerThanThisMuch)
+        {
+        modify(1, toNoLowerThanThisMuch, 0);
+        return this;
+        }
+
+    /** Sets each value in the grid to that value added to <i>withThisMuch</i>
+        Returns the modified grid.
+    */
+    public final MappedDoubleGrid3D add(final double withThisMuch)
+        {
+        if (withThisMuch==0.0) return this;
+        modify(2, withThisMuch, 0);
+        return this;
+        }
+
+    /** Sets each value in the grid to that value multiplied <i>byThisMuch</i>
+        Returns the modified grid.
+    */
+    public final MappedDoubleGrid3D multiply(final double byThisMuch)
+        {
+        if (byThisMuch==1.0) return this;
+        modify(3, byThisMuch, 0);
+        return this;
+        }
+
+    /**
+     * Replace instances of one value to another.
+     * @param from any element that matches this value will be replaced
+     * @param to with this value
+     */
+    public final void replaceAll(double from, double to)
+        {
+        modify(4, from, to);
+        }
+
+    /**
+     * Gets the values at all locations that satisfy max( abs(x-X) , abs(y-Y), abs(z-Z) ) <= dist, just as
+     * DoubleGrid3D.getMooreNeighbors(...) does.
+     */
+    public DoubleBag getMooreNeighbors( final int x, final int y, final int z, final int dist, int mode, boolean includeOrigin, DoubleBag result, IntBag xPos, IntBag yPos, IntBag zPos )
+        {
+        if( xPos == null )
+            xPos = new IntBag();
+        if( yPos == null )
+            yPos = new IntBag();
+        if( zPos == null )
+            zPos = new IntBag();
+
+        getMooreLocations( x, y, z, dist, mode, includeOrigin, xPos, yPos, zPos );
+        return getObjectsAtLocations(xPos,yPos,zPos,result);
+        }
+
+    /**
+     * Gets the values at all locations that satisfy abs(x-X) + abs(y-Y) + abs(z-Z) <= dist, just as
+     * DoubleGrid3D.getVonNeumannNeighbors(...) does.
+     */
+    public DoubleBag getVonNeumannNeighbors( final int x, final int y, final int z, final int dist, int mode, boolean includeOrigin, DoubleBag result, IntBag xPos, IntBag yPos, IntBag zPos )
+        {
+        if( xPos == null )
+            xPos = new IntBag();
+        if( yPos == null )
+            yPos = new IntBag();
+        if( zPos == null )
+            zPos = new IntBag();
+
+        getVonNeumannLocations( x, y, z, dist, mode, includeOrigin, xPos, yPos, zPos );
+        return getObjectsAtLocations(xPos,yPos,zPos,result);
+        }
+
+    /**
+     * Gets the values at all locations within the given distance, measured by the given rule, just as
+     * DoubleGrid3D.getRadialNeighbors(...) does.
+     */
+    public DoubleBag getRadialNeighbors( final int x, final int y, final int z, final int dist, int mode, boolean includeOrigin,  int measurementRule, boolean closed,  DoubleBag result, IntBag xPos, IntBag yPos, IntBag zPos )
+        {
+        if( xPos == null )
+            xPos = new IntBag();
+        if( yPos == null )
+            yPos = new IntBag();
+        if( zPos == null )
+            zPos = new IntBag();
+
+        getRadialLocations( x, y, z, dist, mode, includeOrigin, measurementRule, closed, xPos, yPos, zPos );
+        return getObjectsAtLocations(xPos,yPos,zPos,result);
+        }
+
+    /* For each <xPos,yPos,zPos> location, puts all such objects into the result DoubleBag.  Returns the result DoubleBag.
+       If the provided result DoubleBag is null, one will be created and returned. */
+    DoubleBag getObjectsAtLocations(final IntBag xPos, final IntBag yPos, final IntBag zPos, DoubleBag result)
+        {
+        if (result==null) result = new DoubleBag();
+        else result.clear();
+
+        for( int i = 0 ; i < xPos.numObjs ; i++ )
+            {
+            assert sim.util.LocationLog.it(this, new Int3D(xPos.objs[i],yPos.objs[i],zPos.objs[i]));
+            result.add( storage.getDouble((((long) xPos.objs[i]) * height + yPos.objs[i]) * length + zPos.objs[i]) );
+            }
+        return result;
+        }
+
+    // Only the file name and dimensions are written out: the values stay in the file
+    private void writeObject(ObjectOutputStream out) throws IOException
+        {
+        storage.force();
+        out.defaultWriteObject();
+        }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException
+        {
+        in.defaultReadObject();
+        storage = new MappedStorage(file, MappedStorage.DOUBLE, 3);
+        if (storage.dims[0] != width || storage.dims[1] != height || storage.dims[2] != length)
+            {
+            storage.close();
+            throw new InvalidObjectException(file + " no longer holds a " + width + " by " + height + " by " + length + " grid.");
+            }
+        }
+    }
@@ -0,0 +1,212 @@
+/*
+  Copyright 2006 by Sean Luke and George Mason University
+  Licensed under the Academic Free License version 3.0
+  See the file "LICENSE" for more information
+*/
+
+package sim.field.grid;
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+
+/**
+   The memory-mapped file behind MappedDoubleGrid2D, MappedIntGrid2D, and their 3D equivalents.  The file starts with
+   a small header giving the kind of values it holds, their byte order, and the grid's dimensions, followed by the
+   values themselves in the same order as the arrays in DoubleGrid2D etc.: x, then y, then z.  A single mapping can't
+   be bigger than 2 gigabytes, so the file is mapped in chunks of 2^27 values.
+
+   <p>The values live in the operating system's file cache rather than the Java heap: the garbage collector never sees
+   them, the grid can be far bigger than the heap (or the memory) allows, and pages are only read in from disk as
+   they're touched.  force() writes any changed pages back to the file.
+*/
+
+final class MappedStorage
+    {
+    static final int MAGIC = 0x4D475244;  // "MGRD"
+    static final int VERSION = 1;
+    static final int HEADER = 64;  // bytes
+    static final int DOUBLE = 8;  // the element sizes double as the kinds of value
+    static final int INT = 4;
+    static final int CHUNK_SHIFT = 27;  // values per chunk, as a power of two
+    static final int CHUNK_MASK = (1 << CHUNK_SHIFT) - 1;
+
+    final File file;
+    final int elementSize;
+    final int[] dims;
+    final long count;
+
+    RandomAccessFile raf;
+    MappedByteBuffer[] maps;
+    DoubleBuffer[] doubles;
+    IntBuffer[] ints;
+
+    /** Creates the file, replacing anything already there, and maps it.  The values all start at 0. */
+    MappedStorage(File file, int elementSize, int[] dims) throws IOException
+        {
+        this.file = file;
+        this.elementSize = elementSize;
+        this.dims = (int[])(dims.clone());
+        long c = 1;
+        for(int i = 0; i < dims.length; i++)
+            {
+            if (dims[i] < 0) throw new IllegalArgumentException("Grid dimensions may not be negative.");
+            c *= dims[i];
+            }
+        count = c;
+
+        raf = new RandomAccessFile(file, "rw");
+        try
+            {
+            raf.setLength(0);  // the rest of the file comes back as zeros
+            raf.setLength(HEADER + count * elementSize);
+            raf.seek(0);
+            raf.writeInt(MAGIC);
+            raf.writeInt(VERSION);
+            raf.writeInt(elementSize);
+            raf.writeInt(ByteOrder.nativeOrder() == ByteOrder.BIG_ENDIAN ? 1 : 0);
+            raf.writeInt(dims.length);
+            for(int i = 0; i < dims.length; i++)
+                raf.writeInt(dims[i]);
+            map(ByteOrder.nativeOrder());
+            }
+        catch (IOException e)
+            {
+            raf.close();
+            file.delete();  // don't leave a half-written grid file behind
+            throw e;
+            }
+        }
+
+    /** Maps an existing file, which must hold the given kind of value and number of dimensions. */
+    MappedStorage(File file, int elementSize, int numDimensions) throws IOException
+        {
+        this.file = file;
+        this.elementSize = elementSize;
+
+        raf = new RandomAccessFile(file, "rw");
+        try
+            {
+            raf.seek(0);
+            if (raf.length() < HEADER || raf.readInt() != MAGIC || raf.readInt() != VERSION)
+                throw new IOException(file + " is not a mapped grid file.");
+            if (raf.readInt() != elementSize)
+                throw new IOException(file + " holds " + (elementSize == DOUBLE ? "ints" : "doubles") + ", not " + (elementSize == DOUBLE ? "doubles." : "ints."));
+            ByteOrder order = (raf.readInt() == 1 ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN);
+            if (raf.readInt() != numDimensions)
+                throw new IOException(file + " does not hold a " + numDimensions + "D grid.");
+            dims = new int[numDimensions];
+            long c = 1;
+            for(int i = 0; i < numDimensions; i++)
+                {
+                dims[i] = raf.readInt();
+                c *= dims[i];
+                }
+            count = c;
+            if (raf.length() < HEADER + count * elementSize)
+                throw new IOException(file + " is too short for a grid of its dimensions.");
+            map(order);
+            }
+        catch (IOException e)
+            {
+            raf.close();
+            throw e;
+            }
+        }
+
+    void map(ByteOrder order) throws IOException
+        {
+        FileChannel channel = raf.getChannel();
+        int chunks = (int)((count + CHUNK_MASK) >>> CHUNK_SHIFT);
+        maps = new MappedByteBuffer[chunks];
+        if (elementSize == DOUBLE) doubles = new DoubleBuffer[chunks];
+        else ints = new IntBuffer[chunks];
+        for(int i = 0; i < chunks; i++)
+            {
+            long start = ((long) i) << CHUNK_SHIFT;
+            long size = Math.min(count - start, 1L << CHUNK_SHIFT);
+            maps[i] = channel.map(FileChannel.MapMode.READ_WRITE, HEADER + start * elementSize, size * elementSize);
+            maps[i].order(order);
+            if (elementSize == DOUBLE) doubles[i] = maps[i].asDoubleBuffer();
+            else ints[i] = maps[i].asIntBuffer();
+            }
+        }
+
+    final double getDouble(long i) { return doubles[(int)(i >>> CHUNK_SHIFT)].get((int)(i & CHUNK_MASK)); }
+    final void putDouble(long i, double val) { doubles[(int)(i >>> CHUNK_SHIFT)].put((int)(i & CHUNK_MASK), val); }
+    final int getInt(long i) { return ints[(int)(i >>> CHUNK_SHIFT)].get((int)(i & CHUNK_MASK)); }
+    final void putInt(long i, int val) { ints[(int)(i >>> CHUNK_SHIFT)].put((int)(i & CHUNK_MASK), val); }
+
+    /** Copies len values starting at i into vals, starting at off.  The values may cross from one chunk into the next.
+        The bulk methods work on a duplicate of each chunk's buffer, since the shared buffer's position isn't
+        safe to move around when several threads are reading at once. */
+    void getDoubles(long i, double[] vals, int off, int len)
+        {
+        while(len > 0)
+            {
+            DoubleBuffer buf = doubles[(int)(i >>> CHUNK_SHIFT)].duplicate();  // our own position, so concurrent calls don't collide
+            int pos = (int)(i & CHUNK_MASK);
+            int n = Math.min(len, buf.capacity() - pos);
+            buf.position(pos);
+            buf.get(vals, off, n);
+            i += n; off += n; len -= n;
+            }
+        }
+
+    /** Copies len values from vals, starting at off, to the file starting at i. */
+    void putDoubles(long i, double[] vals, int off, int len)
+        {
+        while(len > 0)
+            {
+            DoubleBuffer buf = doubles[(int)(i >>> CHUNK_SHIFT)].duplicate();  // our own position, so concurrent calls don't collide
+            int pos = (int)(i & CHUNK_MASK);
+            int n = Math.min(len, buf.capacity() - pos);
+            buf.position(pos);
+            buf.put(vals, off, n);
+            i += n; off += n; len -= n;
+            }
+        }
+
+    void getInts(long i, int[] vals, int off, int len)
+        {
+        while(len > 0)
+            {
+            IntBuffer buf = ints[(int)(i >>> CHUNK_SHIFT)].duplicate();  // our own position, so concurrent calls don't collide
+            int pos = (int)(i & CHUNK_MASK);
+            int n = Math.min(len, buf.capacity() - pos);
+            buf.position(pos);
+            buf.get(vals, off, n);
+            i += n; off += n; len -= n;
+            }
+        }
+
+    void putInts(long i, int[] vals, int off, int len)
+        {
+        while(len > 0)
+            {
+            IntBuffer buf = ints[(int)(i >>> CHUNK_SHIFT)].duplicate();  // our own position, so concurrent calls don't collide
+            int pos = (int)(i & CHUNK_MASK);
+            int n = Math.min(len, buf.capacity() - pos);
+            buf.position(pos);
+            buf.put(vals, off, n);
+            i += n; off += n; len -= n;
+            }
+        }
+
+    /** Writes any changed values back to the file. */
+    void force()
+        {
+        for(int i = 0; i < maps.length; i++)
+            maps[i].force();
+        }
+
+    /** Writes any changed values back to the file and lets go of it.  Java has no way to unmap a file on demand:
+        the mappings themselves go away when they're garbage collected. */
+    void close() throws IOException
+        {
+        force();
+        maps = null;
+        doubles = null;
+        ints = null;
+        raf.close();
+        }
+    }
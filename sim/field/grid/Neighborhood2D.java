@@ -0,0 +1,191 @@
+/*
+  Copyright 2006 by Sean Luke and George Mason University
+  Licensed under the Academic Free License version 3.0
+  See the file "LICENSE" for more information
+*/
+
+package sim.field.grid;
+
+/**
+   The shape of a neighborhood in a 2D grid, worked out once as a list of offsets from its center and then reused
+   for every lookup.  Get one with moore(...), vonNeumann(...), hexagonal(...), or radial(...): these keep the last
+   several Neighborhood2Ds they built and hand them out again for the same arguments, rather than building new ones.
+   Radial neighborhoods in particular are worth it, since otherwise each lookup tests the distance to every cell in
+   the square around the circle.
+
+   <p>Hexagonal neighborhoods have different offsets depending on whether the center is in an even or odd column,
+   so each Neighborhood2D has a list of offsets for each: getXOffsets(x) and getYOffsets(x) give you the right one.
+   The lists mustn't be modified.
+
+   <p>To look up a neighborhood, pass it to a grid's getLocations(...) or visitLocations(...) methods.  The grids'
+   visitRadialLocations(...) and visitHexagonalLocations(...) use Neighborhood2Ds themselves, and getRadialLocations(...)
+   uses them to decide which locations to keep, though it still lists them in its own order.
+*/
+
+public final class Neighborhood2D implements java.io.Serializable
+    {
+    private static final long serialVersionUID = 1;
+
+    final int shape;
+    final int reach;
+    final double radius;
+    final int measurementRule;
+    final boolean closed;
+    final int[] evenX;
+    final int[] evenY;
+    final int[] oddX;
+    final int[] oddY;
+    final int evenOrigin;  // where (0,0) is in the lists, or -1
+    final int oddOrigin;
+    final boolean[] evenIn;  // evenIn[(dx + reach) * (2 * reach + 1) + dy + reach] says whether (dx,dy) is in the neighborhood
+    final boolean[] oddIn;
+
+    // Recently built neighborhoods, in a small table indexed by a hash of their arguments.  A new neighborhood just
+    // replaces whatever was in its slot, so the table never grows.  Lookups don't lock: the worst a race can do is
+    // build the same neighborhood twice, and since all of a Neighborhood2D's fields are final, any thread that sees one
+    // in the table sees it fully built.
+    static final int CACHE_BITS = 6;
+    static final Neighborhood2D[] cache = new Neighborhood2D[1 << CACHE_BITS];
+
+    static int slot(int shape, int dist, double radius, int measurementRule, boolean closed)
+        {
+        long h = Double.doubleToLongBits(radius + 0.0) ^ ((((long) dist * 31 + shape) * 31 + measurementRule) * 2 + (closed ? 1 : 0));
+        h *= 0x9E3779B97F4A7C15L;  // spread the bits so the top ones depend on all of the arguments
+        return (int)(h >>> (64 - CACHE_BITS));
+        }
+
+    /** Returns the locations satisfying max( abs(x-X) , abs(y-Y) ) <= dist. */
+    public static Neighborhood2D moore(int dist)
+        {
+        return get(AbstractGrid2D.WALK_MOORE, dist, 0, 0, false);
+        }
+
+    /** Returns the locations satisfying abs(x-X) + abs(y-Y) <= dist. */
+    public static Neighborhood2D vonNeumann(int dist)
+        {
+        return get(AbstractGrid2D.WALK_VON_NEUMANN, dist, 0, 0, false);
+        }
+
+    /** Returns the locations within the hexagon 2*dist+1 cells from point to opposite point, as in getHexagonalLocations(...). */
+    public static Neighborhood2D hexagonal(int dist)
+        {
+        return get(AbstractGrid2D.WALK_HEXAGONAL, dist, 0, 0, false);
+        }
+
+    /** Returns the locations within dist of the center, measured with the given rule (Grid2D.ANY, Grid2D.ALL, or Grid2D.CENTER),
+        as in getRadialLocations(...). */
+    public static Neighborhood2D radial(double dist, int measurementRule, boolean closed)
+        {
+        if( dist < 0 )
+            {
+            throw new RuntimeException( "Distance must be positive" );
+            }
+        if (measurementRule != Grid2D.ANY && measurementRule != Grid2D.ALL && measurementRule != Grid2D.CENTER)
+            {
+            throw new RuntimeException(" Measurement rule must be one of ANY, ALL, or CENTER" );
+            }
+        return get(AbstractGrid2D.WALK_RADIAL, (int) Math.ceil(dist + 0.5), dist, measurementRule, closed);
+        }
+
+    static Neighborhood2D get(int shape, int dist, double radius, int measurementRule, boolean closed)
+        {
+        if( dist < 0 )
+            {
+            throw new RuntimeException( "Distance must be positive" );
+            }
+        int slot = slot(shape, dist, radius, measurementRule, closed);
+        Neighborhood2D n = cache[slot];
+        if (n != null && n.shape == shape && n.reach == dist && n.radius == radius && n.measurementRule == measurementRule && n.closed == closed)
+            return n;
+        n = new Neighborhood2D(shape, dist, radius, measurementRule, closed);
+        cache[slot] = n;
+        return n;
+        }
+
+    Neighborhood2D(int shape, int dist, double radius, int measurementRule, boolean closed)
+        {
+        this.shape = shape;
+        reach = dist;
+        this.radius = radius;
+        this.measurementRule = measurementRule;
+        this.closed = closed;
+        int[][] even = offsets(shape, dist, radius, measurementRule, closed, 0);
+        evenX = even[0];
+        evenY = even[1];
+        if (shape == AbstractGrid2D.WALK_HEXAGONAL)
+            {
+            int[][] odd = offsets(shape, dist, radius, measurementRule, closed, 1);
+            oddX = odd[0];
+            oddY = odd[1];
+            }
+        else
+            {
+            oddX = evenX;
+            oddY = evenY;
+            }
+        evenOrigin = indexOfOrigin(evenX, evenY);
+        oddOrigin = indexOfOrigin(oddX, oddY);
+        evenIn = members(dist, evenX, evenY);
+        oddIn = (oddX == evenX ? evenIn : members(dist, oddX, oddY));
+        }
+
+    // Lists the offsets of the neighborhood around (x,0), column by column.  Hexagons go through the columns
+    // the same way getHexagonalLocations(...) always has: the center column, then out to the left, then out to the right.
+    static int[][] offsets(int shape, int dist, double radius, int measurementRule, boolean closed, int x)
+        {
+        int n = 0;
+        int[] xs = new int[(2 * dist + 1) * (2 * dist + 1)];
+        int[] ys = new int[xs.length];
+        double distsq = radius * radius;
+        for(int i = 0; i < 2 * dist + 1; i++)
+            {
+            int dx;
+            if (shape != AbstractGrid2D.WALK_HEXAGONAL) dx = i - dist;
+            else if (i == 0) dx = 0;
+            else if (i <= dist) dx = -i;
+            else dx = i - dist;
+            for(int dy = -dist; dy <= dist; dy++)
+                if (AbstractGrid2D.inShape(x, 0, shape, dist, radius, distsq, measurementRule, closed, x + dx, dy))
+                    { xs[n] = dx; ys[n] = dy; n++; }
+            }
+        int[][] result = new int[2][n];
+        System.arraycopy(xs, 0, result[0], 0, n);
+        System.arraycopy(ys, 0, result[1], 0, n);
+        return result;
+        }
+
+    static int indexOfOrigin(int[] xs, int[] ys)
+        {
+        for(int i = 0; i < xs.length; i++)
+            if (xs[i] == 0 && ys[i] == 0) return i;
+        return -1;
+        }
+
+    static boolean[] members(int dist, int[] xs, int[] ys)
+        {
+        int side = 2 * dist + 1;
+        boolean[] in = new boolean[side * side];
+        for(int i = 0; i < xs.length; i++)
+            in[(xs[i] + dist) * side + ys[i] + dist] = true;
+        return in;
+        }
+
+    // Is (dx,dy) one of the offsets when centered in column x?
+    boolean contains(int x, int dx, int dy)
+        {
+        if (dx < -reach || dx > reach || dy < -reach || dy > reach) return false;
+        return ((x & 1) == 0 ? evenIn : oddIn)[(dx + reach) * (2 * reach + 1) + dy + reach];
+        }
+
+    /** Returns how far, in x or y, the furthest location in the neighborhood is from its center. */
+    public int getReach() { return reach; }
+
+    /** Returns the number of locations in the neighborhood, including the center if it's there, when centered in column x. */
+    public int size(int x) { return ((x & 1) == 0 ? evenX.length : oddX.length); }
+
+    /** Returns the x offsets of the locations in the neighborhood when centered in column x.  Don't modify this array. */
+    public int[] getXOffsets(int x) { return ((x & 1) == 0 ? evenX : oddX); }
+
+    /** Returns the y offsets of the locations in the neighborhood when centered in column x.  Don't modify this array. */
+    public int[] getYOffsets(int x) { return ((x & 1) == 0 ? evenY : oddY); }
+    }
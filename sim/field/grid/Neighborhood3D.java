@@ -0,0 +1,157 @@
+/*
+  Copyright 2006 by Sean Luke and George Mason University
+  Licensed under the Academic Free License version 3.0
+  See the file "LICENSE" for more information
+*/
+
+package sim.field.grid;
+
+/**
+   The shape of a neighborhood in a 3D grid, worked out once as a list of offsets from its center and then reused
+   for every lookup, just like Neighborhood2D.  Get one with moore(...), vonNeumann(...), or radial(...): these keep
+   the last several Neighborhood3Ds they built and hand them out again for the same arguments, rather than building new ones.
+
+   <p>To look up a neighborhood, pass it to a grid's getLocations(...) or visitLocations(...) methods.  The grids'
+   visitRadialLocations(...) uses Neighborhood3Ds itself, and getRadialLocations(...) uses them to decide which
+   locations to keep, though it still lists them in its own order.
+*/
+
+public final class Neighborhood3D implements java.io.Serializable
+    {
+    private static final long serialVersionUID = 1;
+
+    final int shape;
+    final int reach;
+    final double radius;
+    final int measurementRule;
+    final boolean closed;
+    final int[] xs;
+    final int[] ys;
+    final int[] zs;
+    final int origin;  // where (0,0,0) is in the lists, or -1
+    final boolean[] in;  // in[((dx + reach) * (2 * reach + 1) + dy + reach) * (2 * reach + 1) + dz + reach] says whether (dx,dy,dz) is in the neighborhood
+
+    // Recently built neighborhoods, in a small table indexed by a hash of their arguments.  A new neighborhood just
+    // replaces whatever was in its slot, so the table never grows.  Lookups don't lock: the worst a race can do is
+    // build the same neighborhood twice, and since all of a Neighborhood3D's fields are final, any thread that sees one
+    // in the table sees it fully built.
+    static final int CACHE_BITS = 6;
+    static final Neighborhood3D[] cache = new Neighborhood3D[1 << CACHE_BITS];
+
+    static int slot(int shape, int dist, double radius, int measurementRule, boolean closed)
+        {
+        long h = Double.doubleToLongBits(radius + 0.0) ^ ((((long) dist * 31 + shape) * 31 + measurementRule) * 2 + (closed ? 1 : 0));
+        h *= 0x9E3779B97F4A7C15L;  // spread the bits so the top ones depend on all of the arguments
+        return (int)(h >>> (64 - CACHE_BITS));
+        }
+
+    /** Returns the locations satisfying max( abs(x-X) , abs(y-Y), abs(z-Z) ) <= dist. */
+    public static Neighborhood3D moore(int dist)
+        {
+        return get(AbstractGrid3D.WALK_MOORE, dist, 0, 0, false);
+        }
+
+    /** Returns the locations satisfying abs(x-X) + abs(y-Y) + abs(z-Z) <= dist. */
+    public static Neighborhood3D vonNeumann(int dist)
+        {
+        return get(AbstractGrid3D.WALK_VON_NEUMANN, dist, 0, 0, false);
+        }
+
+    /** Returns the locations within dist of the center, measured with the given rule (Grid3D.ANY, Grid3D.ALL, or Grid3D.CENTER),
+        as in getRadialLocations(...). */
+    public static Neighborhood3D radial(double dist, int measurementRule, boolean closed)
+        {
+        if( dist < 0 )
+            {
+            throw new RuntimeException( "Distance must be positive" );
+            }
+        if (measurementRule != Grid3D.ANY && measurementRule != Grid3D.ALL && measurementRule != Grid3D.CENTER)
+            {
+            throw new RuntimeException(" Measurement rule must be one of ANY, ALL, or CENTER" );
+            }
+        return get(AbstractGrid3D.WALK_RADIAL, (int) Math.ceil(dist + 0.5), dist, measurementRule, closed);
+        }
+
+    static Neighborhood3D get(int shape, int dist, double radius, int measurementRule, boolean closed)
+        {
+        if( dist < 0 )
+            {
+            throw new RuntimeException( "Distance must be positive" );
+            }
+        int slot = slot(shape, dist, radius, measurementRule, closed);
+        Neighborhood3D n = cache[slot];
+        if (n != null && n.shape == shape && n.reach == dist && n.radius == radius && n.measurementRule == measurementRule && n.closed == closed)
+            return n;
+        n = new Neighborhood3D(shape, dist, radius, measurementRule, closed);
+        cache[slot] = n;
+        return n;
+        }
+
+    Neighborhood3D(int shape, int dist, double radius, int measurementRule, boolean closed)
+        {
+        this.shape = shape;
+        reach = dist;
+        this.radius = radius;
+        this.measurementRule = measurementRule;
+        this.closed = closed;
+
+        // list the offsets x, then y, then z
+        int side = 2 * dist + 1;
+        int[] x = new int[side * side * side];
+        int[] y = new int[x.length];
+        int[] z = new int[x.length];
+        in = new boolean[x.length];
+        int n = 0;
+        int o = -1;
+        double distsq = radius * radius;
+        for(int dx = -dist; dx <= dist; dx++)
+            for(int dy = -dist; dy <= dist; dy++)
+                for(int dz = -dist; dz <= dist; dz++)
+                    if (AbstractGrid3D.inShape(0, 0, 0, shape, dist, radius, distsq, measurementRule, closed, dx, dy, dz))
+                        {
+                        if (dx == 0 && dy == 0 && dz == 0) o = n;
+                        x[n] = dx; y[n] = dy; z[n] = dz; n++;
+                        in[((dx + dist) * side + dy + dist) * side + dz + dist] = true;
+                        }
+        xs = new int[n];
+        ys = new int[n];
+        zs = new int[n];
+        System.arraycopy(x, 0, xs, 0, n);
+        System.arraycopy(y, 0, ys, 0, n);
+        System.arraycopy(z, 0, zs, 0, n);
+        origin = o;
+        }
+
+    // Is (dx,dy,dz) one of the offsets?
+    boolean contains(int dx, int dy, int dz)
+        {
+        if (dx < -reach || dx > reach || dy < -reach || dy > reach || dz < -reach || dz > reach) return false;
+        int side = 2 * reach + 1;
+        return in[((dx + reach) * side + dy + reach) * side + dz + reach];
+        }
+
+    // Is (dx,dy,dz), or any other offset which wraps around a width x height x length toroidal grid onto the same place, one of the offsets?
+    boolean containsWrapped(int dx, int dy, int dz, int width, int height, int length)
+        {
+        for(int i = AbstractGrid2D.wrap(dx + reach, width) - reach; i <= reach; i += width)
+            for(int j = AbstractGrid2D.wrap(dy + reach, height) - reach; j <= reach; j += height)
+                for(int k = AbstractGrid2D.wrap(dz + reach, length) - reach; k <= reach; k += length)
+                    if (contains(i, j, k)) return true;
+        return false;
+        }
+
+    /** Returns how far, in x, y, or z, the furthest location in the neighborhood is from its center. */
+    public int getReach() { return reach; }
+
+    /** Returns the number of locations in the neighborhood, including the center if it's there. */
+    public int size() { return xs.length; }
+
+    /** Returns the x offsets of the locations in the neighborhood.  Don't modify this array. */
+    public int[] getXOffsets() { return xs; }
+
+    /** Returns the y offsets of the locations in the neighborhood.  Don't modify this array. */
+    public int[] getYOffsets() { return ys; }
+
+    /** Returns the z offsets of the locations in the neighborhood.  Don't modify this array. */
+    public int[] getZOffsets() { return zs; }
+    }
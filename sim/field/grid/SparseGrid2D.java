@@ -53,6 +53,9 @@ public class SparseGrid2D extends SparseField implements Grid2D, SparseField2D
     protected int width;
     protected int height;
     
+    boolean usesCellMap = false;
+    boolean usesDenseCells = false;
+    
     public SparseGrid2D(int width, int height)
         {
         this.width = width;
@@ -64,6 +67,48 @@ public class SparseGrid2D extends SparseField implements Grid2D, SparseField2D
         super(values);
         width = values.width;
         height = values.height;
+        if (values.usesCellMap) setUsesCellMap(true);
+        if (values.usesDenseCells) setUsesDenseCells(true);
+        }
+    
+    /** Sets whether the bags of objects at each location are kept in a CellMap, which packs each location
+        into a long, rather than in a HashMap keyed by Int2D.  Looking up a location then calls no hashCode() or equals()
+        methods, and numObjectsAtLocation(x, y) and getObjectsAtLocation(x, y) don't need to make an Int2D at all.
+        The default is false. */
+    public void setUsesCellMap(boolean val)
+        {
+        if (val == usesCellMap) return;
+        usesCellMap = val;
+        Map old = objectHash;
+        objectHash = buildObjectHash(old.size());
+        objectHash.putAll(old);
+        }
+
+    /** Returns whether the bags of objects at each location are kept in a CellMap. */
+    public boolean getUsesCellMap() { return usesCellMap; }
+
+    /** Sets whether the bags of objects at each location within the width and height of the grid
+        are kept in a flat array, a DenseCellMap, rather than being hashed.  Looking up a location is then just an array access,
+        but the array takes one reference per location whether it's occupied or not, so this only makes sense for
+        grids which aren't too big or are reasonably full.  Objects outside the bounds are still found, just more slowly.
+        This overrides setUsesCellMap(...).  The default is false.  If you change the width or height later, call this
+        again to resize the array. */
+    public void setUsesDenseCells(boolean val)
+        {
+        usesDenseCells = val;
+        Map old = objectHash;
+        objectHash = buildObjectHash(old.size());
+        objectHash.putAll(old);
+        }
+
+    /** Returns whether the bags of objects at each location are kept in a DenseCellMap. */
+    public boolean getUsesDenseCells() { return usesDenseCells; }
+
+    public Map buildObjectHash(int size)
+        {
+        if (usesDenseCells) return new DenseCellMap(width, height);
+        if (usesCellMap) return new CellMap(2, size);
+        return super.buildObjectHash(size);
         }
     
     /** Returns the width of the grid */
@@ -217,6 +262,13 @@ public class SparseGrid2D extends SparseField implements Grid2D, SparseField2D
     /** Returns the number of objects stored in the grid at the given location. */
     public int numObjectsAtLocation(final int x, final int y)
         {
+        if (objectHash instanceof CellMap)  // numObjectsAtLocation(Object) is final, so this is always the same thing
+            {
+            Bag b = (Bag)(((CellMap)objectHash).get(x, y));
+            if (b == null) return 0;
+            assert sim.util.LocationLog.it(this, new Int2D(x,y));
+            return b.numObjs;
+            }
         return numObjectsAtLocation(new Int2D(x,y));
         }
 
@@ -229,6 +281,13 @@ public class SparseGrid2D extends SparseField implements Grid2D, SparseField2D
     */
     public Bag getObjectsAtLocation(final int x, final int y)
         {
+        if (objectHash instanceof CellMap && getObjectsAtLocationIsRaw())  // else go through the override
+            {
+            Bag b = (Bag)(((CellMap)objectHash).get(x, y));
+            if (b == null || b.numObjs == 0) return null;
+            assert sim.util.LocationLog.it(this, new Int2D(x,y));
+            return b;
+            }
         return getObjectsAtLocation(new Int2D(x,y));
         }
 
@@ -256,7 +315,14 @@ public class SparseGrid2D extends SparseField implements Grid2D, SparseField2D
         if the object is null (null objects cannot be put into the grid). */
     public boolean setObjectLocation(final Object obj, final int x, final int y)
         {
-        return super.setObjectLocation(obj,new Int2D(x,y));
+        if (obj == null) return false;
+        LocationAndIndex lai = (LocationAndIndex)(locationAndIndexHash.get(obj));
+        if (lai != null)  // don't bother making an Int2D if it's not going anywhere
+            {
+            Int2D loc = (Int2D)(lai.getLocation());
+            if (loc.x == x && loc.y == y) return true;
+            }
+        return super.setObjectLocation(obj, lai, new Int2D(x,y));
         }
     
     /** Changes the location of an object, or adds if it doesn't exist yet.  Returns false
@@ -265,6 +331,18 @@ public class SparseGrid2D extends SparseField implements Grid2D, SparseField2D
         {
         return super.setObjectLocation(obj, location);
         }
+
+    /** Stages a move of the object to the location, or its addition, to happen when commitObjectLocations() is called. */
+    public void stageObjectLocation(final Object obj, final int x, final int y)
+        {
+        super.stageObjectLocation(obj, new Int2D(x,y));
+        }
+
+    /** Stages a move of the object to the location, or its addition, to happen when commitObjectLocations() is called. */
+    public void stageObjectLocation(Object obj, final Int2D location)
+        {
+        super.stageObjectLocation(obj, location);
+        }
         
 
 
@@ -467,6 +545,11 @@ public class SparseGrid2D extends SparseField implements Grid2D, SparseField2D
         getHexagonalLocations(x, y, dist, toroidal ? TOROIDAL : BOUNDED, true, xPos, yPos);
         }
 
+    /**
+     * Gets the locations in a hexagon centered at (X,Y), as described in Grid2D.getHexagonalLocations(...).
+     * In unbounded mode, the columns to the left of x=0 and the right of x=width-1 used to be left out as
+     * if the mode were bounded: they're included now.
+     */
     public void getHexagonalLocations( final int x, final int y, final int dist, int mode, boolean includeOrigin, IntBag xPos, IntBag yPos )
         {
         boolean toroidal = (mode == TOROIDAL);
@@ -594,7 +677,7 @@ public class SparseGrid2D extends SparseField implements Grid2D, SparseField2D
     
                 // yuBound =  (( ymax<height  || !bounded) ? ymax : height-1);
 
-                if( x0 >= 0 )
+                if( x0 >= 0 || !bounded )
                     for( int y0 = ylBound ; y0 <= yuBound ; y0 = downy(x0,y0) )
                         {
                         if( y0 >= 0 || !bounded )
@@ -620,7 +703,7 @@ public class SparseGrid2D extends SparseField implements Grid2D, SparseField2D
                 
                 // yuBound =  ((ymax<height) || !bounded ?ymax:height);
                 
-                if( x0 < width )
+                if( x0 < width || !bounded )
                     for( int y0 = ymin ; y0 <= yuBound; y0 = downy(x0,y0) )
                         {
                         if( y0 >= 0 || !bounded )
@@ -1180,131 +1263,103 @@ public class SparseGrid2D extends SparseField implements Grid2D, SparseField2D
 
 
 
-    double ds(double d1x, double d1y, double d2x, double d2y)
-        {
-        return ((d1x - d2x) * (d1x - d2x) + (d1y - d2y) * (d1y - d2y));
-        }
-    
-    boolean within(double d1x, double d1y, double d2x, double d2y, double distanceSquared, boolean closed)
-        {
-        double d= ds(d1x, d1y, d2x, d2y);
-        return (d < distanceSquared || (d == distanceSquared && closed));
-        }
-        
     public void getRadialLocations( final int x, final int y, final double dist, int mode, boolean includeOrigin, IntBag xPos, IntBag yPos )
         {
         getRadialLocations(x, y, dist, mode, includeOrigin, Grid2D.ANY, true, xPos, yPos);
         }
         
+    /**
+     * Gets the locations in a circle centered at (X,Y), as described in Grid2D.getRadialLocations(...).
+     * The locations come out in the same order they always have, with two deliberate fixes to toroidal
+     * neighborhoods.  Locations off the top or bottom of the grid used to be wrapped around by its width
+     * rather than its height, and neighborhoods so big that they wrap around onto themselves used to include
+     * some locations more than once.
+     */
     public void getRadialLocations( final int x, final int y, final double dist, int mode, boolean includeOrigin, int measurementRule, boolean closed, IntBag xPos, IntBag yPos )
         {
-        boolean toroidal = (mode == TOROIDAL);
-
-        // won't work for negative distances
-        if( dist < 0 )
-            {
-            throw new RuntimeException( "Distance must be positive" );
-            }
-            
-        if (measurementRule != Grid2D.ANY && measurementRule != Grid2D.ALL && measurementRule != Grid2D.CENTER)
+        if( xPos == null || yPos == null )
             {
-            throw new RuntimeException(" Measurement rule must be one of ANY, ALL, or CENTER" );
+            throw new RuntimeException( "xPos and yPos should not be null" );
             }
-                
+
+        Neighborhood2D neighborhood = Neighborhood2D.radial(dist, measurementRule, closed);
+        
         // grab the rectangle
-        if (toroidal)
-            getMooreLocations(x,y, (int) Math.ceil(dist + 0.5), UNBOUNDED, includeOrigin, xPos, yPos);
+        if (mode == TOROIDAL)
+            getMooreLocations(x, y, neighborhood.reach, UNBOUNDED, includeOrigin, xPos, yPos);
         else
-            getMooreLocations(x,y, (int) Math.ceil(dist + 0.5), mode, includeOrigin, xPos, yPos);
-        int len = xPos.size();
-        double distsq = dist * dist;
-        
-        int width = this.width;
-        int height = this.height;
-        int widthtimestwo = width * 2;
-        int heighttimestwo = height * 2;
-        
-        for(int i = 0; i < len; i++)
+            getMooreLocations(x, y, neighborhood.reach, mode, includeOrigin, xPos, yPos);
+        AbstractGrid2D.keepRadial(this, x, y, neighborhood, mode, includeOrigin, xPos, yPos);
+        }
+
+    /**
+     * Gets the locations in the given neighborhood of (x,y) and places them into xPos and yPos, which are cleared first.
+     * The modes work as they do in getMooreLocations(...), and toroidal locations will not be included more than once.
+     * Neighborhood2Ds are worked out once and then reused, so this is a good deal faster than getRadialLocations(...)
+     * if you hang onto one and use it over and over.
+     *
+     * <p>You can also opt to include the origin -- that is, the (x,y) point at the center of the neighborhood -- in the neighborhood results.
+     */
+    public void getLocations( final int x, final int y, Neighborhood2D neighborhood, int mode, boolean includeOrigin, IntBag xPos, IntBag yPos )
+        {
+        if( xPos == null || yPos == null )
             {
-            int xp = xPos.get(i);
-            int yp = yPos.get(i);
-            boolean remove = false;
-                
-            if (measurementRule == Grid2D.ANY)
-                {
-                if (x == xp)
-                    {
-                    if (y < yp)
-                        {
-                        double d = (yp - 0.5) -  y;
-                        remove = !(d < dist || (d == dist && closed));
-                        }
-                    else
-                        {
-                        double d = -((yp - 0.5) - y);
-                        remove = !(d < dist || (d == dist && closed));
-                        }
-                    }
-                else if (y == yp)
-                    {
-                    if (x < xp)
-                        {
-                        double d = (xp - 0.5) - x;
-                        remove = !(d < dist || (d == dist && closed));
-                        }
-                    else
-                        {
-                        double d = -((xp - 0.5) - x);
-                        remove = !(d < dist || (d == dist && closed));
-                        }
-                    }
-                if (x < xp)
-                    {
-                    if (y < yp)
-                        remove = !within(x,y,xp-0.5,yp-0.5,distsq,closed);
-                    else
-                        remove = !within(x,y,xp-0.5,yp+0.5,distsq,closed);
-                    }
-                else
-                    {
-                    if (y < yp)
-                        remove = !within(x,y,xp+0.5,yp-0.5,distsq,closed);
-                    else
-                        remove = !within(x,y,xp+0.5,yp+0.5,distsq,closed);
-                    }
-                }
-            else if (measurementRule == Grid2D.ALL)
-                {
-                if (x < xp)
-                    {
-                    if (y < yp)
-                        remove = !within(x,y,xp+0.5,yp+0.5,distsq,closed);
-                    else
-                        remove = !within(x,y,xp+0.5,yp-0.5,distsq,closed);
-                    }
-                else
-                    {
-                    if (y < yp)
-                        remove = !within(x,y,xp-0.5,yp+0.5,distsq,closed);
-                    else
-                        remove = !within(x,y,xp-0.5,yp-0.5,distsq,closed);
-                    }
-                }
-            else // (measurementRule == Grid2D.CENTER)
-                {
-                remove = !within(x,y,xp,yp,distsq,closed);
-                }
-                
-            if (remove)
-                { xPos.remove(i); yPos.remove(i); i--;  len--; }
-            else if (toroidal) // need to convert to toroidal position
-                { 
-                int _x = xPos.get(i);
-                int _y = yPos.get(i);
-                xPos.set(i, tx(_x, width, widthtimestwo, _x + width, _x - width));
-                yPos.set(i, tx(_y, height, heighttimestwo, _y + width, _y - width));
-                }
+            throw new RuntimeException( "xPos and yPos should not be null" );
             }
+        xPos.clear();
+        yPos.clear();
+        AbstractGrid2D.walk(width, height, x, y, neighborhood, mode, includeOrigin, null, xPos, yPos);
+        }
+
+    /**
+     * Shows the visitor, one at a time, each of the locations getLocations(...) would have put into xPos and yPos,
+     * in the same fashion as visitMooreLocations(...).
+     */
+    public boolean visitLocations( final int x, final int y, Neighborhood2D neighborhood, int mode, boolean includeOrigin, LocationVisitor2D visitor )
+        {
+        if( visitor == null )
+            {
+            throw new RuntimeException( "visitor should not be null" );
+            }
+        return AbstractGrid2D.walk(width, height, x, y, neighborhood, mode, includeOrigin, visitor, null, null);
+        }
+
+    /**
+     * Shows the visitor, one at a time, each of the locations getMooreLocations(...) would have put into xPos and yPos,
+     * column by column, without making or filling any IntBags.  The modes work as they do in getMooreLocations(...), and
+     * toroidal locations will not be shown more than once.  If the visitor returns false, the walk stops there.
+     * Returns false if the visitor stopped the walk, else true.
+     */
+    public boolean visitMooreLocations( final int x, final int y, final int dist, int mode, boolean includeOrigin, LocationVisitor2D visitor )
+        {
+        return AbstractGrid2D.walk(width, height, x, y, AbstractGrid2D.WALK_MOORE, dist, mode, includeOrigin, visitor);
+        }
+
+    /**
+     * Shows the visitor, one at a time, each of the locations getVonNeumannLocations(...) would have put into xPos and yPos,
+     * in the same fashion as visitMooreLocations(...).
+     */
+    public boolean visitVonNeumannLocations( final int x, final int y, final int dist, int mode, boolean includeOrigin, LocationVisitor2D visitor )
+        {
+        return AbstractGrid2D.walk(width, height, x, y, AbstractGrid2D.WALK_VON_NEUMANN, dist, mode, includeOrigin, visitor);
+        }
+
+    /**
+     * Shows the visitor, one at a time, each of the locations getHexagonalLocations(...) would have put into xPos and yPos,
+     * in the same fashion as visitLocations(...).  These are the same locations, but they may come in a different order.
+     */
+    public boolean visitHexagonalLocations( final int x, final int y, final int dist, int mode, boolean includeOrigin, LocationVisitor2D visitor )
+        {
+        return visitLocations(x, y, Neighborhood2D.hexagonal(dist), mode, includeOrigin, visitor);
+        }
+
+    /**
+     * Shows the visitor, one at a time, each of the locations getRadialLocations(...) would have put into xPos and yPos,
+     * in the same fashion as visitLocations(...).  These are the same locations, but they may come in a different order.
+     */
+    public boolean visitRadialLocations( final int x, final int y, final double dist, int mode, boolean includeOrigin, int measurementRule, boolean closed, LocationVisitor2D visitor )
+        {
+        return visitLocations(x, y, Neighborhood2D.radial(dist, measurementRule, closed), mode, includeOrigin, visitor);
         }
 
 
@@ -54,6 +54,8 @@ public class SparseGrid3D extends SparseField implements Grid3D, SparseField3D
     protected int height;
     protected int length;
     
+    boolean usesCellMap = false;
+    
     public SparseGrid3D(int width, int height, int length)
         {
         this.width = width;
@@ -67,6 +69,29 @@ public class SparseGrid3D extends SparseField implements Grid3D, SparseField3D
         width = values.width;
         height = values.height;
         length = values.length;
+        if (values.usesCellMap) setUsesCellMap(true);
+        }
+
+    /** Sets whether the bags of objects at each location are kept in a CellMap, which packs each location
+        into a long, rather than in a HashMap keyed by Int3D.  Looking up a location then calls no hashCode() or equals()
+        methods, and numObjectsAtLocation(x, y, z) and getObjectsAtLocation(x, y, z) don't need to make an Int3D at all.
+        The default is false. */
+    public void setUsesCellMap(boolean val)
+        {
+        if (val == usesCellMap) return;
+        usesCellMap = val;
+        Map old = objectHash;
+        objectHash = buildObjectHash(old.size());
+        objectHash.putAll(old);
+        }
+
+    /** Returns whether the bags of objects at each location are kept in a CellMap. */
+    public boolean getUsesCellMap() { return usesCellMap; }
+
+    public Map buildObjectHash(int size)
+        {
+        if (usesCellMap) return new CellMap(3, size);
+        return super.buildObjectHash(size);
         }
 
     /** Returns the width of the grid */
@@ -166,6 +191,13 @@ public class SparseGrid3D extends SparseField implements Grid3D, SparseField3D
     /** Returns the number of objects stored in the grid at the given location. */
     public int numObjectsAtLocation(final int x, final int y, final int z)
         {
+        if (objectHash instanceof CellMap)  // numObjectsAtLocation(Object) is final, so this is always the same thing
+            {
+            Bag b = (Bag)(((CellMap)objectHash).get(x, y, z));
+            if (b == null) return 0;
+            assert sim.util.LocationLog.it(this, new Int3D(x,y,z));
+            return b.numObjs;
+            }
         return numObjectsAtLocation(new Int3D(x,y,z));
         }
 
@@ -179,6 +211,13 @@ public class SparseGrid3D extends SparseField implements Grid3D, SparseField3D
     */
     public Bag getObjectsAtLocation(final int x, final int y, final int z)
         {
+        if (objectHash instanceof CellMap && getObjectsAtLocationIsRaw())  // else go through the override
+            {
+            Bag b = (Bag)(((CellMap)objectHash).get(x, y, z));
+            if (b == null || b.numObjs == 0) return null;
+            assert sim.util.LocationLog.it(this, new Int3D(x,y,z));
+            return b;
+            }
         return getObjectsAtLocation(new Int3D(x,y,z));
         }
 
@@ -206,7 +245,14 @@ public class SparseGrid3D extends SparseField implements Grid3D, SparseField3D
         if the object is null (null objects cannot be put into the grid). */
     public boolean setObjectLocation(final Object obj, final int x, final int y, final int z)
         {
-        return super.setObjectLocation(obj,new Int3D(x,y,z));
+        if (obj == null) return false;
+        LocationAndIndex lai = (LocationAndIndex)(locationAndIndexHash.get(obj));
+        if (lai != null)  // don't bother making an Int3D if it's not going anywhere
+            {
+            Int3D loc = (Int3D)(lai.getLocation());
+            if (loc.x == x && loc.y == y && loc.z == z) return true;
+            }
+        return super.setObjectLocation(obj, lai, new Int3D(x,y,z));
         }
 
     /** Changes the location of an object, or adds if it doesn't exist yet.  Returns false
@@ -216,6 +262,18 @@ public class SparseGrid3D extends SparseField implements Grid3D, SparseField3D
         return super.setObjectLocation(obj, location);
         }
 
+    /** Stages a move of the object to the location, or its addition, to happen when commitObjectLocations() is called. */
+    public void stageObjectLocation(final Object obj, final int x, final int y, final int z)
+        {
+        super.stageObjectLocation(obj, new Int3D(x,y,z));
+        }
+
+    /** Stages a move of the object to the location, or its addition, to happen when commitObjectLocations() is called. */
+    public void stageObjectLocation(Object obj, final Int3D location)
+        {
+        super.stageObjectLocation(obj, location);
+        }
+
     // this internal version of tx is arranged to be 34 bytes.  It first tries stx, then tx.
     int tx(int x, int width, int widthtimestwo, int xpluswidth, int xminuswidth) 
         {
@@ -863,196 +921,93 @@ public class SparseGrid3D extends SparseField implements Grid3D, SparseField3D
 
 
 
-    double ds(double d1x, double d1y, double d1z, double d2x, double d2y, double d2z)
-        {
-        return ((d1x - d2x) * (d1x - d2x) + (d1y - d2y) * (d1y - d2y) + (d1z - d2z) * (d1z - d2z));
-        }
-    
-    boolean within(double d1x, double d1y, double d1z, double d2x, double d2y, double d2z, double distanceSquared, boolean closed)
-        {
-        double d= ds(d1x, d1y, d1z, d2x, d2y, d2z);
-        return (d < distanceSquared || (d == distanceSquared && closed));
-        }
-
     public void getRadialLocations( final int x, final int y, final int z, final double dist, int mode, boolean includeOrigin, IntBag xPos, IntBag yPos, IntBag zPos )
         {
         getRadialLocations(x, y, z, dist, mode, includeOrigin, Grid2D.ANY, true, xPos, yPos, zPos);
         }
         
+    /**
+     * Gets the locations in a spherical region centered at (X,Y,Z), as described in Grid3D.getRadialLocations(...).
+     * The locations come out in the same order they always have, with two deliberate fixes.  First, toroidal
+     * distances are measured the short way around the grid: they used to be measured after the locations had been
+     * wrapped around, so locations near the edges of the grid were wrongly left out or kept.  Second, if
+     * includeOrigin is true, the origin is now included: SparseGrid3D's getMooreLocations(...) always leaves it
+     * out, and so this method always used to as well.  It's added at the end.
+     */
     public void getRadialLocations( final int x, final int y, final int z, final double dist, int mode, boolean includeOrigin, int measurementRule, boolean closed, IntBag xPos, IntBag yPos, IntBag zPos )
         {
-        boolean toroidal = (mode == TOROIDAL);
-
-        // won't work for negative distances
-        if( dist < 0 )
-            {
-            throw new RuntimeException( "Distance must be positive" );
-            }
-            
-        if (measurementRule != Grid2D.ANY && measurementRule != Grid2D.ALL && measurementRule != Grid2D.CENTER)
+        if( xPos == null || yPos == null || zPos == null )
             {
-            throw new RuntimeException(" Measurement rule must be one of ANY, ALL, or CENTER" );
+            throw new RuntimeException( "xPos and yPos and zPos should not be null" );
             }
-                
-        // grab the rectangle
-        getMooreLocations(x,y, z, (int) Math.ceil(dist + 0.5), mode, includeOrigin, xPos, yPos, zPos);
-        int len = xPos.size();
-        double distsq = dist * dist;
-        
 
-        int width = this.width;
-        int height = this.height;
-        int length = this.length;
-        int widthtimestwo = width * 2;
-        int heighttimestwo = height * 2;
-        int lengthtimestwo = length * 2;
+        Neighborhood3D neighborhood = Neighborhood3D.radial(dist, measurementRule, closed);
         
+        // grab the rectangle
+        getMooreLocations(x, y, z, neighborhood.reach, mode, includeOrigin, xPos, yPos, zPos);
+        AbstractGrid3D.keepRadial(this, x, y, z, neighborhood, mode, includeOrigin, xPos, yPos, zPos);
+        }
 
-        for(int i = 0; i < len; i++)
+    /**
+     * Gets the locations in the given neighborhood of (x,y,z) and places them into xPos, yPos, and zPos, which are cleared first.
+     * The modes work as they do in getMooreLocations(...), and toroidal locations will not be included more than once.
+     * Neighborhood3Ds are worked out once and then reused, so this is a good deal faster than getRadialLocations(...)
+     * if you hang onto one and use it over and over.
+     *
+     * <p>You can also opt to include the origin -- that is, the (x,y,z) point at the center of the neighborhood -- in the neighborhood results.
+     */
+    public void getLocations( final int x, final int y, final int z, Neighborhood3D neighborhood, int mode, boolean includeOrigin, IntBag xPos, IntBag yPos, IntBag zPos )
+        {
+        if( xPos == null || yPos == null || zPos == null )
             {
-            int xp = xPos.get(i);
-            int yp = yPos.get(i);
-            int zp = zPos.get(i);
-            boolean remove = false;
-                
-            if (measurementRule == Grid2D.ANY)
-                {
-                if (z == zp)
-                    {
-                    if (x == xp)
-                        {
-                        if (y < yp)
-                            {
-                            double d = (yp - 0.5) -  y;
-                            remove = !(d < dist || (d == dist && closed));
-                            }
-                        else
-                            {
-                            double d = -((yp - 0.5) - y);
-                            remove = !(d < dist || (d == dist && closed));
-                            }
-                        }
-                    else if (y == yp)
-                        {
-                        if (x < xp)
-                            {
-                            double d = (xp - 0.5) - x;
-                            remove = !(d < dist || (d == dist && closed));
-                            }
-                        else
-                            {
-                            double d = -((xp - 0.5) - x);
-                            remove = !(d < dist || (d == dist && closed));
-                            }
-                        }
-                    }
-                else if (x == xp)
-                    {
-                    if (y == yp)
-                        {
-                        if (z  < zp)
-                            {
-                            double d = (zp - 0.5) -  z;
-                            remove = !(d < dist || (d == dist && closed));
-                            }
-                        else
-                            {
-                            double d = -((zp - 0.5) - z);
-                            remove = !(d < dist || (d == dist && closed));
-                            }
-                        }
-                    }
-                else if (z < zp)
-                    {
-                    if (x < xp)
-                        {
-                        if (y < yp)
-                            remove = !within(x,y,z,xp-0.5,yp-0.5,zp-0.5,distsq,closed);
-                        else
-                            remove = !within(x,y,z,xp-0.5,yp+0.5,zp-0.5,distsq,closed);
-                        }
-                    else
-                        {
-                        if (y < yp)
-                            remove = !within(x,y,z,xp+0.5,yp-0.5,zp-0.5,distsq,closed);
-                        else
-                            remove = !within(x,y,z,xp+0.5,yp+0.5,zp-0.5,distsq,closed);
-                        }
-                    }
-                else
-                    {
-                    if (x < xp)
-                        {
-                        if (y < yp)
-                            remove = !within(x,y,z,xp-0.5,yp-0.5,zp+0.5,distsq,closed);
-                        else
-                            remove = !within(x,y,z,xp-0.5,yp+0.5,zp+0.5,distsq,closed);
-                        }
-                    else
-                        {
-                        if (y < yp)
-                            remove = !within(x,y,z,xp+0.5,yp-0.5,zp+0.5,distsq,closed);
-                        else
-                            remove = !within(x,y,z,xp+0.5,yp+0.5,zp+0.5,distsq,closed);
-                        }
-                    }
-                }
-            else if (measurementRule == Grid2D.ALL)
-                {
-                if (z < zp)
-                    {
-                    if (x < xp)
-                        {
-                        if (y < yp)
-                            remove = !within(x,y,z,xp+0.5,yp+0.5,zp+0.5,distsq,closed);
-                        else
-                            remove = !within(x,y,z,xp+0.5,yp-0.5,zp+0.5,distsq,closed);
-                        }
-                    else
-                        {
-                        if (y < yp)
-                            remove = !within(x,y,z,xp-0.5,yp+0.5,zp+0.5,distsq,closed);
-                        else
-                            remove = !within(x,y,z,xp-0.5,yp-0.5,zp+0.5,distsq,closed);
-                        }
-                    }
-                else
-                    {
-                    if (x < xp)
-                        {
-                        if (y < yp)
-                            remove = !within(x,y,z,xp+0.5,yp+0.5,zp-0.5,distsq,closed);
-                        else
-                            remove = !within(x,y,z,xp+0.5,yp-0.5,zp-0.5,distsq,closed);
-                        }
-                    else
-                        {
-                        if (y < yp)
-                            remove = !within(x,y,z,xp-0.5,yp+0.5,zp-0.5,distsq,closed);
-                        else
-                            remove = !within(x,y,z,xp-0.5,yp-0.5,zp-0.5,distsq,closed);
-                        }
-                    }
-
-                }
-            else // (measurementRule == Grid2D.CENTER)
-                {
-                remove = !within(x,y,z,xp,yp,zp,distsq,closed);
-                }
-                
-            if (remove)
-                { xPos.remove(i); yPos.remove(i); zPos.remove(i); i--; len--; }
-            else if (toroidal) // need to convert to toroidal position
-                { 
-                int _x = xPos.get(i);
-                int _y = yPos.get(i);
-                int _z = zPos.get(i);
-                xPos.set(i, tx(_x, width, widthtimestwo, _x + width, _x - width));
-                yPos.set(i, ty(_y, height, heighttimestwo, _y + width, _y - width));
-                zPos.set(i, tz(_z, length, lengthtimestwo, _z + length, _z - length));
-                }
+            throw new RuntimeException( "xPos and yPos and zPos should not be null" );
+            }
+        xPos.clear();
+        yPos.clear();
+        zPos.clear();
+        AbstractGrid3D.walk(width, height, length, x, y, z, neighborhood, mode, includeOrigin, null, xPos, yPos, zPos);
+        }
 
+    /**
+     * Shows the visitor, one at a time, each of the locations getLocations(...) would have put into xPos, yPos, and zPos,
+     * in the same fashion as visitMooreLocations(...).
+     */
+    public boolean visitLocations( final int x, final int y, final int z, Neighborhood3D neighborhood, int mode, boolean includeOrigin, LocationVisitor3D visitor )
+        {
+        if( visitor == null )
+            {
+            throw new RuntimeException( "visitor should not be null" );
             }
+        return AbstractGrid3D.walk(width, height, length, x, y, z, neighborhood, mode, includeOrigin, visitor, null, null, null);
+        }
+
+    /**
+     * Shows the visitor, one at a time, each of the locations getMooreLocations(...) would have put into xPos, yPos, and zPos,
+     * without making or filling any IntBags.  The modes work as they do in getMooreLocations(...), and
+     * toroidal locations will not be shown more than once.  If the visitor returns false, the walk stops there.
+     * Returns false if the visitor stopped the walk, else true.
+     */
+    public boolean visitMooreLocations( final int x, final int y, final int z, final int dist, int mode, boolean includeOrigin, LocationVisitor3D visitor )
+        {
+        return AbstractGrid3D.walk(width, height, length, x, y, z, AbstractGrid3D.WALK_MOORE, dist, mode, includeOrigin, visitor);
+        }
+
+    /**
+     * Shows the visitor, one at a time, each of the locations getVonNeumannLocations(...) would have put into xPos, yPos, and zPos,
+     * in the same fashion as visitMooreLocations(...).
+     */
+    public boolean visitVonNeumannLocations( final int x, final int y, final int z, final int dist, int mode, boolean includeOrigin, LocationVisitor3D visitor )
+        {
+        return AbstractGrid3D.walk(width, height, length, x, y, z, AbstractGrid3D.WALK_VON_NEUMANN, dist, mode, includeOrigin, visitor);
+        }
+
+    /**
+     * Shows the visitor, one at a time, each of the locations getRadialLocations(...) would have put into xPos, yPos, and zPos,
+     * in the same fashion as visitLocations(...).  These are the same locations, but they may come in a different order.
+     */
+    public boolean visitRadialLocations( final int x, final int y, final int z, final double dist, int mode, boolean includeOrigin, int measurementRule, boolean closed, LocationVisitor3D visitor )
+        {
+        return visitLocations(x, y, z, Neighborhood3D.radial(dist, measurementRule, closed), mode, includeOrigin, visitor);
         }
 
 
@@ -0,0 +1,239 @@
+/*
+  Copyright 2006 by Sean Luke and George Mason University
+  Licensed under the Academic Free License version 3.0
+  See the file "LICENSE" for more information
+*/
+
+package sim.field.grid;
+
+/**
+   The stencil kernels behind DoubleGrid2D.diffuse(...), DoubleGrid2D.applyStencil(...) and their DoubleGrid3D
+   equivalents.  Each new value is worked out from the sum S of the old values in a cell's neighborhood (including the
+   cell itself) and the number n of cells in it: when diffusing, the new value is
+   <tt>evaporationRate * (v + diffusionRate * (S/n - v))</tt>, and otherwise it's
+   <tt>centerWeight * v + neighborWeight * (S - v)</tt>.  The sums are added up in the same order as HeatBugs'
+   Diffuser and HexaBugs' HexaDiffuser add them up, so diffusing gives exactly the same numbers they do.
+
+   <p>Most cells have all their neighbors in the grid and are done in a tight loop.  Cells on the edges, where
+   the neighborhood wraps around or falls off the grid, are done more slowly, one neighbor at a time.  The columns
+   of the grid are divided among the threads, and in 2D each thread works through its columns a block of rows
+   at a time, so that the three columns it's reading stay in the cache.
+*/
+
+final class Stencil
+    {
+    /** Rows per block in 2D: three columns' worth of blocks fit comfortably in a typical L2 cache. */
+    static final int BLOCK = 4096;
+
+    // Neighborhoods, listed in the order they're added up.  Hexagonal neighborhoods depend on whether x is even or odd.
+    static final int[][] MOORE_2D = { {-1,-1}, {-1,0}, {-1,1}, {0,-1}, {0,0}, {0,1}, {1,-1}, {1,0}, {1,1} };
+    static final int[][] VON_NEUMANN_2D = { {-1,0}, {0,-1}, {0,0}, {0,1}, {1,0} };
+    static final int[][] HEXAGONAL_EVEN_2D = { {0,0}, {-1,-1}, {1,-1}, {-1,0}, {1,0}, {0,-1}, {0,1} };
+    static final int[][] HEXAGONAL_ODD_2D = { {0,0}, {-1,0}, {1,0}, {-1,1}, {1,1}, {0,-1}, {0,1} };
+    static final int[][] VON_NEUMANN_3D = { {-1,0,0}, {0,-1,0}, {0,0,-1}, {0,0,0}, {0,0,1}, {0,1,0}, {1,0,0} };
+    static final int[][] MOORE_3D = new int[27][];
+    static
+        {
+        int i = 0;
+        for(int dx = -1; dx <= 1; dx++)
+            for(int dy = -1; dy <= 1; dy++)
+                for(int dz = -1; dz <= 1; dz++)
+                    MOORE_3D[i++] = new int[] { dx, dy, dz };
+        }
+
+    final int kernel;
+    final boolean toroidal;
+    final boolean diffuse;
+    final double a;  // evaporationRate or centerWeight
+    final double b;  // diffusionRate or neighborWeight
+
+    Stencil(int kernel, boolean toroidal, boolean diffuse, double a, double b)
+        {
+        this.kernel = kernel;
+        this.toroidal = toroidal;
+        this.diffuse = diffuse;
+        this.a = a;
+        this.b = b;
+        }
+
+    final double value(double v, double sum, int n)
+        {
+        if (diffuse) return a * (v + b * (sum / n - v));
+        else return a * v + b * (sum - v);
+        }
+
+    /** Runs the stencil over 'from' into 'to', splitting the columns among up to 'threads' threads. */
+    void apply(final Object from, final Object to, final int width, final int threads)
+        {
+        final int t = Math.max(1, Math.min(threads, width / 4));  // don't bother with threads for a few columns
+        Thread[] thread = new Thread[t - 1];
+        for(int i = 0; i < thread.length; i++)
+            {
+            final int start = (int)(((long) width) * (i + 1) / t);
+            final int end = (int)(((long) width) * (i + 2) / t);
+            thread[i] = new Thread(new Runnable() { public void run() { applyRange(from, to, start, end); } });
+            thread[i].start();
+            }
+        applyRange(from, to, 0, width / t);
+        for(int i = 0; i < thread.length; i++)
+            while(true)
+                {
+                try { thread[i].join(); break; }
+                catch (InterruptedException e) { }  // try again
+                }
+        }
+
+    void applyRange(Object from, Object to, int start, int end)
+        {
+        if (from instanceof double[][][]) apply3D((double[][][]) from, (double[][][]) to, start, end);
+        else apply2D((double[][]) from, (double[][]) to, start, end);
+        }
+
+
+
+    //// 2D
+
+    void apply2D(double[][] from, double[][] to, int start, int end)
+        {
+        final int width = from.length;
+        final int height = (width == 0 ? 0 : from[0].length);
+        for(int y0 = 0; y0 < height; y0 += BLOCK)
+            {
+            final int y1 = Math.min(height, y0 + BLOCK);
+            for(int x = start; x < end; x++)
+                {
+                final double[] current = from[x];
+                final double[] put = to[x];
+                final boolean inside = (x > 0 && x < width - 1);
+                final double[] past = (inside ? from[x - 1] : null);
+                final double[] next = (inside ? from[x + 1] : null);
+                final int lo = (inside ? Math.max(y0, 1) : y1);         // the rows we can do quickly
+                final int hi = (inside ? Math.min(y1, height - 1) : y1);
+                for(int y = y0; y < lo; y++) put[y] = slow2D(from, x, y, width, height);
+                switch(kernel)
+                    {
+                    case DoubleGrid2D.MOORE_STENCIL:
+                        for(int y = lo; y < hi; y++)
+                            put[y] = value(current[y], past[y-1] + past[y] + past[y+1] +
+                                current[y-1] + current[y] + current[y+1] +
+                                next[y-1] + next[y] + next[y+1], 9);
+                        break;
+                    case DoubleGrid2D.VON_NEUMANN_STENCIL:
+                        for(int y = lo; y < hi; y++)
+                            put[y] = value(current[y], past[y] + current[y-1] + current[y] + current[y+1] + next[y], 5);
+                        break;
+                    default:  // hexagonal
+                        if ((x & 1) == 0)
+                            for(int y = lo; y < hi; y++)
+                                put[y] = value(current[y], current[y] + past[y-1] + next[y-1] + past[y] + next[y] +
+                                    current[y-1] + current[y+1], 7);
+                        else
+                            for(int y = lo; y < hi; y++)
+                                put[y] = value(current[y], current[y] + past[y] + next[y] + past[y+1] + next[y+1] +
+                                    current[y-1] + current[y+1], 7);
+                        break;
+                    }
+                for(int y = Math.max(hi, lo); y < y1; y++) put[y] = slow2D(from, x, y, width, height);
+                }
+            }
+        }
+
+    // Works out a cell on the edge one neighbor at a time
+    double slow2D(double[][] from, int x, int y, int width, int height)
+        {
+        int[][] offsets = (kernel == DoubleGrid2D.MOORE_STENCIL ? MOORE_2D :
+            kernel == DoubleGrid2D.VON_NEUMANN_STENCIL ? VON_NEUMANN_2D :
+            (x & 1) == 0 ? HEXAGONAL_EVEN_2D : HEXAGONAL_ODD_2D);
+        double sum = 0;
+        int n = 0;
+        for(int i = 0; i < offsets.length; i++)
+            {
+            int xx = x + offsets[i][0];
+            int yy = y + offsets[i][1];
+            if (toroidal)
+                {
+                xx = wrap(xx, width);
+                yy = wrap(yy, height);
+                }
+            else if (xx < 0 || xx >= width || yy < 0 || yy >= height) continue;
+            sum += from[xx][yy];
+            n++;
+            }
+        return value(from[x][y], sum, n);
+        }
+
+    static int wrap(int i, int size)
+        {
+        if (i < 0) return i + size;
+        if (i >= size) return i - size;
+        return i;
+        }
+
+
+
+    //// 3D
+
+    void apply3D(double[][][] from, double[][][] to, int start, int end)
+        {
+        final int width = from.length;
+        final int height = (width == 0 ? 0 : from[0].length);
+        final int length = (height == 0 ? 0 : from[0][0].length);
+        for(int x = start; x < end; x++)
+            {
+            final boolean insideX = (x > 0 && x < width - 1);
+            for(int y = 0; y < height; y++)
+                {
+                final double[] current = from[x][y];
+                final double[] put = to[x][y];
+                if (!insideX || y == 0 || y == height - 1 || length < 3)
+                    {
+                    for(int z = 0; z < length; z++) put[z] = slow3D(from, x, y, z, width, height, length);
+                    continue;
+                    }
+                put[0] = slow3D(from, x, y, 0, width, height, length);
+                if (kernel == DoubleGrid3D.MOORE_STENCIL)
+                    {
+                    final double[] p0 = from[x-1][y-1], p1 = from[x-1][y], p2 = from[x-1][y+1];
+                    final double[] c0 = from[x][y-1], c2 = from[x][y+1];
+                    final double[] n0 = from[x+1][y-1], n1 = from[x+1][y], n2 = from[x+1][y+1];
+                    for(int z = 1; z < length - 1; z++)
+                        put[z] = value(current[z],
+                            p0[z-1] + p0[z] + p0[z+1] + p1[z-1] + p1[z] + p1[z+1] + p2[z-1] + p2[z] + p2[z+1] +
+                            c0[z-1] + c0[z] + c0[z+1] + current[z-1] + current[z] + current[z+1] + c2[z-1] + c2[z] + c2[z+1] +
+                            n0[z-1] + n0[z] + n0[z+1] + n1[z-1] + n1[z] + n1[z+1] + n2[z-1] + n2[z] + n2[z+1], 27);
+                    }
+                else
+                    {
+                    final double[] p1 = from[x-1][y], c0 = from[x][y-1], c2 = from[x][y+1], n1 = from[x+1][y];
+                    for(int z = 1; z < length - 1; z++)
+                        put[z] = value(current[z], p1[z] + c0[z] + current[z-1] + current[z] + current[z+1] + c2[z] + n1[z], 7);
+                    }
+                put[length - 1] = slow3D(from, x, y, length - 1, width, height, length);
+                }
+            }
+        }
+
+    // Works out a cell on the edge one neighbor at a time
+    double slow3D(double[][][] from, int x, int y, int z, int width, int height, int length)
+        {
+        int[][] offsets = (kernel == DoubleGrid3D.MOORE_STENCIL ? MOORE_3D : VON_NEUMANN_3D);
+        double sum = 0;
+        int n = 0;
+        for(int i = 0; i < offsets.length; i++)
+            {
+            int xx = x + offsets[i][0];
+            int yy = y + offsets[i][1];
+            int zz = z + offsets[i][2];
+            if (toroidal)
+                {
+                xx = wrap(xx, width);
+                yy = wrap(yy, height);
+                zz = wrap(zz, length);
+                }
+            else if (xx < 0 || xx >= width || yy < 0 || yy >= height || zz < 0 || zz >= length) continue;
+            sum += from[xx][yy][zz];
+            n++;
+            }
+        return value(from[x][y][z], sum, n);
+        }
+    }
@@ -0,0 +1,662 @@
+/*
+  Copyright 2006 by Sean Luke and George Mason University
+  Licensed under the Academic Free License version 3.0
+  See the file "LICENSE" for more information
+*/
+
+package sim.field.grid;
+import sim.util.*;
+
+/**
+   A DoubleGrid2D stored in square tiles of 64 by 64 values, for very large grids.  In a DoubleGrid2D, each column
+   is its own array, so on a grid thousands of cells tall, the cells to the left and right of a cell are far apart
+   in memory: looking at a neighborhood touches as many distant pages of memory as the neighborhood is wide.  Here each
+   tile is one 32K stretch of a single flat array, with its 64 columns one after the other, so a neighborhood
+   mostly lies within one tile and touches one or two pages.  The grid is padded out to a whole number of tiles.
+
+   <p>The value at (x,y) is at field[index(x,y)].  get(...), set(...), and the whole-grid operations work as they do
+   in DoubleGrid2D.  getMooreValues(...) and getVonNeumannValues(...) gather the values in a neighborhood straight
+   from the tiles, a run of each column at a time, rather than first making lists of their locations as
+   getMooreNeighbors(...) and friends do.
+
+   <p>As with FlatDoubleGrid2D, getField() builds a double[][] copy of the grid for older code and the portrayals,
+   and refreshes it each time you ask for it; changes you make to it don't make it back into the grid unless you
+   pass it to setTo(...).  For delta checkpoints, the grid remembers a hash of each stretch of 1024 values, and writes out
+   only the stretches which have changed.
+
+   <p>main(...) times a stencil and random neighborhood lookups on DoubleGrid2D against TiledDoubleGrid2D.
+*/
+
+public /*strictfp*/ class TiledDoubleGrid2D extends AbstractGrid2D implements DeltaCheckpointable
+    {
+    private static final long serialVersionUID = 1;
+
+    /** Tiles are 2^TILE_SHIFT values on a side. */
+    public static final int TILE_SHIFT = 6;
+    /** Tiles are TILE_SIZE values on a side. */
+    public static final int TILE_SIZE = 1 << TILE_SHIFT;
+    static final int TILE_MASK = TILE_SIZE - 1;
+    static final int TILE_AREA_SHIFT = TILE_SHIFT * 2;
+
+    /** The tiles, one after the other, each holding its columns one after the other.  Use index(x,y) to find a value. */
+    public double[] field;
+
+    // the number of tiles down the grid
+    int tilesHigh;
+
+    // the double[][] made by getField(), or null
+    transient double[][] view;
+
+    // hashes of the stretches of the field at the last delta checkpoint, or null if not keeping track
+    transient long[] deltaHashes;
+    transient int deltaWidth;
+    transient int deltaHeight;
+
+    public TiledDoubleGrid2D (int width, int height)
+        {
+        reshape(width, height);
+        }
+
+    public TiledDoubleGrid2D (int width, int height, double initialValue)
+        {
+        this(width,height);
+        setTo(initialValue);
+        }
+
+    public TiledDoubleGrid2D (TiledDoubleGrid2D values)
+        {
+        setTo(values);
+        }
+
+    public TiledDoubleGrid2D (DoubleGrid2D values)
+        {
+        setTo(values.field);
+        }
+
+    public TiledDoubleGrid2D(double[][] values)
+        {
+        setTo(values);
+        }
+
+    void reshape(int width, int height)
+        {
+        this.width = width;
+        this.height = height;
+        tilesHigh = (height + TILE_MASK) >> TILE_SHIFT;
+        int tilesWide = (width + TILE_MASK) >> TILE_SHIFT;
+        long size = ((long)(tilesWide * tilesHigh)) << TILE_AREA_SHIFT;
+        if (size > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("TiledDoubleGrid2D of " + width + " by " + height + " is too large.");
+        if (field == null || field.length != size) field = new double[(int) size];
+        }
+
+    /** Returns where in field the value at (x,y) is. */
+    public final int index(final int x, final int y)
+        {
+        return ((((x >> TILE_SHIFT) * tilesHigh + (y >> TILE_SHIFT)) << TILE_AREA_SHIFT) | ((x & TILE_MASK) << TILE_SHIFT) | (y & TILE_MASK));
+        }
+
+    /** Returns a double[][] copy of the grid, which is made once and refreshed each time you call this method.
+        Changes you make to it aren't made to the grid: use setTo(double[][]) for that. */
+    public double[][] getField()
+        {
+        final int width = this.width;
+        final int height = this.height;
+        if (view == null || view.length != width || (width > 0 && view[0].length != height))
+            view = new double[width][height];
+        for(int x = 0; x < width; x++)
+            {
+            double[] viewx = view[x];
+            for(int y = 0; y < height; y += TILE_SIZE)
+                System.arraycopy(field, index(x, y), viewx, y, Math.min(TILE_SIZE, height - y));
+            }
+        return view;
+        }
+
+    /** Sets location (x,y) to val */
+    public final void set(final int x, final int y, final double val)
+        {
+        field[index(x, y)] = val;
+        }
+
+    /** Returns the element at location (x,y) */
+    public final double get(final int x, final int y)
+        {
+        return field[index(x, y)];
+        }
+
+    /** Sets all the locations in the grid the provided element */
+    public final TiledDoubleGrid2D setTo(final double thisMuch)
+        {
+        java.util.Arrays.fill(field, thisMuch);
+        return this;
+        }
+
+    /** Sets the grid to a copy of the provided array, which must be rectangular. */
+    public TiledDoubleGrid2D setTo(double[][] field)
+        {
+        // check info
+
+        if (field == null)
+            throw new RuntimeException("TiledDoubleGrid2D set to null field.");
+        int w = field.length;
+        int h = 0;
+        if (w != 0) h = field[0].length;
+        for(int i = 0; i < w; i++)
+            if (field[i].length != h) // uh oh
+                throw new RuntimeException("TiledDoubleGrid2D initialized with a non-rectangular field.");
+
+        // load
+
+        reshape(w, h);
+        for(int x = 0; x < w; x++)
+            for(int y = 0; y < h; y += TILE_SIZE)
+                System.arraycopy(field[x], y, this.field, index(x, y), Math.min(TILE_SIZE, h - y));
+        return this;
+        }
+
+    /** Changes the dimensions of the grid to be the same as the one provided, then
+        sets all the locations in the grid to the elements at the quivalent locations in the
+        provided grid. */
+    public final TiledDoubleGrid2D setTo(final TiledDoubleGrid2D values)
+        {
+        reshape(values.width, values.height);
+        System.arraycopy(values.field, 0, field, 0, field.length);
+        return this;
+        }
+
+    /** Flattens the grid to a one-dimensional array, storing the elements in row-major order,including duplicates and null values.
+        Returns the grid. */
+    public final double[] toArray()
+        {
+        final int width = this.width;
+        final int height = this.height;
+        double[] vals = new double[width * height];
+        for(int x = 0; x < width; x++)
+            for(int y = 0; y < height; y += TILE_SIZE)
+                System.arraycopy(field, index(x, y), vals, x * height + y, Math.min(TILE_SIZE, height - y));
+        return vals;
+        }
+
+    /** Returns the maximum value stored in the grid */
+    public final double max()
+        {
+        double max = Double.NEGATIVE_INFINITY;
+        final double[] field = this.field;
+        for(int x = 0; x < width; x++)
+            for(int y = 0; y < height; y += TILE_SIZE)
+                {
+                int i = index(x, y);
+                int end = i + Math.min(TILE_SIZE, height - y);
+                for( ; i < end; i++)
+                    if (max < field[i]) max = field[i];
+                }
+        return max;
+        }
+
+    /** Returns the minimum value stored in the grid */
+    public final double min()
+        {
+        double min = Double.POSITIVE_INFINITY;
+        final double[] field = this.field;
+        for(int x = 0; x < width; x++)
+            for(int y = 0; y < height; y += TILE_SIZE)
+                {
+                int i = index(x, y);
+                int end = i + Math.min(TILE_SIZE, height - y);
+                for( ; i < end; i++)
+                    if (min > field[i]) min = field[i];
+                }
+        return min;
+        }
+
+    /** Returns the mean value stored in the grid */
+    public final double mean()
+        {
+        double mean = 0;
+        final double[] field = this.field;
+        for(int x = 0; x < width; x++)
+            for(int y = 0; y < height; y += TILE_SIZE)
+                {
+                int i = index(x, y);
+                int end = i + Math.min(TILE_SIZE, height - y);
+                for( ; i < end; i++)
+                    mean += field[i];
+                }
+        long count = ((long) width) * height;
+        return (count == 0 ? 0 : mean / count);
+        }
+
+    // The rest work on the padding as well, which does no harm
+
+    /** Thresholds the grid so that values greater to <i>toNoMoreThanThisMuch</i> are changed to <i>toNoMoreThanThisMuch</i>.
+        Returns the modified grid.
+    */
+    public final TiledDoubleGrid2D upperBound(final double toNoMoreThanThisMuch)
+        {
+        final double[] field = this.field;
+        for(int i = 0; i < field.length; i++)
+            if (field[i] > toNoMoreThanThisMuch)
+                field[i] = toNoMoreThanThisMuch;
+        return this;
+        }
+
+    /** Thresholds the grid so that values smaller than <i>toNoLowerThanThisMuch</i> are changed to <i>toNoLowerThanThisMuch</i>
+        Returns the modified grid.
+    */
+    public final TiledDoubleGrid2D lowerBound(final double toNoLowerThanThisMuch)
+        {
+        final double[] field = this.field;
+        for(int i = 0; i < field.length; i++)
+            if (field[i] < toNoLowerThanThisMuch)
+                field[i] = toNoLowerThanThisMuch;
+        return this;
+        }
+
+    /** Sets each value in the grid to that value added to <i>withThisMuch</i>
+        Returns the modified grid.
+    */
+    public final TiledDoubleGrid2D add(final double withThisMuch)
+        {
+        if (withThisMuch==0.0) return this;
+        final double[] field = this.field;
+        for(int i = 0; i < field.length; i++)
+            field[i] += withThisMuch;
+        return this;
+        }
+
+    /** Sets the value at each location in the grid to that value added to the value at the equivalent location in the provided grid.
+        Returns the modified grid.
+    */
+    public final TiledDoubleGrid2D add(final TiledDoubleGrid2D withThis)
+        {
+        checkBounds(withThis);
+        final double[] field = this.field;
+        final double[] otherField = withThis.field;
+        for(int i = 0; i < field.length; i++)
+            field[i] += otherField[i];
+        return this;
+        }
+
+    /** Sets each value in the grid to that value multiplied <i>byThisMuch</i>
+        Returns the modified grid.
+    */
+    public final TiledDoubleGrid2D multiply(final double byThisMuch)
+        {
+        if (byThisMuch==1.0) return this;
+        final double[] field = this.field;
+        for(int i = 0; i < field.length; i++)
+            field[i] *= byThisMuch;
+        return this;
+        }
+
+    /** Sets the value at each location in the grid to that value multiplied by to the value at the equivalent location in the provided grid.
+        Returns the modified grid.
+    */
+    public final TiledDoubleGrid2D multiply(final TiledDoubleGrid2D withThis)
+        {
+        checkBounds(withThis);
+        final double[] field = this.field;
+        final double[] otherField = withThis.field;
+        for(int i = 0; i < field.length; i++)
+            field[i] *= otherField[i];
+        return this;
+        }
+
+    /**
+     * Replace instances of one value to another.
+     * @param from any element that matches this value will be replaced
+     * @param to with this value
+     */
+    public final void replaceAll(double from, double to)
+        {
+        final double[] field = this.field;
+        for(int i = 0; i < field.length; i++)
+            if (field[i] == from)
+                field[i] = to;
+        }
+
+    /** Puts into the result, which is cleared first, the values at all locations that satisfy max( abs(x-X) , abs(y-Y) ) <= dist,
+        including (X,Y) itself, column by column.  If <i>toroidal</i> is false, locations off the grid are left out, and if
+        it's true, no location appears twice, however far the neighborhood wraps around.  If the result is null, one
+        is created.  Returns the result.
+        
+        <p>This gives the same values as getMooreNeighbors(...) so long as the neighborhood fits in the grid, that is,
+        2*dist+1 is no more than the width and the height.  If a toroidal neighborhood is bigger than that,
+        getMooreNeighbors(...) lists some locations several times (on a 65x3 grid at dist 3 it gives 455 values),
+        whereas this method lists each one once (21 values). */
+    public DoubleBag getMooreValues(final int x, final int y, final int dist, final boolean toroidal, DoubleBag result)
+        {
+        if (result == null) result = new DoubleBag();
+        else result.clear();
+        int x0 = x - dist;
+        int x1 = x + dist;
+        if (toroidal)
+            {
+            if (x1 - x0 + 1 >= width) { x0 = 0; x1 = width - 1; }
+            }
+        else
+            {
+            if (x0 < 0) x0 = 0;
+            if (x1 >= width) x1 = width - 1;
+            }
+        for(int xx = x0; xx <= x1; xx++)
+            addColumn(toroidal ? tx(xx) : xx, y - dist, y + dist, toroidal, result);
+        return result;
+        }
+
+    /** Puts into the result, which is cleared first, the values at all locations that satisfy abs(x-X) + abs(y-Y) <= dist,
+        including (X,Y) itself, column by column.  If <i>toroidal</i> is false, locations off the grid are left out, and if
+        it's true, no location appears twice, however far the neighborhood wraps around.  If the result is null, one
+        is created.  Returns the result.
+        
+        <p>This gives the same values as getVonNeumannNeighbors(...), even when a toroidal neighborhood is bigger than the grid. */
+    public DoubleBag getVonNeumannValues(final int x, final int y, final int dist, final boolean toroidal, DoubleBag result)
+        {
+        if (result == null) result = new DoubleBag();
+        else result.clear();
+        int x0 = x - dist;
+        int x1 = x + dist;
+        if (toroidal)
+            {
+            if (x1 - x0 + 1 > width) { x0 = x - width / 2; x1 = x0 + width - 1; }  // each column just once
+            }
+        else
+            {
+            if (x0 < 0) x0 = 0;
+            if (x1 >= width) x1 = width - 1;
+            }
+        for(int xx = x0; xx <= x1; xx++)
+            {
+            int d = dist - Math.abs(xx - x);
+            addColumn(toroidal ? tx(xx) : xx, y - d, y + d, toroidal, result);
+            }
+        return result;
+        }
+
+    // Adds the values in column x from y0 to y1 inclusive, a run within a tile at a time
+    void addColumn(final int x, int y0, int y1, final boolean toroidal, final DoubleBag result)
+        {
+        if (toroidal)
+            {
+            if (y1 - y0 + 1 >= height) { y0 = 0; y1 = height - 1; }
+            }
+        else
+            {
+            if (y0 < 0) y0 = 0;
+            if (y1 >= height) y1 = height - 1;
+            }
+        final double[] field = this.field;
+        int n = y1 - y0 + 1;
+        int y = (toroidal ? ty(y0) : y0);
+        if (result.objs.length < result.numObjs + n) result.resize(result.numObjs + n);
+        final double[] objs = result.objs;
+        int numObjs = result.numObjs;
+        while(n > 0)
+            {
+            int run = Math.min(n, Math.min(TILE_SIZE - (y & TILE_MASK), height - y));
+            int i = index(x, y);
+            for(int end = i + run; i < end; i++)
+                objs[numObjs++] = field[i];
+            n -= run;
+            y += run;
+            if (y == height) y = 0;
+            }
+        result.numObjs = numObjs;
+        }
+
+    /**
+     * Gets the values at all locations that satisfy max( abs(x-X) , abs(y-Y) ) <= dist, just as
+     * DoubleGrid2D.getMooreNeighbors(...) does.
+     */
+    public DoubleBag getMooreNeighbors( final int x, final int y, final int dist, int mode, boolean includeOrigin, DoubleBag result, IntBag xPos, IntBag yPos )
+        {
+        if( xPos == null )
+            xPos = new IntBag();
+        if( yPos == null )
+            yPos = new IntBag();
+
+        getMooreLocations( x, y, dist, mode, includeOrigin, xPos, yPos );
+        return getObjectsAtLocations(xPos,yPos,result);
+        }
+
+    /**
+     * Gets the values at all locations that satisfy abs(x-X) + abs(y-Y) <= dist, just as
+     * DoubleGrid2D.getVonNeumannNeighbors(...) does.
+     */
+    public DoubleBag getVonNeumannNeighbors( final int x, final int y, final int dist, int mode, boolean includeOrigin, DoubleBag result, IntBag xPos, IntBag yPos )
+        {
+        if( xPos == null )
+            xPos = new IntBag();
+        if( yPos == null )
+            yPos = new IntBag();
+
+        getVonNeumannLocations( x, y, dist, mode, includeOrigin, xPos, yPos );
+        return getObjectsAtLocations(xPos,yPos,result);
+        }
+
+    /**
+     * Gets the values at all locations within the hexagon centered at (X,Y) and 2*dist+1 cells from point to opposite point
+     * inclusive, just as DoubleGrid2D.getHexagonalNeighbors(...) does.
+     */
+    public DoubleBag getHexagonalNeighbors( final int x, final int y, final int dist, int mode, boolean includeOrigin, DoubleBag result, IntBag xPos, IntBag yPos )
+        {
+        if( xPos == null )
+            xPos = new IntBag();
+        if( yPos == null )
+            yPos = new IntBag();
+
+        getHexagonalLocations( x, y, dist, mode, includeOrigin, xPos, yPos );
+        return getObjectsAtLocations(xPos,yPos,result);
+        }
+
+    /**
+     * Gets the values at all locations within the given distance, measured by the given rule, just as
+     * DoubleGrid2D.getRadialNeighbors(...) does.
+     */
+    public DoubleBag getRadialNeighbors( final int x, final int y, final int dist, int mode, boolean includeOrigin,  int measurementRule, boolean closed,  DoubleBag result, IntBag xPos, IntBag yPos )
+        {
+        if( xPos == null )
+            xPos = new IntBag();
+        if( yPos == null )
+            yPos = new IntBag();
+
+        getRadialLocations( x, y, dist, mode, includeOrigin, measurementRule, closed, xPos, yPos );
+        return getObjectsAtLocations(xPos,yPos,result);
+        }
+
+    /* For each <xPos,yPos> location, puts all such objects into the result DoubleBag.  Returns the result DoubleBag.
+       If the provided result DoubleBag is null, one will be created and returned. */
+    DoubleBag getObjectsAtLocations(final IntBag xPos, final IntBag yPos, DoubleBag result)
+        {
+        if (result==null) result = new DoubleBag();
+        else result.clear();
+
+        for( int i = 0 ; i < xPos.numObjs ; i++ )
+            {
+            assert sim.util.LocationLog.it(this, new Int2D(xPos.objs[i],yPos.objs[i]));
+            result.add( field[index(xPos.objs[i], yPos.objs[i])] );
+            }
+        return result;
+        }
+
+    // The delta checkpoint code works on columns, so we hand it the field as one long column
+    public void startDeltas()
+        {
+        deltaWidth = width;
+        deltaHeight = height;
+        deltaHashes = GridDelta.hash(new double[][] { field }, 1, field.length);
+        }
+
+    public void stopDeltas()
+        {
+        deltaHashes = null;
+        }
+
+    public Object getDelta()
+        {
+        if (width != deltaWidth || height != deltaHeight)  // reshaped, so write the whole thing
+            {
+            startDeltas();
+            return new GridDelta(width, height, field);
+            }
+        return GridDelta.diff(new double[][] { field }, 1, field.length, deltaHashes);
+        }
+
+    public void applyDelta(Object d)
+        {
+        GridDelta delta = (GridDelta) d;
+        if (delta.field != null)
+            {
+            field = (double[])(delta.field);
+            width = delta.width;
+            height = delta.height;
+            tilesHigh = (height + TILE_MASK) >> TILE_SHIFT;
+            }
+        else delta.apply(new double[][] { field });
+        }
+
+    /** Times, for grids of each of the given sizes (by default 1024, 4096, and 16384 on a side, memory permitting),
+        on a DoubleGrid2D and on a TiledDoubleGrid2D: a Moore stencil over the whole grid, written the fastest way for
+        each; Moore neighborhoods of radius 3 at random places, looked up by hand; and the same neighborhoods
+        fetched with getMooreNeighbors(...) and getMooreValues(...).  Each is run once to warm up and then timed.
+        Java can't count cache misses itself: run it under a profiler such as perf to see them. */
+    public static void main(String[] args)
+        {
+        int[] sizes = { 1024, 4096, 16384 };
+        if (args.length > 0)
+            {
+            sizes = new int[args.length];
+            for(int i = 0; i < args.length; i++) sizes[i] = Integer.parseInt(args[i]);
+            }
+        for(int s = 0; s < sizes.length; s++)
+            {
+            int n = sizes[s];
+            long bytes = ((long) n) * n * 8;
+            if (bytes * 5 / 4 > Runtime.getRuntime().maxMemory())
+                {
+                System.out.println(n + " x " + n + ": skipped, needs about " + (bytes >> 20) + "M of heap per grid (try -Xmx)");
+                continue;
+                }
+            System.out.println(n + " x " + n + ":");
+            long[] times = new long[3];
+            double sum = 0;
+
+            // Do one grid at a time, so the biggest only needs room for one
+            DoubleGrid2D grid = new DoubleGrid2D(n, n);
+            ec.util.MersenneTwisterFast random = new ec.util.MersenneTwisterFast(1);
+            for(int x = 0; x < n; x++) for(int y = 0; y < n; y++) grid.field[x][y] = random.nextDouble();
+            for(int rep = 0; rep < 2; rep++) sum = benchmark(grid, n, times);
+            System.out.println("    DoubleGrid2D       stencil " + times[0] + " ms, random by hand " + times[1] +
+                " ms, random getMooreNeighbors " + times[2] + " ms");
+            grid = null;
+
+            TiledDoubleGrid2D tiled = new TiledDoubleGrid2D(n, n);
+            random = new ec.util.MersenneTwisterFast(1);
+            for(int x = 0; x < n; x++) for(int y = 0; y < n; y++) tiled.set(x, y, random.nextDouble());
+            double tiledSum = 0;
+            for(int rep = 0; rep < 2; rep++) tiledSum = benchmark(tiled, n, times);
+            System.out.println("    TiledDoubleGrid2D  stencil " + times[0] + " ms, random by hand " + times[1] +
+                " ms, random getMooreValues    " + times[2] + " ms" +
+                (Math.abs(sum - tiledSum) <= 1e-6 * Math.abs(sum) ? "" : "  (sums differ!)"));
+            tiled = null;
+            }
+        }
+
+    static final int LOOKUPS = 2000000;
+
+    static double benchmark(DoubleGrid2D grid, int n, long[] times)
+        {
+        double sum = 0;
+        double[][] f = grid.field;
+
+        long time = System.currentTimeMillis();
+        for(int x = 1; x < n - 1; x++)
+            {
+            double[] p = f[x - 1], c = f[x], q = f[x + 1];
+            for(int y = 1; y < n - 1; y++)
+                sum += p[y-1] + p[y] + p[y+1] + c[y-1] + c[y] + c[y+1] + q[y-1] + q[y] + q[y+1];
+            }
+        times[0] = System.currentTimeMillis() - time;
+
+        ec.util.MersenneTwisterFast random = new ec.util.MersenneTwisterFast(2);
+        time = System.currentTimeMillis();
+        for(int i = 0; i < LOOKUPS; i++)
+            {
+            int x = random.nextInt(n - 6) + 3;
+            int y = random.nextInt(n - 6) + 3;
+            for(int xx = x - 3; xx <= x + 3; xx++)
+                {
+                double[] c = f[xx];
+                for(int yy = y - 3; yy <= y + 3; yy++) sum += c[yy];
+                }
+            }
+        times[1] = System.currentTimeMillis() - time;
+
+        random = new ec.util.MersenneTwisterFast(2);
+        DoubleBag values = new DoubleBag(49);
+        IntBag xPos = new IntBag(49);
+        IntBag yPos = new IntBag(49);
+        time = System.currentTimeMillis();
+        for(int i = 0; i < LOOKUPS; i++)
+            {
+            int x = random.nextInt(n - 6) + 3;
+            int y = random.nextInt(n - 6) + 3;
+            grid.getMooreNeighbors(x, y, 3, BOUNDED, true, values, xPos, yPos);
+            for(int j = 0; j < values.numObjs; j++) sum += values.objs[j];
+            }
+        times[2] = System.currentTimeMillis() - time;
+        return sum;
+        }
+
+    static double benchmark(TiledDoubleGrid2D grid, int n, long[] times)
+        {
+        double sum = 0;
+        double[] f = grid.field;
+
+        // a tile's worth of each column at a time, doing the first and last rows of each tile the slow way
+        long time = System.currentTimeMillis();
+        for(int x = 1; x < n - 1; x++)
+            for(int y0 = 0; y0 < n; y0 += TILE_SIZE)
+                {
+                int y1 = Math.min(n - 1, y0 + TILE_SIZE - 1);
+                int lo = Math.max(1, y0);
+                if (lo == y0)
+                    sum += grid.get(x-1, y0-1) + grid.get(x-1, y0) + grid.get(x-1, y0+1) +
+                        grid.get(x, y0-1) + grid.get(x, y0) + grid.get(x, y0+1) +
+                        grid.get(x+1, y0-1) + grid.get(x+1, y0) + grid.get(x+1, y0+1);
+                int p = grid.index(x - 1, y0) - y0, c = grid.index(x, y0) - y0, q = grid.index(x + 1, y0) - y0;
+                for(int y = lo + (lo == y0 ? 1 : 0); y < y1; y++)
+                    sum += f[p+y-1] + f[p+y] + f[p+y+1] + f[c+y-1] + f[c+y] + f[c+y+1] + f[q+y-1] + f[q+y] + f[q+y+1];
+                if (y1 < n - 1)
+                    sum += grid.get(x-1, y1-1) + grid.get(x-1, y1) + grid.get(x-1, y1+1) +
+                        grid.get(x, y1-1) + grid.get(x, y1) + grid.get(x, y1+1) +
+                        grid.get(x+1, y1-1) + grid.get(x+1, y1) + grid.get(x+1, y1+1);
+                }
+        times[0] = System.currentTimeMillis() - time;
+
+        ec.util.MersenneTwisterFast random = new ec.util.MersenneTwisterFast(2);
+        time = System.currentTimeMillis();
+        for(int i = 0; i < LOOKUPS; i++)
+            {
+            int x = random.nextInt(n - 6) + 3;
+            int y = random.nextInt(n - 6) + 3;
+            for(int xx = x - 3; xx <= x + 3; xx++)
+                for(int yy = y - 3; yy <= y + 3; yy++) sum += f[grid.index(xx, yy)];
+            }
+        times[1] = System.currentTimeMillis() - time;
+
+        random = new ec.util.MersenneTwisterFast(2);
+        DoubleBag values = new DoubleBag(49);
+        time = System.currentTimeMillis();
+        for(int i = 0; i < LOOKUPS; i++)
+            {
+            int x = random.nextInt(n - 6) + 3;
+            int y = random.nextInt(n - 6) + 3;
+            grid.getMooreValues(x, y, 3, false, values);
+            for(int j = 0; j < values.numObjs; j++) sum += values.objs[j];
+            }
+        times[2] = System.currentTimeMillis() - time;
+        return sum;
+        }
+    }
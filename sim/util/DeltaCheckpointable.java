@@ -0,0 +1,42 @@
+/*
+  Copyright 2006 by Sean Luke and George Mason University
+  Licensed under the Academic Free License version 3.0
+  See the file "LICENSE" for more information
+*/
+
+package sim.util;
+
+/**
+   A DeltaCheckpointable object is one which can keep track of how it has changed since it was
+   last checkpointed, so that sim.engine.DeltaCheckpointer can write out just the changes rather than
+   the whole object.  This is worthwhile for big objects which change only a bit at a time, like
+   fields.
+
+   <p>When the DeltaCheckpointer writes the object out in full, it calls startDeltas(), and from then on the
+   object keeps track of its changes.  Later, when the DeltaCheckpointer writes a delta checkpoint, it calls getDelta()
+   to get the changes since then, and writes them out immediately, before the object can change again.
+   When it reads the checkpoints back in, it calls applyDelta(...) on the object as it was, to
+   bring it up to date.  Note that the rest of the model is read in afresh from each delta, so the delta may
+   hold new instances of the objects which the DeltaCheckpointable holds, and applyDelta(...) must use
+   these instead of the old ones.
+
+   <p>Whatever the object uses to keep track of its changes should be transient.
+*/
+
+public interface DeltaCheckpointable extends java.io.Serializable
+    {
+    /** Starts keeping track of changes, forgetting any changes made so far. */
+    public void startDeltas();
+
+    /** Stops keeping track of changes. */
+    public void stopDeltas();
+
+    /** Returns a serializable object describing the changes since the last call to startDeltas() or getDelta(),
+        then forgets them.  Since it's written out immediately, it may refer to the object's own data rather
+        than a copy of it. */
+    public Object getDelta();
+
+    /** Applies a delta returned by getDelta() to this object, which is in the state that the
+        other object was in when it was last checkpointed. */
+    public void applyDelta(Object delta);
+    }